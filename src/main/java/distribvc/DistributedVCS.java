@@ -5,6 +5,7 @@ import distribvc.view.CommandLineInterface;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.stereotype.Component;
 
 import java.nio.file.Path;
@@ -12,6 +13,7 @@ import java.nio.file.Paths;
 
 
 @SpringBootApplication
+@EnableScheduling
 public class DistributedVCS {
     public static void main(String[] args) {
         SpringApplication.run(DistributedVCS.class, args);
@@ -42,7 +44,19 @@ public class DistributedVCS {
                 case "add" -> cli.stageFiles(workingDirectory, args);
                 case "commit" -> cli.commit(workingDirectory, args);
                 case "status" -> cli.showStatus(workingDirectory);
-                case "log" -> cli.showLog(workingDirectory);
+                case "log" -> cli.showLog(workingDirectory, args);
+                case "repack" -> cli.repack(workingDirectory);
+                case "gc" -> cli.gc(workingDirectory, args);
+                case "diff" -> cli.showDiff(workingDirectory, args);
+                case "grep" -> cli.grep(workingDirectory, args);
+                case "blame" -> cli.blame(workingDirectory, args);
+                case "branch" -> cli.branch(workingDirectory, args);
+                case "merge" -> cli.merge(workingDirectory, args);
+                case "checkout" -> cli.checkout(workingDirectory, args);
+                case "clone" -> cli.cloneRepository(workingDirectory, args);
+                case "fetch" -> cli.fetch(workingDirectory, args);
+                case "push" -> cli.push(workingDirectory, args);
+                case "remote" -> cli.remote(workingDirectory, args);
                 default -> {
                     System.out.println("Unknown command: " + command);
                 }
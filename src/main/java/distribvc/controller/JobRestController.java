@@ -0,0 +1,155 @@
+package distribvc.controller;
+
+import distribvc.model.Repository;
+import distribvc.service.JobService;
+import distribvc.service.RepositoryRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Endpoints to run repository operations as background jobs and follow their progress.
+ * A submitted job is answered with 202 and can be polled, or followed as a stream of
+ * server-sent events that ends when the job finishes.
+ */
+@RestController
+@RequestMapping("/api/jobs")
+public class JobRestController {
+    private static final long EVENT_STREAM_TIMEOUT_MILLIS = 30 * 60 * 1000L;
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    @Autowired
+    private RepositoryController repositoryController;
+    @Autowired
+    private RepositoryRegistry repositoryRegistry;
+    @Autowired
+    private JobService jobService;
+    @Value("${distribvc.gc.grace-seconds:3600}")
+    private long gcGraceSeconds;
+
+
+    /**
+     * Queue an operation: status, commit (message, author, optional paths), repack, fsck, gc or merge (branch, author)
+     */
+    @PostMapping
+    public ResponseEntity<?> submit(@RequestParam String repoPath,
+                                    @RequestParam String operation,
+                                    @RequestParam(required = false) String message,
+                                    @RequestParam(required = false) String author,
+                                    @RequestParam(required = false) List<String> paths,
+                                    @RequestParam(required = false) String branch) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            JobService.Task task = switch (operation) {
+                case "status" -> progress -> repositoryController.getRepositoryStatus(repository);
+                case "commit" -> {
+                    requireParam("message", message);
+                    requireParam("author", author);
+                    List<Path> resolvedPaths = paths != null
+                            ? paths.stream().map(repository.getRootPath()::resolve).toList()
+                            : null;
+                    yield progress -> repositoryController.commit(repository, message, author, resolvedPaths);
+                }
+                case "repack" -> progress -> repositoryController.repack(repository);
+                case "fsck" -> progress -> repositoryController.fsck(repository, progress);
+                case "gc" -> progress -> repositoryController.gc(repository, Duration.ofSeconds(gcGraceSeconds));
+                case "merge" -> {
+                    requireParam("branch", branch);
+                    requireParam("author", author);
+                    yield progress -> repositoryController.merge(repository, branch, author);
+                }
+                default -> throw new IllegalArgumentException("Unknown operation: " + operation);
+            };
+
+            JobService.Job job = jobService.submit(repository.getRootPath(), operation, task);
+            return ResponseEntity.accepted().location(URI.create("/api/jobs/" + job.getId())).body(job);
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                    .body(e.getMessage());
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping
+    public ResponseEntity<?> list(@RequestParam(required = false) String repoPath) {
+        return ResponseEntity.ok(jobService.list(repoPath != null ? Paths.get(repoPath) : null));
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<?> get(@PathVariable String id) {
+        JobService.Job job = jobService.get(id);
+        return job != null ? ResponseEntity.ok(job) : ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Stream the job as server-sent events: its current state, then every change until it finishes
+     */
+    @GetMapping(value = "/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> events(@PathVariable String id) {
+        JobService.Job job = jobService.get(id);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        // The emitter is written from the job thread, so no request thread waits for the job
+        SseEmitter emitter = new SseEmitter(EVENT_STREAM_TIMEOUT_MILLIS);
+        Consumer<JobService.Job> listener = new Consumer<>() {
+            @Override
+            public void accept(JobService.Job changed) {
+                try {
+                    emitter.send(SseEmitter.event()
+                            .name(changed.getState().name().toLowerCase())
+                            .data(changed, MediaType.APPLICATION_JSON));
+                    if (changed.isFinished()) {
+                        emitter.complete();
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    // The client went away or the stream already ended
+                    changed.unsubscribe(this);
+                }
+            }
+        };
+        emitter.onCompletion(() -> job.unsubscribe(listener));
+        emitter.onTimeout(() -> job.unsubscribe(listener));
+        emitter.onError(error -> job.unsubscribe(listener));
+        job.subscribe(listener);
+        return ResponseEntity.ok(emitter);
+    }
+
+    /**
+     * Cancel a job that is still queued
+     */
+    @DeleteMapping("/{id}")
+    public ResponseEntity<?> cancel(@PathVariable String id) {
+        JobService.Job job = jobService.get(id);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!jobService.cancel(id)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Job has already started: " + id);
+        }
+        return ResponseEntity.ok(job);
+    }
+
+    private static void requireParam(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+    }
+}
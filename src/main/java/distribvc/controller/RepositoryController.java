@@ -1,10 +1,24 @@
 package distribvc.controller;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.google.gson.Gson;
 import org.slf4j.Logger;
@@ -14,21 +28,104 @@ import distribvc.model.Branch;
 import distribvc.model.Commit;
 import distribvc.model.IgnoreFile;
 import distribvc.model.FileChange;
+import distribvc.diff.Blame;
+import distribvc.diff.FileDiff;
+import distribvc.diff.ThreeWayMerge;
+import distribvc.storage.CommitGraph;
+import distribvc.storage.BinaryCommitCodec;
+import distribvc.storage.CommitCache;
+import distribvc.storage.CommitCodec;
+import distribvc.storage.CommitStore;
+import distribvc.storage.Index;
+import distribvc.storage.Journal;
+import distribvc.storage.JsonCommitCodec;
+import distribvc.storage.ObjectStore;
+import distribvc.storage.PackFile;
+import distribvc.storage.PackStore;
+import distribvc.storage.PackWriter;
+import distribvc.storage.PathLocks;
+import distribvc.storage.TrigramIndex;
+import distribvc.service.TreeScanner;
+import distribvc.sync.Negotiation;
+import distribvc.sync.RefList;
+import distribvc.sync.SyncClient;
+import distribvc.sync.SyncPack;
 import org.springframework.stereotype.Component;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
+// Locks are held for the scope of their try blocks and never referenced inside them
 @Component
+@SuppressWarnings("try")
 public class RepositoryController {
     private static final Logger logger = LoggerFactory.getLogger(RepositoryController.class);
     private static final String REPO_DIR = ".distribvc";
     private static final String COMMITS_DIR = "commits";
-    private static final String STAGING_DIR = "staging";
+    private static final String OBJECTS_DIR = "objects";
+    private static final String INDEX_FILE = "index";
+    private static final String MERGE_HEAD_FILE = "MERGE_HEAD";
+    private static final int MAX_PACKED_BLOB_SIZE = 8 * 1024 * 1024;
+    private static final int DIFF_CONTEXT_LINES = 3;
+    private static final int SNAPSHOT_CACHE_SIZE = 16;
+    private static final String IGNORE_FILE = ".distribvcignore";
+    private static final String DEFAULT_REMOTE = "origin";
+    private static final Pattern OBJECT_HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final int SEARCH_BATCH_SIZE = 256;
+    private static final int INDEX_BATCH_SIZE = 256;
+    private static final int BLAME_CACHE_SIZE = 64;
+    private static final int BLAME_BATCH_SIZE = 8;
+    private static final int MAX_JOURNALED_OBJECT_SIZE = 256 * 1024;
 
     private final Gson gson;
+    private final TreeScanner treeScanner;
+    private final int autoRepackThreshold;
+    private final CommitCodec commitCodec;
+    private final List<CommitCodec> commitCodecs;
+    private final CommitCache commitCache;
+    private final long groupCommitNanos;
+    private final ExecutorService repackExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "distribvc-repack");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Path> pendingRepacks = ConcurrentHashMap.newKeySet();
+    // Replayed file lists of recent commits, so diffs against nearby commits replay only a few changes
+    private final Map<String, Map<String, String>> snapshotCache = Collections.synchronizedMap(
+            new LinkedHashMap<>(SNAPSHOT_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+                    return size() > SNAPSHOT_CACHE_SIZE;
+                }
+            });
+    // Line origins of recently blamed file versions, keyed by the commit that introduced the version and its path
+    private final Map<String, LineOrigins> blameCache = Collections.synchronizedMap(
+            new LinkedHashMap<>(BLAME_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LineOrigins> eldest) {
+                    return size() > BLAME_CACHE_SIZE;
+                }
+            });
 
     @Autowired
-    public RepositoryController(Gson gson) {
+    public RepositoryController(Gson gson, TreeScanner treeScanner,
+                                @Value("${distribvc.repack.auto-threshold:500}") int autoRepackThreshold,
+                                @Value("${distribvc.commit.format:binary}") String commitFormat,
+                                @Value("${distribvc.cache.commit-bytes:67108864}") long commitCacheBytes,
+                                @Value("${distribvc.journal.group-commit-micros:200}") long groupCommitMicros) {
         this.gson = gson;
+        this.treeScanner = treeScanner;
+        this.autoRepackThreshold = autoRepackThreshold;
+        this.commitCache = new CommitCache(commitCacheBytes);
+        this.groupCommitNanos = groupCommitMicros * 1000;
+
+        CommitCodec binaryCodec = new BinaryCommitCodec();
+        CommitCodec jsonCodec = new JsonCommitCodec(gson);
+        this.commitCodecs = List.of(binaryCodec, jsonCodec);
+        this.commitCodec = switch (commitFormat.toLowerCase()) {
+            case "binary" -> binaryCodec;
+            case "json" -> jsonCodec;
+            default -> throw new IllegalArgumentException("Unknown commit format: " + commitFormat);
+        };
     }
 
     /**
@@ -74,43 +171,330 @@ public class RepositoryController {
     }
 
     /**
-     * Stage files for commit
+     * Stage files for commit. Files are hashed straight into the object store in parallel,
+     * without a staging copy, then recorded in the index in one update.
+     * Directories and glob patterns stage every file below them that is not ignored.
+     * Staging a tracked file that no longer exists stages its deletion.
+     * Hashing needs no lock; only the index update is serialized with other writers of the index.
      * @param repository The repository where files are being staged
-     * @param filePaths Paths of files to be staged
+     * @param filePaths Paths of files, directories or glob patterns to be staged
      */
     public void stageFiles(Repository repository, Path... filePaths) {
-        Path stagingPath = repository.getRepoPath().resolve(STAGING_DIR);
-        IgnoreFile ignoreFile = repository.getIgnoreFile();
+        try {
+            recordStaged(repository, hashFiles(repository, Arrays.asList(filePaths)));
+        } catch (IOException e) {
+            logger.error("Error staging files", e);
+            throw new RuntimeException("Could not stage file", e);
+        }
+    }
 
-        for (Path filePath : filePaths) {
-            try {
-                // Skip ignored files
-                if (ignoreFile.shouldIgnore(filePath)) {
-                    logger.info("Skipping ignored file: {}", filePath);
-                    continue;
+    /**
+     * Write uploaded files into the working tree and stage them. Each file is read once: it is
+     * hashed into the object store while a copy goes to the working tree, and all files are
+     * recorded in the index in one update at the end. Ignored files are skipped.
+     * @param repository The repository where files are being staged
+     * @param source Uploaded files, read one at a time
+     * @return int number of staged files
+     */
+    public int stageUpload(Repository repository, UploadSource source) {
+        try {
+            Path rootPath = repository.getRootPath();
+            ObjectStore objectStore = objectStore(repository);
+            List<HashedFile> hashedFiles = new ArrayList<>();
+            UploadedFile upload;
+            while ((upload = source.next()) != null) {
+                Path relativePath = uploadPath(repository, upload.path());
+                try (InputStream content = upload.content()) {
+                    if (repository.getIgnoreFile().shouldIgnore(relativePath, false)) {
+                        logger.info("Skipping ignored file: {}", relativePath);
+                        continue;
+                    }
+
+                    // Readers of the working tree see either the old or the complete new file
+                    Path filePath = rootPath.resolve(relativePath);
+                    Files.createDirectories(filePath.getParent());
+                    Path tempPath = Files.createTempFile(filePath.getParent(), ".upload", ".tmp");
+                    try {
+                        String hash;
+                        try (OutputStream out = Files.newOutputStream(tempPath)) {
+                            hash = objectStore.store(content, out);
+                        }
+                        Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        hashedFiles.add(new HashedFile(relativePath, Files.readAttributes(filePath, BasicFileAttributes.class), hash));
+                    } finally {
+                        Files.deleteIfExists(tempPath);
+                    }
                 }
+            }
+
+            recordStaged(repository, hashedFiles);
+            logger.info("Staged {} uploaded files", hashedFiles.size());
+            return hashedFiles.size();
+        } catch (IOException e) {
+            logger.error("Error staging uploaded files", e);
+            throw new RuntimeException("Could not stage uploaded files", e);
+        }
+    }
+
+    /**
+     * Resolve the path of an uploaded file, which must stay inside the working tree
+     * @param repository The repository
+     * @param path Path sent by the client, relative to the working tree
+     * @return Path normalized path relative to the working tree
+     */
+    private static Path uploadPath(Repository repository, String path) {
+        Path relativePath = Paths.get(path.replace('\\', '/')).normalize();
+        if (path.isEmpty() || !isWorkingTreePath(relativePath)) {
+            throw new IllegalArgumentException("Invalid upload path: " + path);
+        }
+        return relativePath;
+    }
+
+    /**
+     * Check that a path from a client or a received commit names a file of the working tree:
+     * relative, not escaping the root and not inside the repository directory
+     * @param path Path relative to the working tree
+     * @return boolean whether the path is safe to write
+     */
+    private static boolean isWorkingTreePath(Path path) {
+        Path normalized = Paths.get(path.toString().replace('\\', '/')).normalize();
+        return !normalized.isAbsolute() && !normalized.toString().isEmpty()
+                && !normalized.startsWith("..") && !normalized.startsWith(REPO_DIR);
+    }
+
+    /**
+     * Resolve a file of the working tree, refusing paths that lead outside it
+     * @param repository The repository
+     * @param path Path relative to the working tree
+     * @return Path of the file
+     */
+    private static Path workingFile(Repository repository, Path path) throws IOException {
+        Path rootPath = repository.getRootPath().toAbsolutePath().normalize();
+        Path file = rootPath.resolve(path).normalize();
+        if (!isWorkingTreePath(path) || !file.startsWith(rootPath) || file.equals(rootPath)
+                || file.startsWith(rootPath.resolve(REPO_DIR))) {
+            throw new IOException("Path outside the working tree: " + path);
+        }
+        return file;
+    }
+
+    /**
+     * Undo an index update whose commit failed, keeping entries that changed again since
+     * @param repository The repository
+     * @param writtenEntries Entries the update left, by path; null for removed files
+     * @param previousEntries Entries before the update, by path; null for files that had none
+     * @param mergeParentId Pending merge the commit concluded, or null
+     */
+    private void restoreIndex(Repository repository, Map<Path, Index.Entry> writtenEntries,
+                              Map<Path, Index.Entry> previousEntries, String mergeParentId) {
+        try (PathLocks.Lock lock = repository.lockIndex()) {
+            Index index = Index.load(repository.getRepoPath().resolve(INDEX_FILE));
+            for (Map.Entry<Path, Index.Entry> previous : previousEntries.entrySet()) {
+                index.restore(previous.getKey(), writtenEntries.get(previous.getKey()), previous.getValue());
+            }
+            index.save();
+            Path mergeHeadPath = repository.getRepoPath().resolve(MERGE_HEAD_FILE);
+            if (mergeParentId != null && !Files.exists(mergeHeadPath)) {
+                Files.writeString(mergeHeadPath, mergeParentId);
+            }
+        } catch (IOException e) {
+            logger.error("Could not restore the index after a failed commit", e);
+        }
+    }
+
+    /**
+     * Record stored files in the index in one update
+     * @param repository The repository
+     * @param hashedFiles Stored files, see stageFile
+     */
+    private void recordStaged(Repository repository, List<HashedFile> hashedFiles) throws IOException {
+        try (PathLocks.Lock lock = repository.lockIndex()) {
+            // Reloaded under the lock, so files staged meanwhile by other requests are kept
+            Index index = Index.load(repository.getRepoPath().resolve(INDEX_FILE));
 
-                // Validate file exists and is readable
-                if (!Files.exists(filePath) || !Files.isReadable(filePath)) {
-                    logger.warn("File does not exist or is not readable: {}", filePath);
+            // Record stat data and content hash, keeping whether the file was committed before
+            for (HashedFile hashedFile : hashedFiles) {
+                if (hashedFile == null) {
                     continue;
                 }
+                Index.Entry previous = index.get(hashedFile.relativePath());
+                int committed = previous != null ? previous.getFlags() & Index.FLAG_COMMITTED : 0;
+                if (hashedFile.hash() == null) {
+                    index.setFlags(hashedFile.relativePath(), Index.FLAG_STAGED | Index.FLAG_DELETED | committed);
+                } else {
+                    index.put(hashedFile.relativePath(), hashedFile.attrs(), hashedFile.hash(), Index.FLAG_STAGED | committed);
+                }
+            }
+            index.save();
+        }
+    }
+
+    /**
+     * Store files in the object store in parallel. Directories and glob patterns are expanded
+     * by a parallel walk that stores the files it finds on the way.
+     * @param repository The repository
+     * @param filePaths Files, directories or glob patterns to store
+     * @return List of stored files, see stageFile
+     */
+    private List<HashedFile> hashFiles(Repository repository, List<Path> filePaths) throws IOException {
+        Index index = loadIndex(repository);
+        ObjectStore objectStore = objectStore(repository);
+        List<Path> files = new ArrayList<>();
+        List<HashedFile> hashedFiles = new ArrayList<>();
+        for (Path filePath : filePaths) {
+            if (Files.isDirectory(filePath) || isGlob(repository, index, filePath)) {
+                hashedFiles.addAll(hashTree(repository, objectStore, index, filePath));
+            } else {
+                files.add(filePath);
+            }
+        }
+        hashedFiles.addAll(treeScanner.map(files, filePath -> stageFile(repository, objectStore, index, filePath)));
+        return hashedFiles;
+    }
+
+    /**
+     * Check whether a path is a glob pattern. Paths of existing or tracked files are taken
+     * literally, so a file such as docs/[draft].md can still be staged by name.
+     * @param repository The repository
+     * @param index Index used to recognise tracked files that were deleted
+     * @param path Path given to stage
+     * @return true if the path has wildcards and names no file
+     */
+    private static boolean isGlob(Repository repository, Index index, Path path) {
+        return hasWildcards(path) && !Files.exists(path)
+                && index.get(repository.getRootPath().relativize(path)) == null;
+    }
+
+    private static boolean hasWildcards(Path path) {
+        String text = path.toString();
+        return text.indexOf('*') >= 0 || text.indexOf('?') >= 0 || text.indexOf('[') >= 0 || text.indexOf('{') >= 0;
+    }
+
+    /**
+     * Store every file below a directory, or matching a glob pattern relative to the working tree,
+     * and stage deletions of matching tracked files that are gone
+     * @param repository The repository
+     * @param objectStore Object store of the repository
+     * @param index Index used to find deleted tracked files
+     * @param pattern Directory or glob pattern
+     * @return List of stored files, see stageFile
+     */
+    private List<HashedFile> hashTree(Repository repository, ObjectStore objectStore, Index index, Path pattern) throws IOException {
+        Path rootPath = repository.getRootPath();
+        IgnoreFile ignoreFile = repository.getIgnoreFile();
+        Path relativePattern = rootPath.relativize(pattern);
+
+        // Walk from the deepest directory without wildcards
+        Path start = rootPath;
+        PathMatcher matcher;
+        if (!Files.isDirectory(pattern)) {
+            for (Path segment : relativePattern) {
+                if (hasWildcards(segment)) {
+                    break;
+                }
+                start = start.resolve(segment);
+            }
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + relativePattern.toString().replace('\\', '/'));
+        } else {
+            start = pattern;
+            matcher = relativePath -> relativePattern.toString().isEmpty() || relativePath.startsWith(relativePattern);
+        }
+
+        List<HashedFile> hashedFiles = new ArrayList<>();
+        if (Files.isDirectory(start)) {
+            hashedFiles = treeScanner.scan(start,
+                    dir -> !dir.equals(repository.getRepoPath())
+                            && !ignoreFile.isIgnored(rootPath.relativize(dir), true),
+                    new TreeScanner.FileProcessor<List<HashedFile>>() {
+                        @Override
+                        public List<HashedFile> newResult() {
+                            return new ArrayList<>();
+                        }
 
-                // Compute relative path
-                Path relativePath = repository.getRootPath().relativize(filePath);
-                Path stagedFilePath = stagingPath.resolve(relativePath);
+                        @Override
+                        public void process(Path file, BasicFileAttributes attrs, List<HashedFile> result) throws IOException {
+                            Path relativePath = rootPath.relativize(file);
+                            if (!matcher.matches(relativePath) || ignoreFile.isIgnored(relativePath, false)) {
+                                return;
+                            }
+                            result.add(new HashedFile(relativePath, attrs, objectStore.storeFile(file, attrs)));
+                        }
 
-                // Ensure parent directories exist
-                Files.createDirectories(stagedFilePath.getParent());
+                        @Override
+                        public void merge(List<HashedFile> into, List<HashedFile> from) {
+                            into.addAll(from);
+                        }
+                    });
+        }
 
-                // Copy file to staging area
-                Files.copy(filePath, stagedFilePath, StandardCopyOption.REPLACE_EXISTING);
-                logger.info("Staged file: {}", relativePath);
-            } catch (IOException e) {
-                logger.error("Error staging file: " + filePath, e);
-                throw new RuntimeException("Could not stage file", e);
+        // Tracked files that no longer exist are staged as deleted
+        for (Index.Entry entry : index.getEntries()) {
+            if (!entry.isDeleted() && matcher.matches(entry.getPath()) && !Files.exists(rootPath.resolve(entry.getPath()))) {
+                hashedFiles.add(new HashedFile(entry.getPath(), null, null));
             }
         }
+        logger.info("Staged {} files from {}", hashedFiles.size(), relativePattern);
+        return hashedFiles;
+    }
+
+    /**
+     * Store a single file in the object store
+     * @param repository The repository
+     * @param objectStore Object store of the repository
+     * @param index Index used to recognise deleted tracked files
+     * @param filePath File to stage
+     * @return HashedFile describing the stored content, with a null hash for a deletion,
+     *         or null if the file was skipped
+     */
+    private HashedFile stageFile(Repository repository, ObjectStore objectStore, Index index, Path filePath) throws IOException {
+        // Compute relative path
+        Path relativePath = repository.getRootPath().relativize(filePath);
+
+        // Skip ignored files
+        if (repository.getIgnoreFile().shouldIgnore(relativePath, Files.isDirectory(filePath))) {
+            logger.info("Skipping ignored file: {}", filePath);
+            return null;
+        }
+
+        // A tracked file that is gone from the working tree is staged as deleted
+        if (!Files.exists(filePath) && index.get(relativePath) != null) {
+            logger.info("Staged deletion: {}", relativePath);
+            return new HashedFile(relativePath, null, null);
+        }
+
+        // Validate file exists and is readable
+        if (!Files.exists(filePath) || !Files.isReadable(filePath)) {
+            logger.warn("File does not exist or is not readable: {}", filePath);
+            return null;
+        }
+
+        BasicFileAttributes attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
+        String hash = objectStore.storeFile(filePath, attrs);
+        logger.info("Staged file: {}", relativePath);
+        return new HashedFile(relativePath, attrs, hash);
+    }
+
+    private record HashedFile(Path relativePath, BasicFileAttributes attrs, String hash) {
+    }
+
+    /**
+     * Files uploaded in one request, read one at a time
+     */
+    @FunctionalInterface
+    public interface UploadSource {
+        /**
+         * Move to the next file; the content of the previous one is no longer read
+         * @return UploadedFile the next file, or null when there are no more
+         */
+        UploadedFile next() throws IOException;
+    }
+
+    /**
+     * An uploaded file
+     * @param path Path relative to the working tree
+     * @param content Content of the file, closed once it is stored
+     */
+    public record UploadedFile(String path, InputStream content) {
     }
 
     /**
@@ -121,36 +505,98 @@ public class RepositoryController {
      * @return Commit The created commit
      */
     public Commit commit(Repository repository, String message, String author) {
-        Path stagingPath = repository.getRepoPath().resolve(STAGING_DIR);
-        Path commitsPath = repository.getRepoPath().resolve(COMMITS_DIR);
-        Branch currentBranch = repository.getCurrentBranch();
+        return commit(repository, message, author, null);
+    }
 
+    /**
+     * Commit staged changes, or only the given files as they are in the working tree. Given files
+     * bypass the staging area, so concurrent requests each commit their own files and never pick
+     * up what another request staged; they are hashed before any lock is taken. The commit itself
+     * is written under the branch lock with the head read back from the ref, so concurrent commits
+     * line up one after the other instead of sharing a parent.
+     *
+     * A commit is durable once it returns: its files and ref move go to the repository journal,
+     * and concurrent commits share one sync of it. The sync is awaited after the index lock is
+     * released, so commits of other requests can join it; if it fails, the index and a pending
+     * merge are put back as they were.
+     * @param repository Repository where commit is happening
+     * @param message Commit message
+     * @param author Author of the commit
+     * @param paths Files to commit instead of the staged changes, or null
+     * @return Commit The created commit, or null if there was nothing to commit
+     */
+    public Commit commit(Repository repository, String message, String author, List<Path> paths) {
         try {
-            // Collect staged files and their changes
-            List<FileChange> changes = collectStagedChanges(repository, stagingPath);
+            List<HashedFile> hashedFiles = paths != null && !paths.isEmpty() ? hashFiles(repository, paths) : null;
 
-            if (changes.isEmpty()) {
-                logger.warn("No changes to commit");
-                return null;
-            }
+            AppendedCommit appended;
+            String mergeParentId;
+            Map<Path, Index.Entry> previousEntries = new HashMap<>();
+            Map<Path, Index.Entry> writtenEntries = new HashMap<>();
+            try (PathLocks.Lock lock = repository.lockIndex()) {
+                Index index = Index.load(repository.getRepoPath().resolve(INDEX_FILE));
 
-            // Determine parent commit ID
-            String parentCommitId = currentBranch.getHeadCommitID();
-
-            // Create new commit
-            Commit newCommit = new Commit(message, parentCommitId, changes, author);
+                // A pending merge becomes the second parent, even if it brought no changes
+                Path mergeHeadPath = repository.getRepoPath().resolve(MERGE_HEAD_FILE);
+                mergeParentId = Files.exists(mergeHeadPath) ? Files.readString(mergeHeadPath).trim() : null;
+                if (hashedFiles != null && mergeParentId != null) {
+                    throw new IllegalStateException("Cannot commit selected files while a merge is in progress");
+                }
 
-            // Save commit metadata
-            Path commitPath = commitsPath.resolve(newCommit.getId() + ".json");
-            Files.writeString(commitPath, gson.toJson(newCommit));
+                // Collect staged files and their changes
+                List<FileChange> changes = hashedFiles != null
+                        ? collectFileChanges(index, hashedFiles)
+                        : collectStagedChanges(index);
+                if (changes.isEmpty() && mergeParentId == null) {
+                    logger.warn("No changes to commit");
+                    return null;
+                }
 
-            // Add commit to branch
-            currentBranch.addCommit(newCommit);
+                appended = appendCommit(repository, message, mergeParentId, changes, author);
+                Files.deleteIfExists(mergeHeadPath);
 
-            // Clear staging area
-            clearStagingArea(stagingPath);
+                // Mark the committed files in the index, which also clears the staging area
+                for (FileChange change : changes) {
+                    previousEntries.put(change.getFilePath(), index.get(change.getFilePath()));
+                }
+                if (hashedFiles != null) {
+                    for (HashedFile hashedFile : hashedFiles) {
+                        if (hashedFile != null) {
+                            previousEntries.put(hashedFile.relativePath(), index.get(hashedFile.relativePath()));
+                        }
+                    }
+                }
+                for (FileChange change : changes) {
+                    if (change.getChangeType() == FileChange.ChangeType.DELETED) {
+                        index.remove(change.getFilePath());
+                    } else {
+                        index.setFlags(change.getFilePath(), Index.FLAG_COMMITTED);
+                    }
+                }
+                if (hashedFiles != null) {
+                    for (HashedFile hashedFile : hashedFiles) {
+                        if (hashedFile != null && hashedFile.hash() != null) {
+                            index.put(hashedFile.relativePath(), hashedFile.attrs(), hashedFile.hash(), Index.FLAG_COMMITTED);
+                        }
+                    }
+                }
+                index.save();
+                for (Path path : previousEntries.keySet()) {
+                    writtenEntries.put(path, index.get(path));
+                }
+            }
+            try {
+                repository.getJournal().await(appended.journalEntry(), groupCommitNanos);
+            } catch (IOException | RuntimeException e) {
+                // The branch never reached the commit, so its changes are not committed after all
+                restoreIndex(repository, writtenEntries, previousEntries, mergeParentId);
+                throw e;
+            }
 
+            Commit newCommit = appended.commit();
+            indexContents(repository, List.of(newCommit));
             logger.info("Committed changes: {}", newCommit.getId());
+            scheduleRepackIfNeeded(repository);
             return newCommit;
         } catch (IOException e) {
             logger.error("Commit failed", e);
@@ -159,64 +605,179 @@ public class RepositoryController {
     }
 
     /**
-     * Collect changes of staged files
+     * Write a commit on top of the current branch and journal the move of the branch to it
      * @param repository The repository
-     * @param stagingPath Path to staging directory
-     * @return List of file changes
+     * @param message Commit message
+     * @param mergeParentId Second parent, or null
+     * @param changes Changes of the commit
+     * @param author Author of the commit
+     * @return AppendedCommit the new commit and its journal entry, which moves the branch once synced
      */
-    private List<FileChange> collectStagedChanges(Repository repository, Path stagingPath) throws IOException {
-        List<FileChange> changes = new ArrayList<>();
+    private AppendedCommit appendCommit(Repository repository, String message, String mergeParentId,
+                                        List<FileChange> changes, String author) throws IOException {
+        Journal.Record record = journalObjects(repository, changes);
+        String branchName = repository.getCurrentBranch().getName();
+        try (PathLocks.Lock lock = repository.lockBranch(branchName)) {
+            // Read from the ref rather than this handle, which may not have seen the latest commit
+            String parentCommitId = repository.readBranchHead(branchName);
+            Commit newCommit = new Commit(message, parentCommitId, mergeParentId, changes, author);
+
+            // Save commit metadata and record it in the commit graph
+            CommitStore commitStore = commitStore(repository);
+            commitStore.write(newCommit);
+            try (PathLocks.Lock historyLock = repository.lockHistory()) {
+                openCommitGraph(repository, commitStore).append(newCommit);
+            }
 
-        Files.walkFileTree(stagingPath, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                // Compute relative path
-                Path relativePath = stagingPath.relativize(file);
-                Path originalPath = repository.getRootPath().resolve(relativePath);
-
-                // Determine change type
-                FileChange.ChangeType changeType;
-                if (!Files.exists(originalPath)) {
-                    changeType = FileChange.ChangeType.ADDED;
+            // The commit file is journaled as well, since it is written without a sync
+            Path commitPath = commitStore.loosePath(newCommit.getId());
+            try {
+                record.writeFile(journalPath(repository, commitPath), Files.readAllBytes(commitPath));
+            } catch (NoSuchFileException e) {
+                // Moved into a pack by a concurrent repack, which synced it
+            }
+            Journal.Entry entry = repository.journalBranchHead(branchName, parentCommitId, newCommit.getId(), record);
+            return new AppendedCommit(newCommit, entry);
+        }
+    }
+
+    /**
+     * Start a journal record with the loose objects of a commit. Small objects are journaled,
+     * larger ones are synced directly rather than copied into the journal. Objects that a
+     * concurrent repack already moved into a pack are durable and left out.
+     * @param repository The repository
+     * @param changes Changes of the commit
+     * @return Journal.Record holding the small objects
+     */
+    private Journal.Record journalObjects(Repository repository, List<FileChange> changes) throws IOException {
+        Journal.Record record = new Journal.Record();
+        ObjectStore objectStore = objectStore(repository);
+        Set<String> seen = new HashSet<>();
+        for (FileChange change : changes) {
+            String hash = change.getContentHash();
+            if (hash == null || !seen.add(hash) || !objectStore.isLoose(hash)) {
+                continue;
+            }
+            Path objectPath = objectStore.resolve(hash);
+            try {
+                if (Files.size(objectPath) <= MAX_JOURNALED_OBJECT_SIZE) {
+                    record.writeFile(journalPath(repository, objectPath), Files.readAllBytes(objectPath));
                 } else {
-                    changeType = Files.mismatch(originalPath, file) >= 0
-                            ? FileChange.ChangeType.MODIFIED
-                            : FileChange.ChangeType.DELETED;
+                    Journal.sync(objectPath);
                 }
+            } catch (NoSuchFileException e) {
+                // Moved into a pack by a concurrent repack, which synced it
+            }
+        }
+        return record;
+    }
+
+    private static String journalPath(Repository repository, Path file) {
+        return repository.getRepoPath().relativize(file).toString().replace('\\', '/');
+    }
+
+    private record AppendedCommit(Commit commit, Journal.Entry journalEntry) {
+    }
 
-                // Read file content
-                String content = changeType != FileChange.ChangeType.DELETED
-                        ? Files.readString(file)
-                        : null;
+    /**
+     * Collect changes of files committed without staging them. Deleted tracked files become
+     * deletions, and files whose content is already committed are left out.
+     * @param index Index of the repository
+     * @param hashedFiles Stored files, see stageFile
+     * @return List of file changes
+     */
+    private List<FileChange> collectFileChanges(Index index, List<HashedFile> hashedFiles) {
+        List<FileChange> changes = new ArrayList<>();
 
-                changes.add(new FileChange(relativePath, changeType, content));
-                return FileVisitResult.CONTINUE;
+        for (HashedFile hashedFile : hashedFiles) {
+            if (hashedFile == null) {
+                continue;
             }
-        });
+            Index.Entry entry = index.get(hashedFile.relativePath());
+            if (hashedFile.hash() == null) {
+                if (entry != null && entry.isCommitted()) {
+                    changes.add(new FileChange(hashedFile.relativePath(), FileChange.ChangeType.DELETED, null));
+                }
+            } else if (entry == null || !entry.isCommitted()) {
+                changes.add(new FileChange(hashedFile.relativePath(), FileChange.ChangeType.ADDED, hashedFile.hash()));
+            } else if (entry.isStaged() || !entry.getHash().equals(hashedFile.hash())) {
+                changes.add(new FileChange(hashedFile.relativePath(), FileChange.ChangeType.MODIFIED, hashedFile.hash()));
+            }
+        }
 
         return changes;
     }
 
     /**
-     * Clear the staging area after commit
-     * @param stagingPath Path to staging directory
+     * Collect changes of staged files. Their contents were stored while staging,
+     * so no file is read here.
+     * @param index Index holding the staged entries
+     * @return List of file changes
      */
-    private void clearStagingArea(Path stagingPath) throws IOException {
-        Files.walkFileTree(stagingPath, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                Files.delete(file);
-                return FileVisitResult.CONTINUE;
-            }
+    private List<FileChange> collectStagedChanges(Index index) {
+        List<FileChange> changes = new ArrayList<>();
 
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                if (!dir.equals(stagingPath)) {
-                    Files.delete(dir);
-                }
-                return FileVisitResult.CONTINUE;
+        for (Index.Entry entry : index.getStagedEntries()) {
+            if (entry.isDeleted()) {
+                changes.add(new FileChange(entry.getPath(), FileChange.ChangeType.DELETED, null));
+            } else if (entry.isCommitted()) {
+                changes.add(new FileChange(entry.getPath(), FileChange.ChangeType.MODIFIED, entry.getHash()));
+            } else {
+                changes.add(new FileChange(entry.getPath(), FileChange.ChangeType.ADDED, entry.getHash()));
             }
-        });
+        }
+
+        return changes;
+    }
+
+    /**
+     * Load the index of tracked files
+     * @param repository The repository
+     * @return Index of the repository
+     */
+    private Index loadIndex(Repository repository) {
+        try {
+            return Index.load(repository.getRepoPath().resolve(INDEX_FILE));
+        } catch (IOException e) {
+            logger.error("Could not read index", e);
+            throw new RuntimeException("Could not read index", e);
+        }
+    }
+
+    private void saveIndex(Index index) {
+        try {
+            index.save();
+        } catch (IOException e) {
+            logger.error("Could not write index", e);
+            throw new RuntimeException("Could not write index", e);
+        }
+    }
+
+    /**
+     * Get the object store holding file contents of a repository
+     * @param repository The repository
+     * @return ObjectStore for the repository
+     */
+    private ObjectStore objectStore(Repository repository) {
+        return new ObjectStore(repository.getRepoPath().resolve(OBJECTS_DIR), repository.getPackStore());
+    }
+
+    /**
+     * Get the store holding commit metadata of a repository
+     * @param repository The repository
+     * @return CommitStore for the repository
+     */
+    private CommitStore commitStore(Repository repository) {
+        return new CommitStore(repository.getRepoPath().resolve(COMMITS_DIR), repository.getPackStore(),
+                commitCodec, commitCodecs, commitCache);
+    }
+
+    /**
+     * Get usage statistics of the commit cache shared by all repositories
+     * @return CommitCache.Stats snapshot of the cache
+     */
+    public CommitCache.Stats getCommitCacheStats() {
+        return commitCache.getStats();
     }
 
     /**
@@ -226,16 +787,18 @@ public class RepositoryController {
      */
 
     public List<Commit> getCommitLog(Repository repository) {
-        Path commitsPath = repository.getRepoPath().resolve(COMMITS_DIR);
+        CommitStore commitStore = commitStore(repository);
         Branch currentBranch = repository.getCurrentBranch();
 
         try {
-            List<Commit> commits = currentBranch.getCommitHistory().stream()
+            // Walk parent pointers in the commit graph, then read only the commits on the branch
+            List<String> history = openCommitGraph(repository, commitStore).walk(currentBranch.getHeadCommitID());
+            Collections.reverse(history);
+
+            List<Commit> commits = history.stream()
                     .map(commitId -> {
                         try {
-                            Path commitFile = commitsPath.resolve(commitId + ".json");
-                            String commitJson = Files.readString(commitFile);
-                            return gson.fromJson(commitJson, Commit.class);
+                            return commitStore.read(commitId);
                         } catch (IOException e) {
                             logger.error("Could not read commit: " + commitId, e);
                             return null;
@@ -256,77 +819,2088 @@ public class RepositoryController {
         }
     }
 
+    /**
+     * Receives commits while the log is walked
+     */
+    @FunctionalInterface
+    public interface CommitVisitor {
+        void visit(Commit commit) throws IOException;
+    }
 
     /**
-     * Get repository status
+     * Get one page of the commit log of the current branch
      * @param repository The repository
-     * @return RepositoryStatus containing staged and unstaged changes
+     * @param afterCommitId Cursor: the last commit of the previous page, or null to start at the head
+     * @param since Only commits made at or after this time, or null
+     * @param until Only commits made at or before this time, or null
+     * @param limit Maximum number of commits; 0 for no limit
+     * @param includeChanges Whether commits keep their file changes
+     * @param path Only commits changing this file or directory, or null for all commits
+     * @return List of commits, newest first
      */
+    public List<Commit> getCommitLog(Repository repository, String afterCommitId, LocalDateTime since,
+                                     LocalDateTime until, int limit, boolean includeChanges, String path) {
+        List<Commit> commits = new ArrayList<>();
+        walkCommitLog(repository, afterCommitId, since, until, limit, includeChanges, path, commits::add);
+        return commits;
+    }
 
-    public RepositoryStatus getRepositoryStatus(Repository repository) {
-        Path stagingPath = repository.getRepoPath().resolve(STAGING_DIR);
-        IgnoreFile ignoreFile = repository.getIgnoreFile();
+    /**
+     * Walk the first-parent history of the current branch, newest first, reading one commit
+     * at a time so callers can stream the log without holding it in memory. Timestamps come
+     * from the commit graph, so commits outside the time range are never read, and the walk
+     * stops at the first commit older than since. With a path, the changed-path filters of the
+     * commit graph skip commits that certainly did not touch it, and only the rest are read.
+     * @param repository The repository
+     * @param afterCommitId Cursor: the walk resumes at the parent of this commit; null starts at the head
+     * @param since Only commits made at or after this time, or null
+     * @param until Only commits made at or before this time, or null
+     * @param limit Maximum number of commits; 0 for no limit
+     * @param includeChanges Whether commits keep their file changes
+     * @param path Only commits changing this file or directory, or null for all commits
+     * @param visitor Receives each commit
+     */
+    public void walkCommitLog(Repository repository, String afterCommitId, LocalDateTime since, LocalDateTime until,
+                              int limit, boolean includeChanges, String path, CommitVisitor visitor) {
+        CommitStore commitStore = commitStore(repository);
+        long sinceMillis = since != null ? toEpochMillis(since) : Long.MIN_VALUE;
+        long untilMillis = until != null ? toEpochMillis(until) : Long.MAX_VALUE;
+        String start = afterCommitId != null ? afterCommitId : repository.getCurrentBranch().getHeadCommitID();
 
         try {
-            RepositoryStatus status = new RepositoryStatus();
-
-            Files.walkFileTree(repository.getRootPath(), new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    // Skip files inside .distribvc directory
-                    if (file.startsWith(repository.getRepoPath())) {
-                        return FileVisitResult.CONTINUE;
-                    }
-
-                    // Skip ignored files
-                    if (ignoreFile.shouldIgnore(file)) {
-                        return FileVisitResult.CONTINUE;
-                    }
-
-                    Path relativePath = repository.getRootPath().relativize(file);
-                    Path stagedFile = stagingPath.resolve(relativePath);
-
-                    if (!Files.exists(stagedFile)) {
-                        status.addUnstagedFile(relativePath, RepositoryStatus.FileStatus.UNTRACKED);
-                    } else if (!Files.isSameFile(file, stagedFile)) {
-                        status.addUnstagedFile(relativePath, RepositoryStatus.FileStatus.MODIFIED);
-                    }
-
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-
-            // Walk through staging directory to get staged changes
-            Files.walkFileTree(stagingPath, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    Path relativePath = stagingPath.relativize(file);
-                    status.addStagedFile(relativePath, RepositoryStatus.FileStatus.STAGED);
-                    return FileVisitResult.CONTINUE;
-                }
-            });
-
-            return status;
+            int[] visited = {0};
+            String pathPrefix = path != null ? pathKey(Paths.get(path).normalize()) : "";
+            boolean found = openCommitGraph(repository, commitStore).walk(start, afterCommitId != null, pathPrefix,
+                    (commitId, epochMillis) -> {
+                        if (epochMillis < sinceMillis) {
+                            return false;
+                        }
+                        if (epochMillis > untilMillis) {
+                            return true;
+                        }
+                        Commit commit = commitStore.read(commitId);
+                        if (commit == null) {
+                            throw new IOException("Missing commit: " + commitId);
+                        }
+                        if (!pathPrefix.isEmpty() && !changesPath(commit, pathPrefix)) {
+                            // A false positive of the filter
+                            return true;
+                        }
+                        visitor.visit(includeChanges ? commit : new Commit(commit.getId(), commit.getMessage(),
+                                commit.getTimestamp(), commit.getParentCommitID(), commit.getMergeParentCommitID(), null,
+                                commit.getAuthor()));
+                        return limit <= 0 || ++visited[0] < limit;
+                    });
+            if (!found) {
+                throw new IllegalArgumentException("Unknown commit: " + afterCommitId);
+            }
         } catch (IOException e) {
-            logger.error("Could not get repository status", e);
-            throw new RuntimeException("Could not retrieve repository status", e);
+            logger.error("Error walking commit log", e);
+            throw new RuntimeException("Could not retrieve commit log", e);
         }
     }
 
+    private static boolean changesPath(Commit commit, String path) {
+        for (FileChange change : commit.getChanges()) {
+            String changed = pathKey(change.getFilePath());
+            if (changed.equals(path) || (changed.startsWith(path) && changed.charAt(path.length()) == '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     /**
-     * Repository status representation
+     * Check whether a commit is part of the commit graph
+     * @param repository The repository
+     * @param commitId ID of the commit
+     * @return true if the commit exists
      */
-    public static class RepositoryStatus {
-        public enum FileStatus {
-            UNTRACKED, MODIFIED, STAGED
+    public boolean hasCommit(Repository repository, String commitId) {
+        try {
+            return openCommitGraph(repository, commitStore(repository)).contains(commitId);
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
         }
+    }
 
-        private Map<Path, FileStatus> unstagedFiles = new HashMap<>();
-        private Map<Path, FileStatus> stagedFiles = new HashMap<>();
-
-        public void addUnstagedFile(Path path, FileStatus status) {
-            unstagedFiles.put(path, status);
+    /**
+     * Relate two commits: their merge base, whether one contains the other, and how many
+     * commits each has that the other lacks. Answered from the commit graph alone.
+     * @param repository The repository
+     * @param from First commit, branch or ref
+     * @param to Second commit, branch or ref
+     * @return AncestryResult describing how the two histories relate
+     */
+    public AncestryResult getAncestry(Repository repository, String from, String to) {
+        try {
+            CommitStore commitStore = commitStore(repository);
+            CommitGraph commitGraph = openCommitGraph(repository, commitStore);
+            String fromId = resolveCommit(repository, commitStore, from);
+            String toId = resolveCommit(repository, commitStore, to);
+            if (fromId == null || toId == null) {
+                throw new IllegalArgumentException("Branch has no commits: " + (fromId == null ? from : to));
+            }
+
+            String mergeBase = commitGraph.mergeBase(fromId, toId);
+            int ahead = commitGraph.missingCommits(List.of(toId), List.of(fromId)).size();
+            int behind = commitGraph.missingCommits(List.of(fromId), List.of(toId)).size();
+            return new AncestryResult(fromId, toId, mergeBase, fromId.equals(mergeBase), ahead, behind);
+        } catch (IOException e) {
+            logger.error("Ancestry query failed", e);
+            throw new RuntimeException("Could not compare " + from + " and " + to, e);
+        }
+    }
+
+    /**
+     * Search file contents for a string or regular expression. The trigram index narrows the
+     * stored versions of all files down to those that may match, and only those are read,
+     * in parallel, batch by batch until the limit is reached.
+     * Without a revision every version in history is searched, and each match names the
+     * commit that introduced that version; with a revision only its files are searched.
+     * @param repository The repository
+     * @param query String or regular expression to find within a line
+     * @param regex Whether the query is a regular expression
+     * @param ignoreCase Whether ASCII letters match regardless of case
+     * @param rev Commit, branch or ref whose files are searched, or null for all of history
+     * @param path Only files at or below this path, or null for all files
+     * @param limit Maximum number of matching lines; 0 for no limit
+     * @return SearchResult with the matching lines
+     */
+    public SearchResult search(Repository repository, String query, boolean regex, boolean ignoreCase,
+                               String rev, String path, int limit) {
+        if (query == null || query.isEmpty()) {
+            throw new IllegalArgumentException("Search query must not be empty");
+        }
+        Pattern pattern = Pattern.compile(regex ? query : Pattern.quote(query), ignoreCase ? Pattern.CASE_INSENSITIVE : 0);
+        int[] trigrams = TrigramIndex.queryTrigrams(query, regex);
+        String pathPrefix = path != null ? pathKey(Paths.get(path).normalize()) : "";
+
+        try {
+            CommitStore commitStore = commitStore(repository);
+            ObjectStore objectStore = objectStore(repository);
+            TrigramIndex index = openTrigramIndex(repository, commitStore);
+
+            List<TrigramIndex.Occurrence> candidates;
+            if (rev == null) {
+                candidates = index.occurrences(trigrams, pathPrefix);
+            } else {
+                String commitId = resolveCommit(repository, commitStore, rev);
+                Set<String> hashes = index.candidates(trigrams);
+                candidates = new ArrayList<>();
+                for (Map.Entry<String, String> file : new TreeMap<>(snapshot(repository, commitStore, commitId)).entrySet()) {
+                    String name = file.getKey();
+                    boolean underPath = pathPrefix.isEmpty() || name.equals(pathPrefix)
+                            || (name.startsWith(pathPrefix) && name.charAt(pathPrefix.length()) == '/');
+                    if (underPath && (hashes.contains(file.getValue()) || !index.containsBlob(file.getValue()))) {
+                        candidates.add(new TrigramIndex.Occurrence(commitId, name, file.getValue()));
+                    }
+                }
+            }
+
+            // Read candidates a batch at a time, so a small limit does not read every candidate
+            List<SearchMatch> matches = new ArrayList<>();
+            Map<String, List<SearchMatch>> matchedLines = new HashMap<>();
+            int searched = 0;
+            boolean truncated = false;
+            for (int start = 0; start < candidates.size() && !truncated; start += SEARCH_BATCH_SIZE) {
+                List<TrigramIndex.Occurrence> batch = candidates.subList(start, Math.min(start + SEARCH_BATCH_SIZE, candidates.size()));
+                List<String> unread = batch.stream()
+                        .map(TrigramIndex.Occurrence::getHash)
+                        .filter(hash -> !matchedLines.containsKey(hash))
+                        .distinct()
+                        .collect(Collectors.toList());
+                List<List<SearchMatch>> lines = treeScanner.map(unread, hash -> matchLines(objectStore, hash, pattern));
+                for (int i = 0; i < unread.size(); i++) {
+                    matchedLines.put(unread.get(i), lines.get(i));
+                }
+                searched += unread.size();
+
+                for (TrigramIndex.Occurrence occurrence : batch) {
+                    for (SearchMatch line : matchedLines.get(occurrence.getHash())) {
+                        if (limit > 0 && matches.size() == limit) {
+                            truncated = true;
+                            break;
+                        }
+                        matches.add(new SearchMatch(occurrence.getCommitId(), occurrence.getPath(),
+                                line.getLineNumber(), line.getLine()));
+                    }
+                }
+            }
+            return new SearchResult(query, candidates.size(), searched, truncated, matches);
+        } catch (IOException e) {
+            logger.error("Search failed", e);
+            throw new RuntimeException("Could not search for " + query, e);
+        }
+    }
+
+    /**
+     * Find the lines of a stored file that contain a match
+     * @param objectStore Store holding the content
+     * @param hash Hash of the content
+     * @param pattern Pattern to find
+     * @return List of matching lines without commit or path; empty for binary content
+     */
+    private static List<SearchMatch> matchLines(ObjectStore objectStore, String hash, Pattern pattern) throws IOException {
+        byte[] content = objectStore.read(hash);
+        List<SearchMatch> lines = new ArrayList<>();
+        if (FileDiff.isBinary(content)) {
+            return lines;
+        }
+        String text = new String(content, StandardCharsets.UTF_8);
+        Matcher matcher = pattern.matcher(text);
+        int lineNumber = 1;
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+            if (matcher.region(start, lineEnd).find()) {
+                lines.add(new SearchMatch(null, null, lineNumber, text.substring(start, lineEnd)));
+            }
+            lineNumber++;
+            start = end + 1;
+        }
+        return lines;
+    }
+
+    /**
+     * Get the trigram index of a repository, first indexing any commits it is missing,
+     * such as those written before the index existed
+     * @param repository The repository
+     * @param commitStore Store to read missing commits from
+     * @return TrigramIndex covering every commit
+     */
+    private TrigramIndex openTrigramIndex(Repository repository, CommitStore commitStore) throws IOException {
+        TrigramIndex index = repository.getTrigramIndex();
+        if (index.getCommitCount() >= openCommitGraph(repository, commitStore).size()) {
+            return index;
+        }
+
+        logger.info("Indexing file contents of {}", repository.getRootPath());
+        ObjectStore objectStore = objectStore(repository);
+        try (PathLocks.Lock lock = repository.lockHistory()) {
+            List<Commit> batch = new ArrayList<>();
+            for (String commitId : commitStore.listAllIds()) {
+                if (index.contains(commitId)) {
+                    continue;
+                }
+                Commit commit = commitStore.read(commitId);
+                if (commit != null && commit.getId() != null) {
+                    batch.add(commit);
+                }
+                if (batch.size() == INDEX_BATCH_SIZE) {
+                    index.add(batch, objectStore);
+                    batch.clear();
+                }
+            }
+            index.add(batch, objectStore);
+        }
+        return index;
+    }
+
+    /**
+     * Add the contents of new commits to the trigram index. The commits are already stored,
+     * so a failure only leaves them for the next search to index.
+     * @param repository The repository
+     * @param commits New commits
+     */
+    private void indexContents(Repository repository, List<Commit> commits) {
+        try (PathLocks.Lock lock = repository.lockHistory()) {
+            repository.getTrigramIndex().add(commits, objectStore(repository));
+        } catch (IOException e) {
+            logger.warn("Could not index file contents of new commits", e);
+        }
+    }
+
+    /**
+     * Find the commit that last changed each line of a file. Versions of the file are found by
+     * walking first-parent history once, with the changed-path filters of the commit graph skipping
+     * commits that did not touch it, so lines brought in by a merge belong to the merge commit.
+     * Origins are then carried forward from the oldest version with one diff per version. The
+     * origins of each blamed version are cached, so blaming a later version of the same file only
+     * diffs the versions since.
+     * @param repository The repository
+     * @param path File relative to the repository root
+     * @param rev Commit, branch or ref to blame at, or null for HEAD
+     * @return BlameResult with the origin of every line
+     */
+    public BlameResult blame(Repository repository, String path, String rev) {
+        String file = pathKey(Paths.get(path).normalize());
+        String ref = rev != null ? rev : "HEAD";
+        try {
+            CommitStore commitStore = commitStore(repository);
+            ObjectStore objectStore = objectStore(repository);
+            String commitId = resolveCommit(repository, commitStore, ref);
+            if (commitId == null) {
+                throw new IllegalArgumentException("Branch has no commits: " + ref);
+            }
+
+            // Versions of the file newest first, back to where it was added or to a version blamed before
+            List<FileVersion> versions = new ArrayList<>();
+            List<LineOrigins> base = new ArrayList<>(1);
+            openCommitGraph(repository, commitStore).walk(commitId, false, file, (id, epochMillis) -> {
+                Commit commit = commitStore.read(id);
+                if (commit == null) {
+                    throw new IOException("Missing commit: " + id);
+                }
+                FileChange change = commit.getChanges().stream()
+                        .filter(candidate -> pathKey(candidate.getFilePath()).equals(file))
+                        .findFirst()
+                        .orElse(null);
+                if (change == null) {
+                    // A false positive of the filter
+                    return true;
+                }
+                if (change.getChangeType() == FileChange.ChangeType.DELETED) {
+                    return false;
+                }
+                LineOrigins cached = blameCache.get(id + ":" + file);
+                if (cached != null) {
+                    base.add(cached);
+                    return false;
+                }
+                versions.add(new FileVersion(id, change.getContentHash()));
+                return change.getChangeType() != FileChange.ChangeType.ADDED;
+            });
+            if (versions.isEmpty() && base.isEmpty()) {
+                throw new IllegalArgumentException("File not found in " + ref + ": " + file);
+            }
+
+            LineOrigins origins = base.isEmpty() ? null : base.get(0);
+            byte[] content = origins != null ? objectStore.read(origins.hash()) : new byte[0];
+            if (!versions.isEmpty()) {
+                Blame blame = origins != null ? new Blame(content, origins.origins()) : new Blame();
+                List<String> originCommits = new ArrayList<>(origins != null ? List.of(origins.commits()) : List.of());
+                // Read a batch of versions at a time, oldest first
+                for (int end = versions.size(); end > 0; end -= BLAME_BATCH_SIZE) {
+                    List<FileVersion> batch = new ArrayList<>(versions.subList(Math.max(0, end - BLAME_BATCH_SIZE), end));
+                    Collections.reverse(batch);
+                    List<byte[]> contents = treeScanner.map(batch, version -> objectStore.read(version.hash()));
+                    for (int i = 0; i < batch.size(); i++) {
+                        blame.advance(contents.get(i), originCommits.size());
+                        originCommits.add(batch.get(i).commitId());
+                    }
+                }
+                content = blame.getContent();
+                origins = compactOrigins(versions.get(0).hash(), originCommits, blame.getOrigins());
+                blameCache.put(versions.get(0).commitId() + ":" + file, origins);
+            }
+            if (FileDiff.isBinary(content)) {
+                throw new IllegalArgumentException("Cannot blame binary file: " + file);
+            }
+
+            Commit[] commits = new Commit[origins.commits().length];
+            for (int i = 0; i < commits.length; i++) {
+                commits[i] = commitStore.read(origins.commits()[i]);
+                if (commits[i] == null) {
+                    throw new IOException("Missing commit: " + origins.commits()[i]);
+                }
+            }
+            List<String> text = Blame.lines(content);
+            List<BlameLine> lines = new ArrayList<>(text.size());
+            for (int i = 0; i < text.size(); i++) {
+                String line = text.get(i);
+                Commit origin = commits[origins.origins()[i]];
+                lines.add(new BlameLine(i + 1, origin.getId(), origin.getAuthor(), origin.getTimestamp(),
+                        line.endsWith("\r") ? line.substring(0, line.length() - 1) : line));
+            }
+            return new BlameResult(file, commitId, lines);
+        } catch (IOException e) {
+            logger.error("Error computing blame", e);
+            throw new RuntimeException("Could not blame " + file, e);
+        }
+    }
+
+    /**
+     * Keep only the commits that still own a line
+     * @param hash Hash of the blamed version
+     * @param commits Candidate origin commits
+     * @param origins Index into commits per line
+     * @return LineOrigins referring to the commits in use
+     */
+    private static LineOrigins compactOrigins(String hash, List<String> commits, int[] origins) {
+        int[] remap = new int[commits.size()];
+        Arrays.fill(remap, -1);
+        List<String> used = new ArrayList<>();
+        int[] compacted = new int[origins.length];
+        for (int i = 0; i < origins.length; i++) {
+            if (remap[origins[i]] < 0) {
+                remap[origins[i]] = used.size();
+                used.add(commits.get(origins[i]));
+            }
+            compacted[i] = remap[origins[i]];
+        }
+        return new LineOrigins(hash, used.toArray(new String[0]), compacted);
+    }
+
+    private record FileVersion(String commitId, String hash) {
+    }
+
+    /**
+     * Origin of each line of one version of a file
+     * @param hash Hash of the content
+     * @param commits Commits owning at least one line
+     * @param origins Index into commits for every line
+     */
+    private record LineOrigins(String hash, String[] commits, int[] origins) {
+    }
+
+    private static long toEpochMillis(LocalDateTime time) {
+        // The commit graph stores timestamps in the system time zone
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Get the commit graph of a repository, rebuilding it from the stored commits
+     * when it is missing, outdated or does not know the current head
+     * @param repository The repository
+     * @param commitStore Store to read commits from during a rebuild
+     * @return CommitGraph ready for walking and appending
+     */
+    private CommitGraph openCommitGraph(Repository repository, CommitStore commitStore) throws IOException {
+        CommitGraph commitGraph = repository.getCommitGraph();
+        String headCommitId = repository.getCurrentBranch().getHeadCommitID();
+        // Other handles or processes may have appended since the graph was loaded
+        commitGraph.refresh();
+        if (commitGraph.isValid() && (headCommitId == null || commitGraph.contains(headCommitId))) {
+            return commitGraph;
+        }
+
+        try (PathLocks.Lock lock = repository.lockHistory()) {
+            // Another request may have rebuilt it while this one waited
+            commitGraph.refresh();
+            if (commitGraph.isValid() && (headCommitId == null || commitGraph.contains(headCommitId))) {
+                return commitGraph;
+            }
+
+            logger.info("Rebuilding commit graph for {}", repository.getRootPath());
+            List<Commit> commits = new ArrayList<>();
+            for (String commitId : commitStore.listAllIds()) {
+                Commit commit = commitStore.read(commitId);
+                if (commit != null && commit.getId() != null) {
+                    commits.add(commit);
+                }
+            }
+            commitGraph.rebuild(commits);
+        }
+        return commitGraph;
+    }
+
+
+    /**
+     * Consolidate loose commits and the blobs they reference into a new pack.
+     * Blobs are delta-encoded against the previous version of the same path.
+     * @param repository The repository
+     * @return RepackResult describing what was packed
+     */
+    public RepackResult repack(Repository repository) {
+        CommitStore commitStore = commitStore(repository);
+        ObjectStore objectStore = objectStore(repository);
+        Path packsPath = repository.getPackStore().getPacksPath();
+
+        try (PathLocks.Lock maintenanceLock = repository.lockMaintenance()) {
+            List<Commit> commits = new ArrayList<>();
+            for (String commitId : commitStore.listLooseIds()) {
+                Commit commit = commitStore.read(commitId);
+                if (commit != null) {
+                    commits.add(commit);
+                }
+            }
+            if (commits.isEmpty()) {
+                return new RepackResult(0, 0, 0, 0, 0);
+            }
+
+            // Oldest first, so every blob can use the previous version of its path as delta base
+            commits.sort(Comparator.comparing(Commit::getTimestamp));
+
+            long sizeBefore = 0;
+            List<Path> packedLooseFiles = new ArrayList<>();
+            Path packPath;
+            int objectCount;
+            int deltaCount;
+
+            try (PackWriter writer = new PackWriter(packsPath)) {
+                Map<Path, String> lastBlobByPath = new HashMap<>();
+                Map<Path, byte[]> lastContentByPath = new HashMap<>();
+
+                for (Commit commit : commits) {
+                    Path commitFile = commitStore.loosePath(commit.getId());
+                    sizeBefore += Files.size(commitFile);
+                    writer.add(PackFile.TYPE_COMMIT, commit.getId(), Files.readAllBytes(commitFile));
+                    packedLooseFiles.add(commitFile);
+
+                    for (FileChange change : commit.getChanges()) {
+                        String hash = change.getContentHash();
+                        // Only loose blobs are packed; blobs already in an older pack stay there,
+                        // and large blobs stay loose so repacking never holds them in memory
+                        if (hash == null || writer.contains(hash) || !objectStore.isLoose(hash)
+                                || Files.size(objectStore.resolve(hash)) > MAX_PACKED_BLOB_SIZE) {
+                            continue;
+                        }
+
+                        byte[] content = objectStore.read(hash);
+                        Path path = change.getFilePath();
+                        writer.add(PackFile.TYPE_BLOB, hash, content,
+                                lastBlobByPath.get(path), lastContentByPath.get(path));
+
+                        sizeBefore += content.length;
+                        packedLooseFiles.add(objectStore.resolve(hash));
+                        lastBlobByPath.put(path, hash);
+                        lastContentByPath.put(path, content);
+                    }
+                }
+
+                objectCount = writer.getObjectCount();
+                deltaCount = writer.getDeltaCount();
+                packPath = writer.finish();
+            }
+
+            // The pack is published, so the loose copies are now redundant. Copies the journal still
+            // holds stay, since a replay would otherwise write them again as new loose files.
+            repository.getPackStore().refresh();
+            Set<Path> journaled = checkpointJournal(repository);
+            for (Path looseFile : packedLooseFiles) {
+                if (!journaled.contains(looseFile.toAbsolutePath().normalize())) {
+                    Files.deleteIfExists(looseFile);
+                }
+            }
+
+            long sizeAfter = PackFile.open(packPath).sizeOnDisk();
+            logger.info("Packed {} objects ({} deltas) into {}: {} -> {} bytes",
+                    objectCount, deltaCount, packPath.getFileName(), sizeBefore, sizeAfter);
+            return new RepackResult(commits.size(), objectCount, deltaCount, sizeBefore, sizeAfter);
+        } catch (IOException e) {
+            logger.error("Repack failed", e);
+            throw new RuntimeException("Could not repack repository", e);
+        }
+    }
+
+    /**
+     * Check the integrity of a repository: every loose object must match its hash, every commit
+     * must be readable, and the parents, contents and branch heads it is reached through must exist.
+     * Commits and objects are checked in parallel.
+     * @param repository The repository
+     * @param progress Receives a short description of each step
+     * @return FsckResult the problems found
+     */
+    public FsckResult fsck(Repository repository, Consumer<String> progress) {
+        CommitStore commitStore = commitStore(repository);
+        ObjectStore objectStore = objectStore(repository);
+        List<String> problems = Collections.synchronizedList(new ArrayList<>());
+
+        try {
+            List<String> commitIds = commitStore.listAllIds();
+            Set<String> knownIds = new HashSet<>(commitIds);
+            for (Map.Entry<String, Branch> branch : repository.getBranches().entrySet()) {
+                String headCommitId = repository.readBranchHead(branch.getKey());
+                if (headCommitId != null && !knownIds.contains(headCommitId)) {
+                    problems.add("Branch " + branch.getKey() + " points at missing commit " + headCommitId);
+                }
+            }
+
+            // Objects shared by many commits are only looked up once
+            Set<String> checkedObjects = ConcurrentHashMap.newKeySet();
+            for (int start = 0; start < commitIds.size(); start += INDEX_BATCH_SIZE) {
+                progress.accept("Checked " + start + " of " + commitIds.size() + " commits");
+                List<String> batch = commitIds.subList(start, Math.min(start + INDEX_BATCH_SIZE, commitIds.size()));
+                treeScanner.map(batch, commitId -> {
+                    Commit commit;
+                    try {
+                        commit = commitStore.read(commitId);
+                    } catch (IOException | RuntimeException e) {
+                        commit = null;
+                    }
+                    if (commit == null) {
+                        problems.add("Unreadable commit " + commitId);
+                        return null;
+                    }
+                    for (String parentId : Arrays.asList(commit.getParentCommitID(), commit.getMergeParentCommitID())) {
+                        if (parentId != null && !knownIds.contains(parentId)) {
+                            problems.add("Commit " + commitId + " has missing parent " + parentId);
+                        }
+                    }
+                    for (FileChange change : commit.getChanges()) {
+                        String hash = change.getContentHash();
+                        if (hash != null && checkedObjects.add(hash) && !objectStore.contains(hash)) {
+                            problems.add("Commit " + commitId + " refers to missing object " + hash + " for " + change.getFilePath());
+                        }
+                    }
+                    return null;
+                });
+            }
+
+            // Loose objects are named by their hash, so a changed byte shows up as a mismatch
+            progress.accept("Verifying loose objects");
+            Path objectsPath = repository.getRepoPath().resolve(OBJECTS_DIR);
+            int looseObjects = 0;
+            if (Files.isDirectory(objectsPath)) {
+                looseObjects = treeScanner.scan(objectsPath, dir -> true, new TreeScanner.FileProcessor<int[]>() {
+                    @Override
+                    public int[] newResult() {
+                        return new int[1];
+                    }
+
+                    @Override
+                    public void process(Path file, BasicFileAttributes attrs, int[] result) throws IOException {
+                        String name = file.getParent().getFileName().toString() + file.getFileName();
+                        if (!OBJECT_HASH.matcher(name).matches()) {
+                            return;
+                        }
+                        result[0]++;
+                        if (!ObjectStore.hash(file).equals(name)) {
+                            problems.add("Corrupt object " + name);
+                        }
+                    }
+
+                    @Override
+                    public void merge(int[] into, int[] from) {
+                        into[0] += from[0];
+                    }
+                })[0];
+            }
+
+            logger.info("Checked {} commits and {} loose objects: {} problems", commitIds.size(), looseObjects, problems.size());
+            List<String> sorted = new ArrayList<>(problems);
+            Collections.sort(sorted);
+            return new FsckResult(commitIds.size(), looseObjects, sorted);
+        } catch (IOException e) {
+            logger.error("Fsck failed", e);
+            throw new RuntimeException("Could not check repository", e);
+        }
+    }
+
+    /**
+     * Remove commits and objects that are no longer reachable. Everything reachable from a branch,
+     * a remote ref, a pending merge or the index is kept, and so is anything written within the
+     * grace period, since a concurrent commit or push may be about to reference it; reused content
+     * is marked as written again for the same reason. Packs holding unreachable entries are
+     * rewritten without them.
+     * @param repository The repository
+     * @param gracePeriod How long new commits and objects are kept even if unreachable; zero is only safe on an idle repository
+     * @return GcResult describing what was removed
+     */
+    public GcResult gc(Repository repository, Duration gracePeriod) {
+        CommitStore commitStore = commitStore(repository);
+        ObjectStore objectStore = objectStore(repository);
+        PackStore packStore = repository.getPackStore();
+        long cutoff = System.currentTimeMillis() - gracePeriod.toMillis();
+
+        try (PathLocks.Lock maintenanceLock = repository.lockMaintenance()) {
+            // A journal replay would write removed files again, so files it still holds are kept
+            Set<Path> journaled = checkpointJournal(repository);
+
+            // Commits that are too young to remove are roots as well, so they keep their objects
+            Set<String> roots = new HashSet<>(repository.readBranchHeads().values());
+            for (String remoteName : repository.getRemoteNames()) {
+                roots.addAll(repository.getRemoteRefs(remoteName).values());
+            }
+            Path mergeHeadPath = repository.getRepoPath().resolve(MERGE_HEAD_FILE);
+            if (Files.exists(mergeHeadPath)) {
+                roots.add(Files.readString(mergeHeadPath).trim());
+            }
+            for (String commitId : commitStore.listLooseIds()) {
+                if (!isExpired(commitStore.loosePath(commitId), cutoff, journaled)) {
+                    roots.add(commitId);
+                }
+            }
+            List<PackFile> packs = packStore.refresh();
+            for (PackFile pack : packs) {
+                if (!isExpired(pack.getPackPath(), cutoff, journaled)) {
+                    for (String key : pack.getKeys()) {
+                        if (pack.getType(key) == PackFile.TYPE_COMMIT) {
+                            roots.add(key);
+                        }
+                    }
+                }
+            }
+
+            // Mark: walk the history one generation at a time, reading each generation in parallel
+            Map<String, Commit> reachable = new ConcurrentHashMap<>();
+            List<String> frontier = new ArrayList<>(roots);
+            while (!frontier.isEmpty()) {
+                List<Commit> generation = treeScanner.map(frontier, commitStore::read);
+                frontier = new ArrayList<>();
+                for (Commit commit : generation) {
+                    if (commit == null || reachable.putIfAbsent(commit.getId(), commit) != null) {
+                        continue;
+                    }
+                    for (String parentId : Arrays.asList(commit.getParentCommitID(), commit.getMergeParentCommitID())) {
+                        if (parentId != null && !reachable.containsKey(parentId)) {
+                            frontier.add(parentId);
+                        }
+                    }
+                }
+            }
+
+            Set<String> liveObjects = new HashSet<>();
+            for (Commit commit : reachable.values()) {
+                for (FileChange change : commit.getChanges()) {
+                    if (change.getContentHash() != null) {
+                        liveObjects.add(change.getContentHash());
+                    }
+                }
+            }
+            for (Index.Entry entry : Index.load(repository.getRepoPath().resolve(INDEX_FILE)).getEntries()) {
+                if (entry.getHash() != null) {
+                    liveObjects.add(entry.getHash());
+                }
+            }
+
+            // Sweep loose files, checking their age again right before removing them
+            int removedCommits = 0;
+            long bytesFreed = 0;
+            for (String commitId : commitStore.listLooseIds()) {
+                Path commitFile = commitStore.loosePath(commitId);
+                if (!reachable.containsKey(commitId) && commitFile != null && isExpired(commitFile, cutoff, journaled)) {
+                    bytesFreed += deleteFile(commitFile);
+                    removedCommits++;
+                }
+            }
+
+            int removedObjects = 0;
+            Path objectsPath = repository.getRepoPath().resolve(OBJECTS_DIR);
+            if (Files.isDirectory(objectsPath)) {
+                List<Path> unreachable = treeScanner.scan(objectsPath, dir -> true, new TreeScanner.FileProcessor<List<Path>>() {
+                    @Override
+                    public List<Path> newResult() {
+                        return new ArrayList<>();
+                    }
+
+                    @Override
+                    public void process(Path file, BasicFileAttributes attrs, List<Path> result) {
+                        String name = file.getParent().getFileName().toString() + file.getFileName();
+                        if (OBJECT_HASH.matcher(name).matches() && !liveObjects.contains(name)
+                                && attrs.lastModifiedTime().toMillis() < cutoff) {
+                            result.add(file);
+                        }
+                    }
+
+                    @Override
+                    public void merge(List<Path> into, List<Path> from) {
+                        into.addAll(from);
+                    }
+                });
+                for (Path file : unreachable) {
+                    if (isExpired(file, cutoff, journaled)) {
+                        bytesFreed += deleteFile(file);
+                        removedObjects++;
+                    }
+                }
+            }
+
+            // Leftovers of interrupted writes
+            int removedTempFiles = 0;
+            try (Stream<Path> files = Files.walk(repository.getRepoPath())) {
+                for (Path file : (Iterable<Path>) files.filter(file -> file.getFileName().toString().endsWith(".tmp"))::iterator) {
+                    if (Files.isRegularFile(file) && isExpired(file, cutoff, journaled)) {
+                        bytesFreed += deleteFile(file);
+                        removedTempFiles++;
+                    }
+                }
+            }
+
+            // Rewrite old packs holding unreachable entries, keeping the reachable ones
+            List<PackFile> stalePacks = new ArrayList<>();
+            for (PackFile pack : packs) {
+                if (isExpired(pack.getPackPath(), cutoff, journaled) && Arrays.stream(pack.getKeys())
+                        .anyMatch(key -> !reachable.containsKey(key) && !liveObjects.contains(key))) {
+                    stalePacks.add(pack);
+                }
+            }
+            if (!stalePacks.isEmpty()) {
+                long[] compacted = compactPacks(repository, stalePacks, reachable, liveObjects);
+                removedCommits += (int) compacted[0];
+                removedObjects += (int) compacted[1];
+                bytesFreed += compacted[2];
+            }
+
+            // Derived indexes must not point at removed commits
+            if (removedCommits > 0) {
+                try (PathLocks.Lock historyLock = repository.lockHistory()) {
+                    List<Commit> remaining = new ArrayList<>();
+                    for (String commitId : commitStore.listAllIds()) {
+                        Commit commit = commitStore.read(commitId);
+                        if (commit != null && commit.getId() != null) {
+                            remaining.add(commit);
+                        }
+                    }
+                    repository.getCommitGraph().rebuild(remaining);
+                    repository.getTrigramIndex().reset();
+                }
+            }
+
+            logger.info("Collected {}: {} reachable commits, {} live objects; removed {} commits, {} objects, {} temp files, {} bytes",
+                    repository.getRootPath(), reachable.size(), liveObjects.size(),
+                    removedCommits, removedObjects, removedTempFiles, bytesFreed);
+            return new GcResult(reachable.size(), liveObjects.size(), removedCommits, removedObjects,
+                    removedTempFiles, stalePacks.size(), bytesFreed);
+        } catch (IOException e) {
+            logger.error("Garbage collection failed", e);
+            throw new RuntimeException("Could not collect garbage", e);
+        }
+    }
+
+    /**
+     * Replace packs by one pack holding only their reachable commits and live objects.
+     * Blobs are delta-encoded against the previous version of the same path, as in a repack.
+     * @param repository The repository
+     * @param stalePacks Packs to replace
+     * @param reachable Reachable commits by ID
+     * @param liveObjects Hashes of objects referenced by reachable commits or the index
+     * @return long[] removed commits, removed objects and bytes freed
+     */
+    private long[] compactPacks(Repository repository, List<PackFile> stalePacks, Map<String, Commit> reachable,
+                                Set<String> liveObjects) throws IOException {
+        PackStore packStore = repository.getPackStore();
+        Map<String, PackFile> keep = new HashMap<>();
+        long removedCommits = 0;
+        long removedObjects = 0;
+        long sizeBefore = 0;
+        for (PackFile pack : stalePacks) {
+            sizeBefore += pack.sizeOnDisk();
+            for (String key : pack.getKeys()) {
+                boolean commit = pack.getType(key) == PackFile.TYPE_COMMIT;
+                if (commit ? reachable.containsKey(key) : liveObjects.contains(key)) {
+                    keep.putIfAbsent(key, pack);
+                } else if (commit) {
+                    removedCommits++;
+                } else {
+                    removedObjects++;
+                }
+            }
+        }
+
+        long sizeAfter = 0;
+        try (PackWriter writer = new PackWriter(packStore.getPacksPath())) {
+            List<Commit> commits = new ArrayList<>();
+            for (String key : keep.keySet()) {
+                if (reachable.containsKey(key)) {
+                    commits.add(reachable.get(key));
+                }
+            }
+            commits.sort(Comparator.comparing(Commit::getTimestamp));
+
+            Map<Path, String> lastBlobByPath = new HashMap<>();
+            Map<Path, byte[]> lastContentByPath = new HashMap<>();
+            for (Commit commit : commits) {
+                writer.add(PackFile.TYPE_COMMIT, commit.getId(), keep.get(commit.getId()).read(commit.getId()));
+                for (FileChange change : commit.getChanges()) {
+                    String hash = change.getContentHash();
+                    if (hash == null || !keep.containsKey(hash) || writer.contains(hash)) {
+                        continue;
+                    }
+                    byte[] content = keep.get(hash).read(hash);
+                    Path path = change.getFilePath();
+                    writer.add(PackFile.TYPE_BLOB, hash, content, lastBlobByPath.get(path), lastContentByPath.get(path));
+                    lastBlobByPath.put(path, hash);
+                    lastContentByPath.put(path, content);
+                }
+            }
+            // Live objects whose commits are stored elsewhere, or that are only staged
+            for (Map.Entry<String, PackFile> entry : keep.entrySet()) {
+                if (!writer.contains(entry.getKey())) {
+                    writer.add(entry.getValue().getType(entry.getKey()), entry.getKey(), entry.getValue().read(entry.getKey()));
+                }
+            }
+
+            if (writer.getObjectCount() > 0) {
+                Path packPath = writer.finish();
+                sizeAfter = PackFile.open(packPath).sizeOnDisk();
+            }
+        }
+
+        // The replacement is published first, so every kept entry stays readable throughout
+        packStore.refresh();
+        for (PackFile pack : stalePacks) {
+            packStore.delete(pack);
+        }
+        return new long[] {removedCommits, removedObjects, sizeBefore - sizeAfter};
+    }
+
+    /**
+     * Replay and empty the journal of a repository if no records are waiting
+     * @param repository The repository
+     * @return Set of absolute paths the journal still holds, empty if it was emptied
+     */
+    private static Set<Path> checkpointJournal(Repository repository) throws IOException {
+        Journal journal = repository.getJournal();
+        Set<Path> journaled = new HashSet<>();
+        if (!journal.checkpoint()) {
+            for (String path : journal.journaledFiles()) {
+                journaled.add(repository.getRepoPath().resolve(path).toAbsolutePath().normalize());
+            }
+        }
+        return journaled;
+    }
+
+    private static boolean isExpired(Path file, long cutoff, Set<Path> journaled) throws IOException {
+        if (journaled.contains(file.toAbsolutePath().normalize())) {
+            return false;
+        }
+        try {
+            return Files.getLastModifiedTime(file).toMillis() < cutoff;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static long deleteFile(Path file) throws IOException {
+        try {
+            long size = Files.size(file);
+            Files.delete(file);
+            return size;
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Count what a repository stores, to decide whether it needs maintenance
+     * @param repository The repository
+     * @return StorageStats loose files, packs and bytes on disk
+     */
+    public StorageStats getStorageStats(Repository repository) {
+        try {
+            long[] objects = {0, 0};
+            Path objectsPath = repository.getRepoPath().resolve(OBJECTS_DIR);
+            if (Files.isDirectory(objectsPath)) {
+                objects = treeScanner.scan(objectsPath, dir -> true, new TreeScanner.FileProcessor<long[]>() {
+                    @Override
+                    public long[] newResult() {
+                        return new long[2];
+                    }
+
+                    @Override
+                    public void process(Path file, BasicFileAttributes attrs, long[] result) {
+                        String name = file.getParent().getFileName().toString() + file.getFileName();
+                        if (OBJECT_HASH.matcher(name).matches()) {
+                            result[0]++;
+                        }
+                        result[1] += attrs.size();
+                    }
+
+                    @Override
+                    public void merge(long[] into, long[] from) {
+                        into[0] += from[0];
+                        into[1] += from[1];
+                    }
+                });
+            }
+
+            CommitStore commitStore = commitStore(repository);
+            List<String> looseCommits = commitStore.listLooseIds();
+            long bytes = objects[1];
+            for (String commitId : looseCommits) {
+                Path commitFile = commitStore.loosePath(commitId);
+                bytes += commitFile != null && Files.exists(commitFile) ? Files.size(commitFile) : 0;
+            }
+            List<PackFile> packs = repository.getPackStore().refresh();
+            for (PackFile pack : packs) {
+                bytes += pack.sizeOnDisk();
+            }
+            return new StorageStats((int) objects[0], looseCommits.size(), packs.size(), bytes);
+        } catch (IOException e) {
+            logger.error("Could not measure repository", e);
+            throw new RuntimeException("Could not measure repository", e);
+        }
+    }
+
+    /**
+     * Queue a background repack once the number of loose commits reaches the configured threshold
+     * @param repository The repository
+     */
+    private void scheduleRepackIfNeeded(Repository repository) {
+        if (autoRepackThreshold <= 0) {
+            return;
+        }
+
+        try {
+            List<String> looseIds = commitStore(repository).listLooseIds();
+            if (looseIds.size() < autoRepackThreshold || !pendingRepacks.add(repository.getRootPath())) {
+                return;
+            }
+        } catch (IOException e) {
+            logger.warn("Could not count loose commits", e);
+            return;
+        }
+
+        repackExecutor.execute(() -> {
+            try {
+                repack(repository);
+            } catch (RuntimeException e) {
+                logger.error("Background repack failed for " + repository.getRootPath(), e);
+            } finally {
+                pendingRepacks.remove(repository.getRootPath());
+            }
+        });
+    }
+
+    /**
+     * Get repository status
+     * @param repository The repository
+     * @return RepositoryStatus containing staged and unstaged changes
+     */
+
+    public RepositoryStatus getRepositoryStatus(Repository repository) {
+        IgnoreFile ignoreFile = repository.getIgnoreFile();
+        Path rootPath = repository.getRootPath();
+
+        try {
+            RepositoryStatus status = new RepositoryStatus();
+            Index index = Index.load(repository.getRepoPath().resolve(INDEX_FILE));
+
+            // Never descend into the .distribvc directory or ignored directories
+            StatusScan scan = treeScanner.scan(rootPath,
+                    dir -> !dir.equals(repository.getRepoPath())
+                            && !ignoreFile.isIgnored(rootPath.relativize(dir), true),
+                    new TreeScanner.FileProcessor<>() {
+                        @Override
+                        public StatusScan newResult() {
+                            return new StatusScan();
+                        }
+
+                        @Override
+                        public void process(Path file, BasicFileAttributes attrs, StatusScan result) throws IOException {
+                            Path relativePath = rootPath.relativize(file);
+
+                            // Skip ignored files, parent directories were already checked on the way down
+                            if (ignoreFile.isIgnored(relativePath, false)) {
+                                return;
+                            }
+
+                            Index.Entry entry = index.get(relativePath);
+                            if (entry == null) {
+                                result.unstaged.put(relativePath, RepositoryStatus.FileStatus.UNTRACKED);
+                                return;
+                            }
+                            result.seen.add(entry.getPath());
+
+                            // Only read the file when its stat data no longer matches the index
+                            if (!index.isUpToDate(entry, attrs)) {
+                                String hash = ObjectStore.hash(file);
+                                if (hash.equals(entry.getHash())) {
+                                    result.refreshed.add(new HashedFile(relativePath, attrs, hash));
+                                } else {
+                                    result.unstaged.put(relativePath, RepositoryStatus.FileStatus.MODIFIED);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void merge(StatusScan into, StatusScan from) {
+                            into.unstaged.putAll(from.unstaged);
+                            into.seen.addAll(from.seen);
+                            into.refreshed.addAll(from.refreshed);
+                        }
+                    });
+
+            scan.unstaged.forEach(status::addUnstagedFile);
+            Set<Path> seenFiles = new HashSet<>(scan.seen);
+            for (Index.Entry entry : index.getEntries()) {
+                if (entry.isStaged()) {
+                    status.addStagedFile(entry.getPath(), RepositoryStatus.FileStatus.STAGED);
+                }
+                if (!seenFiles.contains(entry.getPath()) && !entry.isDeleted()) {
+                    status.addUnstagedFile(entry.getPath(), RepositoryStatus.FileStatus.DELETED);
+                }
+            }
+
+            // Persist refreshed stat data so unchanged files are not hashed again, into the index
+            // as it is now, skipping files that were staged or committed while scanning
+            if (!scan.refreshed.isEmpty()) {
+                try (PathLocks.Lock lock = repository.lockIndex()) {
+                    Index current = Index.load(repository.getRepoPath().resolve(INDEX_FILE));
+                    for (HashedFile refreshed : scan.refreshed) {
+                        Index.Entry entry = current.get(refreshed.relativePath());
+                        if (entry != null && entry.getHash().equals(refreshed.hash())) {
+                            current.put(refreshed.relativePath(), refreshed.attrs(), refreshed.hash(), entry.getFlags());
+                        }
+                    }
+                    current.save();
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            logger.error("Could not get repository status", e);
+            throw new RuntimeException("Could not retrieve repository status", e);
+        }
+    }
+
+    /**
+     * Diff two commits or branches
+     * @param repository The repository
+     * @param from Old commit ID, branch name or HEAD
+     * @param to New commit ID, branch name or HEAD
+     * @return List of file diffs ordered by path
+     */
+    public List<FileDiff> diffCommits(Repository repository, String from, String to) {
+        try {
+            CommitStore commitStore = commitStore(repository);
+            ContentSource stored = storedContent(objectStore(repository));
+            Map<String, String> oldFiles = snapshot(repository, commitStore, resolveCommit(repository, commitStore, from));
+            Map<String, String> newFiles = snapshot(repository, commitStore, resolveCommit(repository, commitStore, to));
+            return diffSnapshots(oldFiles, newFiles, stored, stored);
+        } catch (IOException e) {
+            logger.error("Could not diff commits", e);
+            throw new RuntimeException("Could not compute diff", e);
+        }
+    }
+
+    /**
+     * Diff the staged files against the head of the current branch
+     * @param repository The repository
+     * @return List of file diffs ordered by path
+     */
+    public List<FileDiff> diffStaged(Repository repository) {
+        try {
+            CommitStore commitStore = commitStore(repository);
+            ContentSource stored = storedContent(objectStore(repository));
+            Map<String, String> headFiles = snapshot(repository, commitStore, repository.getCurrentBranch().getHeadCommitID());
+            return diffSnapshots(headFiles, indexFiles(loadIndex(repository)), stored, stored);
+        } catch (IOException e) {
+            logger.error("Could not diff staged files", e);
+            throw new RuntimeException("Could not compute diff", e);
+        }
+    }
+
+    /**
+     * Diff tracked files in the working tree against the index or a commit.
+     * Files whose stat data matches the index are not read.
+     * @param repository The repository
+     * @param from Commit ID, branch name or HEAD to compare with, or null to compare with the index
+     * @return List of file diffs ordered by path
+     */
+    public List<FileDiff> diffWorkingTree(Repository repository, String from) {
+        try {
+            Index index = loadIndex(repository);
+            Map<String, String> oldFiles;
+            if (from == null) {
+                oldFiles = indexFiles(index);
+            } else {
+                CommitStore commitStore = commitStore(repository);
+                oldFiles = snapshot(repository, commitStore, resolveCommit(repository, commitStore, from));
+            }
+            ContentSource working = (path, hash) -> Files.readAllBytes(repository.getRootPath().resolve(path));
+            return diffSnapshots(oldFiles, workingFiles(repository, index), storedContent(objectStore(repository)), working);
+        } catch (IOException e) {
+            logger.error("Could not diff working tree", e);
+            throw new RuntimeException("Could not compute diff", e);
+        }
+    }
+
+    /**
+     * Merge another branch into the current branch.
+     * If the current branch is an ancestor of the other branch, it is fast-forwarded and only
+     * files whose hashes differ are written. Otherwise files changed on one side only are taken
+     * from that side, files changed on both sides are merged line by line in parallel, and a merge
+     * commit is created unless there are conflicts. Conflicting files are left in the working tree
+     * with conflict markers; staging them and committing completes the merge.
+     * @param repository The repository
+     * @param branchName Branch or commit to merge
+     * @param author Author of the merge commit
+     * @return MergeResult describing the outcome
+     */
+    public MergeResult merge(Repository repository, String branchName, String author) {
+        try (PathLocks.Lock lock = repository.lockIndex()) {
+            Path mergeHeadPath = repository.getRepoPath().resolve(MERGE_HEAD_FILE);
+            if (Files.exists(mergeHeadPath)) {
+                throw new IllegalStateException("A merge is in progress; resolve the conflicts and commit first");
+            }
+            Index index = loadIndex(repository);
+            if (!index.getStagedEntries().isEmpty()) {
+                throw new IllegalStateException("Commit or unstage staged changes before merging");
+            }
+
+            CommitStore commitStore = commitStore(repository);
+            CommitGraph commitGraph = openCommitGraph(repository, commitStore);
+            // Commits to the current branch hold the index lock, so its head cannot move from here on
+            String currentBranchName = repository.getCurrentBranch().getName();
+            String ours = repository.readBranchHead(currentBranchName);
+            String theirs = resolveCommit(repository, commitStore, branchName);
+            if (theirs == null || (ours != null && commitGraph.isAncestor(theirs, ours))) {
+                return new MergeResult(MergeResult.Status.UP_TO_DATE, ours, 0, Collections.emptyList());
+            }
+
+            ObjectStore objectStore = objectStore(repository);
+            Map<String, String> ourFiles = snapshot(repository, commitStore, ours);
+            Map<String, String> theirFiles = snapshot(repository, commitStore, theirs);
+
+            if (ours == null || commitGraph.isAncestor(ours, theirs)) {
+                Map<String, String> updates = changedFiles(ourFiles, theirFiles);
+                checkWorkingTree(repository, index, updates.keySet());
+                writeWorkingFiles(repository, objectStore, index, updates, ourFiles, false);
+                index.save();
+                repository.updateBranchHead(currentBranchName, ours, theirs);
+                logger.info("Fast-forwarded {} to {}", currentBranchName, theirs);
+                return new MergeResult(MergeResult.Status.FAST_FORWARD, theirs, updates.size(), Collections.emptyList());
+            }
+
+            Map<String, String> baseFiles = snapshot(repository, commitStore, commitGraph.mergeBase(ours, theirs));
+
+            // Files changed on one side only are taken from that side; files changed on both
+            // sides need a content merge, unless one side deleted them
+            Map<String, String> updates = new HashMap<>();
+            List<String> contentMerges = new ArrayList<>();
+            List<String> conflicts = new ArrayList<>();
+            Set<String> paths = new TreeSet<>(ourFiles.keySet());
+            paths.addAll(theirFiles.keySet());
+            for (String path : paths) {
+                String base = baseFiles.get(path);
+                String ourHash = ourFiles.get(path);
+                String theirHash = theirFiles.get(path);
+                if (Objects.equals(ourHash, theirHash) || Objects.equals(theirHash, base)) {
+                    continue;
+                }
+                if (Objects.equals(ourHash, base)) {
+                    updates.put(path, theirHash);
+                } else if (ourHash == null || theirHash == null) {
+                    conflicts.add(path);
+                } else {
+                    contentMerges.add(path);
+                }
+            }
+
+            List<String> touched = new ArrayList<>(updates.keySet());
+            touched.addAll(contentMerges);
+            touched.addAll(conflicts);
+            checkWorkingTree(repository, index, touched);
+
+            String label = branchName;
+            List<MergedFile> mergedFiles = treeScanner.map(contentMerges, path -> {
+                String base = baseFiles.get(path);
+                ThreeWayMerge.Result result = ThreeWayMerge.merge(
+                        base != null ? objectStore.read(base) : new byte[0],
+                        objectStore.read(ourFiles.get(path)),
+                        objectStore.read(theirFiles.get(path)),
+                        label);
+                if (result.hasConflicts()) {
+                    Files.write(workingFile(repository, Paths.get(path)), result.getContent());
+                    return new MergedFile(path, null);
+                }
+                return new MergedFile(path, objectStore.store(result.getContent()));
+            });
+            for (MergedFile mergedFile : mergedFiles) {
+                if (mergedFile.hash() != null) {
+                    updates.put(mergedFile.path(), mergedFile.hash());
+                } else {
+                    conflicts.add(mergedFile.path());
+                }
+            }
+
+            // A file we deleted but they modified is restored unstaged, so its changes can be reviewed
+            for (String path : conflicts) {
+                if (ourFiles.get(path) == null && theirFiles.get(path) != null) {
+                    Path file = workingFile(repository, Paths.get(path));
+                    Files.createDirectories(file.getParent());
+                    try (InputStream in = objectStore.open(theirFiles.get(path))) {
+                        Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+
+            writeWorkingFiles(repository, objectStore, index, updates, ourFiles, true);
+            index.save();
+            Files.writeString(mergeHeadPath, theirs);
+
+            if (!conflicts.isEmpty()) {
+                Collections.sort(conflicts);
+                logger.info("Merge of {} stopped with {} conflicts", branchName, conflicts.size());
+                return new MergeResult(MergeResult.Status.CONFLICTS, ours, updates.size(), conflicts);
+            }
+
+            Commit mergeCommit = commit(repository, "Merge branch '" + branchName + "'", author);
+            return new MergeResult(MergeResult.Status.MERGED, mergeCommit.getId(), updates.size(), Collections.emptyList());
+        } catch (IOException e) {
+            logger.error("Merge failed", e);
+            throw new RuntimeException("Could not merge " + branchName, e);
+        }
+    }
+
+    private record MergedFile(String path, String hash) {
+    }
+
+    /**
+     * Switch to another branch and update the working tree to its head commit.
+     * Only files whose content differs from the index are written or deleted, in parallel,
+     * so the cost follows the difference between the branches rather than the repository size.
+     * Refuses to run if a file to be replaced has unstaged or staged changes.
+     * @param repository The repository
+     * @param branchName Branch to switch to
+     * @return CheckoutResult describing the update
+     */
+    public CheckoutResult checkout(Repository repository, String branchName) {
+        try (PathLocks.Lock lock = repository.lockIndex()) {
+            if (Files.exists(repository.getRepoPath().resolve(MERGE_HEAD_FILE))) {
+                throw new IllegalStateException("A merge is in progress; resolve the conflicts and commit first");
+            }
+            Branch branch = repository.getBranches().get(branchName);
+            if (branch == null) {
+                throw new IllegalArgumentException("Branch does not exist: " + branchName);
+            }
+
+            Index index = loadIndex(repository);
+            Map<String, String> targetFiles = snapshot(repository, commitStore(repository), branch.getHeadCommitID());
+            Map<String, String> updates = updateWorkingTree(repository, index, targetFiles);
+            repository.switchBranch(branchName);
+
+            int deleted = (int) updates.values().stream().filter(Objects::isNull).count();
+            logger.info("Switched to {}: {} files written, {} deleted", branchName, updates.size() - deleted, deleted);
+            return new CheckoutResult(branchName, branch.getHeadCommitID(), updates.size() - deleted, deleted);
+        } catch (IOException e) {
+            logger.error("Checkout failed", e);
+            throw new RuntimeException("Could not check out " + branchName, e);
+        }
+    }
+
+    /**
+     * Advertise the branch heads of a repository to another repository
+     * @param repository The repository
+     * @return RefList with the checked out branch and every branch that has commits
+     */
+    public RefList getRefs(Repository repository) {
+        Map<String, String> heads = new HashMap<>();
+        repository.getBranches().forEach((name, branch) -> {
+            if (branch.getHeadCommitID() != null) {
+                heads.put(name, branch.getHeadCommitID());
+            }
+        });
+        return new RefList(repository.getCurrentBranch().getName(), heads);
+    }
+
+    /**
+     * Work out what another repository needs to reach some commits, given the commits it already has.
+     * Only history not reachable from a have is sent, so the cost follows the difference
+     * between the repositories rather than their size.
+     * @param repository The repository serving the commits
+     * @param wants Commits the other repository asks for
+     * @param haves Heads the other repository has; unknown ones are ignored
+     * @return Negotiation listing missing commits, parents first, and the objects they reference
+     */
+    public Negotiation negotiate(Repository repository, Collection<String> wants, Collection<String> haves) {
+        try {
+            CommitStore commitStore = commitStore(repository);
+            List<String> commitIds = openCommitGraph(repository, commitStore).missingCommits(wants, haves);
+            Set<String> objects = new LinkedHashSet<>();
+            for (String commitId : commitIds) {
+                Commit commit = commitStore.read(commitId);
+                if (commit == null) {
+                    throw new IOException("Missing commit: " + commitId);
+                }
+                for (FileChange change : commit.getChanges()) {
+                    if (change.getContentHash() != null) {
+                        objects.add(change.getContentHash());
+                    }
+                }
+            }
+            return new Negotiation(commitIds, new ArrayList<>(objects));
+        } catch (IOException e) {
+            logger.error("Negotiation failed", e);
+            throw new RuntimeException("Could not negotiate sync", e);
+        }
+    }
+
+    /**
+     * Find which of some objects a repository does not have
+     * @param repository The repository
+     * @param hashes Object hashes to check
+     * @return List of the hashes that are missing
+     */
+    public List<String> missingObjects(Repository repository, Collection<String> hashes) {
+        try {
+            ObjectStore objectStore = objectStore(repository);
+            List<String> missing = new ArrayList<>();
+            for (String hash : hashes) {
+                checkObjectHash(hash);
+                if (!objectStore.contains(hash)) {
+                    missing.add(hash);
+                }
+            }
+            return missing;
+        } catch (IOException e) {
+            logger.error("Could not check objects", e);
+            throw new RuntimeException("Could not check objects", e);
+        }
+    }
+
+    /**
+     * Stream commits and objects as a compressed transfer pack. Objects come first,
+     * so a receiver has every file of a commit by the time it reads the commit.
+     * @param repository The repository
+     * @param commitIds Commits to send, parents first
+     * @param objectHashes Objects to send
+     * @param out Stream to write to; it is not closed
+     */
+    public void writeSyncPack(Repository repository, List<String> commitIds, List<String> objectHashes,
+                              OutputStream out) {
+        try {
+            ObjectStore objectStore = objectStore(repository);
+            CommitStore commitStore = commitStore(repository);
+            SyncPack.Writer writer = new SyncPack.Writer(out);
+            for (String hash : objectHashes) {
+                checkObjectHash(hash);
+                try (InputStream in = objectStore.open(hash)) {
+                    writer.add(SyncPack.TYPE_OBJECT, hash, in);
+                }
+            }
+            for (String commitId : commitIds) {
+                byte[] data = commitStore.readRaw(commitId);
+                if (data == null) {
+                    throw new IOException("Missing commit: " + commitId);
+                }
+                writer.add(SyncPack.TYPE_COMMIT, commitId, data);
+            }
+            writer.finish();
+            logger.info("Sent {} commits and {} objects", commitIds.size(), objectHashes.size());
+        } catch (IOException e) {
+            logger.error("Could not write sync pack", e);
+            throw new RuntimeException("Could not write sync pack", e);
+        }
+    }
+
+    /**
+     * Receive a pushed transfer pack and move a branch to its new head if nobody moved it meanwhile.
+     * Pushing the checked out branch also updates the working tree, which must be clean.
+     * @param repository The receiving repository
+     * @param in Stream with the compressed pack
+     * @param branchName Branch to update
+     * @param oldHead Head the pusher saw, or null for a new branch
+     * @param newHead The new head
+     * @return int number of commits received
+     */
+    public int receivePush(Repository repository, InputStream in, String branchName, String oldHead, String newHead) {
+        try {
+            List<Commit> received = ingestSyncPack(repository, in);
+            // The index lock keeps commits and checkouts out while the working tree is updated
+            boolean checkedOut = branchName.equals(repository.getCurrentBranch().getName());
+            try (PathLocks.Lock indexLock = checkedOut ? repository.lockIndex() : null;
+                 PathLocks.Lock branchLock = repository.lockBranch(branchName)) {
+                String currentHead = repository.readBranchHead(branchName);
+                if (!Objects.equals(currentHead, oldHead)) {
+                    throw new IllegalStateException("Branch " + branchName + " has moved; fetch and try again");
+                }
+                CommitStore commitStore = commitStore(repository);
+                CommitGraph commitGraph = openCommitGraph(repository, commitStore);
+                if (!commitGraph.contains(newHead)) {
+                    throw new IllegalArgumentException("Unknown commit: " + newHead);
+                }
+                if (currentHead != null && !commitGraph.isAncestor(currentHead, newHead)) {
+                    throw new IllegalStateException("Push rejected: " + branchName + " is not a fast-forward");
+                }
+
+                if (checkedOut) {
+                    if (Files.exists(repository.getRepoPath().resolve(MERGE_HEAD_FILE))) {
+                        throw new IllegalStateException("Cannot update " + branchName + " while a merge is in progress");
+                    }
+                    updateWorkingTree(repository, loadIndex(repository), snapshot(repository, commitStore, newHead));
+                }
+                repository.updateBranchHead(branchName, oldHead, newHead);
+            }
+            logger.info("Received push to {}: {} -> {}", branchName, oldHead, newHead);
+            return received.size();
+        } catch (IOException e) {
+            logger.error("Receiving push failed", e);
+            throw new RuntimeException("Could not receive push", e);
+        }
+    }
+
+    /**
+     * Store the commits and objects of a transfer pack. Objects are verified against their hashes
+     * while they are streamed to disk; commits only become visible once every parent and every
+     * referenced object is known to be present.
+     * @param repository The receiving repository
+     * @param in Stream with the compressed pack
+     * @return List of the commits that were received
+     */
+    private List<Commit> ingestSyncPack(Repository repository, InputStream in) throws IOException {
+        ObjectStore objectStore = objectStore(repository);
+        CommitStore commitStore = commitStore(repository);
+        CommitGraph commitGraph = openCommitGraph(repository, commitStore);
+
+        List<Commit> commits = new ArrayList<>();
+        Set<String> receivedIds = new HashSet<>();
+        int objects = 0;
+        SyncPack.Reader reader = new SyncPack.Reader(in);
+        for (SyncPack.Entry entry = reader.next(); entry != null; entry = reader.next()) {
+            if (entry.getType() == SyncPack.TYPE_OBJECT) {
+                checkObjectHash(entry.getKey());
+                String hash = objectStore.store(entry.getContent());
+                if (!hash.equals(entry.getKey())) {
+                    throw new IOException("Corrupt object in sync pack: " + entry.getKey());
+                }
+                objects++;
+                continue;
+            }
+
+            Commit commit = commitStore.decode(entry.getContent().readAllBytes());
+            if (!entry.getKey().equals(commit.getId())) {
+                throw new IOException("Corrupt commit in sync pack: " + entry.getKey());
+            }
+            for (String parentId : new String[]{commit.getParentCommitID(), commit.getMergeParentCommitID()}) {
+                if (parentId != null && !receivedIds.contains(parentId) && !commitGraph.contains(parentId)) {
+                    throw new IOException("Sync pack is missing parent " + parentId + " of " + commit.getId());
+                }
+            }
+            // Checking out the commit writes these paths, so they must stay inside the working tree
+            for (FileChange change : commit.getChanges()) {
+                if (change.getFilePath() == null || !isWorkingTreePath(change.getFilePath())) {
+                    throw new IOException("Commit " + commit.getId() + " in sync pack has invalid path " + change.getFilePath());
+                }
+            }
+            receivedIds.add(commit.getId());
+            commits.add(commit);
+        }
+
+        Set<String> checked = new HashSet<>();
+        for (Commit commit : commits) {
+            for (FileChange change : commit.getChanges()) {
+                String hash = change.getContentHash();
+                if (hash != null && checked.add(hash) && !objectStore.contains(hash)) {
+                    throw new IOException("Sync pack is missing object " + hash + " of " + commit.getId());
+                }
+            }
+        }
+
+        List<Commit> written = new ArrayList<>();
+        try (PathLocks.Lock lock = repository.lockHistory()) {
+            // Commits another request received meanwhile are not appended twice
+            commitGraph.refresh();
+            for (Commit commit : commits) {
+                if (!commitGraph.contains(commit.getId())) {
+                    commitStore.write(commit);
+                    commitGraph.append(commit);
+                    written.add(commit);
+                }
+            }
+        }
+        indexContents(repository, written);
+        logger.info("Received {} commits and {} objects", commits.size(), objects);
+        return commits;
+    }
+
+    /**
+     * Register a remote repository
+     * @param repository The repository
+     * @param remoteName Name of the remote
+     * @param url URL of the remote, such as http://host:8080/path/to/repository
+     */
+    public void addRemote(Repository repository, String remoteName, String url) {
+        try {
+            if (repository.getRemoteUrl(remoteName) != null) {
+                throw new IllegalArgumentException("Remote already exists: " + remoteName);
+            }
+            new SyncClient(url, gson);
+            repository.setRemoteUrl(remoteName, url);
+        } catch (IOException e) {
+            logger.error("Could not add remote", e);
+            throw new RuntimeException("Could not add remote " + remoteName, e);
+        }
+    }
+
+    /**
+     * Download the commits and objects of a remote that are missing here and record its branch heads
+     * as remote-tracking refs, which can then be merged or checked out as remote/branch
+     * @param repository The repository
+     * @param remoteName Name of the remote
+     * @return SyncResult describing the transfer
+     */
+    public SyncResult fetch(Repository repository, String remoteName) {
+        try {
+            SyncClient client = syncClient(repository, remoteName);
+            RefList refs = client.getRefs();
+            CommitStore commitStore = commitStore(repository);
+            CommitGraph commitGraph = openCommitGraph(repository, commitStore);
+
+            Set<String> wants = new LinkedHashSet<>();
+            for (String head : refs.getBranches().values()) {
+                if (!commitGraph.contains(head)) {
+                    wants.add(head);
+                }
+            }
+
+            int commits = 0;
+            int objects = 0;
+            if (!wants.isEmpty()) {
+                Set<String> haves = new LinkedHashSet<>(repository.getRemoteRefs(remoteName).values());
+                repository.getBranches().values().forEach(branch -> haves.add(branch.getHeadCommitID()));
+                haves.removeIf(head -> head == null || !hasCommit(repository, head));
+
+                Negotiation negotiation = client.negotiate(wants, haves);
+                ObjectStore objectStore = objectStore(repository);
+                List<String> neededObjects = new ArrayList<>();
+                for (String hash : negotiation.getObjects()) {
+                    if (!objectStore.contains(hash)) {
+                        neededObjects.add(hash);
+                    }
+                }
+                try (InputStream in = client.fetchPack(negotiation.getCommits(), neededObjects)) {
+                    commits = ingestSyncPack(repository, in).size();
+                }
+                objects = neededObjects.size();
+            }
+
+            for (Map.Entry<String, String> branch : refs.getBranches().entrySet()) {
+                repository.setRemoteRef(remoteName, branch.getKey(), branch.getValue());
+            }
+            logger.info("Fetched {} commits and {} objects from {} ({} bytes received)",
+                    commits, objects, remoteName, client.getBytesReceived());
+            return new SyncResult(remoteName, refs.getHead(), refs.getBranches(), commits, objects,
+                    client.getBytesSent(), client.getBytesReceived());
+        } catch (IOException e) {
+            logger.error("Fetch failed", e);
+            throw new RuntimeException("Could not fetch from " + remoteName, e);
+        }
+    }
+
+    /**
+     * Upload the commits of a branch that a remote lacks and fast-forward the remote branch.
+     * The push is rejected if the remote branch has commits that are not here.
+     * @param repository The repository
+     * @param remoteName Name of the remote
+     * @param branchName Branch to push
+     * @return SyncResult describing the transfer
+     */
+    public SyncResult push(Repository repository, String remoteName, String branchName) {
+        try {
+            Branch branch = repository.getBranches().get(branchName);
+            if (branch == null) {
+                throw new IllegalArgumentException("Branch does not exist: " + branchName);
+            }
+            String localHead = branch.getHeadCommitID();
+            if (localHead == null) {
+                throw new IllegalStateException("Branch " + branchName + " has no commits to push");
+            }
+
+            SyncClient client = syncClient(repository, remoteName);
+            RefList refs = client.getRefs();
+            String remoteHead = refs.getBranches().get(branchName);
+            if (localHead.equals(remoteHead)) {
+                return new SyncResult(remoteName, refs.getHead(), Map.of(branchName, localHead), 0, 0,
+                        client.getBytesSent(), client.getBytesReceived());
+            }
+
+            CommitStore commitStore = commitStore(repository);
+            CommitGraph commitGraph = openCommitGraph(repository, commitStore);
+            if (remoteHead != null && (!commitGraph.contains(remoteHead) || !commitGraph.isAncestor(remoteHead, localHead))) {
+                throw new IllegalStateException("Push rejected: " + remoteName + "/" + branchName
+                        + " has commits that are not here; fetch and merge first");
+            }
+
+            List<String> commitIds = commitGraph.missingCommits(List.of(localHead), refs.getBranches().values());
+            Set<String> hashes = new LinkedHashSet<>();
+            for (String commitId : commitIds) {
+                for (FileChange change : commitStore.read(commitId).getChanges()) {
+                    if (change.getContentHash() != null) {
+                        hashes.add(change.getContentHash());
+                    }
+                }
+            }
+            List<String> objectHashes = hashes.isEmpty() ? List.of() : client.missingObjects(hashes);
+
+            Path packFile = Files.createTempFile(repository.getRepoPath(), "push", ".tmp");
+            try {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(packFile))) {
+                    writeSyncPack(repository, commitIds, objectHashes, out);
+                }
+                client.push(packFile, branchName, remoteHead, localHead);
+            } finally {
+                Files.deleteIfExists(packFile);
+            }
+            repository.setRemoteRef(remoteName, branchName, localHead);
+
+            logger.info("Pushed {} commits and {} objects to {} ({} bytes sent)",
+                    commitIds.size(), objectHashes.size(), remoteName, client.getBytesSent());
+            return new SyncResult(remoteName, refs.getHead(), Map.of(branchName, localHead), commitIds.size(),
+                    objectHashes.size(), client.getBytesSent(), client.getBytesReceived());
+        } catch (IOException e) {
+            logger.error("Push failed", e);
+            throw new RuntimeException("Could not push to " + remoteName, e);
+        }
+    }
+
+    /**
+     * Create a repository from a remote one: fetch everything, create its branches
+     * and check out the branch the remote has checked out
+     * @param url URL of the remote repository
+     * @param rootPath Directory for the new repository
+     * @return SyncResult describing the transfer
+     */
+    public SyncResult cloneRepository(String url, Path rootPath) {
+        Repository repository = initRepository(rootPath);
+        try {
+            repository.setRemoteUrl(DEFAULT_REMOTE, url);
+            SyncResult result = fetch(repository, DEFAULT_REMOTE);
+            for (Map.Entry<String, String> branch : result.getBranches().entrySet()) {
+                repository.setBranchHead(branch.getKey(), branch.getValue());
+            }
+
+            String headCommitId = result.getBranches().get(result.getHead());
+            if (headCommitId != null) {
+                // The remote's own ignore file replaces the default one written by init
+                if (snapshot(repository, commitStore(repository), headCommitId).containsKey(IGNORE_FILE)) {
+                    Files.deleteIfExists(rootPath.resolve(IGNORE_FILE));
+                }
+                checkout(repository, result.getHead());
+            }
+            return result;
+        } catch (IOException e) {
+            logger.error("Clone failed", e);
+            throw new RuntimeException("Could not clone " + url, e);
+        }
+    }
+
+    private SyncClient syncClient(Repository repository, String remoteName) throws IOException {
+        String url = repository.getRemoteUrl(remoteName);
+        if (url == null) {
+            throw new IllegalArgumentException("Unknown remote: " + remoteName);
+        }
+        return new SyncClient(url, gson);
+    }
+
+    private static void checkObjectHash(String hash) {
+        if (hash == null || !OBJECT_HASH.matcher(hash).matches()) {
+            throw new IllegalArgumentException("Invalid object hash: " + hash);
+        }
+    }
+
+    /**
+     * Bring the working tree and index to the files of another commit, touching only files that differ.
+     * Nothing is written if a file to be replaced has staged or unstaged changes.
+     * @param repository The repository
+     * @param index Index of the repository; it is saved
+     * @param targetFiles Files of the commit to switch to
+     * @return Map of the updated paths to their new hashes, or to null for deleted files
+     */
+    private Map<String, String> updateWorkingTree(Repository repository, Index index,
+                                                  Map<String, String> targetFiles) throws IOException {
+        Map<String, String> updates = changedFiles(indexFiles(index), targetFiles);
+
+        List<String> staged = new ArrayList<>();
+        for (String path : updates.keySet()) {
+            Index.Entry entry = index.get(Paths.get(path));
+            if (entry != null && entry.isStaged()) {
+                staged.add(path);
+            }
+        }
+        if (!staged.isEmpty()) {
+            Collections.sort(staged);
+            throw new IllegalStateException("Staged changes would be overwritten: " + String.join(", ", staged));
+        }
+        checkWorkingTree(repository, index, updates.keySet());
+
+        writeWorkingFiles(repository, objectStore(repository), index, updates, targetFiles, false);
+        index.save();
+        return updates;
+    }
+
+    /**
+     * Files whose hashes differ between two snapshots
+     * @param oldFiles Old snapshot
+     * @param newFiles New snapshot
+     * @return Map of path to new hash, or to null for files that are gone
+     */
+    private static Map<String, String> changedFiles(Map<String, String> oldFiles, Map<String, String> newFiles) {
+        Map<String, String> changed = new HashMap<>();
+        for (Map.Entry<String, String> file : newFiles.entrySet()) {
+            if (!file.getValue().equals(oldFiles.get(file.getKey()))) {
+                changed.put(file.getKey(), file.getValue());
+            }
+        }
+        for (String path : oldFiles.keySet()) {
+            if (!newFiles.containsKey(path)) {
+                changed.put(path, null);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Make sure files about to be replaced hold no uncommitted work: tracked files must
+     * match the index, and untracked files must not exist
+     * @param repository The repository
+     * @param index Index of the repository
+     * @param paths Paths that will be written or deleted
+     */
+    private void checkWorkingTree(Repository repository, Index index, Collection<String> paths) throws IOException {
+        List<String> dirty = treeScanner.map(new ArrayList<>(paths), path -> {
+            Path file = repository.getRootPath().resolve(path);
+            Index.Entry entry = index.get(Paths.get(path));
+            if (entry == null || entry.isDeleted()) {
+                return Files.exists(file) ? path : null;
+            }
+            if (!Files.exists(file)) {
+                return path;
+            }
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            return index.isUpToDate(entry, attrs) || ObjectStore.hash(file).equals(entry.getHash()) ? null : path;
+        });
+        dirty.removeIf(Objects::isNull);
+        if (!dirty.isEmpty()) {
+            Collections.sort(dirty);
+            throw new IllegalStateException("Local changes would be overwritten: " + String.join(", ", dirty));
+        }
+    }
+
+    /**
+     * Write files from the object store into the working tree in parallel and record them in the index
+     * @param repository The repository
+     * @param objectStore Object store holding the contents
+     * @param index Index to update
+     * @param files Map of path to content hash, or to null for files to delete
+     * @param committedFiles Files of the current head commit
+     * @param stage Whether the files are staged for the next commit, or already committed
+     */
+    private void writeWorkingFiles(Repository repository, ObjectStore objectStore, Index index,
+                                   Map<String, String> files, Map<String, String> committedFiles,
+                                   boolean stage) throws IOException {
+        List<HashedFile> written = treeScanner.map(new ArrayList<>(files.entrySet()), file -> {
+            Path relativePath = Paths.get(file.getKey());
+            Path target = workingFile(repository, relativePath);
+            if (file.getValue() == null) {
+                Files.deleteIfExists(target);
+                deleteEmptyDirectories(repository.getRootPath().toAbsolutePath().normalize(), target.getParent());
+                return new HashedFile(relativePath, null, null);
+            }
+            if (target.getParent() != null) {
+                Files.createDirectories(target.getParent());
+            }
+            try (InputStream in = objectStore.open(file.getValue())) {
+                Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new HashedFile(relativePath, Files.readAttributes(target, BasicFileAttributes.class), file.getValue());
+        });
+
+        for (HashedFile file : written) {
+            boolean committed = committedFiles.containsKey(pathKey(file.relativePath()));
+            if (file.hash() == null) {
+                if (stage) {
+                    index.setFlags(file.relativePath(), Index.FLAG_STAGED | Index.FLAG_DELETED | Index.FLAG_COMMITTED);
+                } else {
+                    index.remove(file.relativePath());
+                }
+            } else if (stage) {
+                index.put(file.relativePath(), file.attrs(), file.hash(),
+                        Index.FLAG_STAGED | (committed ? Index.FLAG_COMMITTED : 0));
+            } else {
+                index.put(file.relativePath(), file.attrs(), file.hash(), Index.FLAG_COMMITTED);
+            }
+        }
+    }
+
+    /**
+     * Remove directories left empty by deleted files, up to the repository root
+     * @param rootPath Root of the repository
+     * @param directory Directory that held a deleted file
+     */
+    private static void deleteEmptyDirectories(Path rootPath, Path directory) throws IOException {
+        for (Path current = directory; current != null && !current.equals(rootPath); current = current.getParent()) {
+            try {
+                Files.deleteIfExists(current);
+            } catch (DirectoryNotEmptyException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the content of one side of a diff
+     */
+    @FunctionalInterface
+    private interface ContentSource {
+        byte[] read(String path, String hash) throws IOException;
+    }
+
+    private static ContentSource storedContent(ObjectStore objectStore) {
+        return (path, hash) -> objectStore.read(hash);
+    }
+
+    /**
+     * Diff every file whose hash differs between two snapshots, in parallel.
+     * Files with equal hashes are skipped without reading them.
+     * @param oldFiles Old snapshot, path to content hash
+     * @param newFiles New snapshot, path to content hash
+     * @param oldSource Source of old contents
+     * @param newSource Source of new contents
+     * @return List of file diffs ordered by path
+     */
+    private List<FileDiff> diffSnapshots(Map<String, String> oldFiles, Map<String, String> newFiles,
+                                         ContentSource oldSource, ContentSource newSource) throws IOException {
+        Set<String> paths = new TreeSet<>(oldFiles.keySet());
+        paths.addAll(newFiles.keySet());
+        List<String> changedPaths = paths.stream()
+                .filter(path -> !Objects.equals(oldFiles.get(path), newFiles.get(path)))
+                .collect(Collectors.toList());
+
+        return treeScanner.map(changedPaths, path -> {
+            String oldHash = oldFiles.get(path);
+            String newHash = newFiles.get(path);
+            byte[] oldContent = oldHash != null ? oldSource.read(path, oldHash) : new byte[0];
+            byte[] newContent = newHash != null ? newSource.read(path, newHash) : new byte[0];
+            return FileDiff.compute(path, oldHash, newHash, oldContent, newContent, DIFF_CONTEXT_LINES);
+        });
+    }
+
+    /**
+     * Files as recorded in the index, without staged deletions
+     * @param index Index of the repository
+     * @return Map of path to content hash
+     */
+    private static Map<String, String> indexFiles(Index index) {
+        Map<String, String> files = new HashMap<>();
+        for (Index.Entry entry : index.getEntries()) {
+            if (!entry.isDeleted()) {
+                files.put(pathKey(entry.getPath()), entry.getHash());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Tracked files as they are in the working tree. Files whose stat data matches
+     * their index entry keep the indexed hash, the others are hashed in parallel.
+     * @param repository The repository
+     * @param index Index of the repository
+     * @return Map of path to content hash, without tracked files missing from the working tree
+     */
+    private Map<String, String> workingFiles(Repository repository, Index index) throws IOException {
+        List<Index.Entry> tracked = index.getEntries().stream()
+                .filter(entry -> !entry.isDeleted())
+                .collect(Collectors.toList());
+
+        List<Map.Entry<String, String>> hashed = treeScanner.map(tracked, entry -> {
+            Path file = repository.getRootPath().resolve(entry.getPath());
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            String hash = index.isUpToDate(entry, attrs) ? entry.getHash() : ObjectStore.hash(file);
+            return Map.entry(pathKey(entry.getPath()), hash);
+        });
+
+        Map<String, String> files = new HashMap<>();
+        for (Map.Entry<String, String> file : hashed) {
+            if (file != null) {
+                files.put(file.getKey(), file.getValue());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Get the files of a commit by replaying the changes of its first-parent history,
+     * starting from the nearest ancestor whose snapshot is cached
+     * @param repository The repository
+     * @param commitStore Store to read commits from
+     * @param commitId ID of the commit, or null for an empty snapshot
+     * @return Map of path to content hash; must not be modified
+     */
+    private Map<String, String> snapshot(Repository repository, CommitStore commitStore, String commitId) throws IOException {
+        if (commitId == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> cached = snapshotCache.get(commitId);
+        if (cached != null) {
+            return cached;
+        }
+
+        List<String> pending = new ArrayList<>();
+        List<Map<String, String>> base = new ArrayList<>(1);
+        boolean found = openCommitGraph(repository, commitStore).walk(commitId, false, (id, epochMillis) -> {
+            Map<String, String> known = snapshotCache.get(id);
+            if (known != null) {
+                base.add(known);
+                return false;
+            }
+            pending.add(id);
+            return true;
+        });
+        if (!found) {
+            throw new IllegalArgumentException("Unknown commit: " + commitId);
+        }
+
+        Map<String, String> files = base.isEmpty() ? new HashMap<>() : new HashMap<>(base.get(0));
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Commit commit = commitStore.read(pending.get(i));
+            if (commit == null) {
+                throw new IOException("Missing commit: " + pending.get(i));
+            }
+            for (FileChange change : commit.getChanges()) {
+                if (change.getChangeType() == FileChange.ChangeType.DELETED) {
+                    files.remove(pathKey(change.getFilePath()));
+                } else {
+                    files.put(pathKey(change.getFilePath()), change.getContentHash());
+                }
+            }
+        }
+
+        Map<String, String> snapshot = Collections.unmodifiableMap(files);
+        snapshotCache.put(commitId, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Resolve HEAD, a branch name, a remote-tracking ref such as origin/master or a commit ID to a commit ID
+     * @param repository The repository
+     * @param commitStore Store used if the commit graph has to be rebuilt
+     * @param ref Reference to resolve
+     * @return String commit ID, or null for a branch without commits
+     */
+    private String resolveCommit(Repository repository, CommitStore commitStore, String ref) throws IOException {
+        if ("HEAD".equals(ref)) {
+            return repository.getCurrentBranch().getHeadCommitID();
+        }
+        Branch branch = repository.getBranches().get(ref);
+        if (branch != null) {
+            return branch.getHeadCommitID();
+        }
+        int slash = ref.indexOf('/');
+        if (slash > 0 && repository.getRemoteNames().contains(ref.substring(0, slash))) {
+            String remoteHead = repository.getRemoteRefs(ref.substring(0, slash)).get(ref.substring(slash + 1));
+            if (remoteHead != null) {
+                return remoteHead;
+            }
+        }
+        try {
+            if (openCommitGraph(repository, commitStore).contains(ref)) {
+                return ref;
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a commit ID
+        }
+        throw new IllegalArgumentException("Unknown commit or branch: " + ref);
+    }
+
+    private static String pathKey(Path relativePath) {
+        return relativePath.toString().replace('\\', '/');
+    }
+
+    /**
+     * Partial status collected by one scan task
+     */
+    private static class StatusScan {
+        private final Map<Path, RepositoryStatus.FileStatus> unstaged = new HashMap<>();
+        private final List<Path> seen = new ArrayList<>();
+        private final List<HashedFile> refreshed = new ArrayList<>();
+    }
+
+
+    /**
+     * Repository status representation
+     */
+    public static class RepositoryStatus {
+        public enum FileStatus {
+            UNTRACKED, MODIFIED, DELETED, STAGED
+        }
+
+        private Map<Path, FileStatus> unstagedFiles = new HashMap<>();
+        private Map<Path, FileStatus> stagedFiles = new HashMap<>();
+
+        public void addUnstagedFile(Path path, FileStatus status) {
+            unstagedFiles.put(path, status);
         }
 
         public void addStagedFile(Path path, FileStatus status) {
@@ -341,4 +2915,485 @@ public class RepositoryController {
             return new HashMap<>(stagedFiles);
         }
     }
+
+    /**
+     * Result of a merge
+     */
+    public static class MergeResult {
+        public enum Status {
+            UP_TO_DATE, FAST_FORWARD, MERGED, CONFLICTS
+        }
+
+        private final Status status;
+        private final String headCommitId;
+        private final int updatedFiles;
+        private final List<String> conflicts;
+
+        public MergeResult(Status status, String headCommitId, int updatedFiles, List<String> conflicts) {
+            this.status = status;
+            this.headCommitId = headCommitId;
+            this.updatedFiles = updatedFiles;
+            this.conflicts = conflicts;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getHeadCommitId() {
+            return headCommitId;
+        }
+
+        public int getUpdatedFiles() {
+            return updatedFiles;
+        }
+
+        public List<String> getConflicts() {
+            return conflicts;
+        }
+    }
+
+    /**
+     * Result of a checkout
+     */
+    public static class CheckoutResult {
+        private final String branch;
+        private final String headCommitId;
+        private final int writtenFiles;
+        private final int deletedFiles;
+
+        public CheckoutResult(String branch, String headCommitId, int writtenFiles, int deletedFiles) {
+            this.branch = branch;
+            this.headCommitId = headCommitId;
+            this.writtenFiles = writtenFiles;
+            this.deletedFiles = deletedFiles;
+        }
+
+        public String getBranch() {
+            return branch;
+        }
+
+        public String getHeadCommitId() {
+            return headCommitId;
+        }
+
+        public int getWrittenFiles() {
+            return writtenFiles;
+        }
+
+        public int getDeletedFiles() {
+            return deletedFiles;
+        }
+    }
+
+    /**
+     * How two commits relate in the commit graph
+     */
+    public static class AncestryResult {
+        private final String from;
+        private final String to;
+        private final String mergeBase;
+        private final boolean ancestor;
+        private final int ahead;
+        private final int behind;
+
+        public AncestryResult(String from, String to, String mergeBase, boolean ancestor, int ahead, int behind) {
+            this.from = from;
+            this.to = to;
+            this.mergeBase = mergeBase;
+            this.ancestor = ancestor;
+            this.ahead = ahead;
+            this.behind = behind;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getTo() {
+            return to;
+        }
+
+        public String getMergeBase() {
+            return mergeBase;
+        }
+
+        /**
+         * @return true if from is an ancestor of to, so to can fast-forward from it
+         */
+        public boolean isAncestor() {
+            return ancestor;
+        }
+
+        /**
+         * @return int number of commits reachable from to but not from from
+         */
+        public int getAhead() {
+            return ahead;
+        }
+
+        /**
+         * @return int number of commits reachable from from but not from to
+         */
+        public int getBehind() {
+            return behind;
+        }
+    }
+
+    /**
+     * Outcome of a fetch, push or clone
+     */
+    public static class SyncResult {
+        private final String remote;
+        private final String head;
+        private final Map<String, String> branches;
+        private final int commits;
+        private final int objects;
+        private final long bytesSent;
+        private final long bytesReceived;
+
+        public SyncResult(String remote, String head, Map<String, String> branches, int commits, int objects,
+                          long bytesSent, long bytesReceived) {
+            this.remote = remote;
+            this.head = head;
+            this.branches = branches;
+            this.commits = commits;
+            this.objects = objects;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+        }
+
+        public String getRemote() {
+            return remote;
+        }
+
+        public String getHead() {
+            return head;
+        }
+
+        public Map<String, String> getBranches() {
+            return branches;
+        }
+
+        public int getCommits() {
+            return commits;
+        }
+
+        public int getObjects() {
+            return objects;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+    }
+
+    /**
+     * Result of a repack
+     */
+    public static class RepackResult {
+        private final int commits;
+        private final int objects;
+        private final int deltas;
+        private final long bytesBefore;
+        private final long bytesAfter;
+
+        public RepackResult(int commits, int objects, int deltas, long bytesBefore, long bytesAfter) {
+            this.commits = commits;
+            this.objects = objects;
+            this.deltas = deltas;
+            this.bytesBefore = bytesBefore;
+            this.bytesAfter = bytesAfter;
+        }
+
+        public int getCommits() {
+            return commits;
+        }
+
+        public int getObjects() {
+            return objects;
+        }
+
+        public int getDeltas() {
+            return deltas;
+        }
+
+        public long getBytesBefore() {
+            return bytesBefore;
+        }
+
+        public long getBytesAfter() {
+            return bytesAfter;
+        }
+    }
+
+    /**
+     * Result of a repository integrity check
+     */
+    public static class FsckResult {
+        private final int commits;
+        private final int looseObjects;
+        private final List<String> problems;
+
+        public FsckResult(int commits, int looseObjects, List<String> problems) {
+            this.commits = commits;
+            this.looseObjects = looseObjects;
+            this.problems = problems;
+        }
+
+        public int getCommits() {
+            return commits;
+        }
+
+        public int getLooseObjects() {
+            return looseObjects;
+        }
+
+        public List<String> getProblems() {
+            return problems;
+        }
+
+        public boolean isHealthy() {
+            return problems.isEmpty();
+        }
+    }
+
+    /**
+     * Result of a garbage collection
+     */
+    public static class GcResult {
+        private final int reachableCommits;
+        private final int liveObjects;
+        private final int removedCommits;
+        private final int removedObjects;
+        private final int removedTempFiles;
+        private final int packsRewritten;
+        private final long bytesFreed;
+
+        public GcResult(int reachableCommits, int liveObjects, int removedCommits, int removedObjects,
+                        int removedTempFiles, int packsRewritten, long bytesFreed) {
+            this.reachableCommits = reachableCommits;
+            this.liveObjects = liveObjects;
+            this.removedCommits = removedCommits;
+            this.removedObjects = removedObjects;
+            this.removedTempFiles = removedTempFiles;
+            this.packsRewritten = packsRewritten;
+            this.bytesFreed = bytesFreed;
+        }
+
+        public int getReachableCommits() {
+            return reachableCommits;
+        }
+
+        public int getLiveObjects() {
+            return liveObjects;
+        }
+
+        public int getRemovedCommits() {
+            return removedCommits;
+        }
+
+        public int getRemovedObjects() {
+            return removedObjects;
+        }
+
+        public int getRemovedTempFiles() {
+            return removedTempFiles;
+        }
+
+        public int getPacksRewritten() {
+            return packsRewritten;
+        }
+
+        public long getBytesFreed() {
+            return bytesFreed;
+        }
+    }
+
+    /**
+     * What a repository stores on disk
+     */
+    public static class StorageStats {
+        private final int looseObjects;
+        private final int looseCommits;
+        private final int packs;
+        private final long bytes;
+
+        public StorageStats(int looseObjects, int looseCommits, int packs, long bytes) {
+            this.looseObjects = looseObjects;
+            this.looseCommits = looseCommits;
+            this.packs = packs;
+            this.bytes = bytes;
+        }
+
+        public int getLooseObjects() {
+            return looseObjects;
+        }
+
+        public int getLooseCommits() {
+            return looseCommits;
+        }
+
+        public int getPacks() {
+            return packs;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Matching lines of a content search
+     */
+    public static class SearchResult {
+        private final String query;
+        private final int candidates;
+        private final int searchedFiles;
+        private final boolean truncated;
+        private final List<SearchMatch> matches;
+
+        public SearchResult(String query, int candidates, int searchedFiles, boolean truncated, List<SearchMatch> matches) {
+            this.query = query;
+            this.candidates = candidates;
+            this.searchedFiles = searchedFiles;
+            this.truncated = truncated;
+            this.matches = matches;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * @return Number of file versions the trigram index could not rule out
+         */
+        public int getCandidates() {
+            return candidates;
+        }
+
+        /**
+         * @return Number of distinct file contents that were read
+         */
+        public int getSearchedFiles() {
+            return searchedFiles;
+        }
+
+        /**
+         * @return true if the limit was reached before all candidates were searched
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public List<SearchMatch> getMatches() {
+            return matches;
+        }
+    }
+
+    /**
+     * One matching line
+     */
+    public static class SearchMatch {
+        private final String commitId;
+        private final String path;
+        private final int lineNumber;
+        private final String line;
+
+        public SearchMatch(String commitId, String path, int lineNumber, String line) {
+            this.commitId = commitId;
+            this.path = path;
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getLine() {
+            return line;
+        }
+    }
+
+    /**
+     * Origin of every line of a file
+     */
+    public static class BlameResult {
+        private final String path;
+        private final String commitId;
+        private final List<BlameLine> lines;
+
+        public BlameResult(String path, String commitId, List<BlameLine> lines) {
+            this.path = path;
+            this.commitId = commitId;
+            this.lines = lines;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return ID of the commit the file was blamed at
+         */
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public List<BlameLine> getLines() {
+            return lines;
+        }
+    }
+
+    /**
+     * One line and the commit that last changed it
+     */
+    public static class BlameLine {
+        private final int lineNumber;
+        private final String commitId;
+        private final String author;
+        private final LocalDateTime timestamp;
+        private final String line;
+
+        public BlameLine(int lineNumber, String commitId, String author, LocalDateTime timestamp, String line) {
+            this.lineNumber = lineNumber;
+            this.commitId = commitId;
+            this.author = author;
+            this.timestamp = timestamp;
+            this.line = line;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public LocalDateTime getTimestamp() {
+            return timestamp;
+        }
+
+        public String getLine() {
+            return line;
+        }
+    }
 }
\ No newline at end of file
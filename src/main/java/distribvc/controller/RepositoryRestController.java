@@ -2,19 +2,42 @@ package distribvc.controller;
 
 import distribvc.model.Repository;
 import distribvc.model.Commit;
+import distribvc.diff.FileDiff;
+import distribvc.service.RepositoryRegistry;
+import distribvc.sync.TarReader;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Iterator;
 import java.util.List;
 
 @RestController
 @RequestMapping("/api/repository")
 public class RepositoryRestController {
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    private static final String NEXT_CURSOR_HEADER = "X-Next-After";
+
     @Autowired
     private RepositoryController repositoryController;
+    @Autowired
+    private RepositoryRegistry repositoryRegistry;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Value("${distribvc.gc.grace-seconds:3600}")
+    private long gcGraceSeconds;
 
 
     @PostMapping("/init")
@@ -31,7 +54,7 @@ public class RepositoryRestController {
     @PostMapping("/stage")
     public ResponseEntity<?> stageFiles(@RequestParam String repoPath, @RequestBody List<String> filePaths) {
         try {
-            Repository repository = repositoryController.loadRepository(Paths.get(repoPath));
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
             Path[] paths = filePaths.stream()
                     .map(filePath -> repository.getRootPath().resolve(filePath)) // Use getRootPath() and resolve
                     .toArray(Path[]::new);
@@ -43,13 +66,59 @@ public class RepositoryRestController {
         }
     }
 
+    /**
+     * Upload files as multipart parts, each named by its path relative to the working tree,
+     * and stage them in one index update
+     */
+    @PostMapping(value = "/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<?> uploadFiles(@RequestParam String repoPath, @RequestParam List<MultipartFile> files) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            Iterator<MultipartFile> parts = files.iterator();
+            int staged = repositoryController.stageUpload(repository, () -> {
+                if (!parts.hasNext()) {
+                    return null;
+                }
+                MultipartFile part = parts.next();
+                return new RepositoryController.UploadedFile(part.getOriginalFilename(), part.getInputStream());
+            });
+            return ResponseEntity.ok(staged);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * Upload a tar archive of files relative to the working tree and stage them in one index update.
+     * The archive is read as it arrives, so its size is not limited by memory.
+     */
+    @PostMapping(value = "/upload", consumes = "application/x-tar")
+    public ResponseEntity<?> uploadTar(@RequestParam String repoPath, InputStream body) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            TarReader reader = new TarReader(body);
+            int staged = repositoryController.stageUpload(repository, () -> {
+                TarReader.Entry entry = reader.next();
+                return entry != null ? new RepositoryController.UploadedFile(entry.path(), entry.content()) : null;
+            });
+            return ResponseEntity.ok(staged);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
     @PostMapping("/commit")
     public ResponseEntity<?> commit(@RequestParam String repoPath,
                                     @RequestParam String message,
-                                    @RequestParam String author) {
+                                    @RequestParam String author,
+                                    @RequestParam(required = false) List<String> paths) {
         try {
-            Repository repository = repositoryController.loadRepository(Paths.get(repoPath));
-            Commit commit = repositoryController.commit(repository, message, author);
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            // Files given with the request are committed as they are, bypassing the shared staging area
+            List<Path> filePaths = paths == null ? null : paths.stream()
+                    .map(filePath -> repository.getRootPath().resolve(filePath))
+                    .toList();
+            Commit commit = repositoryController.commit(repository, message, author, filePaths);
             return ResponseEntity.ok(commit);
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(e.getMessage());
@@ -59,7 +128,7 @@ public class RepositoryRestController {
     @GetMapping("/status")
     public ResponseEntity<?> getStatus(@RequestParam String repoPath) {
         try {
-            Repository repository = repositoryController.loadRepository(Paths.get(repoPath));
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
             RepositoryController.RepositoryStatus status = repositoryController.getRepositoryStatus(repository);
             return ResponseEntity.ok(status);
         } catch (Exception e) {
@@ -68,13 +137,223 @@ public class RepositoryRestController {
     }
 
     @GetMapping("/log")
-    public ResponseEntity<?> getCommitLog(@RequestParam String repoPath) {
+    public ResponseEntity<?> getCommitLog(@RequestParam String repoPath,
+                                          @RequestParam(defaultValue = "100") int limit,
+                                          @RequestParam(required = false) String after,
+                                          @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime since,
+                                          @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime until,
+                                          @RequestParam(defaultValue = "true") boolean includeChanges,
+                                          @RequestParam(required = false) String path) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            List<Commit> commitLog = repositoryController.getCommitLog(repository, after, since, until, limit,
+                    includeChanges, path);
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (limit > 0 && commitLog.size() == limit) {
+                response.header(NEXT_CURSOR_HEADER, commitLog.get(commitLog.size() - 1).getId());
+            }
+            return response.body(commitLog);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * Stream the commit log as NDJSON, one commit per line, written while the history is walked
+     */
+    @GetMapping(value = "/log", params = "stream=true")
+    public ResponseEntity<StreamingResponseBody> streamCommitLog(@RequestParam String repoPath,
+                                                                 @RequestParam(defaultValue = "0") int limit,
+                                                                 @RequestParam(required = false) String after,
+                                                                 @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime since,
+                                                                 @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime until,
+                                                                 @RequestParam(defaultValue = "true") boolean includeChanges,
+                                                                 @RequestParam(required = false) String path) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            // Check the cursor up front, errors cannot be reported once streaming has started
+            if (after != null && !repositoryController.hasCommit(repository, after)) {
+                throw new IllegalArgumentException("Unknown commit: " + after);
+            }
+
+            StreamingResponseBody body = out -> repositoryController.walkCommitLog(
+                    repository, after, since, until, limit, includeChanges, path, commit -> {
+                        out.write(objectMapper.writeValueAsBytes(commit));
+                        out.write('\n');
+                    });
+            return ResponseEntity.ok().contentType(NDJSON).body(body);
+        } catch (Exception e) {
+            String message = String.valueOf(e.getMessage());
+            return ResponseEntity.badRequest().body(out -> out.write(message.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @GetMapping("/ancestry")
+    public ResponseEntity<?> getAncestry(@RequestParam String repoPath,
+                                         @RequestParam String from,
+                                         @RequestParam(defaultValue = "HEAD") String to) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            RepositoryController.AncestryResult result = repositoryController.getAncestry(repository, from, to);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping("/search")
+    public ResponseEntity<?> search(@RequestParam String repoPath,
+                                    @RequestParam String query,
+                                    @RequestParam(defaultValue = "false") boolean regex,
+                                    @RequestParam(defaultValue = "false") boolean ignoreCase,
+                                    @RequestParam(required = false) String rev,
+                                    @RequestParam(required = false) String path,
+                                    @RequestParam(defaultValue = "100") int limit) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            RepositoryController.SearchResult result = repositoryController.search(repository, query, regex, ignoreCase,
+                    rev, path, limit);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping("/blame")
+    public ResponseEntity<?> blame(@RequestParam String repoPath,
+                                   @RequestParam String path,
+                                   @RequestParam(required = false) String rev) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            RepositoryController.BlameResult result = repositoryController.blame(repository, path, rev);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping("/diff")
+    public ResponseEntity<?> getDiff(@RequestParam String repoPath,
+                                     @RequestParam(required = false) String from,
+                                     @RequestParam(required = false) String to,
+                                     @RequestParam(defaultValue = "false") boolean staged) {
         try {
-            Repository repository = repositoryController.loadRepository(Paths.get(repoPath));
-            List<Commit> commitLog = repositoryController.getCommitLog(repository);
-            return ResponseEntity.ok(commitLog);
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            List<FileDiff> diffs;
+            if (staged) {
+                diffs = repositoryController.diffStaged(repository);
+            } else if (to != null) {
+                diffs = repositoryController.diffCommits(repository, from != null ? from : "HEAD", to);
+            } else {
+                diffs = repositoryController.diffWorkingTree(repository, from);
+            }
+            return ResponseEntity.ok(diffs);
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
     }
+
+    @PostMapping("/checkout")
+    public ResponseEntity<?> checkout(@RequestParam String repoPath,
+                                      @RequestParam String branch,
+                                      @RequestParam(defaultValue = "false") boolean create) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            if (create) {
+                repository.createBranch(branch);
+            }
+            RepositoryController.CheckoutResult result = repositoryController.checkout(repository, branch);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/merge")
+    public ResponseEntity<?> merge(@RequestParam String repoPath,
+                                   @RequestParam String branch,
+                                   @RequestParam String author) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            RepositoryController.MergeResult result = repositoryController.merge(repository, branch, author);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/clone")
+    public ResponseEntity<?> cloneRepository(@RequestParam String url, @RequestParam String directory) {
+        try {
+            RepositoryController.SyncResult result = repositoryController.cloneRepository(url, Paths.get(directory));
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/fetch")
+    public ResponseEntity<?> fetch(@RequestParam String repoPath,
+                                   @RequestParam(defaultValue = "origin") String remote) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            RepositoryController.SyncResult result = repositoryController.fetch(repository, remote);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/push")
+    public ResponseEntity<?> push(@RequestParam String repoPath,
+                                  @RequestParam(defaultValue = "origin") String remote,
+                                  @RequestParam(required = false) String branch) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            String branchName = branch != null ? branch : repository.getCurrentBranch().getName();
+            RepositoryController.SyncResult result = repositoryController.push(repository, remote, branchName);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/repack")
+    public ResponseEntity<?> repack(@RequestParam String repoPath) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            RepositoryController.RepackResult result = repositoryController.repack(repository);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/gc")
+    public ResponseEntity<?> gc(@RequestParam String repoPath,
+                                @RequestParam(required = false) Long graceSeconds) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            Duration gracePeriod = Duration.ofSeconds(graceSeconds != null ? graceSeconds : gcGraceSeconds);
+            RepositoryController.GcResult result = repositoryController.gc(repository, gracePeriod);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping("/storage")
+    public ResponseEntity<?> getStorageStats(@RequestParam String repoPath) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            return ResponseEntity.ok(repositoryController.getStorageStats(repository));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @GetMapping("/cache")
+    public ResponseEntity<?> getCacheStats() {
+        return ResponseEntity.ok(repositoryController.getCommitCacheStats());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package distribvc.controller;
+
+import distribvc.model.Repository;
+import distribvc.service.RepositoryRegistry;
+import distribvc.sync.Negotiation;
+import distribvc.sync.RefList;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Endpoints other repositories use to fetch from and push to a repository on this server
+ */
+@RestController
+@RequestMapping("/api/sync")
+public class SyncRestController {
+    @Autowired
+    private RepositoryController repositoryController;
+    @Autowired
+    private RepositoryRegistry repositoryRegistry;
+
+
+    @GetMapping("/refs")
+    public ResponseEntity<?> getRefs(@RequestParam String repoPath) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            RefList refs = repositoryController.getRefs(repository);
+            return ResponseEntity.ok(refs);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/negotiate")
+    public ResponseEntity<?> negotiate(@RequestParam String repoPath, @RequestBody Map<String, List<String>> request) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            Negotiation negotiation = repositoryController.negotiate(repository,
+                    request.getOrDefault("wants", List.of()), request.getOrDefault("haves", List.of()));
+            return ResponseEntity.ok(negotiation);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    @PostMapping("/objects/missing")
+    public ResponseEntity<?> missingObjects(@RequestParam String repoPath, @RequestBody List<String> hashes) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            return ResponseEntity.ok(repositoryController.missingObjects(repository, hashes));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    /**
+     * Stream the requested commits and objects as one compressed transfer pack
+     */
+    @PostMapping("/pack")
+    public ResponseEntity<StreamingResponseBody> getPack(@RequestParam String repoPath,
+                                                         @RequestBody Map<String, List<String>> request) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            List<String> commits = request.getOrDefault("commits", List.of());
+            List<String> objects = request.getOrDefault("objects", List.of());
+            StreamingResponseBody body = out -> repositoryController.writeSyncPack(repository, commits, objects, out);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(body);
+        } catch (Exception e) {
+            String message = String.valueOf(e.getMessage());
+            return ResponseEntity.badRequest().body(out -> out.write(message.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Receive a pushed transfer pack from the request body and update a branch
+     */
+    @PostMapping("/receive")
+    public ResponseEntity<?> receive(@RequestParam String repoPath,
+                                     @RequestParam String branch,
+                                     @RequestParam(required = false) String oldHead,
+                                     @RequestParam String newHead,
+                                     InputStream body) {
+        try {
+            Repository repository = repositoryRegistry.get(Paths.get(repoPath));
+            int commits = repositoryController.receivePush(repository, body, branch, oldHead, newHead);
+            return ResponseEntity.ok(Map.of("branch", branch, "head", newHead, "commits", commits));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package distribvc.diff;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line origins of successive versions of a file. Each version keeps the origin of every line
+ * it shares with the version before it, and lines it adds or changes get its own origin.
+ *
+ * Consecutive versions usually differ in a few lines. Each step skips the common prefix and
+ * suffix on the raw bytes, then walks the lines in between comparing each with the line of the
+ * previous version expected at that point. Long runs of lines found in order are kept as they
+ * are, and only the lines between them are decoded and diffed.
+ */
+public final class Blame {
+    private static final int SUFFIX_BLOCK = 4096;
+    // How far ahead in the previous version a changed line is looked for
+    private static final int RESYNC_WINDOW = 64;
+    // Lines found in order that are kept without diffing them
+    private static final int ANCHOR_RUN = 16;
+
+    private byte[] content;
+    // Start of every line, followed by the content length
+    private int[] lineStarts;
+    private int[] origins;
+
+    /**
+     * Start before the first version of a file
+     */
+    public Blame() {
+        this(new byte[0], new int[0]);
+    }
+
+    /**
+     * Start from a version of a file whose origins are known
+     * @param content Content of the version
+     * @param origins Origin of each of its lines
+     */
+    public Blame(byte[] content, int[] origins) {
+        this.content = content;
+        this.lineStarts = lineStarts(content, 0, content.length);
+        if (origins.length != lineStarts.length - 1) {
+            throw new IllegalArgumentException("Expected origins for " + (lineStarts.length - 1) + " lines, got "
+                    + origins.length);
+        }
+        this.origins = origins;
+    }
+
+    /**
+     * Move on to the next version of the file
+     * @param next Content of the next version
+     * @param origin Origin of the lines the next version adds or changes
+     */
+    public void advance(byte[] next, int origin) {
+        int mismatch = Arrays.mismatch(content, next);
+        if (mismatch < 0) {
+            return;
+        }
+        if (FileDiff.isBinary(content) || FileDiff.isBinary(next)) {
+            content = next;
+            lineStarts = lineStarts(next, 0, next.length);
+            origins = new int[lineStarts.length - 1];
+            Arrays.fill(origins, origin);
+            return;
+        }
+
+        // Whole lines of the common prefix
+        int prefixEnd = mismatch;
+        while (prefixEnd > 0 && content[prefixEnd - 1] != '\n') {
+            prefixEnd--;
+        }
+        int prefixLines = Arrays.binarySearch(lineStarts, prefixEnd);
+
+        // Whole lines of the common suffix, which must start a line in both versions
+        int oldLength = content.length;
+        int shift = next.length - oldLength;
+        int suffix = commonSuffix(content, next, Math.min(oldLength, next.length) - prefixEnd);
+        int oldSuffixStart = oldLength - suffix;
+        while (oldSuffixStart < oldLength
+                && !(isLineStart(content, oldSuffixStart) && isLineStart(next, oldSuffixStart + shift))) {
+            oldSuffixStart++;
+        }
+        int oldSuffixLine = Arrays.binarySearch(lineStarts, oldSuffixStart);
+        int suffixLines = lineStarts.length - 1 - oldSuffixLine;
+
+        Middle middle = matchLines(next, prefixEnd, oldSuffixStart + shift, prefixLines, oldSuffixLine);
+        int middleLines = middle.starts().length - 1;
+        int newLines = prefixLines + middleLines + suffixLines;
+        int[] nextStarts = new int[newLines + 1];
+        int[] nextOrigins = new int[newLines];
+        System.arraycopy(lineStarts, 0, nextStarts, 0, prefixLines);
+        System.arraycopy(middle.starts(), 0, nextStarts, prefixLines, middleLines);
+        for (int i = 0; i < suffixLines; i++) {
+            nextStarts[newLines - suffixLines + i] = lineStarts[oldSuffixLine + i] + shift;
+        }
+        nextStarts[newLines] = next.length;
+        System.arraycopy(origins, 0, nextOrigins, 0, prefixLines);
+        System.arraycopy(origins, oldSuffixLine, nextOrigins, newLines - suffixLines, suffixLines);
+
+        // Keep long runs of lines found in order, and diff the gaps between them
+        int[] matched = middle.oldLines();
+        int oldGap = prefixLines;
+        int newGap = prefixLines;
+        int line = 0;
+        while (line < middleLines) {
+            int runEnd = line + 1;
+            if (matched[line] >= 0) {
+                while (runEnd < middleLines && matched[runEnd] == matched[runEnd - 1] + 1) {
+                    runEnd++;
+                }
+                if (runEnd - line >= ANCHOR_RUN) {
+                    diffGap(next, nextStarts, nextOrigins, oldGap, matched[line], newGap, prefixLines + line, origin);
+                    System.arraycopy(origins, matched[line], nextOrigins, prefixLines + line, runEnd - line);
+                    oldGap = matched[runEnd - 1] + 1;
+                    newGap = prefixLines + runEnd;
+                }
+            }
+            line = runEnd;
+        }
+        diffGap(next, nextStarts, nextOrigins, oldGap, oldSuffixLine, newGap, prefixLines + middleLines, origin);
+
+        content = next;
+        lineStarts = nextStarts;
+        origins = nextOrigins;
+    }
+
+    /**
+     * @return Content of the current version
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return Origin of each line of the current version
+     */
+    public int[] getOrigins() {
+        return origins;
+    }
+
+    /**
+     * Split content into lines, the way diffs count them
+     * @param content File content
+     * @return List of lines without their line breaks
+     */
+    public static List<String> lines(byte[] content) {
+        return FileDiff.splitLines(content);
+    }
+
+    /**
+     * Diff lines of the previous version with lines of the next one, carrying origins over to
+     * the lines they have in common
+     */
+    private void diffGap(byte[] next, int[] nextStarts, int[] nextOrigins, int oldFrom, int oldTo,
+                         int newFrom, int newTo, int origin) {
+        if (oldFrom == oldTo || newFrom == newTo) {
+            Arrays.fill(nextOrigins, newFrom, newTo, origin);
+            return;
+        }
+        int oldPosition = oldFrom;
+        int newPosition = newFrom;
+        for (MyersDiff.Edit edit : MyersDiff.diff(decode(content, lineStarts, oldFrom, oldTo),
+                decode(next, nextStarts, newFrom, newTo))) {
+            while (newPosition < newFrom + edit.getNewStart()) {
+                nextOrigins[newPosition++] = origins[oldPosition++];
+            }
+            Arrays.fill(nextOrigins, newFrom + edit.getNewStart(), newFrom + edit.getNewEnd(), origin);
+            oldPosition = oldFrom + edit.getOldEnd();
+            newPosition = newFrom + edit.getNewEnd();
+        }
+        while (newPosition < newTo) {
+            nextOrigins[newPosition++] = origins[oldPosition++];
+        }
+    }
+
+    /**
+     * Find the lines of the next version between the common prefix and suffix, and the line of
+     * the previous version each is equal to when they are found in order. Each line is compared
+     * with the line of the previous version expected next; a line that differs is looked for a
+     * little further on, and if it is found the lines skipped over count as removed.
+     * @param next Content of the next version
+     * @param start Start of the range, at the beginning of a line
+     * @param end End of the range, at the beginning of a line or the end of the content
+     * @param oldFrom First line of the previous version between the prefix and suffix
+     * @param oldTo End of the lines of the previous version between the prefix and suffix
+     * @return Middle with the start of every line followed by the end of the range, and the matching old lines
+     */
+    private Middle matchLines(byte[] next, int start, int end, int oldFrom, int oldTo) {
+        int[] starts = new int[oldTo - oldFrom + 2];
+        int[] oldLines = new int[starts.length];
+        int lines = 0;
+        int expected = oldFrom;
+        int position = start;
+        while (position < end) {
+            if (lines + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+                oldLines = Arrays.copyOf(oldLines, starts.length);
+            }
+            starts[lines] = position;
+            if (expected < oldTo && matches(expected, next, position, end)) {
+                position += lineStarts[expected + 1] - lineStarts[expected];
+                oldLines[lines++] = expected++;
+                continue;
+            }
+
+            oldLines[lines] = -1;
+            int window = Math.min(oldTo, expected + RESYNC_WINDOW);
+            for (int old = expected + 1; old < window; old++) {
+                if (matches(old, next, position, end)) {
+                    oldLines[lines] = old;
+                    expected = old + 1;
+                    break;
+                }
+            }
+            int lineEnd = position;
+            while (lineEnd < end && next[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            position = lineEnd + 1;
+            lines++;
+        }
+        starts[lines] = end;
+        return new Middle(Arrays.copyOf(starts, lines + 1), Arrays.copyOf(oldLines, lines));
+    }
+
+    /**
+     * Check whether a line of the previous version, with its line break, is at a position of the next version
+     */
+    private boolean matches(int oldLine, byte[] next, int position, int end) {
+        int oldStart = lineStarts[oldLine];
+        int length = lineStarts[oldLine + 1] - oldStart;
+        // A line without a line break only matches at the end
+        boolean complete = content[oldStart + length - 1] == '\n' || position + length == end;
+        return complete && position + length <= end
+                && Arrays.equals(content, oldStart, oldStart + length, next, position, position + length);
+    }
+
+    private record Middle(int[] starts, int[] oldLines) {
+    }
+
+    private static boolean isLineStart(byte[] content, int position) {
+        return position == 0 || content[position - 1] == '\n';
+    }
+
+    private static List<String> decode(byte[] content, int[] lineStarts, int from, int to) {
+        List<String> lines = new ArrayList<>(to - from);
+        for (int line = from; line < to; line++) {
+            int start = lineStarts[line];
+            int end = lineStarts[line + 1];
+            if (end > start && content[end - 1] == '\n') {
+                end--;
+            }
+            lines.add(new String(content, start, end - start, StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    /**
+     * Length of the common suffix of two arrays, compared a block at a time
+     */
+    private static int commonSuffix(byte[] a, byte[] b, int maxLength) {
+        int suffix = 0;
+        while (suffix < maxLength) {
+            int block = Math.min(SUFFIX_BLOCK, maxLength - suffix);
+            int aEnd = a.length - suffix;
+            int bEnd = b.length - suffix;
+            if (Arrays.mismatch(a, aEnd - block, aEnd, b, bEnd - block, bEnd) < 0) {
+                suffix += block;
+                continue;
+            }
+            while (a[aEnd - 1] == b[bEnd - 1]) {
+                aEnd--;
+                bEnd--;
+                suffix++;
+            }
+            break;
+        }
+        return suffix;
+    }
+
+    /**
+     * Find the lines of a range that starts at the beginning of a line
+     * @return Start of every line, followed by the end of the range
+     */
+    private static int[] lineStarts(byte[] content, int start, int end) {
+        int[] starts = new int[(end - start) / 32 + 2];
+        int lines = 0;
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (content[i] != '\n') {
+                continue;
+            }
+            if (lines + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[lines++] = lineStart;
+            lineStart = i + 1;
+        }
+        if (lines + 2 > starts.length) {
+            starts = Arrays.copyOf(starts, lines + 2);
+        }
+        if (lineStart < end) {
+            starts[lines++] = lineStart;
+        }
+        starts[lines] = end;
+        return Arrays.copyOf(starts, lines + 1);
+    }
+}
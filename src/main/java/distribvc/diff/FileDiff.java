@@ -0,0 +1,198 @@
+package distribvc.diff;
+
+import distribvc.model.FileChange;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Differences of one file between two versions, grouped into unified-diff hunks.
+ */
+public class FileDiff {
+    private static final int BINARY_CHECK_LENGTH = 8000;
+
+    private final String path;
+    private final FileChange.ChangeType changeType;
+    private final String oldHash;
+    private final String newHash;
+    private final boolean binary;
+    private final List<Hunk> hunks;
+
+    public FileDiff(String path, FileChange.ChangeType changeType, String oldHash, String newHash,
+                    boolean binary, List<Hunk> hunks) {
+        this.path = path;
+        this.changeType = changeType;
+        this.oldHash = oldHash;
+        this.newHash = newHash;
+        this.binary = binary;
+        this.hunks = hunks;
+    }
+
+    /**
+     * Diff two versions of a file
+     * @param path Path relative to the repository root
+     * @param oldHash Hash of the old version, or null if the file was added
+     * @param newHash Hash of the new version, or null if the file was deleted
+     * @param oldContent Old content, empty if the file was added
+     * @param newContent New content, empty if the file was deleted
+     * @param context Number of unchanged lines shown around each change
+     * @return FileDiff with the hunks of the file
+     */
+    public static FileDiff compute(String path, String oldHash, String newHash,
+                                   byte[] oldContent, byte[] newContent, int context) {
+        FileChange.ChangeType changeType = oldHash == null ? FileChange.ChangeType.ADDED
+                : newHash == null ? FileChange.ChangeType.DELETED
+                : FileChange.ChangeType.MODIFIED;
+        if (isBinary(oldContent) || isBinary(newContent)) {
+            return new FileDiff(path, changeType, oldHash, newHash, true, Collections.emptyList());
+        }
+
+        List<String> oldLines = splitLines(oldContent);
+        List<String> newLines = splitLines(newContent);
+        List<MyersDiff.Edit> edits = MyersDiff.diff(oldLines, newLines);
+        return new FileDiff(path, changeType, oldHash, newHash, false, toHunks(edits, oldLines, newLines, context));
+    }
+
+    /**
+     * Group edits that are close to each other into hunks with surrounding context lines
+     */
+    private static List<Hunk> toHunks(List<MyersDiff.Edit> edits, List<String> oldLines, List<String> newLines,
+                                      int context) {
+        List<Hunk> hunks = new ArrayList<>();
+        int first = 0;
+        while (first < edits.size()) {
+            // Extend the hunk while the next edit starts within twice the context of the previous one
+            int last = first;
+            while (last + 1 < edits.size()
+                    && edits.get(last + 1).getOldStart() - edits.get(last).getOldEnd() <= 2 * context) {
+                last++;
+            }
+
+            MyersDiff.Edit start = edits.get(first);
+            MyersDiff.Edit end = edits.get(last);
+            int oldStart = Math.max(0, start.getOldStart() - context);
+            int newStart = start.getNewStart() - (start.getOldStart() - oldStart);
+            int oldEnd = Math.min(oldLines.size(), end.getOldEnd() + context);
+            int newEnd = end.getNewEnd() + (oldEnd - end.getOldEnd());
+
+            List<String> lines = new ArrayList<>();
+            int oldPosition = oldStart;
+            for (int i = first; i <= last; i++) {
+                MyersDiff.Edit edit = edits.get(i);
+                for (; oldPosition < edit.getOldStart(); oldPosition++) {
+                    lines.add(" " + oldLines.get(oldPosition));
+                }
+                for (int j = edit.getOldStart(); j < edit.getOldEnd(); j++) {
+                    lines.add("-" + oldLines.get(j));
+                }
+                for (int j = edit.getNewStart(); j < edit.getNewEnd(); j++) {
+                    lines.add("+" + newLines.get(j));
+                }
+                oldPosition = edit.getOldEnd();
+            }
+            for (; oldPosition < oldEnd; oldPosition++) {
+                lines.add(" " + oldLines.get(oldPosition));
+            }
+
+            // As in unified diffs, an empty range is numbered after the line it follows
+            int oldCount = oldEnd - oldStart;
+            int newCount = newEnd - newStart;
+            hunks.add(new Hunk(oldCount > 0 ? oldStart + 1 : oldStart, oldCount,
+                    newCount > 0 ? newStart + 1 : newStart, newCount, lines));
+            first = last + 1;
+        }
+        return hunks;
+    }
+
+    public static boolean isBinary(byte[] content) {
+        int length = Math.min(content.length, BINARY_CHECK_LENGTH);
+        for (int i = 0; i < length; i++) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static List<String> splitLines(byte[] content) {
+        String text = new String(content, StandardCharsets.UTF_8);
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        int length = text.length();
+        while (start < length) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            lines.add(text.substring(start, end));
+            start = end + 1;
+        }
+        return lines;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public FileChange.ChangeType getChangeType() {
+        return changeType;
+    }
+
+    public String getOldHash() {
+        return oldHash;
+    }
+
+    public String getNewHash() {
+        return newHash;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public List<Hunk> getHunks() {
+        return hunks;
+    }
+
+    /**
+     * A run of changed lines with their context. Line numbers start at 1,
+     * and each line is prefixed with ' ', '-' or '+'.
+     */
+    public static class Hunk {
+        private final int oldStart;
+        private final int oldCount;
+        private final int newStart;
+        private final int newCount;
+        private final List<String> lines;
+
+        public Hunk(int oldStart, int oldCount, int newStart, int newCount, List<String> lines) {
+            this.oldStart = oldStart;
+            this.oldCount = oldCount;
+            this.newStart = newStart;
+            this.newCount = newCount;
+            this.lines = lines;
+        }
+
+        public int getOldStart() {
+            return oldStart;
+        }
+
+        public int getOldCount() {
+            return oldCount;
+        }
+
+        public int getNewStart() {
+            return newStart;
+        }
+
+        public int getNewCount() {
+            return newCount;
+        }
+
+        public List<String> getLines() {
+            return lines;
+        }
+    }
+}
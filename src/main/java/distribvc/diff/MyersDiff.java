@@ -0,0 +1,343 @@
+package distribvc.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line diff based on Myers' O(ND) algorithm in its linear-space form: each step searches
+ * for the middle snake from both ends and recurses on the halves, so memory stays
+ * proportional to the input however different the files are.
+ *
+ * Before falling back to Myers, each range is first trimmed of its common prefix and suffix
+ * and then split on lines that occur exactly once on both sides (the patience heuristic),
+ * which lines up functions and blocks the way a reader expects instead of matching
+ * braces and blank lines.
+ */
+public final class MyersDiff {
+    // Edit distance after which a range is split at the furthest forward point found so far
+    private static final int MIN_COST_LIMIT = 256;
+
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] deleted;
+    private final boolean[] inserted;
+
+    private MyersDiff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.deleted = new boolean[a.length];
+        this.inserted = new boolean[b.length];
+    }
+
+    /**
+     * Compute the edits turning one list of lines into another
+     * @param oldLines Lines before the change
+     * @param newLines Lines after the change
+     * @return List of edits in order, each replacing a range of old lines with a range of new lines
+     */
+    public static List<Edit> diff(List<String> oldLines, List<String> newLines) {
+        // Compare interned line numbers instead of strings
+        Map<String, Integer> ids = new HashMap<>();
+        int[] a = new int[oldLines.size()];
+        int[] b = new int[newLines.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = ids.computeIfAbsent(oldLines.get(i), line -> ids.size());
+        }
+        for (int i = 0; i < b.length; i++) {
+            b[i] = ids.computeIfAbsent(newLines.get(i), line -> ids.size());
+        }
+
+        MyersDiff diff = new MyersDiff(a, b);
+        diff.compare(0, a.length, 0, b.length);
+        return diff.edits();
+    }
+
+    private void compare(int aStart, int aEnd, int bStart, int bEnd) {
+        while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+            aStart++;
+            bStart++;
+        }
+        while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+            aEnd--;
+            bEnd--;
+        }
+
+        if (aStart == aEnd) {
+            markInserted(bStart, bEnd);
+        } else if (bStart == bEnd) {
+            markDeleted(aStart, aEnd);
+        } else if (!splitOnUniqueLines(aStart, aEnd, bStart, bEnd)) {
+            bisect(aStart, aEnd, bStart, bEnd);
+        }
+    }
+
+    /**
+     * Match lines that occur exactly once on both sides, keep the longest run of matches
+     * that is increasing on both sides, and diff the gaps between them
+     * @return false if there are no such lines
+     */
+    private boolean splitOnUniqueLines(int aStart, int aEnd, int bStart, int bEnd) {
+        // Per line: occurrences in a, occurrences in b, position in a, position in b
+        Map<Integer, int[]> counts = new HashMap<>();
+        for (int i = aStart; i < aEnd; i++) {
+            int[] count = counts.computeIfAbsent(a[i], line -> new int[4]);
+            count[0]++;
+            count[2] = i;
+        }
+        for (int j = bStart; j < bEnd; j++) {
+            int[] count = counts.get(b[j]);
+            if (count != null) {
+                count[1]++;
+                count[3] = j;
+            }
+        }
+
+        List<int[]> matches = new ArrayList<>();
+        for (int i = aStart; i < aEnd; i++) {
+            int[] count = counts.get(a[i]);
+            if (count[0] == 1 && count[1] == 1) {
+                matches.add(new int[]{i, count[3]});
+            }
+        }
+        if (matches.isEmpty()) {
+            return false;
+        }
+
+        List<int[]> anchors = longestIncreasingRun(matches);
+        int aNext = aStart;
+        int bNext = bStart;
+        for (int[] anchor : anchors) {
+            compare(aNext, anchor[0], bNext, anchor[1]);
+            aNext = anchor[0] + 1;
+            bNext = anchor[1] + 1;
+        }
+        compare(aNext, aEnd, bNext, bEnd);
+        return true;
+    }
+
+    /**
+     * Patience sorting: longest subsequence of matches whose b positions increase
+     * @param matches Matches ordered by their a position
+     * @return List of anchors in order
+     */
+    private static List<int[]> longestIncreasingRun(List<int[]> matches) {
+        int[] tails = new int[matches.size()];
+        int[] previous = new int[matches.size()];
+        int length = 0;
+        for (int i = 0; i < matches.size(); i++) {
+            int position = matches.get(i)[1];
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (matches.get(tails[middle])[1] < position) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+
+        int[][] run = new int[length][];
+        for (int i = tails[length - 1], k = length - 1; i >= 0; i = previous[i], k--) {
+            run[k] = matches.get(i);
+        }
+        return List.of(run);
+    }
+
+    /**
+     * Find the middle snake of the edit graph by running the greedy search forward from
+     * the start and backward from the end until the two paths overlap, then split there
+     */
+    private void bisect(int aStart, int aEnd, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+
+        int delta = n - m;
+        // With an odd delta the paths meet on a forward step, otherwise on a backward step
+        boolean checkOnForward = (delta & 1) != 0;
+        int forwardStart = 0;
+        int forwardEnd = 0;
+        int backwardStart = 0;
+        int backwardEnd = 0;
+        // Very different inputs make the search quadratic, so give up on a minimal diff
+        // once the edit distance passes roughly the square root of the input size
+        int costLimit = Math.max(MIN_COST_LIMIT, (int) Math.sqrt((double) n + m));
+
+        for (int d = 0; d < maxD; d++) {
+            if (d > costLimit) {
+                splitAtFurthestReach(aStart, aEnd, bStart, bEnd, forward, offset, d - 1, forwardStart, forwardEnd);
+                return;
+            }
+            for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                int index = offset + k;
+                int x = k == -d || (k != d && forward[index - 1] < forward[index + 1])
+                        ? forward[index + 1]
+                        : forward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[index] = x;
+                if (x > n) {
+                    forwardEnd += 2;
+                } else if (y > m) {
+                    forwardStart += 2;
+                } else if (checkOnForward) {
+                    int backwardIndex = offset + delta - k;
+                    if (backwardIndex >= 0 && backwardIndex < length && backward[backwardIndex] != -1
+                            && x >= n - backward[backwardIndex]) {
+                        split(aStart, aEnd, bStart, bEnd, x, y);
+                        return;
+                    }
+                }
+            }
+
+            for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                int index = offset + k;
+                int x = k == -d || (k != d && backward[index - 1] < backward[index + 1])
+                        ? backward[index + 1]
+                        : backward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aEnd - x - 1] == b[bEnd - y - 1]) {
+                    x++;
+                    y++;
+                }
+                backward[index] = x;
+                if (x > n) {
+                    backwardEnd += 2;
+                } else if (y > m) {
+                    backwardStart += 2;
+                } else if (!checkOnForward) {
+                    int forwardIndex = offset + delta - k;
+                    if (forwardIndex >= 0 && forwardIndex < length && forward[forwardIndex] != -1) {
+                        int forwardX = forward[forwardIndex];
+                        int forwardY = offset + forwardX - forwardIndex;
+                        if (forwardX >= n - x) {
+                            split(aStart, aEnd, bStart, bEnd, forwardX, forwardY);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        // No common lines at all
+        markDeleted(aStart, aEnd);
+        markInserted(bStart, bEnd);
+    }
+
+    private void splitAtFurthestReach(int aStart, int aEnd, int bStart, int bEnd, int[] forward, int offset,
+                                      int d, int forwardStart, int forwardEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int bestX = 0;
+        int bestY = 0;
+        for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+            int x = Math.min(forward[offset + k], n);
+            int y = Math.min(x - k, m);
+            if (y >= 0 && x + y > bestX + bestY) {
+                bestX = x;
+                bestY = y;
+            }
+        }
+        split(aStart, aEnd, bStart, bEnd, bestX, bestY);
+    }
+
+    private void split(int aStart, int aEnd, int bStart, int bEnd, int x, int y) {
+        if ((x == 0 && y == 0) || (x == aEnd - aStart && y == bEnd - bStart)) {
+            // A split at a corner would not make progress
+            markDeleted(aStart, aEnd);
+            markInserted(bStart, bEnd);
+            return;
+        }
+        compare(aStart, aStart + x, bStart, bStart + y);
+        compare(aStart + x, aEnd, bStart + y, bEnd);
+    }
+
+    private void markDeleted(int start, int end) {
+        for (int i = start; i < end; i++) {
+            deleted[i] = true;
+        }
+    }
+
+    private void markInserted(int start, int end) {
+        for (int j = start; j < end; j++) {
+            inserted[j] = true;
+        }
+    }
+
+    private List<Edit> edits() {
+        List<Edit> edits = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !deleted[i] && !inserted[j]) {
+                i++;
+                j++;
+                continue;
+            }
+            int aStart = i;
+            int bStart = j;
+            while (i < a.length && deleted[i]) {
+                i++;
+            }
+            while (j < b.length && inserted[j]) {
+                j++;
+            }
+            edits.add(new Edit(aStart, i, bStart, j));
+        }
+        return edits;
+    }
+
+    /**
+     * Replacement of old lines [oldStart, oldEnd) with new lines [newStart, newEnd)
+     */
+    public static final class Edit {
+        private final int oldStart;
+        private final int oldEnd;
+        private final int newStart;
+        private final int newEnd;
+
+        public Edit(int oldStart, int oldEnd, int newStart, int newEnd) {
+            this.oldStart = oldStart;
+            this.oldEnd = oldEnd;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+        }
+
+        public int getOldStart() {
+            return oldStart;
+        }
+
+        public int getOldEnd() {
+            return oldEnd;
+        }
+
+        public int getNewStart() {
+            return newStart;
+        }
+
+        public int getNewEnd() {
+            return newEnd;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package distribvc.diff;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line-based three-way merge. Both sides are diffed against their common base; changes
+ * to different regions of the base are combined, and regions changed differently on
+ * both sides are written with conflict markers. Lines are compared as raw bytes with their
+ * terminators, so text in any encoding and a missing final newline come through unchanged.
+ */
+public final class ThreeWayMerge {
+    private ThreeWayMerge() {
+    }
+
+    /**
+     * Merge two versions of a file that descend from the same base
+     * @param base Content in the common ancestor, empty if the file did not exist
+     * @param ours Content on the current branch
+     * @param theirs Content on the branch being merged
+     * @param theirsLabel Name of the branch being merged, used in conflict markers
+     * @return Result with the merged content; binary files conflict and keep our version
+     */
+    public static Result merge(byte[] base, byte[] ours, byte[] theirs, String theirsLabel) {
+        if (FileDiff.isBinary(base) || FileDiff.isBinary(ours) || FileDiff.isBinary(theirs)) {
+            return new Result(ours, 1);
+        }
+
+        List<String> baseLines = splitLines(base);
+        List<String> ourLines = splitLines(ours);
+        List<String> theirLines = splitLines(theirs);
+        List<MyersDiff.Edit> ourEdits = MyersDiff.diff(baseLines, ourLines);
+        List<MyersDiff.Edit> theirEdits = MyersDiff.diff(baseLines, theirLines);
+
+        List<String> merged = new ArrayList<>();
+        int conflicts = 0;
+        int basePosition = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ourEdits.size() || j < theirEdits.size()) {
+            // Start a region at the next edit of either side and grow it while edits of
+            // either side overlap or touch it
+            int regionStart = Math.min(
+                    i < ourEdits.size() ? ourEdits.get(i).getOldStart() : Integer.MAX_VALUE,
+                    j < theirEdits.size() ? theirEdits.get(j).getOldStart() : Integer.MAX_VALUE);
+            int regionEnd = regionStart;
+            int ourFirst = i;
+            int theirFirst = j;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                if (i < ourEdits.size() && ourEdits.get(i).getOldStart() <= regionEnd) {
+                    regionEnd = Math.max(regionEnd, ourEdits.get(i++).getOldEnd());
+                    grown = true;
+                }
+                if (j < theirEdits.size() && theirEdits.get(j).getOldStart() <= regionEnd) {
+                    regionEnd = Math.max(regionEnd, theirEdits.get(j++).getOldEnd());
+                    grown = true;
+                }
+            }
+
+            merged.addAll(baseLines.subList(basePosition, regionStart));
+            List<String> ourRegion = apply(baseLines, ourLines, ourEdits.subList(ourFirst, i), regionStart, regionEnd);
+            List<String> theirRegion = apply(baseLines, theirLines, theirEdits.subList(theirFirst, j), regionStart, regionEnd);
+            if (theirFirst == j) {
+                merged.addAll(ourRegion);
+            } else if (ourFirst == i || ourRegion.equals(theirRegion)) {
+                merged.addAll(theirRegion);
+            } else {
+                conflicts++;
+                addMarker(merged, "<<<<<<< ours");
+                merged.addAll(ourRegion);
+                addMarker(merged, "=======");
+                merged.addAll(theirRegion);
+                addMarker(merged, ">>>>>>> " + theirsLabel);
+            }
+            basePosition = regionEnd;
+        }
+        merged.addAll(baseLines.subList(basePosition, baseLines.size()));
+
+        StringBuilder content = new StringBuilder();
+        for (String line : merged) {
+            content.append(line);
+        }
+        return new Result(content.toString().getBytes(StandardCharsets.ISO_8859_1), conflicts);
+    }
+
+    /**
+     * Split content into lines that keep their terminators. Each byte is decoded as one
+     * ISO-8859-1 character, so lines compare byte for byte and encode back unchanged.
+     * @param content File content
+     * @return List of lines; only the last one may lack a newline
+     */
+    static List<String> splitLines(byte[] content) {
+        String text = new String(content, StandardCharsets.ISO_8859_1);
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        int length = text.length();
+        while (start < length) {
+            int end = text.indexOf('\n', start);
+            end = end < 0 ? length : end + 1;
+            lines.add(text.substring(start, end));
+            start = end;
+        }
+        return lines;
+    }
+
+    /**
+     * Append a conflict marker line, ending the line before it if it has no newline
+     */
+    private static void addMarker(List<String> merged, String marker) {
+        if (!merged.isEmpty() && !merged.get(merged.size() - 1).endsWith("\n")) {
+            merged.add("\n");
+        }
+        byte[] bytes = marker.getBytes(StandardCharsets.UTF_8);
+        merged.add(new String(bytes, StandardCharsets.ISO_8859_1) + "\n");
+    }
+
+    /**
+     * Apply one side's edits to a region of the base
+     * @return List of the region's lines on that side
+     */
+    private static List<String> apply(List<String> baseLines, List<String> sideLines, List<MyersDiff.Edit> edits,
+                                      int regionStart, int regionEnd) {
+        List<String> lines = new ArrayList<>();
+        int position = regionStart;
+        for (MyersDiff.Edit edit : edits) {
+            lines.addAll(baseLines.subList(position, edit.getOldStart()));
+            lines.addAll(sideLines.subList(edit.getNewStart(), edit.getNewEnd()));
+            position = edit.getOldEnd();
+        }
+        lines.addAll(baseLines.subList(position, regionEnd));
+        return lines;
+    }
+
+    /**
+     * Merged content and the number of conflicting regions in it
+     */
+    public static class Result {
+        private final byte[] content;
+        private final int conflicts;
+
+        public Result(byte[] content, int conflicts) {
+            this.content = content;
+            this.conflicts = conflicts;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public int getConflicts() {
+            return conflicts;
+        }
+
+        public boolean hasConflicts() {
+            return conflicts > 0;
+        }
+    }
+}
@@ -1,21 +1,19 @@
 package distribvc.model;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class Branch {
     private final String name;
-    private List<String> commitHistory;
     private String headCommitID;
 
     public Branch (String name) {
+        this(name, null);
+    }
+
+    public Branch (String name, String headCommitID) {
         this.name = name;
-        this.commitHistory = new ArrayList<>();
-        this.headCommitID = null;
+        this.headCommitID = headCommitID;
     }
 
     public void addCommit (Commit commit) {
-        commitHistory.add(commit.getId());
         headCommitID = commit.getId();
     }
 
@@ -24,10 +22,6 @@ public class Branch {
         return name;
     }
 
-    public List<String> getCommitHistory() {
-        return new ArrayList<>(commitHistory);
-    }
-
     public String getHeadCommitID() {
         return headCommitID;
     }
@@ -1,22 +1,48 @@
 package distribvc.model;
 
+import com.google.gson.annotations.Expose;
+
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.UUID;
 
 public class Commit {
+    @Expose
     private final String id;
+    @Expose
     private final String message;
+    @Expose
     private final LocalDateTime timestamp;
+    @Expose
     private final String parentCommitID;
+    @Expose
+    private final String mergeParentCommitID;
+    @Expose
     private final List<FileChange> changes;
+    @Expose
     private final String author;
 
     public Commit (String message, String parentCommitID, List<FileChange>changes, String author) {
-        this.id = UUID.randomUUID().toString();
+        this(message, parentCommitID, null, changes, author);
+    }
+
+    /**
+     * Create a commit, with a second parent when it merges another branch.
+     * Changes are always relative to the first parent.
+     */
+    public Commit (String message, String parentCommitID, String mergeParentCommitID, List<FileChange> changes,
+                   String author) {
+        this(UUID.randomUUID().toString(), message, LocalDateTime.now(), parentCommitID, mergeParentCommitID,
+                changes, author);
+    }
+
+    public Commit (String id, String message, LocalDateTime timestamp, String parentCommitID,
+                   String mergeParentCommitID, List<FileChange> changes, String author) {
+        this.id = id;
         this.message = message;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
         this.parentCommitID = parentCommitID;
+        this.mergeParentCommitID = mergeParentCommitID;
         this.changes = changes;
         this.author = author;
     }
@@ -38,6 +64,10 @@ public class Commit {
         return parentCommitID;
     }
 
+    public String getMergeParentCommitID() {
+        return mergeParentCommitID;
+    }
+
     public List<FileChange> getChanges() {
         return changes;
     }
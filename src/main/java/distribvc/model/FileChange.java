@@ -1,5 +1,7 @@
 package distribvc.model;
 
+import com.google.gson.annotations.Expose;
+
 import java.nio.file.Path;
 
 public class FileChange {
@@ -7,14 +9,17 @@ public class FileChange {
         ADDED, MODIFIED, DELETED
     }
 
+    @Expose
     private final Path filePath;
+    @Expose
     private final ChangeType changeType;
-    private final String content; //tracking file contents
+    @Expose
+    private final String contentHash; //hash of the content in the object store
 
-    public FileChange (Path filepath, ChangeType changeType, String content) {
+    public FileChange (Path filepath, ChangeType changeType, String contentHash) {
         this.filePath = filepath;
         this.changeType = changeType;
-        this.content = content;
+        this.contentHash = contentHash;
     }
 
     //Getters
@@ -26,7 +31,7 @@ public class FileChange {
         return changeType;
     }
 
-    public String getContent() {
-        return content;
+    public String getContentHash() {
+        return contentHash;
     }
 }
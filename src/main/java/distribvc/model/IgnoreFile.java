@@ -3,50 +3,182 @@ package distribvc.model;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.regex.Pattern;
 
+/**
+ * Ignore rules with gitignore semantics. Patterns are compiled once when they are added:
+ * a leading "!" negates, a trailing "/" only matches directories, a pattern containing
+ * "/" is anchored to the repository root, and "**" matches across directories.
+ * The last matching rule decides, so rules are kept in file order, repeats included, and
+ * nothing below an ignored directory can be re-included. Trailing spaces are dropped unless
+ * escaped with a backslash.
+ */
 public class IgnoreFile {
-    private final Set<String> ignoredPatterns;
+    private final List<String> ignoredPatterns;
+    private final List<Rule> rules;
 
     public IgnoreFile() {
-        this.ignoredPatterns = new HashSet<>();
+        this.ignoredPatterns = new ArrayList<>();
+        this.rules = new ArrayList<>();
     }
 
     public void addIgnoredPattern (String pattern) {
         ignoredPatterns.add(pattern);
-
+        Rule rule = Rule.compile(pattern);
+        if (rule != null) {
+            rules.add(rule);
+        }
     }
 
     public void loadFromFile(Path ignoreFilePath) throws IOException {
         if (Files.exists(ignoreFilePath)) {
-            List<String> patterns = Files.readAllLines(ignoreFilePath);
-            ignoredPatterns.addAll(
-                    patterns.stream()
-                            .filter(line -> !line.trim().isEmpty() && !line.startsWith("#"))
-                            .collect(Collectors.toSet())
-            );
+            for (String line : Files.readAllLines(ignoreFilePath)) {
+                String pattern = stripTrailingSpaces(line);
+                if (!pattern.isEmpty() && !pattern.startsWith("#")) {
+                    addIgnoredPattern(pattern);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether a path, or any directory containing it, is ignored
+     * @param relativePath Path relative to the repository root
+     * @param isDirectory Whether the path is a directory
+     * @return true if the path should be ignored
+     */
+    public boolean shouldIgnore(Path relativePath, boolean isDirectory) {
+        for (Path parent = relativePath.getParent(); parent != null; parent = parent.getParent()) {
+            if (isIgnored(parent, true)) {
+                return true;
+            }
+        }
+        return isIgnored(relativePath, isDirectory);
+    }
+
+    /**
+     * Check a single path against the rules without looking at its parent directories.
+     * Tree walks use this after pruning ignored directories.
+     * @param relativePath Path relative to the repository root
+     * @param isDirectory Whether the path is a directory
+     * @return true if the last matching rule ignores the path
+     */
+    public boolean isIgnored(Path relativePath, boolean isDirectory) {
+        String path = relativePath.toString().replace('\\', '/');
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            Rule rule = rules.get(i);
+            if (rule.matches(path, isDirectory)) {
+                return !rule.negated;
+            }
         }
+        return false;
     }
 
-    public boolean shouldIgnore(Path filePath) {
-        return ignoredPatterns.stream()
-                .anyMatch(pattern ->
-                        filePath.toString().matches(convertGlobalToRegex(pattern)));
+    public List<String> getIgnoredPatterns() {
+        return new ArrayList<>(ignoredPatterns);
     }
 
-    private String convertGlobalToRegex (String glob) {
-        //simple glo to regex conversion
-        return "^" + glob
-                .replace(".", "\\.")
-                .replace("*", ".*")
-                .replace("?", ".")
-                + "$";
+    /**
+     * Drop trailing spaces, keeping a space escaped as "\ " since it is part of the pattern
+     */
+    private static String stripTrailingSpaces(String line) {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) {
+            end--;
+        }
+        return line.substring(0, end);
     }
 
-    public Set<String> getIgnoredPatterns() {
-        return new HashSet<>(ignoredPatterns);
+    private static final class Rule {
+        private static final String REGEX_META_CHARACTERS = "\\.[]{}()<>*+-=!?^$|";
+
+        private final Pattern regex;
+        private final boolean negated;
+        private final boolean directoryOnly;
+
+        private Rule(Pattern regex, boolean negated, boolean directoryOnly) {
+            this.regex = regex;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+        }
+
+        boolean matches(String path, boolean isDirectory) {
+            return (isDirectory || !directoryOnly) && regex.matcher(path).matches();
+        }
+
+        static Rule compile(String pattern) {
+            boolean negated = pattern.startsWith("!");
+            if (negated || pattern.startsWith("\\")) {
+                pattern = pattern.substring(1);
+            }
+
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+
+            // A slash anywhere but the end anchors the pattern to the root,
+            // otherwise it matches at any depth
+            boolean anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (pattern.isEmpty()) {
+                return null;
+            }
+
+            String regex = (anchored ? "" : "(?:.*/)?") + convertGlobToRegex(pattern);
+            return new Rule(Pattern.compile(regex), negated, directoryOnly);
+        }
+
+        private static String convertGlobToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            int length = glob.length();
+            for (int i = 0; i < length; i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < length && glob.charAt(i + 1) == '*') {
+                    boolean leadingSegment = i == 0 || glob.charAt(i - 1) == '/';
+                    boolean trailingSlash = i + 2 < length && glob.charAt(i + 2) == '/';
+                    if (leadingSegment && trailingSlash) {
+                        // "**/" matches zero or more directories
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    } else {
+                        regex.append(".*");
+                        i++;
+                    }
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[') {
+                    int close = glob.indexOf(']', i + 1);
+                    if (close < 0) {
+                        regex.append("\\[");
+                    } else {
+                        String set = glob.substring(i + 1, close);
+                        if (set.startsWith("!")) {
+                            set = "^" + set.substring(1);
+                        }
+                        regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+                        i = close;
+                    }
+                } else if (c == '\\' && i + 1 < length) {
+                    appendLiteral(regex, glob.charAt(++i));
+                } else {
+                    appendLiteral(regex, c);
+                }
+            }
+            return regex.toString();
+        }
+
+        private static void appendLiteral(StringBuilder regex, char c) {
+            if (REGEX_META_CHARACTERS.indexOf(c) >= 0) {
+                regex.append('\\');
+            }
+            regex.append(c);
+        }
     }
 }
@@ -1,26 +1,73 @@
 package distribvc.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.gson.annotations.Expose;
+import distribvc.storage.CommitGraph;
+import distribvc.storage.Journal;
+import distribvc.storage.PackStore;
+import distribvc.storage.PathLocks;
+import distribvc.storage.TrigramIndex;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
-
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Locks are held for the scope of their try blocks and never referenced inside them
+@SuppressWarnings("try")
 public class Repository {
     @Expose
     private static final String REPO_DIR = ".distribvc";
     @Expose
     private static final String COMMITS_DIR = "commits";
     @Expose
-    private static  final String STAGING_DIR = "staging";
+    private static final String OBJECTS_DIR = "objects";
+    @Expose
+    private static final String PACKS_DIR = "packs";
     @Expose
     private static final String BRANCHES_DIR = "branches";
     @Expose
     private static final String CURRENT_BRANCH_FILE = "HEAD";
     @Expose
     private static final String IGNORE_FILE = ".distribvcignore";
+    @Expose
+    private static final String COMMIT_GRAPH_FILE = "commit-graph";
+    @Expose
+    private static final String TRIGRAM_INDEX_FILE = "trigrams";
+    @Expose
+    private static final String DEFAULT_BRANCH = "master";
+    @Expose
+    private static final String REMOTES_DIR = "remotes";
+    @Expose
+    private static final String REMOTE_URL_FILE = "url";
+    @Expose
+    private static final String REMOTE_REFS_DIR = "refs";
+    @Expose
+    private static final String LOCKS_DIR = "locks";
+    @Expose
+    private static final String INDEX_LOCK = "index.lock";
+    @Expose
+    private static final String HISTORY_LOCK = "history.lock";
+    @Expose
+    private static final String MAINTENANCE_LOCK = "maintenance.lock";
+    @Expose
+    private static final String LOCK_SUFFIX = ".lock";
+    @Expose
+    private static final String JOURNAL_FILE = "journal";
+    @Expose
+    private static final String JOURNAL_LOCK = "journal.lock";
+
+    // Shared by every handle, since handles of one repository come and go. Locks of one repository
+    // are taken in this order: maintenance, index, branch, history
+    private static final PathLocks LOCKS = new PathLocks();
 
     @Expose
     private final Path rootPath;
@@ -32,17 +79,59 @@ public class Repository {
     @Expose
     private Map<String, Branch> branches;
     @Expose
-    private Branch currentBranch;
+    private volatile Branch currentBranch;
+
+    private final PackStore packStore;
+    private final CommitGraph commitGraph;
+    private final TrigramIndex trigramIndex;
+    private final Journal journal;
+    private volatile boolean closed;
 
     public Repository (Path rootPath) throws IOException {
         this.rootPath = rootPath;
         this.repoPath = rootPath.resolve(REPO_DIR);
-        this.branches = new HashMap<>();
+        this.branches = new ConcurrentHashMap<>();
         this.ignoreFile = new IgnoreFile();
+        this.packStore = new PackStore(repoPath.resolve(PACKS_DIR));
+        this.commitGraph = new CommitGraph(repoPath.resolve(COMMIT_GRAPH_FILE));
+        this.trigramIndex = new TrigramIndex(repoPath.resolve(TRIGRAM_INDEX_FILE));
+
+        //Load persisted state, or initialize repository structure for a new repository
+        if (Files.exists(repoPath.resolve(CURRENT_BRANCH_FILE))) {
+            //Replay commits a crash left in the journal before reading any ref
+            this.journal = Journal.open(repoPath, repoPath.resolve(JOURNAL_FILE), locksPath().resolve(JOURNAL_LOCK));
+            try {
+                loadRepositoryState();
+            } catch (IOException | RuntimeException e) {
+                Journal.release(journal);
+                throw e;
+            }
+        } else {
+            initializeRepositoryStructure();
+            this.journal = Journal.open(repoPath, repoPath.resolve(JOURNAL_FILE), locksPath().resolve(JOURNAL_LOCK));
+        }
 
-        //Initialize repository structure
-        initializeRepositoryStructure();
+    }
+
+    private void loadRepositoryState() throws IOException {
+        //Load branch refs, each file holds the head commit ID of one branch
+        Path branchesPath = repoPath.resolve(BRANCHES_DIR);
+        if (Files.isDirectory(branchesPath)) {
+            try (Stream<Path> refs = Files.walk(branchesPath)) {
+                for (Path ref : (Iterable<Path>) refs.filter(Files::isRegularFile)::iterator) {
+                    String branchName = branchesPath.relativize(ref).toString().replace('\\', '/');
+                    String headCommitId = Files.readString(ref).trim();
+                    branches.put(branchName, new Branch(branchName, headCommitId.isEmpty() ? null : headCommitId));
+                }
+            }
+        }
 
+        //Restore current branch from head file
+        String currentBranchName = Files.readString(repoPath.resolve(CURRENT_BRANCH_FILE)).trim();
+        currentBranch = branches.computeIfAbsent(currentBranchName, Branch::new);
+
+        //Load ignore patterns
+        ignoreFile.loadFromFile(rootPath.resolve(IGNORE_FILE));
     }
 
     private void initializeRepositoryStructure() throws IOException {
@@ -50,17 +139,19 @@ public class Repository {
         //create repository directories
         Files.createDirectories(repoPath);
         Files.createDirectories(repoPath.resolve(COMMITS_DIR));
-        Files.createDirectories(repoPath.resolve(STAGING_DIR));
+        Files.createDirectories(repoPath.resolve(OBJECTS_DIR));
+        Files.createDirectories(repoPath.resolve(PACKS_DIR));
         Files.createDirectories(repoPath.resolve(BRANCHES_DIR));
 
 
         //Create initial branch
-        Branch masterBranch = new Branch("Master");
-        branches.put("master", masterBranch);
+        Branch masterBranch = new Branch(DEFAULT_BRANCH);
+        branches.put(DEFAULT_BRANCH, masterBranch);
         currentBranch = masterBranch;
+        writeBranchRef(masterBranch);
 
         //write current branch to head file
-        Files.writeString(repoPath.resolve(CURRENT_BRANCH_FILE), "master");
+        Files.writeString(repoPath.resolve(CURRENT_BRANCH_FILE), DEFAULT_BRANCH);
 
         //create ignore file if not exists
         Path ignoreFilePath = rootPath.resolve(IGNORE_FILE);
@@ -96,10 +187,236 @@ public class Repository {
         return ignoreFile;
     }
 
+    @JsonIgnore
+    public PackStore getPackStore() {
+        return packStore;
+    }
+
+    @JsonIgnore
+    public CommitGraph getCommitGraph() {
+        return commitGraph;
+    }
+
+    @JsonIgnore
+    public TrigramIndex getTrigramIndex() {
+        return trigramIndex;
+    }
+
+    @JsonIgnore
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Release the resources this handle shares with other handles of the repository.
+     * The handle must not be used afterwards.
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            Journal.release(journal);
+        }
+    }
+
+    public Map<String, Branch> getBranches() {
+        return new HashMap<>(branches);
+    }
+
+    /**
+     * Lock the packs and loose files while repack or garbage collection rewrites them. Taken before the other locks.
+     * @return Lock to close when done
+     */
+    public PathLocks.Lock lockMaintenance() throws IOException {
+        return LOCKS.lock(locksPath().resolve(MAINTENANCE_LOCK));
+    }
+
+    /**
+     * Lock the index while it is read, changed and written back
+     * @return Lock to close when done
+     */
+    public PathLocks.Lock lockIndex() throws IOException {
+        return LOCKS.lock(locksPath().resolve(INDEX_LOCK));
+    }
+
+    /**
+     * Lock the ref of a branch while it is read and moved. Taken after the index lock, if both are needed.
+     * @param branchName Name of the branch
+     * @return Lock to close when done
+     */
+    public PathLocks.Lock lockBranch(String branchName) throws IOException {
+        checkRefName(branchName);
+        return LOCKS.lock(locksPath().resolve(BRANCHES_DIR).resolve(branchName + LOCK_SUFFIX));
+    }
+
+    /**
+     * Lock the commit graph and trigram index while commits are appended. Taken after the other locks.
+     * @return Lock to close when done
+     */
+    public PathLocks.Lock lockHistory() throws IOException {
+        return LOCKS.lock(locksPath().resolve(HISTORY_LOCK));
+    }
+
+    /**
+     * Read the head of a branch from its ref, which other handles or processes may have moved.
+     * A commit still waiting in the journal already counts as the head.
+     * @param branchName Name of the branch
+     * @return String head commit ID, or null if the branch has no commits or does not exist
+     */
+    public String readBranchHead (String branchName) throws IOException {
+        checkRefName(branchName);
+        String pendingCommitId = journal.pendingRef(refPath(branchName));
+        if (pendingCommitId != null) {
+            return pendingCommitId.isEmpty() ? null : pendingCommitId;
+        }
+        return readBranchRef(branchName);
+    }
+
+    /**
+     * Read the heads of all branches from their refs, including branches other handles or processes created
+     * @return Map of branch name to head commit ID, leaving out branches without commits
+     */
+    public Map<String, String> readBranchHeads () throws IOException {
+        Map<String, String> heads = new HashMap<>();
+        Path branchesPath = repoPath.resolve(BRANCHES_DIR);
+        if (Files.isDirectory(branchesPath)) {
+            try (Stream<Path> refs = Files.walk(branchesPath)) {
+                for (Path ref : (Iterable<Path>) refs.filter(Files::isRegularFile)::iterator) {
+                    String branchName = branchesPath.relativize(ref).toString().replace('\\', '/');
+                    String headCommitId = readBranchHead(branchName);
+                    if (headCommitId != null) {
+                        heads.put(branchName, headCommitId);
+                    }
+                }
+            }
+        }
+        return heads;
+    }
+
+    private String readBranchRef (String branchName) throws IOException {
+        try {
+            String headCommitId = Files.readString(repoPath.resolve(BRANCHES_DIR).resolve(branchName)).trim();
+            return headCommitId.isEmpty() ? null : headCommitId;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Move a branch to a new commit, provided its ref still points where the caller last saw it
+     * @param branchName Name of the branch, created if it does not exist
+     * @param expectedCommitId Head the caller expects, or null for a branch without commits
+     * @param commitId The new head commit ID
+     * @throws IllegalStateException if the branch has moved
+     */
+    public void updateBranchHead (String branchName, String expectedCommitId, String commitId) throws IOException {
+        try (PathLocks.Lock lock = lockBranch(branchName)) {
+            // Journaled like commits, so a replay moves the ref through the same values in the same order
+            journal.await(journalBranchHead(branchName, expectedCommitId, commitId, new Journal.Record()), 0);
+        }
+    }
+
+    /**
+     * Move a branch to a new commit once a journal record holding the commit is synced.
+     * The caller holds the branch lock and has read the expected head with readBranchHead.
+     * @param branchName Name of the branch
+     * @param expectedCommitId Head the caller expects, or null for a branch without commits
+     * @param commitId The new head commit ID
+     * @param record Files written for the commit, which the move is added to
+     * @return Journal.Entry to wait for before the commit is reported as done
+     */
+    public Journal.Entry journalBranchHead (String branchName, String expectedCommitId, String commitId,
+                                            Journal.Record record) throws IOException {
+        checkBranchHead(branchName, readBranchHead(branchName), expectedCommitId);
+        String refPath = refPath(branchName);
+        record.moveRef(refPath, expectedCommitId != null ? expectedCommitId : "", commitId);
+        return journal.append(record, () -> {
+            // Runs on whichever thread syncs the journal, which holds no branch lock
+            checkBranchHead(branchName, readBranchRef(branchName), expectedCommitId);
+            putBranch(new Branch(branchName, commitId));
+        });
+    }
+
+    private static void checkBranchHead (String branchName, String currentCommitId, String expectedCommitId) {
+        if (!Objects.equals(currentCommitId, expectedCommitId)) {
+            throw new IllegalStateException("Branch " + branchName + " has moved to " + currentCommitId
+                    + "; expected " + expectedCommitId);
+        }
+    }
+
+    private static String refPath (String branchName) {
+        return BRANCHES_DIR + "/" + branchName;
+    }
+
+    /**
+     * Write a ref through a temporary file, so readers see either the old or the new head
+     */
+    private void writeBranchRef (Branch branch) throws IOException {
+        Path ref = repoPath.resolve(BRANCHES_DIR).resolve(branch.getName());
+        Files.createDirectories(ref.getParent());
+        Path locksPath = locksPath();
+        Files.createDirectories(locksPath);
+        Path tempPath = Files.createTempFile(locksPath, "ref", ".tmp");
+        try {
+            Files.writeString(tempPath, branch.getHeadCommitID() != null ? branch.getHeadCommitID() : "");
+            Files.move(tempPath, ref, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Reload one branch from its ref after it changed on disk, keeping the rest of the handle
+     * @param branchName Name of the branch
+     */
+    public void refreshBranch (String branchName) throws IOException {
+        Branch branch;
+        try {
+            String headCommitId = Files.readString(repoPath.resolve(BRANCHES_DIR).resolve(branchName)).trim();
+            branch = new Branch(branchName, headCommitId.isEmpty() ? null : headCommitId);
+        } catch (NoSuchFileException e) {
+            branch = null;
+        }
+        if (branch != null) {
+            branches.put(branchName, branch);
+        } else if (currentBranch.getName().equals(branchName)) {
+            // As on load, the current branch is kept even without a ref
+            branch = new Branch(branchName);
+            branches.put(branchName, branch);
+        } else {
+            branches.remove(branchName);
+        }
+        if (currentBranch.getName().equals(branchName)) {
+            currentBranch = branch;
+        }
+    }
+
+    private void putBranch (Branch branch) throws IOException {
+        writeBranchRef(branch);
+        branches.put(branch.getName(), branch);
+        if (currentBranch.getName().equals(branch.getName())) {
+            currentBranch = branch;
+        }
+    }
+
+    private Path locksPath () {
+        return repoPath.toAbsolutePath().normalize().resolve(LOCKS_DIR);
+    }
+
     public void createBranch (String branchName) {
         if (!branches.containsKey(branchName)) {
-            Branch newBranch = new Branch (branchName);
-            branches.put(branchName, newBranch);
+            //New branches start at the head of the current branch
+            Branch newBranch = new Branch (branchName, currentBranch.getHeadCommitID());
+            try (PathLocks.Lock lock = lockBranch(branchName)) {
+                // Another handle or process may have created it meanwhile
+                if (Files.exists(repoPath.resolve(BRANCHES_DIR).resolve(branchName))) {
+                    throw new IllegalArgumentException("Branch already exists: " + branchName);
+                }
+                putBranch(newBranch);
+            }
+
+            catch (IOException e) {
+                throw new RuntimeException("Could not write branch ref", e);
+            }
         }
 
         else {
@@ -122,6 +439,94 @@ public class Repository {
         }
     }
 
+    /**
+     * Point a branch at a commit, creating the branch if it does not exist
+     * @param branchName Name of the branch
+     * @param commitId The new head commit ID
+     */
+    public void setBranchHead (String branchName, String commitId) throws IOException {
+        try (PathLocks.Lock lock = lockBranch(branchName)) {
+            journal.await(journalBranchHead(branchName, readBranchHead(branchName), commitId, new Journal.Record()), 0);
+        }
+    }
+
+    /**
+     * Get the URL of a remote repository
+     * @param remoteName Name of the remote
+     * @return String the URL, or null if the remote is not configured
+     */
+    public String getRemoteUrl (String remoteName) throws IOException {
+        Path urlFile = remotePath(remoteName).resolve(REMOTE_URL_FILE);
+        return Files.exists(urlFile) ? Files.readString(urlFile).trim() : null;
+    }
+
+    public void setRemoteUrl (String remoteName, String url) throws IOException {
+        Path remotePath = remotePath(remoteName);
+        Files.createDirectories(remotePath);
+        Files.writeString(remotePath.resolve(REMOTE_URL_FILE), url);
+    }
+
+    /**
+     * Get the branch heads last seen in a remote repository
+     * @param remoteName Name of the remote
+     * @return Map of branch name to head commit ID
+     */
+    public Map<String, String> getRemoteRefs (String remoteName) throws IOException {
+        Map<String, String> refs = new HashMap<>();
+        Path refsPath = remotePath(remoteName).resolve(REMOTE_REFS_DIR);
+        if (Files.isDirectory(refsPath)) {
+            try (Stream<Path> files = Files.walk(refsPath)) {
+                for (Path ref : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                    String headCommitId = Files.readString(ref).trim();
+                    if (!headCommitId.isEmpty()) {
+                        refs.put(refsPath.relativize(ref).toString().replace('\\', '/'), headCommitId);
+                    }
+                }
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Remember the head of a branch in a remote repository
+     * @param remoteName Name of the remote
+     * @param branchName Name of the branch in the remote
+     * @param commitId Head commit ID of the branch
+     */
+    public void setRemoteRef (String remoteName, String branchName, String commitId) throws IOException {
+        checkRefName(branchName);
+        Path ref = remotePath(remoteName).resolve(REMOTE_REFS_DIR).resolve(branchName);
+        Files.createDirectories(ref.getParent());
+        Files.writeString(ref, commitId);
+    }
+
+    public Set<String> getRemoteNames () throws IOException {
+        Set<String> names = new TreeSet<>();
+        Path remotesPath = repoPath.resolve(REMOTES_DIR);
+        if (Files.isDirectory(remotesPath)) {
+            try (Stream<Path> remotes = Files.list(remotesPath)) {
+                remotes.filter(Files::isDirectory).forEach(remote -> names.add(remote.getFileName().toString()));
+            }
+        }
+        return names;
+    }
+
+    private static void checkRefName (String refName) {
+        //Names received from other repositories must stay inside the refs directory
+        for (String segment : refName.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..") || segment.contains("\\")) {
+                throw new IllegalArgumentException("Invalid branch name: " + refName);
+            }
+        }
+    }
+
+    private Path remotePath (String remoteName) {
+        if (remoteName.isEmpty() || remoteName.contains("/") || remoteName.contains("\\") || remoteName.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid remote name: " + remoteName);
+        }
+        return repoPath.resolve(REMOTES_DIR).resolve(remoteName);
+    }
+
 
 
 
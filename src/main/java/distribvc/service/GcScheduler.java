@@ -0,0 +1,113 @@
+package distribvc.service;
+
+import distribvc.controller.RepositoryController;
+import distribvc.model.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically checks the open repositories and queues a garbage collection for one that has
+ * too many loose objects, takes too much space, or sits on a nearly full disk. Collections go
+ * through the job queue, so they wait for the other jobs of the repository and count against
+ * the running job limit. To keep foreground requests fast, at most one collection is queued per
+ * check, and a repository is collected at most once per minimum interval.
+ */
+@Component
+public class GcScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(GcScheduler.class);
+    private static final String OPERATION = "gc";
+
+    private final RepositoryController repositoryController;
+    private final RepositoryRegistry repositoryRegistry;
+    private final JobService jobService;
+    private final boolean enabled;
+    private final int looseObjectThreshold;
+    private final long repositoryBytesThreshold;
+    private final int minFreePercent;
+    private final long minIntervalMillis;
+    private final Duration gracePeriod;
+    // Root path to the time its last collection was queued
+    private final Map<Path, Long> lastQueued = new ConcurrentHashMap<>();
+
+    public GcScheduler(RepositoryController repositoryController, RepositoryRegistry repositoryRegistry,
+                       JobService jobService,
+                       @Value("${distribvc.gc.enabled:true}") boolean enabled,
+                       @Value("${distribvc.gc.loose-objects:5000}") int looseObjectThreshold,
+                       @Value("${distribvc.gc.repository-bytes:0}") long repositoryBytesThreshold,
+                       @Value("${distribvc.gc.min-free-percent:10}") int minFreePercent,
+                       @Value("${distribvc.gc.min-interval-seconds:3600}") long minIntervalSeconds,
+                       @Value("${distribvc.gc.grace-seconds:3600}") long graceSeconds) {
+        this.repositoryController = repositoryController;
+        this.repositoryRegistry = repositoryRegistry;
+        this.jobService = jobService;
+        this.enabled = enabled;
+        this.looseObjectThreshold = looseObjectThreshold;
+        this.repositoryBytesThreshold = repositoryBytesThreshold;
+        this.minFreePercent = minFreePercent;
+        this.minIntervalMillis = TimeUnit.SECONDS.toMillis(minIntervalSeconds);
+        this.gracePeriod = Duration.ofSeconds(graceSeconds);
+    }
+
+    @Scheduled(initialDelayString = "${distribvc.gc.check-interval-seconds:300}",
+            fixedDelayString = "${distribvc.gc.check-interval-seconds:300}", timeUnit = TimeUnit.SECONDS)
+    public void check() {
+        if (!enabled) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        lastQueued.values().removeIf(queuedAt -> queuedAt < now - minIntervalMillis);
+        for (Repository repository : repositoryRegistry.getOpenRepositories()) {
+            Path rootPath = repository.getRootPath();
+            if (lastQueued.containsKey(rootPath)) {
+                continue;
+            }
+            try {
+                String reason = needsCollection(repository);
+                if (reason == null) {
+                    continue;
+                }
+                jobService.submit(rootPath, OPERATION, progress -> repositoryController.gc(repository, gracePeriod));
+                lastQueued.put(rootPath, now);
+                logger.info("Queued garbage collection for {}: {}", rootPath, reason);
+                return;
+            } catch (RejectedExecutionException e) {
+                // The repository is busy; try again at the next check
+                logger.debug("Could not queue garbage collection for {}", rootPath, e);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not check repository " + rootPath + " for garbage collection", e);
+            }
+        }
+    }
+
+    /**
+     * @return String why the repository should be collected, or null if it need not be
+     */
+    private String needsCollection(Repository repository) throws IOException {
+        RepositoryController.StorageStats stats = repositoryController.getStorageStats(repository);
+        if (looseObjectThreshold > 0 && stats.getLooseObjects() >= looseObjectThreshold) {
+            return stats.getLooseObjects() + " loose objects";
+        }
+        if (repositoryBytesThreshold > 0 && stats.getBytes() >= repositoryBytesThreshold) {
+            return stats.getBytes() + " bytes stored";
+        }
+        FileStore fileStore = Files.getFileStore(repository.getRepoPath());
+        if (minFreePercent > 0 && fileStore.getUsableSpace() * 100 < fileStore.getTotalSpace() * minFreePercent) {
+            return "less than " + minFreePercent + "% disk space free";
+        }
+        return null;
+    }
+}
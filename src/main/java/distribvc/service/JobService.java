@@ -0,0 +1,356 @@
+package distribvc.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs long repository operations in the background, so request threads only queue them and
+ * return. Jobs of one repository run one at a time in submission order, since they would mostly
+ * wait on each other's locks anyway, while jobs of different repositories run in parallel, at
+ * most max-running at once. Queues are bounded per repository and in total, and a full queue
+ * rejects new jobs so clients back off instead of piling up work.
+ *
+ * Jobs run on virtual threads when the runtime has them, otherwise on a fixed pool.
+ * Finished jobs are kept for the retention period so clients can fetch their results.
+ */
+@Component
+public class JobService {
+    private static final Logger logger = LoggerFactory.getLogger(JobService.class);
+
+    private final int maxQueued;
+    private final int maxQueuedTotal;
+    private final long retentionMillis;
+    private final Semaphore runPermits;
+    private final ExecutorService executor;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    // Guarded by itself
+    private final Map<Path, RepositoryQueue> queues = new HashMap<>();
+    private int queuedTotal;
+
+    public JobService(@Value("${distribvc.jobs.max-running:0}") int maxRunning,
+                      @Value("${distribvc.jobs.max-queued:64}") int maxQueued,
+                      @Value("${distribvc.jobs.max-queued-total:4096}") int maxQueuedTotal,
+                      @Value("${distribvc.jobs.retention-seconds:3600}") long retentionSeconds) {
+        int running = maxRunning > 0 ? maxRunning : Runtime.getRuntime().availableProcessors();
+        this.maxQueued = maxQueued;
+        this.maxQueuedTotal = maxQueuedTotal;
+        this.retentionMillis = TimeUnit.SECONDS.toMillis(retentionSeconds);
+        this.runPermits = new Semaphore(running, true);
+        this.executor = newExecutor(running);
+    }
+
+    /**
+     * Use virtual threads where available; they are only looked up at runtime so the
+     * build keeps targeting Java 17
+     * @param threads Size of the fallback pool
+     * @return ExecutorService running the repository queues
+     */
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.info("Running jobs on virtual threads, {} at a time", threads);
+            return executor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger counter = new AtomicInteger();
+            logger.info("Running jobs on {} threads", threads);
+            return Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "distribvc-job-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Queue an operation on a repository
+     * @param rootPath Root directory of the repository
+     * @param operation Name of the operation, for display
+     * @param task Work to run; its result becomes the result of the job
+     * @return Job the queued job
+     * @throws RejectedExecutionException if the queue of the repository or the total queue is full
+     */
+    public Job submit(Path rootPath, String operation, Task task) {
+        Path key = rootPath.toAbsolutePath().normalize();
+        Job job = new Job(UUID.randomUUID().toString(), key.toString(), operation, task);
+        synchronized (queues) {
+            purgeFinished();
+            RepositoryQueue queue = queues.computeIfAbsent(key, path -> new RepositoryQueue());
+            if (queue.jobs.size() >= maxQueued || queuedTotal >= maxQueuedTotal) {
+                if (queue.jobs.isEmpty() && !queue.draining) {
+                    queues.remove(key);
+                }
+                throw new RejectedExecutionException("Too many queued jobs for " + key);
+            }
+            queue.jobs.add(job);
+            queuedTotal++;
+            jobs.put(job.id, job);
+            if (!queue.draining) {
+                queue.draining = true;
+                executor.execute(() -> drain(key, queue));
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Get a job
+     * @param id Job ID
+     * @return Job the job, or null if it is unknown or was purged
+     */
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * List known jobs, oldest first
+     * @param rootPath Root directory of a repository to list jobs of, or null for all jobs
+     * @return List of jobs
+     */
+    public List<Job> list(Path rootPath) {
+        String repository = rootPath != null ? rootPath.toAbsolutePath().normalize().toString() : null;
+        synchronized (queues) {
+            purgeFinished();
+        }
+        List<Job> list = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (repository == null || job.repository.equals(repository)) {
+                list.add(job);
+            }
+        }
+        list.sort(Comparator.comparing(Job::getSubmittedAt));
+        return list;
+    }
+
+    /**
+     * Cancel a job that has not started yet; running jobs are never interrupted
+     * @param id Job ID
+     * @return boolean whether the job was cancelled
+     */
+    public boolean cancel(String id) {
+        Job job = jobs.get(id);
+        if (job == null) {
+            return false;
+        }
+        synchronized (queues) {
+            RepositoryQueue queue = queues.get(Path.of(job.repository));
+            if (queue == null || !queue.jobs.remove(job)) {
+                return false;
+            }
+            queuedTotal--;
+        }
+        job.finish(State.CANCELLED, null, null);
+        return true;
+    }
+
+    /**
+     * Run the jobs of one repository until its queue is empty. The run permit is taken per job,
+     * so a busy repository does not keep other repositories waiting.
+     */
+    private void drain(Path key, RepositoryQueue queue) {
+        while (true) {
+            runPermits.acquireUninterruptibly();
+            try {
+                Job job;
+                synchronized (queues) {
+                    job = queue.jobs.poll();
+                    if (job == null) {
+                        queue.draining = false;
+                        queues.remove(key, queue);
+                        return;
+                    }
+                    queuedTotal--;
+                }
+                run(job);
+            } finally {
+                runPermits.release();
+            }
+        }
+    }
+
+    private void run(Job job) {
+        job.start();
+        try {
+            Object result = job.task.run(job::setProgress);
+            job.finish(State.SUCCEEDED, result, null);
+        } catch (Exception e) {
+            logger.error("Job {} ({} on {}) failed", job.id, job.operation, job.repository, e);
+            job.finish(State.FAILED, null, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    private void purgeFinished() {
+        LocalDateTime cutoff = LocalDateTime.now().minusNanos(TimeUnit.MILLISECONDS.toNanos(retentionMillis));
+        jobs.values().removeIf(job -> job.finishedAt != null && job.finishedAt.isBefore(cutoff));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Work done by a job
+     */
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * @param progress Receives a short description of the current step
+         * @return Object the result of the job
+         */
+        Object run(Consumer<String> progress) throws Exception;
+    }
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    /**
+     * A queued, running or finished operation
+     */
+    public static class Job {
+        private final String id;
+        private final String repository;
+        private final String operation;
+        private final LocalDateTime submittedAt = LocalDateTime.now();
+        private final Task task;
+        private final List<Consumer<Job>> listeners = new CopyOnWriteArrayList<>();
+        private volatile State state = State.QUEUED;
+        private volatile String progress;
+        private volatile LocalDateTime startedAt;
+        private volatile LocalDateTime finishedAt;
+        private volatile Object result;
+        private volatile String error;
+
+        private Job(String id, String repository, String operation, Task task) {
+            this.id = id;
+            this.repository = repository;
+            this.operation = operation;
+            this.task = task;
+        }
+
+        /**
+         * Get notified of every change of the job, starting with its current state.
+         * Nothing more is sent once the job has finished.
+         * @param listener Called with the job after each change
+         */
+        public void subscribe(Consumer<Job> listener) {
+            listeners.add(listener);
+            listener.accept(this);
+            if (isFinished()) {
+                listeners.remove(listener);
+            }
+        }
+
+        public void unsubscribe(Consumer<Job> listener) {
+            listeners.remove(listener);
+        }
+
+        private void start() {
+            startedAt = LocalDateTime.now();
+            state = State.RUNNING;
+            notifyListeners();
+        }
+
+        private void setProgress(String progress) {
+            this.progress = progress;
+            notifyListeners();
+        }
+
+        private void finish(State state, Object result, String error) {
+            this.result = result;
+            this.error = error;
+            this.finishedAt = LocalDateTime.now();
+            this.state = state;
+            notifyListeners();
+            listeners.clear();
+        }
+
+        private void notifyListeners() {
+            for (Consumer<Job> listener : listeners) {
+                try {
+                    listener.accept(this);
+                } catch (RuntimeException e) {
+                    // A failing listener, such as a closed event stream, must not fail the job
+                    listeners.remove(listener);
+                }
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getRepository() {
+            return repository;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        @JsonIgnore
+        public boolean isFinished() {
+            State current = state;
+            return current != State.QUEUED && current != State.RUNNING;
+        }
+
+        public String getProgress() {
+            return progress;
+        }
+
+        public LocalDateTime getSubmittedAt() {
+            return submittedAt;
+        }
+
+        public LocalDateTime getStartedAt() {
+            return startedAt;
+        }
+
+        public LocalDateTime getFinishedAt() {
+            return finishedAt;
+        }
+
+        public Object getResult() {
+            return result;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private static final class RepositoryQueue {
+        private final Deque<Job> jobs = new ArrayDeque<>();
+        private boolean draining;
+    }
+}
@@ -0,0 +1,269 @@
+package distribvc.service;
+
+import distribvc.controller.RepositoryController;
+import distribvc.model.Repository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps open repository handles for the REST layer, keyed by normalized root path,
+ * so a request only costs a map lookup. Branch refs that change on disk, including the ones
+ * this server writes, are reloaded into the handle in place. A handle is dropped when another
+ * writer switches HEAD or changes the ignore file, when it has been idle for too long, or when
+ * more repositories are open than the configured limit, and a dropped handle is closed.
+ */
+@Component
+public class RepositoryRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(RepositoryRegistry.class);
+    private static final String REPO_DIR = ".distribvc";
+    private static final String BRANCHES_DIR = "branches";
+    private static final String CURRENT_BRANCH_FILE = "HEAD";
+    private static final String IGNORE_FILE = ".distribvcignore";
+
+    private final RepositoryController repositoryController;
+    private final int maxOpen;
+    private final long idleTimeoutMillis;
+    private final Map<Path, Handle> handles = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Handle> handlesByKey = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+    private final Thread watchThread;
+
+    public RepositoryRegistry(RepositoryController repositoryController,
+                              @Value("${distribvc.registry.max-open:256}") int maxOpen,
+                              @Value("${distribvc.registry.idle-timeout-seconds:600}") long idleTimeoutSeconds) throws IOException {
+        this.repositoryController = repositoryController;
+        this.maxOpen = maxOpen;
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.watchThread = new Thread(this::watch, "distribvc-registry");
+        this.watchThread.setDaemon(true);
+        this.watchThread.start();
+    }
+
+    /**
+     * Get the open handle of a repository, loading it on first use
+     * @param rootPath Root directory of the repository
+     * @return Repository the shared repository handle
+     */
+    public Repository get(Path rootPath) {
+        Path key = rootPath.toAbsolutePath().normalize();
+        Handle handle = handles.get(key);
+        if (handle == null) {
+            handle = handles.computeIfAbsent(key, this::open);
+            evictOverflow();
+        }
+        handle.lastAccess = System.currentTimeMillis();
+        return handle.repository;
+    }
+
+    /**
+     * Drop the handle of a repository so the next request reloads it
+     * @param rootPath Root directory of the repository
+     */
+    public void invalidate(Path rootPath) {
+        Handle handle = handles.remove(rootPath.toAbsolutePath().normalize());
+        if (handle != null) {
+            close(handle);
+        }
+    }
+
+    public int getOpenCount() {
+        return handles.size();
+    }
+
+    /**
+     * @return List of the currently open repository handles
+     */
+    public List<Repository> getOpenRepositories() {
+        List<Repository> repositories = new ArrayList<>();
+        for (Handle handle : handles.values()) {
+            repositories.add(handle.repository);
+        }
+        return repositories;
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        watchService.close();
+        for (Handle handle : handles.values()) {
+            handle.repository.close();
+        }
+        handles.clear();
+        handlesByKey.clear();
+    }
+
+    private Handle open(Path rootPath) {
+        Handle handle = new Handle(rootPath, repositoryController.loadRepository(rootPath));
+        Path repoPath = rootPath.resolve(REPO_DIR);
+        try {
+            // Only directories can be watched, so watch the parents of HEAD, the refs and the ignore file
+            register(handle, repoPath);
+            register(handle, rootPath);
+            try (Stream<Path> directories = Files.walk(repoPath.resolve(BRANCHES_DIR))) {
+                for (Path directory : (Iterable<Path>) directories.filter(Files::isDirectory)::iterator) {
+                    register(handle, directory);
+                }
+            }
+        } catch (IOException e) {
+            // Without a watch the handle could go stale, so it is not cached
+            close(handle);
+            logger.error("Could not watch repository: " + rootPath, e);
+            throw new RuntimeException("Could not watch repository", e);
+        }
+        return handle;
+    }
+
+    private void register(Handle handle, Path directory) throws IOException {
+        WatchKey key = directory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        handle.keys.add(key);
+        handlesByKey.put(key, handle);
+    }
+
+    private void close(Handle handle) {
+        for (WatchKey key : handle.keys) {
+            key.cancel();
+            handlesByKey.remove(key);
+        }
+        handle.repository.close();
+    }
+
+    private void evictOverflow() {
+        while (handles.size() > maxOpen) {
+            Handle eldest = null;
+            for (Handle handle : handles.values()) {
+                if (eldest == null || handle.lastAccess < eldest.lastAccess) {
+                    eldest = handle;
+                }
+            }
+            if (eldest == null || !handles.remove(eldest.rootPath, eldest)) {
+                return;
+            }
+            close(eldest);
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        List<Handle> idle = new ArrayList<>();
+        for (Handle handle : handles.values()) {
+            if (handle.lastAccess < cutoff) {
+                idle.add(handle);
+            }
+        }
+        for (Handle handle : idle) {
+            if (handles.remove(handle.rootPath, handle)) {
+                close(handle);
+            }
+        }
+    }
+
+    /**
+     * Invalidate handles whose state changed on disk, sweeping idle handles between events
+     */
+    private void watch() {
+        long sweepInterval = Math.max(1000, idleTimeoutMillis / 4);
+        try {
+            while (true) {
+                WatchKey key = watchService.poll(sweepInterval, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    Handle handle = handlesByKey.get(key);
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= handle != null && needsReload(handle, (Path) key.watchable(), event);
+                    }
+                    // A key that can no longer be reset means the directory itself is gone
+                    if (!key.reset()) {
+                        changed = handle != null;
+                    }
+                    if (changed && handles.remove(handle.rootPath, handle)) {
+                        logger.debug("Repository changed on disk: {}", handle.rootPath);
+                        close(handle);
+                    }
+                }
+                evictIdle();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Bring a handle up to date with a change on disk. Ref changes, including the ones this
+     * server writes itself, are applied to the handle in place; anything else requires a reload.
+     * @return boolean whether the handle must be dropped
+     */
+    private static boolean needsReload(Handle handle, Path directory, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            return true;
+        }
+        String fileName = event.context().toString();
+        Path repoPath = handle.rootPath.resolve(REPO_DIR);
+        if (directory.equals(handle.rootPath)) {
+            return fileName.equals(IGNORE_FILE);
+        }
+        if (directory.equals(repoPath)) {
+            if (fileName.equals(CURRENT_BRANCH_FILE)) {
+                // Switching branches through this handle already updated it
+                return !currentBranchMatches(handle, repoPath.resolve(CURRENT_BRANCH_FILE));
+            }
+            return fileName.equals(BRANCHES_DIR);
+        }
+
+        // Anything under the branches directory is a ref, except new directories, which need a watch
+        Path changed = directory.resolve(fileName);
+        if (event.kind() != StandardWatchEventKinds.ENTRY_DELETE && Files.isDirectory(changed)) {
+            return true;
+        }
+        String branchName = repoPath.resolve(BRANCHES_DIR).relativize(changed).toString().replace('\\', '/');
+        try {
+            handle.repository.refreshBranch(branchName);
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static boolean currentBranchMatches(Handle handle, Path headFile) {
+        try {
+            return Files.readString(headFile).trim().equals(handle.repository.getCurrentBranch().getName());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static final class Handle {
+        private final Path rootPath;
+        private final Repository repository;
+        private final List<WatchKey> keys = new ArrayList<>();
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private Handle(Path rootPath, Repository repository) {
+            this.rootPath = rootPath;
+            this.repository = repository;
+        }
+    }
+}
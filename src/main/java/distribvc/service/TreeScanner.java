@@ -0,0 +1,196 @@
+package distribvc.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Walks working trees and processes files on a fork/join pool.
+ * Every directory becomes its own task, each task collects into a private result,
+ * and results are merged while joining, so workers never share mutable state.
+ */
+@Component
+public class TreeScanner {
+    private static final Logger logger = LoggerFactory.getLogger(TreeScanner.class);
+
+    private final boolean parallel;
+    private final ForkJoinPool pool;
+
+    public TreeScanner(@Value("${distribvc.scan.parallel:true}") boolean parallel,
+                       @Value("${distribvc.scan.parallelism:0}") int parallelism) {
+        this.parallel = parallel;
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.pool = parallel ? new ForkJoinPool(threads) : null;
+        logger.info("Tree scanner using {}", parallel ? threads + " threads" : "sequential scans");
+    }
+
+    /**
+     * Processes the files of one directory into a private result
+     * @param <R> Type of the partial result
+     */
+    public interface FileProcessor<R> {
+        R newResult();
+
+        void process(Path file, BasicFileAttributes attrs, R result) throws IOException;
+
+        void merge(R into, R from);
+    }
+
+    @FunctionalInterface
+    public interface IOFunction<T, R> {
+        R apply(T value) throws IOException;
+    }
+
+    /**
+     * Walk a tree and process every regular file
+     * @param root Directory to start from
+     * @param descend Decides whether a subdirectory is visited
+     * @param processor Processor producing and merging partial results
+     * @return R merged result for the whole tree
+     */
+    public <R> R scan(Path root, Predicate<Path> descend, FileProcessor<R> processor) throws IOException {
+        ScanTask<R> task = new ScanTask<>(root, descend, processor);
+        if (!parallel) {
+            return task.scanSequentially();
+        }
+        try {
+            return pool.invoke(task);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Apply a function to every item, in parallel when enabled
+     * @param items Items to process
+     * @param function Function applied to each item
+     * @return List of results in the order of the items; it can be modified
+     */
+    public <T, R> List<R> map(List<T> items, IOFunction<T, R> function) throws IOException {
+        if (!parallel || items.size() < 2) {
+            List<R> results = new ArrayList<>(items.size());
+            for (T item : items) {
+                results.add(function.apply(item));
+            }
+            return results;
+        }
+
+        try {
+            return pool.submit(() -> items.parallelStream()
+                    .map(item -> {
+                        try {
+                            return function.apply(item);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing files", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            // Failures of the function itself reach the caller as they were thrown
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IOException("Parallel file processing failed", e.getCause());
+        }
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    // Tasks are never serialized
+    @SuppressWarnings("serial")
+    private static final class ScanTask<R> extends RecursiveTask<R> {
+        private final Path directory;
+        private final Predicate<Path> descend;
+        private final FileProcessor<R> processor;
+
+        private ScanTask(Path directory, Predicate<Path> descend, FileProcessor<R> processor) {
+            this.directory = directory;
+            this.descend = descend;
+            this.processor = processor;
+        }
+
+        @Override
+        protected R compute() {
+            try {
+                R result = processor.newResult();
+                List<ScanTask<R>> subtasks = new ArrayList<>();
+                for (Path subdirectory : processFiles(result)) {
+                    ScanTask<R> subtask = new ScanTask<>(subdirectory, descend, processor);
+                    subtask.fork();
+                    subtasks.add(subtask);
+                }
+                for (ScanTask<R> subtask : subtasks) {
+                    processor.merge(result, subtask.join());
+                }
+                return result;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private R scanSequentially() throws IOException {
+            R result = processor.newResult();
+            for (Path subdirectory : processFiles(result)) {
+                processor.merge(result, new ScanTask<>(subdirectory, descend, processor).scanSequentially());
+            }
+            return result;
+        }
+
+        /**
+         * Process the regular files of this directory
+         * @param result Result to process into
+         * @return List of subdirectories that should be visited
+         */
+        private List<Path> processFiles(R result) throws IOException {
+            List<Path> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        if (descend.test(entry)) {
+                            subdirectories.add(entry);
+                        }
+                    } else if (attrs.isRegularFile()) {
+                        processor.process(entry, attrs, result);
+                    }
+                }
+            }
+            return subdirectories;
+        }
+    }
+}
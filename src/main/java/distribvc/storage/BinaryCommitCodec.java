@@ -0,0 +1,194 @@
+package distribvc.storage;
+
+import distribvc.model.Commit;
+import distribvc.model.FileChange;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact, versioned binary commit encoding with hand-written reader and writer.
+ *
+ * Layout: magic, version, commit ID (16 bytes), epoch millis, parent ID (presence byte + 16 bytes),
+ * merge parent ID (presence byte + 16 bytes, since version 2), message, author, change count, then per change: path, change type, content hash (presence byte + 32 bytes).
+ * Strings and counts are length-prefixed with variable-length integers; a string length of 0 means null.
+ */
+public class BinaryCommitCodec implements CommitCodec {
+    private static final byte[] MAGIC = {(byte) 0xD7, 'C', 'M', 'T'};
+    private static final int VERSION = 2;
+    private static final int HASH_LENGTH = 32;
+    private static final int MAX_INTERNED_PATHS = 100_000;
+    private static final FileChange.ChangeType[] CHANGE_TYPES = FileChange.ChangeType.values();
+
+    // Paths repeat across commits, so decoded commits share their Path instances
+    private static final Map<String, Path> internedPaths = new ConcurrentHashMap<>();
+
+    @Override
+    public String getFileExtension() {
+        return ".commit";
+    }
+
+    @Override
+    public void encode(Commit commit, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        writeId(data, commit.getId());
+        data.writeLong(commit.getTimestamp().toInstant(ZoneOffset.UTC).toEpochMilli());
+        writeOptionalId(data, commit.getParentCommitID());
+        writeOptionalId(data, commit.getMergeParentCommitID());
+        writeString(data, commit.getMessage());
+        writeString(data, commit.getAuthor());
+
+        List<FileChange> changes = commit.getChanges() != null ? commit.getChanges() : List.of();
+        writeVarInt(data, changes.size());
+        for (FileChange change : changes) {
+            writeString(data, change.getFilePath().toString().replace('\\', '/'));
+            data.writeByte(change.getChangeType().ordinal());
+            if (change.getContentHash() != null) {
+                data.writeBoolean(true);
+                data.write(HexFormat.of().parseHex(change.getContentHash()));
+            } else {
+                data.writeBoolean(false);
+            }
+        }
+        data.flush();
+    }
+
+    @Override
+    public Commit decode(byte[] bytes) throws IOException {
+        if (!canDecode(bytes)) {
+            throw new IOException("Not a binary commit");
+        }
+
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes, MAGIC.length, bytes.length - MAGIC.length));
+        int version = data.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported binary commit version " + version);
+        }
+
+        String id = readId(data);
+        LocalDateTime timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(data.readLong()), ZoneOffset.UTC);
+        String parentCommitId = data.readBoolean() ? readId(data) : null;
+        String mergeParentCommitId = version >= 2 && data.readBoolean() ? readId(data) : null;
+        String message = readString(data);
+        String author = readString(data);
+
+        int changeCount = readVarInt(data);
+        List<FileChange> changes = new ArrayList<>(changeCount);
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int i = 0; i < changeCount; i++) {
+            Path path = internPath(readString(data));
+            FileChange.ChangeType changeType = CHANGE_TYPES[data.readUnsignedByte()];
+            String contentHash = null;
+            if (data.readBoolean()) {
+                data.readFully(hash);
+                contentHash = HexFormat.of().formatHex(hash);
+            }
+            changes.add(new FileChange(path, changeType, contentHash));
+        }
+
+        return new Commit(id, message, timestamp, parentCommitId, mergeParentCommitId, changes, author);
+    }
+
+    @Override
+    public boolean canDecode(byte[] data) {
+        if (data.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Path internPath(String path) {
+        Path interned = internedPaths.get(path);
+        if (interned == null) {
+            if (internedPaths.size() >= MAX_INTERNED_PATHS) {
+                internedPaths.clear();
+            }
+            interned = internedPaths.computeIfAbsent(path, Paths::get);
+        }
+        return interned;
+    }
+
+    private static void writeId(DataOutputStream out, String id) throws IOException {
+        UUID uuid = UUID.fromString(id);
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static void writeOptionalId(DataOutputStream out, String id) throws IOException {
+        out.writeBoolean(id != null);
+        if (id != null) {
+            writeId(out, id);
+        }
+    }
+
+    private static String readId(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong()).toString();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated binary commit");
+            }
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,123 @@
+package distribvc.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Bloom filter over the paths a commit changed, including every directory above them,
+ * so history limited to a file or a directory can skip commits without reading them.
+ * A filter answers "definitely not changed" or "maybe changed"; false positives are
+ * removed by checking the changes of the commits that pass.
+ */
+final class ChangedPathFilter {
+    private static final int BITS_PER_PATH = 10;
+    private static final int HASH_COUNT = 7;
+    private static final int MIN_BYTES = 8;
+    // Commits touching more paths get no filter and always count as candidates
+    private static final int MAX_PATHS = 512;
+
+    private ChangedPathFilter() {
+    }
+
+    /**
+     * Build the filter for the paths changed by one commit
+     * @param changedPaths Changed paths relative to the repository root
+     * @return byte[] the filter, or null if the commit changed too many paths to be worth one
+     */
+    static byte[] build(Collection<String> changedPaths) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (String changedPath : changedPaths) {
+            String path = normalize(changedPath);
+            for (int slash = path.length(); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                if (!keys.add(path.substring(0, slash))) {
+                    // Parents of a directory already added are in the set too
+                    break;
+                }
+            }
+            if (keys.size() > MAX_PATHS) {
+                return null;
+            }
+        }
+        if (keys.isEmpty()) {
+            return new byte[0];
+        }
+
+        byte[] filter = new byte[Math.max(MIN_BYTES, (keys.size() * BITS_PER_PATH + 7) / 8)];
+        for (String key : keys) {
+            long hash = hash(key);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            int bits = filter.length * 8;
+            for (int i = 0; i < HASH_COUNT; i++) {
+                int bit = Math.floorMod(h1 + i * h2, bits);
+                filter[bit >>> 3] |= (byte) (1 << (bit & 7));
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Check a path against a filter
+     * @param data Array holding the filter
+     * @param offset Start of the filter in data
+     * @param length Length of the filter; 0 for a commit that changed nothing
+     * @param path Normalized file or directory path
+     * @return false if the commit definitely did not change the path
+     */
+    static boolean mightContain(byte[] data, int offset, int length, String path) {
+        if (length == 0) {
+            return false;
+        }
+        long hash = hash(path);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int bits = length * 8;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bits);
+            if ((data[offset + (bit >>> 3)] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bring a path to the form used in filters: forward slashes, no leading "./" or "/", no trailing "/"
+     * @param path Path to normalize
+     * @return String the normalized path; empty for the repository root
+     */
+    static String normalize(String path) {
+        String normalized = path.replace('\\', '/');
+        while (normalized.startsWith("./")) {
+            normalized = normalized.substring(2);
+        }
+        int start = 0;
+        int end = normalized.length();
+        while (start < end && normalized.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && normalized.charAt(end - 1) == '/') {
+            end--;
+        }
+        return normalized.substring(start, end);
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finished with a MurmurHash3 mix so both halves are usable
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
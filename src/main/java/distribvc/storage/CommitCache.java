@@ -0,0 +1,156 @@
+package distribvc.storage;
+
+import distribvc.model.Commit;
+import distribvc.model.FileChange;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded cache of parsed commits keyed by commit ID. Commits are immutable, so entries
+ * never go stale. Commits differ widely in size, so the bound is an estimate of the
+ * heap they occupy rather than an entry count; the least recently used commits are
+ * evicted once the budget is exceeded.
+ */
+public class CommitCache {
+    private static final long COMMIT_OVERHEAD = 256;
+    private static final long CHANGE_OVERHEAD = 160;
+
+    private final long maxWeight;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxWeight Estimated heap budget in bytes; 0 disables caching
+     */
+    public CommitCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Look up a commit and record a hit or miss
+     * @param commitId ID of the commit
+     * @return Commit the cached commit, or null if it is not cached
+     */
+    public synchronized Commit get(String commitId) {
+        Entry entry = entries.get(commitId);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.commit;
+    }
+
+    public synchronized void put(Commit commit) {
+        long commitWeight = estimateWeight(commit);
+        if (commitWeight > maxWeight) {
+            return;
+        }
+
+        Entry previous = entries.put(commit.getId(), new Entry(commit, commitWeight));
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += commitWeight;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(entries.size(), weight, maxWeight, hits, misses, evictions);
+    }
+
+    /**
+     * Estimate the heap used by a parsed commit
+     * @param commit The commit
+     * @return long approximate size in bytes
+     */
+    static long estimateWeight(Commit commit) {
+        long size = COMMIT_OVERHEAD + stringSize(commit.getMessage()) + stringSize(commit.getAuthor());
+        if (commit.getChanges() != null) {
+            for (FileChange change : commit.getChanges()) {
+                size += CHANGE_OVERHEAD + stringSize(change.getContentHash())
+                        + 2L * change.getFilePath().toString().length();
+            }
+        }
+        return size;
+    }
+
+    private static long stringSize(String value) {
+        return value != null ? 40 + value.length() : 0;
+    }
+
+    private static final class Entry {
+        private final Commit commit;
+        private final long weight;
+
+        private Entry(Commit commit, long weight) {
+            this.commit = commit;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Snapshot of cache usage
+     */
+    public static class Stats {
+        private final int entries;
+        private final long weight;
+        private final long maxWeight;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        public Stats(int entries, long weight, long maxWeight, long hits, long misses, long evictions) {
+            this.entries = entries;
+            this.weight = weight;
+            this.maxWeight = maxWeight;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        public long getMaxWeight() {
+            return maxWeight;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests > 0 ? (double) hits / requests : 0;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package distribvc.storage;
+
+import distribvc.model.Commit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serialized form of commits on disk. Every codec recognises its own encoding,
+ * so repositories can hold commits written in different formats.
+ */
+public interface CommitCodec {
+    /**
+     * @return String extension of loose commit files written with this codec
+     */
+    String getFileExtension();
+
+    void encode(Commit commit, OutputStream out) throws IOException;
+
+    Commit decode(byte[] data) throws IOException;
+
+    /**
+     * Check whether data was written by this codec
+     * @param data Serialized commit
+     * @return true if this codec can decode the data
+     */
+    boolean canDecode(byte[] data);
+}
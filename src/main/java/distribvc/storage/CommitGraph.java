@@ -0,0 +1,762 @@
+package distribvc.storage;
+
+import distribvc.model.Commit;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Compact binary commit graph.
+ * Each commit is one fixed-size record appended after its parents, holding the commit ID,
+ * the record indexes of its parents, the commit timestamp and its generation number
+ * (1 for a root, otherwise one more than its highest parent), so history can be walked
+ * without opening any commit file. Since parents always precede their children,
+ * record order is a topological order.
+ *
+ * The file is memory-mapped once and loaded into parallel primitive arrays indexed by
+ * record, with an open-addressing table from commit ID to record, so lookups take
+ * constant time and walks allocate nothing per commit. Ancestry queries visit commits
+ * from the highest record down and stop as soon as the answer is known.
+ *
+ * Next to the graph, a filters file holds a Bloom filter of the paths each commit changed
+ * (see ChangedPathFilter), so path-limited history skips commits without reading them.
+ *
+ * Layout: magic "DVCG", version, then records of (id most significant bits, id least significant bits,
+ * parent record index or -1, merge parent record index or -1, epoch millis, generation).
+ * Filters file: magic "DVCF", version, then entries of (id most significant bits, record index,
+ * filter length or -1 for none, filter bytes). Entries whose ID does not match their record are ignored,
+ * so a filters file left behind by an interrupted rebuild can never hide a commit.
+ */
+public class CommitGraph {
+    private static final int MAGIC = 0x44564347;
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 36;
+    private static final int PARENT_OFFSET = 16;
+    private static final int MERGE_PARENT_OFFSET = 20;
+    private static final int TIME_OFFSET = 24;
+    private static final int GENERATION_OFFSET = 32;
+    private static final int NO_PARENT = -1;
+    private static final int MIN_CAPACITY = 64;
+    private static final int FILTERS_MAGIC = 0x44564346;
+    private static final int FILTERS_VERSION = 1;
+    private static final int FILTER_ENTRY_HEADER_SIZE = 16;
+    private static final int NO_FILTER = -1;
+
+    // Marks used while painting two histories
+    private static final byte FROM_FIRST = 1;
+    private static final byte FROM_SECOND = 2;
+
+    private final Path graphPath;
+    private final Path filtersPath;
+    private boolean loaded;
+    private int count;
+    private long[] idHigh;
+    private long[] idLow;
+    private int[] parents;
+    private int[] mergeParents;
+    private long[] times;
+    private int[] generations;
+    // Record index + 1 per slot, 0 for an empty slot
+    private int[] table;
+    // Filters of all records packed into one array; a record without a filter has length NO_FILTER
+    private byte[] filterData;
+    private int filterDataSize;
+    private int[] filterOffsets;
+    private int[] filterLengths;
+
+    public CommitGraph(Path graphPath) {
+        this.graphPath = graphPath;
+        this.filtersPath = graphPath.resolveSibling(graphPath.getFileName() + "-filters");
+    }
+
+    /**
+     * Check whether the graph file exists and has the current format
+     * @return true when the graph can be used without a rebuild
+     */
+    public synchronized boolean isValid() throws IOException {
+        return load();
+    }
+
+    /**
+     * Count the commits in the graph
+     * @return int number of commits, 0 if the graph must be rebuilt
+     */
+    public synchronized int size() throws IOException {
+        return load() ? count : 0;
+    }
+
+    /**
+     * Walk first-parent history starting at a commit
+     * @param headCommitId Commit to start from
+     * @return List of commit IDs, newest first; empty if the commit is not in the graph
+     */
+    public synchronized List<String> walk(String headCommitId) throws IOException {
+        List<String> history = new ArrayList<>();
+        if (headCommitId == null || !load()) {
+            return history;
+        }
+
+        int position = indexOf(headCommitId);
+        while (position != NO_PARENT) {
+            history.add(idAt(position));
+            position = parents[position];
+        }
+        return history;
+    }
+
+    /**
+     * Receives commits during a lazy history walk
+     */
+    @FunctionalInterface
+    public interface HistoryVisitor {
+        /**
+         * @param commitId ID of the commit
+         * @param epochMillis Commit timestamp
+         * @return true to keep walking, false to stop
+         */
+        boolean visit(String commitId, long epochMillis) throws IOException;
+    }
+
+    /**
+     * Walk first-parent history lazily, without collecting the IDs of the whole branch.
+     * Records never change once added, so the walk keeps reading the arrays it started
+     * with and appends are not blocked while the visitor reads commits.
+     * @param startCommitId Commit to start from
+     * @param skipStart Whether the start commit itself is skipped, as when resuming after a cursor
+     * @param visitor Visitor receiving each commit, newest first
+     * @return false if the start commit is not in the graph
+     */
+    public boolean walk(String startCommitId, boolean skipStart, HistoryVisitor visitor) throws IOException {
+        return walk(startCommitId, skipStart, null, visitor);
+    }
+
+    /**
+     * Walk first-parent history lazily, skipping commits whose changed-path filter rules out a path.
+     * Commits passing the filter may still not have changed the path, so callers check their changes.
+     * @param startCommitId Commit to start from
+     * @param skipStart Whether the start commit itself is skipped, as when resuming after a cursor
+     * @param path File or directory relative to the repository root, or null to visit every commit
+     * @param visitor Visitor receiving each candidate commit, newest first
+     * @return false if the start commit is not in the graph
+     */
+    public boolean walk(String startCommitId, boolean skipStart, String path, HistoryVisitor visitor) throws IOException {
+        String filterPath = path != null ? ChangedPathFilter.normalize(path) : "";
+        long[] high;
+        long[] low;
+        int[] firstParents;
+        long[] timestamps;
+        byte[] filters;
+        int[] offsets;
+        int[] lengths;
+        int position;
+        synchronized (this) {
+            if (startCommitId == null || !load()) {
+                return startCommitId == null;
+            }
+            position = indexOf(startCommitId);
+            if (position == NO_PARENT) {
+                return false;
+            }
+            high = idHigh;
+            low = idLow;
+            firstParents = parents;
+            timestamps = times;
+            filters = filterData;
+            offsets = filterOffsets;
+            lengths = filterLengths;
+        }
+
+        if (skipStart) {
+            position = firstParents[position];
+        }
+        while (position != NO_PARENT) {
+            boolean candidate = filterPath.isEmpty() || lengths[position] == NO_FILTER
+                    || ChangedPathFilter.mightContain(filters, offsets[position], lengths[position], filterPath);
+            if (candidate && !visitor.visit(new UUID(high[position], low[position]).toString(), timestamps[position])) {
+                break;
+            }
+            position = firstParents[position];
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(String commitId) throws IOException {
+        return load() && indexOf(commitId) != NO_PARENT;
+    }
+
+    /**
+     * Get the generation number of a commit
+     * @param commitId ID of the commit
+     * @return int 1 for a root commit, otherwise one more than its highest parent
+     */
+    public synchronized int generationOf(String commitId) throws IOException {
+        return generations[require(commitId)];
+    }
+
+    /**
+     * Find the best common ancestor of two commits. Both histories are painted from the highest
+     * record down; since children always follow their parents, the marks of a record are final
+     * when it is reached, and the first record reached from both sides is a common ancestor that
+     * no other common ancestor descends from. Only commits above the merge base are visited.
+     * @param firstCommitId First commit
+     * @param secondCommitId Second commit
+     * @return String ID of the merge base, or null if the histories are unrelated
+     */
+    public synchronized String mergeBase(String firstCommitId, String secondCommitId) throws IOException {
+        int first = require(firstCommitId);
+        int second = require(secondCommitId);
+
+        byte[] marks = new byte[Math.max(first, second) + 1];
+        marks[first] |= FROM_FIRST;
+        marks[second] |= FROM_SECOND;
+        IntHeap queue = new IntHeap();
+        queue.push(first);
+        if (second != first) {
+            queue.push(second);
+        }
+        while (!queue.isEmpty()) {
+            int position = queue.pop();
+            byte flags = marks[position];
+            if (flags == (FROM_FIRST | FROM_SECOND)) {
+                return idAt(position);
+            }
+            for (int parent : new int[]{parents[position], mergeParents[position]}) {
+                if (parent != NO_PARENT) {
+                    if (marks[parent] == 0) {
+                        queue.push(parent);
+                    }
+                    marks[parent] |= flags;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collect the commits reachable from some tips but not from any known commit,
+     * as needed to bring another repository up to date. Both sides are painted from the
+     * highest record down, and the walk stops once every commit still queued is reachable
+     * from a known commit, so its cost follows the size of the difference.
+     * @param tips Commits to start from; each must be in the graph
+     * @param known Commits whose whole history is already present; IDs not in the graph are ignored
+     * @return List of commit IDs, parents before children
+     */
+    public synchronized List<String> missingCommits(Collection<String> tips, Collection<String> known) throws IOException {
+        if (!load()) {
+            throw new IllegalStateException("Commit graph must be rebuilt before use");
+        }
+        byte[] marks = new byte[count];
+        IntHeap queue = new IntHeap();
+        // Queued commits reached from a tip but not (yet) from a known commit
+        int unresolved = 0;
+        for (String commitId : tips) {
+            int position = findIndex(commitId);
+            if (position == NO_PARENT) {
+                throw new IllegalArgumentException("Unknown commit: " + commitId);
+            }
+            if (marks[position] == 0) {
+                marks[position] = FROM_FIRST;
+                queue.push(position);
+                unresolved++;
+            }
+        }
+        for (String commitId : known) {
+            int position = commitId != null ? findIndex(commitId) : NO_PARENT;
+            if (position == NO_PARENT || marks[position] == FROM_SECOND) {
+                continue;
+            }
+            if (marks[position] == 0) {
+                queue.push(position);
+            } else {
+                unresolved--;
+            }
+            marks[position] = FROM_SECOND;
+        }
+
+        BitSet missing = new BitSet();
+        while (unresolved > 0) {
+            int position = queue.pop();
+            boolean present = marks[position] == FROM_SECOND;
+            if (!present) {
+                missing.set(position);
+                unresolved--;
+            }
+            for (int parent : new int[]{parents[position], mergeParents[position]}) {
+                if (parent == NO_PARENT || marks[parent] == FROM_SECOND) {
+                    continue;
+                }
+                if (marks[parent] == 0) {
+                    queue.push(parent);
+                    if (!present) {
+                        unresolved++;
+                    }
+                } else if (present) {
+                    unresolved--;
+                }
+                marks[parent] = present ? FROM_SECOND : FROM_FIRST;
+            }
+        }
+
+        // Record order is topological, so ascending positions put parents first
+        List<String> commitIds = new ArrayList<>(missing.cardinality());
+        for (int position = missing.nextSetBit(0); position >= 0; position = missing.nextSetBit(position + 1)) {
+            commitIds.add(idAt(position));
+        }
+        return commitIds;
+    }
+
+    /**
+     * Check whether one commit is reachable from another. The walk only follows commits that
+     * can still lead to the ancestor: one recorded before it, or whose generation number is
+     * not above it, cannot have it in its history.
+     * @param ancestorId Possible ancestor
+     * @param descendantId Possible descendant
+     * @return true if ancestorId is descendantId or one of its ancestors
+     */
+    public synchronized boolean isAncestor(String ancestorId, String descendantId) throws IOException {
+        int ancestor = require(ancestorId);
+        int descendant = require(descendantId);
+        if (ancestor == descendant) {
+            return true;
+        }
+        int generation = generations[ancestor];
+        if (descendant < ancestor || generations[descendant] <= generation) {
+            return false;
+        }
+
+        // Depth-first, merge parents pushed below first parents, so the first-parent chain is tried first
+        BitSet visited = new BitSet();
+        int[] pending = new int[MIN_CAPACITY];
+        int size = 0;
+        pending[size++] = descendant;
+        while (size > 0) {
+            int position = pending[--size];
+            if (size + 2 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            for (int parent : new int[]{mergeParents[position], parents[position]}) {
+                if (parent == ancestor) {
+                    return true;
+                }
+                if (parent > ancestor && generations[parent] > generation && !visited.get(parent)) {
+                    visited.set(parent);
+                    pending[size++] = parent;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Like indexOf, but also accepts strings that are not commit IDs
+     */
+    private int findIndex(String commitId) {
+        try {
+            return indexOf(commitId);
+        } catch (IllegalArgumentException e) {
+            return NO_PARENT;
+        }
+    }
+
+    /**
+     * Find the record of a commit that must be in the graph
+     */
+    private int require(String commitId) throws IOException {
+        if (!load()) {
+            throw new IllegalStateException("Commit graph must be rebuilt before use");
+        }
+        int position = indexOf(commitId);
+        if (position == NO_PARENT) {
+            throw new IllegalArgumentException("Commit is not in the graph");
+        }
+        return position;
+    }
+
+    /**
+     * Append a commit whose parents are already in the graph
+     * @param commit The new commit
+     */
+    public synchronized void append(Commit commit) throws IOException {
+        if (!load()) {
+            throw new IllegalStateException("Commit graph must be rebuilt before appending");
+        }
+        ByteBuffer record;
+        try (FileChannel channel = FileChannel.open(graphPath, StandardOpenOption.WRITE)) {
+            // Another handle or process may have appended since the graph was loaded; callers
+            // hold the repository's history lock, so the file cannot grow while this runs
+            if (channel.size() != offsetOf(count)) {
+                loaded = false;
+                if (!load()) {
+                    throw new IllegalStateException("Commit graph must be rebuilt before appending");
+                }
+            }
+            int parent = commit.getParentCommitID() != null ? indexOf(commit.getParentCommitID()) : NO_PARENT;
+            int mergeParent = commit.getMergeParentCommitID() != null ? indexOf(commit.getMergeParentCommitID()) : NO_PARENT;
+            record = encode(commit, parent, mergeParent, generationAfter(parent, mergeParent, generations));
+            // Overwrite any torn record left behind by an interrupted append
+            channel.position(offsetOf(count));
+            channel.write(record);
+        }
+        byte[] filter = ChangedPathFilter.build(changedPaths(commit));
+        // Written after the record: if this is lost, the commit merely has no filter
+        if (!Files.exists(filtersPath)) {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(filtersPath))) {
+                out.writeInt(FILTERS_MAGIC);
+                out.writeInt(FILTERS_VERSION);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(filtersPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(encodeFilter(record.getLong(0), count, filter));
+        }
+        add(record);
+        setFilter(count - 1, filter, 0, filter != null ? filter.length : NO_FILTER);
+    }
+
+    /**
+     * Pick up commits other handles or processes appended since the graph was loaded
+     */
+    public synchronized void refresh() throws IOException {
+        if (loaded && (!Files.exists(graphPath) || Files.size(graphPath) != offsetOf(count))) {
+            loaded = false;
+        }
+    }
+
+    /**
+     * Replace the graph with one built from the given commits
+     * @param commits Every commit of the repository, in any order
+     */
+    public synchronized void rebuild(Collection<Commit> commits) throws IOException {
+        Map<String, Commit> byId = new HashMap<>();
+        commits.forEach(commit -> byId.put(commit.getId(), commit));
+
+        // Order commits so every parent precedes its children, with an explicit stack
+        // since histories are far deeper than the call stack
+        Map<String, Integer> positions = new HashMap<>();
+        List<Commit> ordered = new ArrayList<>();
+        Set<String> visiting = new HashSet<>();
+        for (Commit commit : commits) {
+            Deque<Commit> stack = new ArrayDeque<>();
+            stack.push(commit);
+            while (!stack.isEmpty()) {
+                Commit current = stack.peek();
+                if (positions.containsKey(current.getId())) {
+                    stack.pop();
+                    continue;
+                }
+                boolean parentsPlaced = true;
+                if (visiting.add(current.getId())) {
+                    for (String parentId : new String[]{current.getParentCommitID(), current.getMergeParentCommitID()}) {
+                        Commit parent = parentId != null ? byId.get(parentId) : null;
+                        if (parent != null && !positions.containsKey(parentId)) {
+                            stack.push(parent);
+                            parentsPlaced = false;
+                        }
+                    }
+                }
+                if (parentsPlaced) {
+                    stack.pop();
+                    positions.put(current.getId(), ordered.size());
+                    ordered.add(current);
+                }
+            }
+        }
+
+        int[] orderedGenerations = new int[ordered.size()];
+        Path tempPath = Files.createTempFile(graphPath.getParent(), "commit-graph", ".tmp");
+        Path tempFiltersPath = Files.createTempFile(graphPath.getParent(), "commit-graph-filters", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)));
+             DataOutputStream filtersOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFiltersPath)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            filtersOut.writeInt(FILTERS_MAGIC);
+            filtersOut.writeInt(FILTERS_VERSION);
+            for (int position = 0; position < ordered.size(); position++) {
+                Commit commit = ordered.get(position);
+                int parent = positionOf(positions, commit.getParentCommitID());
+                int mergeParent = positionOf(positions, commit.getMergeParentCommitID());
+                orderedGenerations[position] = generationAfter(parent, mergeParent, orderedGenerations);
+                ByteBuffer record = encode(commit, parent, mergeParent, orderedGenerations[position]);
+                out.write(record.array());
+                filtersOut.write(encodeFilter(record.getLong(0), position, ChangedPathFilter.build(changedPaths(commit))).array());
+            }
+        }
+        Files.move(tempFiltersPath, filtersPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tempPath, graphPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        loaded = false;
+    }
+
+    /**
+     * Load the graph file into the arrays, unless it already is
+     * @return false if there is no graph file or it has another format
+     */
+    private boolean load() throws IOException {
+        if (loaded) {
+            return true;
+        }
+        if (!Files.exists(graphPath)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(graphPath, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                return false;
+            }
+            // A trailing partial record is ignored
+            int records = (mapped.capacity() - HEADER_SIZE) / RECORD_SIZE;
+            allocate(records);
+            for (int position = 0; position < records; position++) {
+                add(mapped.slice(offsetOf(position), RECORD_SIZE));
+            }
+        }
+        loadFilters();
+        loaded = true;
+        return true;
+    }
+
+    /**
+     * Load the changed-path filters of the loaded records. Records without a valid entry,
+     * for instance after an interrupted append, simply have no filter.
+     */
+    private void loadFilters() throws IOException {
+        if (!Files.exists(filtersPath)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(filtersPath, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != FILTERS_MAGIC || mapped.getInt(4) != FILTERS_VERSION) {
+                return;
+            }
+            filterData = new byte[Math.max(MIN_CAPACITY, mapped.capacity())];
+            int offset = HEADER_SIZE;
+            while (offset + FILTER_ENTRY_HEADER_SIZE <= mapped.capacity()) {
+                long high = mapped.getLong(offset);
+                int position = mapped.getInt(offset + 8);
+                int length = mapped.getInt(offset + 12);
+                int size = Math.max(0, length);
+                if (length < NO_FILTER || offset + FILTER_ENTRY_HEADER_SIZE + size > mapped.capacity()) {
+                    break;
+                }
+                if (position >= 0 && position < count && idHigh[position] == high) {
+                    byte[] filter = new byte[size];
+                    mapped.get(offset + FILTER_ENTRY_HEADER_SIZE, filter);
+                    setFilter(position, filter, 0, length);
+                }
+                offset += FILTER_ENTRY_HEADER_SIZE + size;
+            }
+        }
+    }
+
+    private void setFilter(int position, byte[] filter, int offset, int length) {
+        if (length > 0) {
+            if (filterDataSize + length > filterData.length) {
+                filterData = Arrays.copyOf(filterData, Math.max(filterData.length * 2, filterDataSize + length));
+            }
+            System.arraycopy(filter, offset, filterData, filterDataSize, length);
+            filterOffsets[position] = filterDataSize;
+            filterDataSize += length;
+        }
+        filterLengths[position] = length;
+    }
+
+    private void allocate(int capacity) {
+        capacity = Math.max(MIN_CAPACITY, capacity);
+        count = 0;
+        idHigh = new long[capacity];
+        idLow = new long[capacity];
+        parents = new int[capacity];
+        mergeParents = new int[capacity];
+        times = new long[capacity];
+        generations = new int[capacity];
+        table = new int[tableSizeFor(capacity)];
+        filterData = new byte[MIN_CAPACITY];
+        filterDataSize = 0;
+        filterOffsets = new int[capacity];
+        filterLengths = new int[capacity];
+    }
+
+    /**
+     * Add an encoded record to the arrays. Full arrays are copied into larger ones
+     * rather than resized in place, so lazy walks can keep reading the old ones.
+     */
+    private void add(ByteBuffer record) {
+        if (count == idHigh.length) {
+            int capacity = idHigh.length * 2;
+            idHigh = Arrays.copyOf(idHigh, capacity);
+            idLow = Arrays.copyOf(idLow, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            mergeParents = Arrays.copyOf(mergeParents, capacity);
+            times = Arrays.copyOf(times, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            filterOffsets = Arrays.copyOf(filterOffsets, capacity);
+            filterLengths = Arrays.copyOf(filterLengths, capacity);
+            int[] rehashed = new int[tableSizeFor(capacity)];
+            for (int position = 0; position < count; position++) {
+                insert(rehashed, position);
+            }
+            table = rehashed;
+        }
+        idHigh[count] = record.getLong(0);
+        idLow[count] = record.getLong(8);
+        parents[count] = record.getInt(PARENT_OFFSET);
+        mergeParents[count] = record.getInt(MERGE_PARENT_OFFSET);
+        times[count] = record.getLong(TIME_OFFSET);
+        generations[count] = record.getInt(GENERATION_OFFSET);
+        filterLengths[count] = NO_FILTER;
+        insert(table, count);
+        count++;
+    }
+
+    private void insert(int[] slots, int position) {
+        int mask = slots.length - 1;
+        int slot = hash(idHigh[position], idLow[position]) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = position + 1;
+    }
+
+    private int indexOf(String commitId) {
+        UUID id = UUID.fromString(commitId);
+        long high = id.getMostSignificantBits();
+        long low = id.getLeastSignificantBits();
+        int mask = table.length - 1;
+        for (int slot = hash(high, low) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int position = table[slot] - 1;
+            if (idHigh[position] == high && idLow[position] == low) {
+                return position;
+            }
+        }
+        return NO_PARENT;
+    }
+
+    private String idAt(int position) {
+        return new UUID(idHigh[position], idLow[position]).toString();
+    }
+
+    private static int generationAfter(int parent, int mergeParent, int[] generations) {
+        return 1 + Math.max(parent != NO_PARENT ? generations[parent] : 0,
+                mergeParent != NO_PARENT ? generations[mergeParent] : 0);
+    }
+
+    private static int hash(long high, long low) {
+        long hash = (high ^ low) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static int tableSizeFor(int capacity) {
+        // Keep the table at most half full so probe sequences stay short
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private static int offsetOf(int position) {
+        return HEADER_SIZE + position * RECORD_SIZE;
+    }
+
+    private static int positionOf(Map<String, Integer> positions, String commitId) {
+        Integer position = commitId != null ? positions.get(commitId) : null;
+        return position != null ? position : NO_PARENT;
+    }
+
+    private static List<String> changedPaths(Commit commit) {
+        List<String> paths = new ArrayList<>();
+        if (commit.getChanges() != null) {
+            commit.getChanges().forEach(change -> paths.add(change.getFilePath().toString()));
+        }
+        return paths;
+    }
+
+    private static ByteBuffer encodeFilter(long idHigh, int position, byte[] filter) {
+        ByteBuffer entry = ByteBuffer.allocate(FILTER_ENTRY_HEADER_SIZE + (filter != null ? filter.length : 0));
+        entry.putLong(idHigh);
+        entry.putInt(position);
+        entry.putInt(filter != null ? filter.length : NO_FILTER);
+        if (filter != null) {
+            entry.put(filter);
+        }
+        entry.flip();
+        return entry;
+    }
+
+    private static ByteBuffer encode(Commit commit, int parent, int mergeParent, int generation) {
+        UUID id = UUID.fromString(commit.getId());
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(id.getMostSignificantBits());
+        record.putLong(id.getLeastSignificantBits());
+        record.putInt(parent);
+        record.putInt(mergeParent);
+        record.putLong(commit.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        record.putInt(generation);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Max-heap of record indexes, so walks reach children before their parents
+     * without boxing every commit they pass
+     */
+    private static final class IntHeap {
+        private int[] heap = new int[MIN_CAPACITY];
+        private int size;
+
+        void push(int value) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (heap[parent] >= value) {
+                    break;
+                }
+                heap[index] = heap[parent];
+                index = parent;
+            }
+            heap[index] = value;
+        }
+
+        int pop() {
+            int top = heap[0];
+            int last = heap[--size];
+            int index = 0;
+            while (2 * index + 1 < size) {
+                int child = 2 * index + 1;
+                if (child + 1 < size && heap[child + 1] > heap[child]) {
+                    child++;
+                }
+                if (heap[child] <= last) {
+                    break;
+                }
+                heap[index] = heap[child];
+                index = child;
+            }
+            heap[index] = last;
+            return top;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
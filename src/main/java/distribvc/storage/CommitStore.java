@@ -0,0 +1,148 @@
+package distribvc.storage;
+
+import distribvc.model.Commit;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commit metadata, kept as loose files until a repack moves them into a pack.
+ * New commits are written with one codec, but commits in any known format can be read,
+ * so switching formats does not require rewriting existing history.
+ */
+public class CommitStore {
+    private final Path commitsPath;
+    private final PackStore packStore;
+    private final CommitCodec writeCodec;
+    private final List<CommitCodec> codecs;
+    private final CommitCache cache;
+
+    /**
+     * @param commitsPath Directory of loose commit files
+     * @param packStore Packs holding repacked commits
+     * @param writeCodec Codec used for new commits
+     * @param readCodecs Every codec whose commits can be read
+     * @param cache Cache of parsed commits shared between stores
+     */
+    public CommitStore(Path commitsPath, PackStore packStore, CommitCodec writeCodec, List<CommitCodec> readCodecs,
+                       CommitCache cache) {
+        this.commitsPath = commitsPath;
+        this.packStore = packStore;
+        this.writeCodec = writeCodec;
+        this.codecs = readCodecs;
+        this.cache = cache;
+    }
+
+    public void write(Commit commit) throws IOException {
+        Path path = commitsPath.resolve(commit.getId() + writeCodec.getFileExtension());
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+            writeCodec.encode(commit, out);
+        }
+        cache.put(commit);
+    }
+
+    /**
+     * Read a commit from the cache, its loose file or a pack
+     * @param commitId ID of the commit
+     * @return Commit the parsed commit, or null if it does not exist
+     */
+    public Commit read(String commitId) throws IOException {
+        Commit commit = cache.get(commitId);
+        if (commit != null) {
+            return commit;
+        }
+
+        byte[] data = readRaw(commitId);
+        if (data == null) {
+            return null;
+        }
+        commit = decode(data);
+        cache.put(commit);
+        return commit;
+    }
+
+    /**
+     * Decode a serialized commit in whichever format it was written
+     * @param data Serialized commit
+     * @return Commit the parsed commit
+     */
+    public Commit decode(byte[] data) throws IOException {
+        for (CommitCodec codec : codecs) {
+            if (codec.canDecode(data)) {
+                return codec.decode(data);
+            }
+        }
+        throw new IOException("Unknown commit format");
+    }
+
+    /**
+     * Read the stored bytes of a commit without parsing them
+     * @param commitId ID of the commit
+     * @return byte[] serialized commit, or null if it does not exist
+     */
+    public byte[] readRaw(String commitId) throws IOException {
+        Path loosePath = loosePath(commitId);
+        if (loosePath != null) {
+            try {
+                return Files.readAllBytes(loosePath);
+            } catch (NoSuchFileException e) {
+                // Moved into a pack by a concurrent repack
+            }
+        }
+        return packStore.read(commitId);
+    }
+
+    public List<String> listLooseIds() throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(commitsPath)) {
+            for (Path file : stream) {
+                String fileName = file.getFileName().toString();
+                for (CommitCodec codec : codecs) {
+                    if (fileName.endsWith(codec.getFileExtension())) {
+                        ids.add(fileName.substring(0, fileName.length() - codec.getFileExtension().length()));
+                        break;
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * List every commit, loose or packed
+     * @return List of commit IDs
+     */
+    public List<String> listAllIds() throws IOException {
+        List<String> ids = listLooseIds();
+        for (PackFile pack : packStore.getPacks()) {
+            for (String key : pack.getKeys()) {
+                if (pack.getType(key) == PackFile.TYPE_COMMIT) {
+                    ids.add(key);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Find the loose file of a commit
+     * @param commitId ID of the commit
+     * @return Path of the loose file, or null if the commit is not loose
+     */
+    public Path loosePath(String commitId) {
+        for (CommitCodec codec : codecs) {
+            Path path = commitsPath.resolve(commitId + codec.getFileExtension());
+            if (Files.exists(path)) {
+                return path;
+            }
+        }
+        return null;
+    }
+}
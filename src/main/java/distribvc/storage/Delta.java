@@ -0,0 +1,154 @@
+package distribvc.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copy/insert delta encoding between two versions of the same content.
+ * A delta is a sequence of instructions that rebuild the target from the base:
+ * COPY (offset, length) takes bytes from the base, INSERT (length, bytes) adds literal bytes.
+ */
+public final class Delta {
+    private static final int BLOCK_SIZE = 16;
+    private static final int OP_COPY = 1;
+    private static final int OP_INSERT = 2;
+
+    private Delta() {
+    }
+
+    /**
+     * Encode target as a delta against base
+     * @param base Earlier version of the content
+     * @param target Version to encode
+     * @return byte[] encoded delta
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarInt(out, base.length);
+        writeVarInt(out, target.length);
+
+        // Index every block-aligned chunk of the base by its hash
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+            blocks.putIfAbsent(blockHash(base, offset), offset);
+        }
+
+        int insertStart = 0;
+        int position = 0;
+        while (position + BLOCK_SIZE <= target.length) {
+            Integer baseOffset = blocks.get(blockHash(target, position));
+            if (baseOffset == null || !regionEquals(base, baseOffset, target, position, BLOCK_SIZE)) {
+                position++;
+                continue;
+            }
+
+            // Extend the match backwards into pending literal bytes and forwards as far as possible
+            int start = baseOffset;
+            int targetStart = position;
+            while (start > 0 && targetStart > insertStart && base[start - 1] == target[targetStart - 1]) {
+                start--;
+                targetStart--;
+            }
+            int end = baseOffset + BLOCK_SIZE;
+            int targetEnd = position + BLOCK_SIZE;
+            while (end < base.length && targetEnd < target.length && base[end] == target[targetEnd]) {
+                end++;
+                targetEnd++;
+            }
+
+            writeInsert(out, target, insertStart, targetStart);
+            out.write(OP_COPY);
+            writeVarInt(out, start);
+            writeVarInt(out, end - start);
+
+            position = targetEnd;
+            insertStart = targetEnd;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuild the target content from a base and a delta
+     * @param base Content the delta was created against
+     * @param delta Encoded delta
+     * @return byte[] reconstructed target
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        int[] position = {0};
+        int baseLength = readVarInt(delta, position);
+        if (baseLength != base.length) {
+            throw new IllegalArgumentException("Delta base length mismatch: expected " + baseLength + " but was " + base.length);
+        }
+        byte[] target = new byte[readVarInt(delta, position)];
+
+        int written = 0;
+        while (position[0] < delta.length) {
+            int op = delta[position[0]++];
+            if (op == OP_COPY) {
+                int offset = readVarInt(delta, position);
+                int length = readVarInt(delta, position);
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else if (op == OP_INSERT) {
+                int length = readVarInt(delta, position);
+                System.arraycopy(delta, position[0], target, written, length);
+                position[0] += length;
+                written += length;
+            } else {
+                throw new IllegalArgumentException("Unknown delta instruction: " + op);
+            }
+        }
+
+        if (written != target.length) {
+            throw new IllegalArgumentException("Delta produced " + written + " bytes, expected " + target.length);
+        }
+        return target;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (to > from) {
+            out.write(OP_INSERT);
+            writeVarInt(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static int blockHash(byte[] data, int offset) {
+        int hash = 1;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = 31 * hash + data[i];
+        }
+        return hash;
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
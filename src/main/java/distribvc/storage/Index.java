@@ -0,0 +1,269 @@
+package distribvc.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary index of tracked files, similar to git's index. Each entry caches the stat data
+ * (size, modification time, file key) seen when the file was last hashed, so unchanged
+ * files can be recognised without reading them.
+ *
+ * Layout: magic "DVCX", version, entry count, then per entry
+ * sorted by path: path, size, mtime nanos, file key, 32-byte SHA-256, flags.
+ */
+public class Index {
+    private static final int MAGIC = 0x44564358;
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+
+    public static final int FLAG_STAGED = 1;
+    public static final int FLAG_COMMITTED = 2;
+    public static final int FLAG_DELETED = 4;
+
+    private final Path indexPath;
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private long writtenAtNanos;
+    private boolean dirty;
+
+    private Index(Path indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * Load the index, or start an empty one if none has been written yet
+     * @param indexPath Path of the index file
+     * @return Index the loaded index
+     */
+    public static Index load(Path indexPath) throws IOException {
+        Index index = new Index(indexPath);
+        if (!Files.exists(indexPath)) {
+            return index;
+        }
+
+        index.writtenAtNanos = Files.getLastModifiedTime(indexPath).to(TimeUnit.NANOSECONDS);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an index file: " + indexPath);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index version " + version + ": " + indexPath);
+            }
+            int count = in.readInt();
+            byte[] hash = new byte[HASH_LENGTH];
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modifiedNanos = in.readLong();
+                long fileKey = in.readLong();
+                in.readFully(hash);
+                int flags = in.readByte();
+                index.entries.put(path, new Entry(path, size, modifiedNanos, fileKey, HexFormat.of().formatHex(hash), flags));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Write the index if it changed, replacing the old file atomically
+     */
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        Path tempPath = Files.createTempFile(indexPath.getParent(), "index", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modifiedNanos);
+                out.writeLong(entry.fileKey);
+                out.write(HexFormat.of().parseHex(entry.hash));
+                out.writeByte(entry.flags);
+            }
+        }
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writtenAtNanos = Files.getLastModifiedTime(indexPath).to(TimeUnit.NANOSECONDS);
+        dirty = false;
+    }
+
+    public Entry get(Path relativePath) {
+        return entries.get(key(relativePath));
+    }
+
+    public Collection<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public List<Entry> getStagedEntries() {
+        List<Entry> staged = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.isStaged()) {
+                staged.add(entry);
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Record the stat data and content hash of a file
+     * @param relativePath Path relative to the repository root
+     * @param attrs Attributes read when the file was hashed
+     * @param hash SHA-256 of the file content
+     * @param flags Entry flags
+     * @return Entry the new entry
+     */
+    public Entry put(Path relativePath, BasicFileAttributes attrs, String hash, int flags) {
+        String path = key(relativePath);
+        Entry entry = new Entry(path, attrs.size(), modifiedNanos(attrs), fileKey(attrs), hash, flags);
+        entries.put(path, entry);
+        dirty = true;
+        return entry;
+    }
+
+    public void setFlags(Path relativePath, int flags) {
+        Entry entry = entries.get(key(relativePath));
+        if (entry != null && entry.flags != flags) {
+            entries.put(entry.path, new Entry(entry.path, entry.size, entry.modifiedNanos, entry.fileKey, entry.hash, flags));
+            dirty = true;
+        }
+    }
+
+    public void remove(Path relativePath) {
+        if (entries.remove(key(relativePath)) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Put back the entry a file had before an update, unless the entry changed again since
+     * @param relativePath Path relative to the repository root
+     * @param written Entry the update left, or null if it removed the file
+     * @param previous Entry to put back, or null to remove the file
+     */
+    public void restore(Path relativePath, Entry written, Entry previous) {
+        String path = key(relativePath);
+        if (!Objects.equals(entries.get(path), written)) {
+            return;
+        }
+        if (previous != null) {
+            entries.put(path, previous);
+        } else {
+            entries.remove(path);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Check whether a file still has the stat data recorded in its entry.
+     * Files whose modification time is not older than the index file itself are never trusted,
+     * since a later write within the same timestamp tick would go unnoticed.
+     * @param entry Index entry of the file
+     * @param attrs Current attributes of the file
+     * @return true if the file is known to be unchanged without reading it
+     */
+    public boolean isUpToDate(Entry entry, BasicFileAttributes attrs) {
+        long modified = modifiedNanos(attrs);
+        return entry.size == attrs.size()
+                && entry.modifiedNanos == modified
+                && entry.fileKey == fileKey(attrs)
+                && modified < writtenAtNanos;
+    }
+
+    private static String key(Path relativePath) {
+        return relativePath.toString().replace('\\', '/');
+    }
+
+    private static long modifiedNanos(BasicFileAttributes attrs) {
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    private static long fileKey(BasicFileAttributes attrs) {
+        // On Unix the file key wraps device and inode
+        Object fileKey = attrs.fileKey();
+        return fileKey != null ? fileKey.hashCode() : 0;
+    }
+
+    /**
+     * A tracked file
+     */
+    public static class Entry {
+        private final String path;
+        private final long size;
+        private final long modifiedNanos;
+        private final long fileKey;
+        private final String hash;
+        private final int flags;
+
+        private Entry(String path, long size, long modifiedNanos, long fileKey, String hash, int flags) {
+            this.path = path;
+            this.size = size;
+            this.modifiedNanos = modifiedNanos;
+            this.fileKey = fileKey;
+            this.hash = hash;
+            this.flags = flags;
+        }
+
+        public Path getPath() {
+            return Paths.get(path);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public boolean isStaged() {
+            return (flags & FLAG_STAGED) != 0;
+        }
+
+        public boolean isCommitted() {
+            return (flags & FLAG_COMMITTED) != 0;
+        }
+
+        public boolean isDeleted() {
+            return (flags & FLAG_DELETED) != 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry other)) {
+                return false;
+            }
+            return path.equals(other.path) && size == other.size && modifiedNanos == other.modifiedNanos
+                    && fileKey == other.fileKey && Objects.equals(hash, other.hash) && flags == other.flags;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, size, modifiedNanos, fileKey, hash, flags);
+        }
+    }
+}
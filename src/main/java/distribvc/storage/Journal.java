@@ -0,0 +1,624 @@
+package distribvc.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the files and refs a commit writes. A commit appends one record holding
+ * its new files and the ref it moves, and the ref is only moved once the record is on disk, so a
+ * crash never leaves a ref pointing at a commit that was lost. Files are written without syncing
+ * them; only the journal is synced.
+ *
+ * Syncs are shared: the first writer waiting for its record syncs every record appended so far
+ * and moves their refs in order, while the writers that arrive meanwhile wait for it and are
+ * covered by the next sync. When the last sync covered several records, the syncing writer first
+ * waits a short window for more to arrive. Until its record is synced, the new head of a ref is
+ * returned by pendingRef, so the next commit can already build on it. A failed sync fails the
+ * records it was to cover and cuts them from the journal, and the next writer syncs again.
+ *
+ * When a repository is opened by the first handle of a process, records left behind are replayed:
+ * files that are missing or differ from their record are written and refs still at their expected
+ * value are moved. Once the journal grows large and nothing is waiting, the files of its records
+ * are synced and it is emptied.
+ * Writers hold a shared lock on the lock file, and replaying or emptying the journal takes it
+ * exclusively, so neither ever runs while another process has records in flight.
+ *
+ * Layout: records of (payload length, CRC32 of the payload, payload). A payload holds the file
+ * count, then per file (path relative to the repository directory, content length, content),
+ * then the ref count, then per ref (path, expected content, new content). A torn or corrupt
+ * record ends the journal.
+ */
+public class Journal {
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+    private static final Map<Path, Journal> OPEN = new HashMap<>();
+
+    private final Path repoPath;
+    private final Path journalPath;
+    private final Path lockPath;
+
+    // Guarded by this
+    private long appendedSequence;
+    private final Deque<Entry> unpublished = new ArrayDeque<>();
+    private int inFlight;
+    private final Map<String, Entry> pendingRefs = new HashMap<>();
+    private boolean syncing;
+    private int lastBatchSize;
+    private IOException failure;
+    private FileChannel channel;
+    // Replaced by tests to simulate a failing disk
+    Syncer syncer = journalChannel -> journalChannel.force(false);
+    private FileChannel lockChannel;
+
+    // Guarded by OPEN: repository handles sharing this journal
+    private int users;
+
+    private Journal(Path repoPath, Path journalPath, Path lockPath) {
+        this.repoPath = repoPath;
+        this.journalPath = journalPath;
+        this.lockPath = lockPath;
+    }
+
+    /**
+     * Get the journal of a repository, shared by every handle in this process.
+     * The first call replays records left behind by a crash. Every call must be matched by a release.
+     * @param repoPath Repository directory, which journaled paths are relative to
+     * @param journalPath Journal file
+     * @param lockPath Lock file guarding replays and checkpoints
+     * @return Journal of the repository
+     */
+    public static Journal open(Path repoPath, Path journalPath, Path lockPath) throws IOException {
+        Path key = journalPath.toAbsolutePath().normalize();
+        synchronized (OPEN) {
+            Journal journal = OPEN.get(key);
+            if (journal == null) {
+                journal = new Journal(repoPath.toAbsolutePath().normalize(), key, lockPath.toAbsolutePath().normalize());
+                synchronized (journal) {
+                    journal.checkpoint(0);
+                }
+                OPEN.put(key, journal);
+            }
+            journal.users++;
+            return journal;
+        }
+    }
+
+    /**
+     * Give up a journal obtained from open. Once no handle uses it and no record is waiting,
+     * it is forgotten, and the next open starts from the file again.
+     * @param journal Journal returned by open
+     */
+    public static void release(Journal journal) {
+        synchronized (OPEN) {
+            journal.users--;
+            forgetIfUnused(journal);
+        }
+    }
+
+    /**
+     * Remove a journal from the open journals once nothing uses it. Callers hold OPEN.
+     */
+    private static void forgetIfUnused(Journal journal) {
+        synchronized (journal) {
+            if (journal.users <= 0 && journal.inFlight == 0) {
+                OPEN.remove(journal.journalPath, journal);
+            }
+        }
+    }
+
+    /**
+     * Append a record without syncing it
+     * @param record Files and refs the record writes; its files must already be written
+     * @param publisher Moves the refs of the record once it is synced
+     * @return Entry to wait for with await
+     */
+    public synchronized Entry append(Record record, Publisher publisher) throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal is unusable after an earlier failure", failure);
+        }
+        if (inFlight == 0) {
+            acquireShared();
+        }
+        long offset = channel.size();
+        byte[] payload = record.encode();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            // A torn record would hide every record after it from a replay
+            try {
+                channel.truncate(offset);
+            } catch (IOException truncateError) {
+                e.addSuppressed(truncateError);
+                failure = e;
+            }
+            if (inFlight == 0) {
+                releaseShared();
+            }
+            throw e;
+        }
+
+        Entry entry = new Entry(++appendedSequence, offset, publisher);
+        unpublished.add(entry);
+        inFlight++;
+        for (RefUpdate ref : record.refs) {
+            pendingRefs.put(ref.path, entry);
+            entry.refs.put(ref.path, ref.value);
+        }
+        return entry;
+    }
+
+    /**
+     * Wait until a record is synced and its refs are moved
+     * @param entry Entry returned by append
+     * @param groupWindowNanos How long a sync waits for more records when the last sync covered several
+     */
+    public void await(Entry entry, long groupWindowNanos) throws IOException {
+        long target;
+        FileChannel syncChannel;
+        synchronized (this) {
+            while (!entry.published && syncing && failure == null) {
+                waitUninterruptibly();
+            }
+            if (entry.published) {
+                entry.rethrow();
+                return;
+            }
+            if (failure != null) {
+                throw new IOException("Journal is unusable after an earlier failure", failure);
+            }
+            syncing = true;
+            if (lastBatchSize > 1 && groupWindowNanos > 0) {
+                // Waiting releases the monitor, so writers keep appending meanwhile
+                long deadline = System.nanoTime() + groupWindowNanos;
+                for (long left = groupWindowNanos; left > 0; left = deadline - System.nanoTime()) {
+                    waitNanos(left);
+                }
+            }
+            target = appendedSequence;
+            syncChannel = channel;
+        }
+
+        List<Entry> batch = new ArrayList<>();
+        try {
+            syncer.sync(syncChannel);
+            synchronized (this) {
+                while (!unpublished.isEmpty() && unpublished.peek().sequence <= target) {
+                    batch.add(unpublished.poll());
+                }
+            }
+            // Refs move in journal order, and only the syncing writer moves them
+            for (Entry synced : batch) {
+                try {
+                    synced.publisher.publish();
+                } catch (IOException | RuntimeException e) {
+                    synced.error = e;
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failUnpublished(e);
+                syncing = false;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        boolean idle;
+        synchronized (this) {
+            for (Entry synced : batch) {
+                synced.published = true;
+                synced.refs.keySet().forEach(path -> pendingRefs.remove(path, synced));
+            }
+            lastBatchSize = batch.size();
+            inFlight -= batch.size();
+            syncing = false;
+            notifyAll();
+            idle = inFlight == 0;
+            if (idle) {
+                releaseShared();
+                try {
+                    checkpoint(CHECKPOINT_BYTES);
+                } catch (IOException e) {
+                    // The records are synced, so the commits stand; the next idle sync tries again
+                }
+            }
+        }
+        if (idle) {
+            // Outside the monitor of this journal, since OPEN is always taken first
+            synchronized (OPEN) {
+                forgetIfUnused(this);
+            }
+        }
+        entry.rethrow();
+    }
+
+    /**
+     * Fail the records a sync could not make durable, along with those appended after them, and cut
+     * them from the journal so no replay applies them. The next writer syncs afresh. Only if they
+     * cannot be cut does the journal refuse further records.
+     * @param e Error of the sync
+     */
+    private void failUnpublished(IOException e) {
+        Entry first = unpublished.peek();
+        for (Entry failed : unpublished) {
+            failed.error = e;
+            failed.published = true;
+            failed.refs.keySet().forEach(path -> pendingRefs.remove(path, failed));
+        }
+        inFlight -= unpublished.size();
+        unpublished.clear();
+        try {
+            if (first != null) {
+                channel.truncate(first.offset);
+            }
+        } catch (IOException truncateError) {
+            e.addSuppressed(truncateError);
+            failure = e;
+        }
+        if (inFlight == 0) {
+            try {
+                releaseShared();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+        }
+    }
+
+    /**
+     * Get the value a ref will have once the journal is synced
+     * @param path Ref path relative to the repository directory
+     * @return String the pending value, or null if no record moving the ref is waiting
+     */
+    public synchronized String pendingRef(String path) {
+        Entry entry = pendingRefs.get(path);
+        return entry != null ? entry.refs.get(path) : null;
+    }
+
+    /**
+     * Replay and empty the journal now, unless records are still waiting in this or another process
+     * @return boolean whether the journal is empty, so no replay can write its files again
+     */
+    public synchronized boolean checkpoint() throws IOException {
+        if (inFlight > 0) {
+            return false;
+        }
+        checkpoint(0);
+        return !Files.exists(journalPath) || Files.size(journalPath) == 0;
+    }
+
+    /**
+     * List the files written by the records in the journal, which a replay writes again if they are missing
+     * @return Set of paths relative to the repository directory
+     */
+    public synchronized Set<String> journaledFiles() throws IOException {
+        Set<String> paths = new HashSet<>();
+        if (Files.exists(journalPath)) {
+            for (Record record : readRecords()) {
+                for (FileWrite file : record.files) {
+                    paths.add(file.path);
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Replay the journal and empty it once it is larger than a threshold, unless another process is using it
+     * @param threshold Minimum journal size
+     */
+    private void checkpoint(long threshold) throws IOException {
+        if (!Files.exists(journalPath) || Files.size(journalPath) <= threshold) {
+            return;
+        }
+        Files.createDirectories(lockPath.getParent());
+        try (FileChannel exclusiveChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock exclusive = exclusiveChannel.tryLock()) {
+            if (exclusive == null) {
+                return;
+            }
+            // Records of other processes are replayed too, since only the journal of them was synced
+            Set<Path> written = new LinkedHashSet<>();
+            for (Record record : readRecords()) {
+                record.replay(repoPath, written);
+            }
+            Set<Path> directories = new LinkedHashSet<>();
+            for (Path file : written) {
+                if (Files.exists(file)) {
+                    syncContent(file);
+                    directories.add(file.getParent());
+                }
+            }
+            for (Path directory : directories) {
+                syncDirectory(directory);
+            }
+            try (FileChannel journalChannel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                journalChannel.truncate(0);
+                journalChannel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Read the intact records of the journal
+     */
+    private List<Record> readRecords() throws IOException {
+        List<Record> records = new ArrayList<>();
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        while (data.remaining() >= RECORD_HEADER_SIZE) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length < 0 || length > data.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            data.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            records.add(Record.decode(payload));
+        }
+        return records;
+    }
+
+    private void acquireShared() throws IOException {
+        Files.createDirectories(lockPath.getParent());
+        lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lockChannel.lock(0, Long.MAX_VALUE, true);
+            channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private void releaseShared() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            // Closing the channel releases the shared lock
+            lockChannel.close();
+            channel = null;
+            lockChannel = null;
+        }
+    }
+
+    private void waitUninterruptibly() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                wait();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void waitNanos(long nanos) {
+        try {
+            wait(nanos / 1_000_000, (int) (nanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sync a file that is too large to journal, along with its directory
+     * @param file File to sync
+     */
+    public static void sync(Path file) throws IOException {
+        syncContent(file);
+        syncDirectory(file.getParent());
+    }
+
+    private static void syncContent(Path file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            fileChannel.force(true);
+        }
+    }
+
+    private static void syncDirectory(Path directory) {
+        // Makes renames into the directory durable; not every platform can open a directory
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException e) {
+            // Nothing more can be done here
+        }
+    }
+
+    private static void writeAtomically(Path file, byte[] content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tempPath = Files.createTempFile(file.getParent(), "journal", ".tmp");
+        try {
+            Files.write(tempPath, content);
+            Files.move(tempPath, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Makes the appended records durable
+     */
+    @FunctionalInterface
+    interface Syncer {
+        void sync(FileChannel journalChannel) throws IOException;
+    }
+
+    /**
+     * Moves the refs of a record once it is synced
+     */
+    @FunctionalInterface
+    public interface Publisher {
+        void publish() throws IOException;
+    }
+
+    /**
+     * A record waiting to be synced
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final long offset;
+        private final Publisher publisher;
+        private final Map<String, String> refs = new HashMap<>();
+        private boolean published;
+        private Exception error;
+
+        private Entry(long sequence, long offset, Publisher publisher) {
+            this.sequence = sequence;
+            this.offset = offset;
+            this.publisher = publisher;
+        }
+
+        private void rethrow() throws IOException {
+            if (error instanceof IOException e) {
+                throw e;
+            }
+            if (error instanceof RuntimeException e) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Files and refs written together
+     */
+    public static final class Record {
+        private final List<FileWrite> files = new ArrayList<>();
+        private final List<RefUpdate> refs = new ArrayList<>();
+
+        /**
+         * Add a file, which is written again on replay unless it already has exactly this content
+         * @param path Path relative to the repository directory
+         * @param content Content of the file
+         * @return Record this record
+         */
+        public Record writeFile(String path, byte[] content) {
+            files.add(new FileWrite(path, content));
+            return this;
+        }
+
+        /**
+         * Add a ref, which is moved on replay if it still has the expected content
+         * @param path Path relative to the repository directory
+         * @param expected Content before the move, empty for a missing or empty ref
+         * @param value Content after the move
+         * @return Record this record
+         */
+        public Record moveRef(String path, String expected, String value) {
+            refs.add(new RefUpdate(path, expected, value));
+            return this;
+        }
+
+        private void replay(Path repoPath, Set<Path> written) throws IOException {
+            for (FileWrite file : files) {
+                Path target = repoPath.resolve(file.path);
+                if (!hasContent(target, file.content)) {
+                    writeAtomically(target, file.content);
+                }
+                written.add(target);
+            }
+            for (RefUpdate ref : refs) {
+                Path target = repoPath.resolve(ref.path);
+                String current;
+                try {
+                    current = Files.readString(target).trim();
+                } catch (NoSuchFileException e) {
+                    current = "";
+                }
+                if (current.equals(ref.expected)) {
+                    writeAtomically(target, ref.value.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                }
+                written.add(target);
+            }
+        }
+
+        /**
+         * Compare the whole file, since an unsynced write can leave it at full length but torn or zero-filled
+         */
+        private static boolean hasContent(Path file, byte[] content) throws IOException {
+            try {
+                return Files.size(file) == content.length && Arrays.equals(Files.readAllBytes(file), content);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+        }
+
+        private byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(files.size());
+                for (FileWrite file : files) {
+                    out.writeUTF(file.path);
+                    out.writeInt(file.content.length);
+                    out.write(file.content);
+                }
+                out.writeInt(refs.size());
+                for (RefUpdate ref : refs) {
+                    out.writeUTF(ref.path);
+                    out.writeUTF(ref.expected);
+                    out.writeUTF(ref.value);
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        private static Record decode(byte[] payload) throws IOException {
+            Record record = new Record();
+            try (DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(payload))) {
+                int fileCount = in.readInt();
+                for (int i = 0; i < fileCount; i++) {
+                    String path = in.readUTF();
+                    byte[] content = new byte[in.readInt()];
+                    in.readFully(content);
+                    record.writeFile(path, content);
+                }
+                int refCount = in.readInt();
+                for (int i = 0; i < refCount; i++) {
+                    record.moveRef(in.readUTF(), in.readUTF(), in.readUTF());
+                }
+            }
+            return record;
+        }
+    }
+
+    private record FileWrite(String path, byte[] content) {
+    }
+
+    private record RefUpdate(String path, String expected, String value) {
+    }
+}
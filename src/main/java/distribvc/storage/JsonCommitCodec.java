@@ -0,0 +1,54 @@
+package distribvc.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import distribvc.model.Commit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Commits as JSON, the original on-disk format.
+ */
+public class JsonCommitCodec implements CommitCodec {
+    private final Gson gson;
+
+    public JsonCommitCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return ".json";
+    }
+
+    @Override
+    public void encode(Commit commit, OutputStream out) throws IOException {
+        // Serialize straight to the stream instead of building the JSON string in memory
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        gson.toJson(commit, writer);
+        writer.flush();
+    }
+
+    @Override
+    public Commit decode(byte[] data) throws IOException {
+        try {
+            return gson.fromJson(new String(data, StandardCharsets.UTF_8), Commit.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Corrupt commit JSON", e);
+        }
+    }
+
+    @Override
+    public boolean canDecode(byte[] data) {
+        for (byte b : data) {
+            if (!Character.isWhitespace(b)) {
+                return b == '{';
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,278 @@
+package distribvc.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Content-addressable store for file contents.
+ * Every blob is saved once under objects/xx/yyyy..., keyed by the SHA-256 of its bytes,
+ * so identical content across files, commits and branches shares a single object.
+ */
+public class ObjectStore {
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private final Path objectsPath;
+    private final PackStore packStore;
+
+    public ObjectStore(Path objectsPath, PackStore packStore) {
+        this.objectsPath = objectsPath;
+        this.packStore = packStore;
+    }
+
+    /**
+     * Store the content of a file, streaming it through a fixed-size buffer
+     * @param file File whose content should be stored
+     * @return String hash of the stored content
+     */
+    public String store(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return store(in);
+        }
+    }
+
+    /**
+     * Store a working file without copying it through the heap. The file is hashed first,
+     * so content that is already stored costs a single read; new content is copied by the
+     * kernel with FileChannel.transferTo. If the file changes while it is copied, the
+     * content is stored again with hashing and copying done in one pass.
+     * @param file File whose content should be stored
+     * @param attrs Attributes of the file read before hashing
+     * @return String hash of the stored content
+     */
+    public String storeFile(Path file, BasicFileAttributes attrs) throws IOException {
+        String hash = hash(file);
+        if (freshen(hash)) {
+            return hash;
+        }
+
+        Files.createDirectories(objectsPath);
+        Path tempPath = Files.createTempFile(objectsPath, "incoming", ".tmp");
+        try {
+            long copied = 0;
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                long size = source.size();
+                while (copied < size) {
+                    long transferred = source.transferTo(copied, size - copied, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    copied += transferred;
+                }
+            }
+
+            BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+            if (copied != attrs.size() || after.size() != attrs.size()
+                    || !after.lastModifiedTime().equals(attrs.lastModifiedTime())) {
+                return store(file);
+            }
+
+            publish(tempPath, hash);
+            return hash;
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Store content read from a stream. The bytes are hashed while they are copied
+     * into a temporary file, so memory use does not depend on the content size.
+     * @param in Stream to read the content from; it is not closed
+     * @return String hash of the stored content
+     */
+    public String store(InputStream in) throws IOException {
+        return store(in, null);
+    }
+
+    /**
+     * Store content read from a stream, writing a copy of every byte to another stream as it is
+     * read, so content that also goes elsewhere is only read once
+     * @param in Stream to read the content from; it is not closed
+     * @param copy Stream receiving a copy of the content, or null; it is not closed
+     * @return String hash of the stored content
+     */
+    public String store(InputStream in, OutputStream copy) throws IOException {
+        Files.createDirectories(objectsPath);
+        Path tempPath = Files.createTempFile(objectsPath, "incoming", ".tmp");
+        try {
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (OutputStream out = Files.newOutputStream(tempPath)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    if (copy != null) {
+                        copy.write(buffer, 0, read);
+                    }
+                }
+            }
+
+            String hash = HexFormat.of().formatHex(digest.digest());
+            publish(tempPath, hash);
+            return hash;
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Store raw content, skipping the write if an identical object already exists
+     * @param content Bytes to store
+     * @return String hash of the stored content
+     */
+    public String store(byte[] content) throws IOException {
+        String hash = hash(content);
+        if (freshen(hash)) {
+            return hash;
+        }
+
+        Files.createDirectories(objectsPath);
+        Path tempPath = Files.createTempFile(objectsPath, "incoming", ".tmp");
+        try {
+            Files.write(tempPath, content);
+            publish(tempPath, hash);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        return hash;
+    }
+
+    /**
+     * Move a fully written temporary file to its object path, unless the object already exists.
+     * Writing to a temporary file first means readers never see a partial object.
+     * @param tempPath Temporary file holding the content
+     * @param hash Hash of the content
+     */
+    private void publish(Path tempPath, String hash) throws IOException {
+        if (freshen(hash)) {
+            return;
+        }
+        Path objectPath = resolve(hash);
+        Files.createDirectories(objectPath.getParent());
+        try {
+            Files.move(tempPath, objectPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Another writer stored the same content first
+        }
+    }
+
+    /**
+     * Open a stored object for reading
+     * @param hash Hash of the content
+     * @return InputStream over the content
+     */
+    public InputStream open(String hash) throws IOException {
+        try {
+            return Files.newInputStream(resolve(hash));
+        } catch (NoSuchFileException e) {
+            byte[] packed = packStore.read(hash);
+            if (packed == null) {
+                throw e;
+            }
+            return new ByteArrayInputStream(packed);
+        }
+    }
+
+    public boolean contains(String hash) throws IOException {
+        return isLoose(hash) || packStore.contains(hash);
+    }
+
+    /**
+     * Check whether content is stored and, if so, mark it as just written. Garbage collection
+     * keeps recently written content, so content that is about to be referenced again is never
+     * removed by a collection that started before.
+     * @param hash Hash of the content
+     * @return true if the content is stored
+     */
+    private boolean freshen(String hash) throws IOException {
+        try {
+            Files.setLastModifiedTime(resolve(hash), FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return packStore.freshen(hash);
+        }
+    }
+
+    public boolean isLoose(String hash) {
+        return Files.exists(resolve(hash));
+    }
+
+    /**
+     * Read content from a loose object, falling back to the packs
+     * @param hash Hash of the content
+     * @return byte[] the stored content
+     */
+    public byte[] read(String hash) throws IOException {
+        try {
+            return Files.readAllBytes(resolve(hash));
+        } catch (NoSuchFileException e) {
+            byte[] packed = packStore.read(hash);
+            if (packed == null) {
+                throw e;
+            }
+            return packed;
+        }
+    }
+
+    public Path resolve(String hash) {
+        return objectsPath.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+    }
+
+    /**
+     * Hash a file without loading it into memory. Large files are read through
+     * memory-mapped windows, small ones with a single positional read.
+     * @param file File to hash
+     * @return String SHA-256 of the file content
+     */
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                    // Keep reading until the buffer is full
+                }
+                buffer.flip();
+                digest.update(buffer);
+            } else {
+                for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+                    long length = Math.min(MAP_WINDOW_SIZE, size - position);
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                }
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public static String hash(byte[] content) {
+        return HexFormat.of().formatHex(newDigest().digest(content));
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not available", e);
+        }
+    }
+}
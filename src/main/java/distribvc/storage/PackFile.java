@@ -0,0 +1,222 @@
+package distribvc.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read access to a pack: one data file holding zlib-compressed objects, some of them
+ * delta-encoded against earlier objects of the same pack, and a sorted offset index.
+ *
+ * Data file layout: magic "DVCP", version, then per entry:
+ * type, encoding, base key (delta entries only), raw length, compressed length, compressed bytes.
+ * Index file layout: magic "DVCI", version, entry count, then (key, offset) pairs sorted by key.
+ */
+public class PackFile {
+    static final int PACK_MAGIC = 0x44564350;
+    static final int INDEX_MAGIC = 0x44564349;
+    static final int VERSION = 1;
+
+    public static final byte TYPE_COMMIT = 1;
+    public static final byte TYPE_BLOB = 2;
+
+    static final byte ENCODING_FULL = 0;
+    static final byte ENCODING_DELTA = 1;
+
+    private static final int MAX_DELTA_DEPTH = 64;
+    private static final long DELTA_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private final Path packPath;
+    private final String[] keys;
+    private final long[] offsets;
+    private MappedByteBuffer data;
+    // Recently resolved objects of delta chains, so reading successive versions of a file
+    // applies one delta each instead of resolving the whole chain every time
+    private final LinkedHashMap<String, byte[]> deltaCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long deltaCacheSize;
+
+    private PackFile(Path packPath, String[] keys, long[] offsets) {
+        this.packPath = packPath;
+        this.keys = keys;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Open a pack by reading its index; the data file is mapped on first access
+     * @param packPath Path of the .pack data file
+     * @return PackFile the opened pack
+     */
+    public static PackFile open(Path packPath) throws IOException {
+        Path indexPath = indexPathFor(packPath);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException("Not a pack index: " + indexPath);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported pack index version " + version + ": " + indexPath);
+            }
+            int count = in.readInt();
+            String[] keys = new String[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = in.readUTF();
+                offsets[i] = in.readLong();
+            }
+            return new PackFile(packPath, keys, offsets);
+        }
+    }
+
+    static Path indexPathFor(Path packPath) {
+        String fileName = packPath.getFileName().toString();
+        return packPath.resolveSibling(fileName.substring(0, fileName.length() - ".pack".length()) + ".idx");
+    }
+
+    public boolean contains(String key) {
+        return Arrays.binarySearch(keys, key) >= 0;
+    }
+
+    /**
+     * Read and fully resolve an object from the pack
+     * @param key Commit ID or blob hash
+     * @return byte[] object content, or null when the pack does not hold the key
+     */
+    public byte[] read(String key) throws IOException {
+        return read(key, 0);
+    }
+
+    private byte[] read(String key, int depth) throws IOException {
+        int position = Arrays.binarySearch(keys, key);
+        if (position < 0) {
+            return null;
+        }
+        if (depth > MAX_DELTA_DEPTH) {
+            throw new IOException("Delta chain too deep for " + key + " in " + packPath);
+        }
+        byte[] cached = cachedObject(key);
+        if (cached != null) {
+            // Callers own what they are given, bases are only read
+            return depth == 0 ? cached.clone() : cached;
+        }
+
+        ByteBuffer entry = data().duplicate();
+        entry.position((int) offsets[position]);
+        entry.get(); // type
+        byte encoding = entry.get();
+        String baseKey = encoding == ENCODING_DELTA ? readKey(entry) : null;
+        int rawLength = entry.getInt();
+        byte[] compressed = new byte[entry.getInt()];
+        entry.get(compressed);
+
+        byte[] content = inflate(compressed, rawLength);
+        if (baseKey == null) {
+            if (depth > 0) {
+                cacheObject(key, content);
+            }
+            return content;
+        }
+        byte[] base = read(baseKey, depth + 1);
+        if (base == null) {
+            throw new IOException("Missing delta base " + baseKey + " in " + packPath);
+        }
+        byte[] resolved = Delta.apply(base, content);
+        cacheObject(key, resolved);
+        return depth == 0 ? resolved.clone() : resolved;
+    }
+
+    private synchronized byte[] cachedObject(String key) {
+        return deltaCache.get(key);
+    }
+
+    private synchronized void cacheObject(String key, byte[] content) {
+        if (content.length > DELTA_CACHE_BYTES / 4) {
+            return;
+        }
+        byte[] previous = deltaCache.put(key, content);
+        deltaCacheSize += content.length - (previous != null ? previous.length : 0);
+        Iterator<byte[]> eldest = deltaCache.values().iterator();
+        while (deltaCacheSize > DELTA_CACHE_BYTES && eldest.hasNext()) {
+            deltaCacheSize -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Get the object type of an entry
+     * @param key Commit ID or blob hash
+     * @return byte the entry type, or 0 when the pack does not hold the key
+     */
+    public byte getType(String key) throws IOException {
+        int position = Arrays.binarySearch(keys, key);
+        return position >= 0 ? data().get((int) offsets[position]) : 0;
+    }
+
+    public String[] getKeys() {
+        return keys.clone();
+    }
+
+    public Path getPackPath() {
+        return packPath;
+    }
+
+    public long sizeOnDisk() throws IOException {
+        return Files.size(packPath) + Files.size(indexPathFor(packPath));
+    }
+
+    private synchronized MappedByteBuffer data() throws IOException {
+        if (data == null) {
+            try (FileChannel channel = FileChannel.open(packPath, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Pack too large to map: " + packPath);
+                }
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (data.getInt(0) != PACK_MAGIC) {
+                throw new IOException("Not a pack file: " + packPath);
+            }
+        }
+        return data;
+    }
+
+    private static String readKey(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] inflate(byte[] compressed, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] content = new byte[rawLength];
+            int read = 0;
+            while (read < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(content, read, rawLength - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != rawLength) {
+                throw new IOException("Corrupt pack entry: expected " + rawLength + " bytes but inflated " + read);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt pack entry", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package distribvc.storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All packs of a repository. The pack directory is listed lazily and listed again
+ * whenever a key is not found, so packs published by a concurrent repack are picked up.
+ */
+public class PackStore {
+    private final Path packsPath;
+    private volatile List<PackFile> packs;
+
+    public PackStore(Path packsPath) {
+        this.packsPath = packsPath;
+    }
+
+    /**
+     * Read an object from whichever pack holds it
+     * @param key Commit ID or blob hash
+     * @return byte[] object content, or null if no pack holds the key
+     */
+    public byte[] read(String key) throws IOException {
+        PackFile pack = find(key);
+        if (pack == null) {
+            return null;
+        }
+        try {
+            return pack.read(key);
+        } catch (NoSuchFileException e) {
+            // Garbage collection replaced the pack since it was listed
+            refresh();
+            pack = find(key);
+            return pack != null ? pack.read(key) : null;
+        }
+    }
+
+    /**
+     * Mark the pack holding an object as just written, see ObjectStore
+     * @param key Commit ID or blob hash
+     * @return true if a pack holds the key
+     */
+    public boolean freshen(String key) throws IOException {
+        PackFile pack = find(key);
+        if (pack == null) {
+            return false;
+        }
+        try {
+            Files.setLastModifiedTime(pack.getPackPath(), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            refresh();
+            return contains(key);
+        }
+        return true;
+    }
+
+    /**
+     * Remove a pack whose objects are all stored elsewhere or no longer needed. The index goes
+     * first, so the pack stops being listed before its data disappears.
+     * @param pack Pack to remove
+     */
+    public void delete(PackFile pack) throws IOException {
+        Files.deleteIfExists(PackFile.indexPathFor(pack.getPackPath()));
+        Files.deleteIfExists(pack.getPackPath());
+        refresh();
+    }
+
+    public boolean contains(String key) throws IOException {
+        return find(key) != null;
+    }
+
+    public List<PackFile> getPacks() throws IOException {
+        List<PackFile> current = packs;
+        if (current == null) {
+            current = refresh();
+        }
+        return current;
+    }
+
+    public Path getPacksPath() {
+        return packsPath;
+    }
+
+    /**
+     * Re-list the pack directory
+     * @return List of currently published packs
+     */
+    public synchronized List<PackFile> refresh() throws IOException {
+        Map<Path, PackFile> known = new HashMap<>();
+        if (packs != null) {
+            packs.forEach(pack -> known.put(pack.getPackPath(), pack));
+        }
+
+        List<PackFile> opened = new ArrayList<>();
+        if (Files.isDirectory(packsPath)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(packsPath, "*.pack")) {
+                for (Path packPath : stream) {
+                    // A pack is only complete once its index has been published
+                    if (known.containsKey(packPath)) {
+                        opened.add(known.get(packPath));
+                    } else if (Files.exists(PackFile.indexPathFor(packPath))) {
+                        opened.add(PackFile.open(packPath));
+                    }
+                }
+            }
+        }
+        packs = opened;
+        return opened;
+    }
+
+    private PackFile find(String key) throws IOException {
+        for (PackFile pack : getPacks()) {
+            if (pack.contains(key)) {
+                return pack;
+            }
+        }
+        for (PackFile pack : refresh()) {
+            if (pack.contains(key)) {
+                return pack;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,178 @@
+package distribvc.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a new pack. Objects are appended to a temporary data file and the pack only
+ * becomes visible to readers once {@link #finish()} has written and renamed its index.
+ */
+public class PackWriter implements AutoCloseable {
+    private static final int MAX_DELTA_DEPTH = 16;
+
+    private final Path packsPath;
+    private final Path tempPackPath;
+    private final DataOutputStream out;
+    private final MessageDigest digest;
+    private final Map<String, Long> offsets = new TreeMap<>();
+    private final Map<String, Integer> deltaDepths = new HashMap<>();
+    private long position;
+    private int deltaCount;
+    private boolean finished;
+
+    public PackWriter(Path packsPath) throws IOException {
+        this.packsPath = packsPath;
+        Files.createDirectories(packsPath);
+        this.tempPackPath = Files.createTempFile(packsPath, "pack-", ".tmp");
+        this.digest = ObjectStore.newDigest();
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                new DigestOutputStream(Files.newOutputStream(tempPackPath), digest)));
+        out.writeInt(PackFile.PACK_MAGIC);
+        out.writeInt(PackFile.VERSION);
+        position = out.size();
+    }
+
+    public boolean contains(String key) {
+        return offsets.containsKey(key);
+    }
+
+    /**
+     * Append an object stored in full
+     * @param type Object type
+     * @param key Commit ID or blob hash
+     * @param content Object content
+     */
+    public void add(byte type, String key, byte[] content) throws IOException {
+        writeEntry(type, key, PackFile.ENCODING_FULL, null, content.length, deflate(content));
+        deltaDepths.put(key, 0);
+    }
+
+    /**
+     * Append an object, delta-encoding it against an earlier object of this pack when that saves space
+     * @param type Object type
+     * @param key Commit ID or blob hash
+     * @param content Object content
+     * @param baseKey Key of an object already written to this pack, or null
+     * @param baseContent Content of the base object
+     */
+    public void add(byte type, String key, byte[] content, String baseKey, byte[] baseContent) throws IOException {
+        Integer baseDepth = baseKey != null ? deltaDepths.get(baseKey) : null;
+        if (baseDepth == null || baseDepth >= MAX_DELTA_DEPTH) {
+            add(type, key, content);
+            return;
+        }
+
+        byte[] delta = Delta.create(baseContent, content);
+        if (delta.length >= content.length / 2) {
+            add(type, key, content);
+            return;
+        }
+        writeEntry(type, key, PackFile.ENCODING_DELTA, baseKey, delta.length, deflate(delta));
+        deltaDepths.put(key, baseDepth + 1);
+        deltaCount++;
+    }
+
+    public int getObjectCount() {
+        return offsets.size();
+    }
+
+    public int getDeltaCount() {
+        return deltaCount;
+    }
+
+    /**
+     * Flush the data file, write the index and publish both under a content-derived name
+     * @return Path of the published pack data file
+     */
+    public Path finish() throws IOException {
+        out.close();
+        finished = true;
+
+        String name = "pack-" + HexFormat.of().formatHex(digest.digest());
+        Path packPath = packsPath.resolve(name + ".pack");
+        Path indexPath = PackFile.indexPathFor(packPath);
+
+        Path tempIndexPath = Files.createTempFile(packsPath, "idx-", ".tmp");
+        try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempIndexPath)))) {
+            index.writeInt(PackFile.INDEX_MAGIC);
+            index.writeInt(PackFile.VERSION);
+            index.writeInt(offsets.size());
+            for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+                index.writeUTF(entry.getKey());
+                index.writeLong(entry.getValue());
+            }
+        }
+
+        // The data file must be durable before the index makes it visible
+        force(tempPackPath);
+        force(tempIndexPath);
+        Files.move(tempPackPath, packPath, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tempIndexPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        return packPath;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            out.close();
+            Files.deleteIfExists(tempPackPath);
+        }
+    }
+
+    private void writeEntry(byte type, String key, byte encoding, String baseKey, int rawLength, byte[] data) throws IOException {
+        if (offsets.containsKey(key)) {
+            return;
+        }
+        offsets.put(key, position);
+
+        int start = out.size();
+        out.writeByte(type);
+        out.writeByte(encoding);
+        if (baseKey != null) {
+            byte[] baseKeyBytes = baseKey.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(baseKeyBytes.length);
+            out.write(baseKeyBytes);
+        }
+        out.writeInt(rawLength);
+        out.writeInt(data.length);
+        out.write(data);
+        position += out.size() - start;
+    }
+
+    private static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+}
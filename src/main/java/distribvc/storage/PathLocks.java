@@ -0,0 +1,106 @@
+package distribvc.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks for files that are read, changed and written back, such as the index and branch refs.
+ * A thread first takes the in-process lock of the lock file path, so threads working on other
+ * paths never wait for it. Only then does it take an OS lock on the lock file, which keeps other
+ * processes, such as the command line client, out as well; a thread waiting for another process
+ * therefore only holds up threads that want the same path.
+ *
+ * Locks are reentrant. An in-process lock exists only while some thread holds or waits for it,
+ * so memory stays bounded however many repositories are opened. Paths should be absolute and
+ * normalized, so one file always maps to one lock.
+ */
+public class PathLocks {
+    private final Map<Path, PathLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Lock a file, waiting for other threads and processes holding it
+     * @param lockFile Lock file, created if missing
+     * @return Lock to close once the guarded update is done
+     */
+    public Lock lock(Path lockFile) throws IOException {
+        // Registering as a user keeps the entry in the map until this thread is done with it
+        PathLock pathLock = locks.compute(lockFile, (path, existing) -> {
+            PathLock entry = existing != null ? existing : new PathLock();
+            entry.users++;
+            return entry;
+        });
+        pathLock.lock.lock();
+        try {
+            // Only the thread holding the in-process lock touches the channel
+            if (pathLock.holds == 0) {
+                Files.createDirectories(lockFile.getParent());
+                FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                try {
+                    channel.lock();
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                pathLock.channel = channel;
+            }
+            pathLock.holds++;
+            return new Lock(lockFile, pathLock);
+        } catch (IOException | RuntimeException e) {
+            pathLock.lock.unlock();
+            release(lockFile);
+            throw e;
+        }
+    }
+
+    private void release(Path lockFile) {
+        locks.computeIfPresent(lockFile, (path, entry) -> --entry.users == 0 ? null : entry);
+    }
+
+    /**
+     * A held lock
+     */
+    public final class Lock implements AutoCloseable {
+        private final Path lockFile;
+        private final PathLock pathLock;
+        private boolean closed;
+
+        private Lock(Path lockFile, PathLock pathLock) {
+            this.lockFile = lockFile;
+            this.pathLock = pathLock;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (--pathLock.holds == 0) {
+                    FileChannel channel = pathLock.channel;
+                    pathLock.channel = null;
+                    // Closing the channel releases the file lock
+                    channel.close();
+                }
+            } finally {
+                pathLock.lock.unlock();
+                release(lockFile);
+            }
+        }
+    }
+
+    private static final class PathLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        // Guarded by the map entry of the path
+        private int users;
+        // Guarded by lock
+        private int holds;
+        private FileChannel channel;
+    }
+}
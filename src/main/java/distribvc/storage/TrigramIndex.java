@@ -0,0 +1,1082 @@
+package distribvc.storage;
+
+import distribvc.diff.FileDiff;
+import distribvc.model.Commit;
+import distribvc.model.FileChange;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Append-only trigram index over the file contents of every commit.
+ * Each stored blob is indexed once with the byte trigrams it contains, folded to lower case so one
+ * index serves case-sensitive and case-insensitive searches, and each commit records the blobs it
+ * introduced and the paths it introduced them at. A search intersects the posting lists of the
+ * trigrams of its query, and only the blobs left over are read.
+ *
+ * New commits are appended as a segment: a table of blobs and commits, a sorted trigram dictionary
+ * and the posting lists, which hold blob numbers as varint deltas. Whenever the trailing segments
+ * together grow as large as half the segment before them they are merged into one, rewriting only
+ * the tail of the file, so the number of segments grows logarithmically and each blob is merged only
+ * a few times. Loading reads the tables and dictionaries; posting lists are read when a search needs them.
+ *
+ * Appending does not load the index: a blob indexed twice is harmless, the second copy is mapped to
+ * the first when loading. Text blobs too large to index are recorded as such and are always
+ * candidates; binary blobs are never searched. The index only holds derived data, so a segment lost
+ * to an interrupted write is simply indexed again by the next search.
+ *
+ * Layout: magic "DVCT", version, merge counter, then segments of (magic, table length, dictionary size,
+ * postings length), the table, the dictionary and the postings.
+ * Table: blob count, per blob its SHA-256 and trigram count or UNINDEXED or BINARY, then commit count,
+ * per commit its id most significant bits, id least significant bits, number of files, and per file
+ * its SHA-256, path length and UTF-8 path.
+ * Dictionary: pairs of (trigram, offset of its posting list), in ascending trigram order.
+ */
+public class TrigramIndex {
+    private static final int MAGIC = 0x44564354;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int MERGES_OFFSET = 8;
+    private static final int SEGMENT_MAGIC = 0x54524753;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int DICTIONARY_ENTRY_SIZE = 8;
+    private static final int HASH_SIZE = 32;
+    private static final int BLOB_ENTRY_SIZE = HASH_SIZE + 4;
+    private static final int MAX_INDEXED_SIZE = 1024 * 1024;
+    // Postings collected in memory before a segment is written
+    private static final int MAX_SEGMENT_POSTINGS = 4 * 1024 * 1024;
+    // Trailing segments are merged once they are at least 1 / MERGE_RATIO of the segment before them
+    private static final int MERGE_RATIO = 2;
+    // Blob kinds besides a trigram count
+    private static final int UNINDEXED = -1;
+    private static final int BINARY = -2;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path indexPath;
+    private boolean loaded;
+    private long loadedLength;
+    private int loadedMerges;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, Integer> blobIds = new HashMap<>();
+    private final List<String> blobHashes = new ArrayList<>();
+    private final IntList blobKinds = new IntList();
+    private final IntList unindexedBlobs = new IntList();
+    private final Set<String> commitIds = new HashSet<>();
+    private final List<String> commits = new ArrayList<>();
+    // Occurrences of blobs in commits, in the order they were indexed
+    private final IntList occurrenceCommits = new IntList();
+    private final IntList occurrenceBlobs = new IntList();
+    private final List<String> occurrencePaths = new ArrayList<>();
+    // Previous occurrence of the same blob per occurrence, and latest occurrence per blob, or -1
+    private final IntList previousOccurrences = new IntList();
+    private final IntList latestOccurrences = new IntList();
+
+    public TrigramIndex(Path indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * Where a version of a file was introduced
+     */
+    public static class Occurrence {
+        private final String commitId;
+        private final String path;
+        private final String hash;
+
+        public Occurrence(String commitId, String path, String hash) {
+            this.commitId = commitId;
+            this.path = path;
+            this.hash = hash;
+        }
+
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    /**
+     * Check whether a commit has been indexed
+     * @param commitId ID of the commit
+     * @return true if its contents are in the index
+     */
+    public synchronized boolean contains(String commitId) throws IOException {
+        load();
+        return commitIds.contains(commitId);
+    }
+
+    /**
+     * Check whether a blob has been indexed
+     * @param hash Hash of the content
+     * @return true if the index knows the blob
+     */
+    public synchronized boolean containsBlob(String hash) throws IOException {
+        load();
+        return blobIds.containsKey(hash);
+    }
+
+    public synchronized int getCommitCount() throws IOException {
+        load();
+        return commits.size();
+    }
+
+    /**
+     * Index the contents introduced by commits, skipping commits already indexed
+     * @param newCommits Commits to index
+     * @param objectStore Store holding the file contents
+     */
+    public synchronized void add(Collection<Commit> newCommits, ObjectStore objectStore) throws IOException {
+        if (loaded) {
+            load();
+        }
+        List<byte[]> newSegments = new ArrayList<>();
+        SegmentBuilder builder = new SegmentBuilder();
+        Set<String> writtenCommits = new HashSet<>();
+        Set<String> writtenBlobs = new HashSet<>();
+        for (Commit commit : newCommits) {
+            if ((loaded && commitIds.contains(commit.getId())) || !writtenCommits.add(commit.getId())) {
+                continue;
+            }
+            List<FileChange> files = introducedFiles(commit);
+            for (FileChange file : files) {
+                String hash = file.getContentHash();
+                if ((!loaded || !blobIds.containsKey(hash)) && writtenBlobs.add(hash)) {
+                    builder.addBlob(hash, objectStore);
+                    // A commit may follow its blobs into a later segment, but never precede them
+                    if (builder.postingCount >= MAX_SEGMENT_POSTINGS) {
+                        newSegments.add(builder.encode());
+                        builder = new SegmentBuilder();
+                    }
+                }
+            }
+            builder.addCommit(commit, files);
+        }
+        if (!builder.isEmpty()) {
+            newSegments.add(builder.encode());
+        }
+        if (newSegments.isEmpty()) {
+            return;
+        }
+
+        long changedFrom;
+        int merges;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            List<Segment> onDisk = readSegmentHeaders(channel);
+            long end = onDisk.isEmpty() ? HEADER_SIZE : onDisk.get(onDisk.size() - 1).end();
+            if (!hasHeader(channel)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putInt(0).flip();
+                channel.truncate(0);
+                writeFully(channel, header, 0);
+            }
+            // Drop any torn segment left behind by an interrupted write
+            channel.truncate(end);
+            changedFrom = end;
+            for (byte[] segment : newSegments) {
+                writeFully(channel, ByteBuffer.wrap(segment), end);
+                onDisk.add(readSegmentHeader(channel, end, end + segment.length));
+                changedFrom = Math.min(changedFrom, mergeTail(channel, onDisk));
+                end = onDisk.get(onDisk.size() - 1).end();
+            }
+            merges = readInt(channel, MERGES_OFFSET);
+        }
+
+        if (loaded) {
+            // Keep the segments before the changed tail, and read the tail back
+            long tailStart = changedFrom;
+            segments.removeIf(segment -> segment.start >= tailStart);
+            loadedLength = Math.min(loadedLength, tailStart);
+            loadedMerges = merges;
+            load();
+        }
+    }
+
+    /**
+     * Find the blobs that may contain every given trigram
+     * @param trigrams Trigrams of the query, or null when the query yields none
+     * @return Set of hashes of the text blobs worth reading
+     */
+    public synchronized Set<String> candidates(int[] trigrams) throws IOException {
+        load();
+        Set<String> hashes = new HashSet<>();
+        BitSet blobs = candidateBlobs(trigrams);
+        for (int blob = blobs.nextSetBit(0); blob >= 0; blob = blobs.nextSetBit(blob + 1)) {
+            hashes.add(blobHashes.get(blob));
+        }
+        return hashes;
+    }
+
+    /**
+     * Find the places where a blob that may contain every given trigram was introduced
+     * @param trigrams Trigrams of the query, or null when the query yields none
+     * @param pathPrefix Only files at or below this path, or an empty string for all files
+     * @return List of occurrences, most recently indexed first
+     */
+    public synchronized List<Occurrence> occurrences(int[] trigrams, String pathPrefix) throws IOException {
+        load();
+        BitSet blobs = candidateBlobs(trigrams);
+        IntList found = new IntList();
+        for (int blob = blobs.nextSetBit(0); blob >= 0; blob = blobs.nextSetBit(blob + 1)) {
+            for (int occurrence = latestOccurrences.values[blob]; occurrence != -1;
+                 occurrence = previousOccurrences.values[occurrence]) {
+                if (underPath(occurrencePaths.get(occurrence), pathPrefix)) {
+                    found.add(occurrence);
+                }
+            }
+        }
+
+        int[] ordered = Arrays.copyOf(found.values, found.size);
+        Arrays.sort(ordered);
+        List<Occurrence> result = new ArrayList<>(ordered.length);
+        for (int i = ordered.length - 1; i >= 0; i--) {
+            int occurrence = ordered[i];
+            result.add(new Occurrence(commits.get(occurrenceCommits.values[occurrence]),
+                    occurrencePaths.get(occurrence), blobHashes.get(occurrenceBlobs.values[occurrence])));
+        }
+        return result;
+    }
+
+    /**
+     * Trigrams every match of a query must contain
+     * @param query Literal string or regular expression
+     * @param regex Whether the query is a regular expression
+     * @return int[] folded trigrams, or null when the query does not require any
+     */
+    public static int[] queryTrigrams(String query, boolean regex) {
+        List<String> literals = regex ? requiredLiterals(query) : List.of(query.split("[\r\n]"));
+        if (literals == null) {
+            return null;
+        }
+        IntList trigrams = new IntList();
+        for (String literal : literals) {
+            byte[] bytes = literal.getBytes(StandardCharsets.UTF_8);
+            addTrigrams(bytes, bytes.length, trigrams);
+        }
+        int[] sorted = distinct(trigrams);
+        return sorted.length > 0 ? sorted : null;
+    }
+
+    /**
+     * Find literal runs that every match of a regular expression contains. This is deliberately
+     * conservative: groups, classes and optional characters only end a run, and patterns whose
+     * literals cannot be relied on, such as alternations or inline flags, yield no runs at all.
+     * @param regex Regular expression
+     * @return List of required literals, or null if nothing can be required
+     */
+    static List<String> requiredLiterals(String regex) {
+        if (regex.contains("(?") || regex.contains("\\Q")) {
+            return null;
+        }
+        List<String> literals = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        boolean lastLiteral = false;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '|' -> {
+                    return null;
+                }
+                case '*', '?', '{' -> {
+                    // The previous character may be absent
+                    if (lastLiteral) {
+                        run.setLength(run.length() - 1);
+                    }
+                    endRun(run, literals);
+                    lastLiteral = false;
+                    i = c == '{' ? Math.max(regex.indexOf('}', i), i) + 1 : i + 1;
+                    i = skipQuantifierSuffix(regex, i);
+                    continue;
+                }
+                case '+' -> {
+                    endRun(run, literals);
+                    lastLiteral = false;
+                    i = skipQuantifierSuffix(regex, i + 1);
+                    continue;
+                }
+                case '(' -> {
+                    endRun(run, literals);
+                    lastLiteral = false;
+                    i = skipGroup(regex, i);
+                    if (i < 0) {
+                        return null;
+                    }
+                    continue;
+                }
+                case '[' -> {
+                    endRun(run, literals);
+                    lastLiteral = false;
+                    i = skipClass(regex, i);
+                    if (i < 0) {
+                        return null;
+                    }
+                    continue;
+                }
+                case '.', '^', '$', ')', '\r', '\n', '\uFFFD' -> {
+                    endRun(run, literals);
+                    lastLiteral = false;
+                    i++;
+                    continue;
+                }
+                case '\\' -> {
+                    if (i + 1 >= regex.length()) {
+                        return null;
+                    }
+                    char escaped = regex.charAt(i + 1);
+                    i += 2;
+                    if ("cxupPNk0".indexOf(escaped) >= 0) {
+                        // Escapes taking arguments, not worth parsing
+                        return null;
+                    }
+                    if (Character.isLetterOrDigit(escaped)) {
+                        // Character classes, anchors and back references
+                        endRun(run, literals);
+                        lastLiteral = false;
+                    } else {
+                        run.append(escaped);
+                        lastLiteral = true;
+                    }
+                    continue;
+                }
+                default -> {
+                    run.append(c);
+                    lastLiteral = true;
+                    i++;
+                }
+            }
+        }
+        endRun(run, literals);
+        return literals;
+    }
+
+    private static void endRun(StringBuilder run, List<String> literals) {
+        if (run.length() > 0) {
+            literals.add(run.toString());
+            run.setLength(0);
+        }
+    }
+
+    private static int skipQuantifierSuffix(String regex, int i) {
+        return i < regex.length() && (regex.charAt(i) == '?' || regex.charAt(i) == '+') ? i + 1 : i;
+    }
+
+    /**
+     * @return Index after the group, or -1 if it is not closed
+     */
+    private static int skipGroup(String regex, int i) {
+        int depth = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                i = skipClass(regex, i);
+                if (i < 0) {
+                    return -1;
+                }
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Index after the character class, or -1 if it is not closed or nests other classes
+     */
+    private static int skipClass(String regex, int i) {
+        i++;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                return -1;
+            }
+            if (c == ']') {
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private BitSet candidateBlobs(int[] trigrams) throws IOException {
+        BitSet result = new BitSet(blobHashes.size());
+        if (trigrams == null) {
+            for (int blob = 0; blob < blobKinds.size; blob++) {
+                if (blobKinds.values[blob] != BINARY) {
+                    result.set(blob);
+                }
+            }
+            return result;
+        }
+
+        if (!segments.isEmpty()) {
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                for (Segment segment : segments) {
+                    addCandidates(channel, segment, trigrams, result);
+                }
+            }
+        }
+        // Blobs too large to index may contain anything
+        for (int i = 0; i < unindexedBlobs.size; i++) {
+            result.set(unindexedBlobs.values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Add the blobs of one segment whose posting lists hold every trigram
+     */
+    private static void addCandidates(FileChannel channel, Segment segment, int[] trigrams, BitSet result) throws IOException {
+        Integer[] entries = new Integer[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++) {
+            entries[i] = Arrays.binarySearch(segment.trigrams, trigrams[i]);
+            if (entries[i] < 0) {
+                return;
+            }
+        }
+
+        // Intersect the shortest lists first, so the running result shrinks quickly
+        Arrays.sort(entries, (a, b) -> Integer.compare(segment.postingsLength(a), segment.postingsLength(b)));
+        int[] current = readPostings(channel, segment, entries[0]);
+        int size = current.length;
+        for (int i = 1; i < entries.length && size > 0; i++) {
+            size = intersect(current, size, readPostings(channel, segment, entries[i]));
+        }
+        for (int i = 0; i < size; i++) {
+            result.set(segment.localToGlobal[current[i]]);
+        }
+    }
+
+    private static int[] readPostings(FileChannel channel, Segment segment, int entry) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(segment.postingsLength(entry));
+        readFully(channel, bytes, segment.postingsStart() + segment.offsets[entry]);
+        bytes.flip();
+        IntList blobs = new IntList();
+        int blob = 0;
+        while (bytes.hasRemaining()) {
+            blob += readVarint(bytes);
+            blobs.add(blob);
+        }
+        return Arrays.copyOf(blobs.values, blobs.size);
+    }
+
+    /**
+     * Keep the values of a sorted array that also occur in another sorted array
+     * @return Number of values kept at the start of the array
+     */
+    private static int intersect(int[] values, int size, int[] other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < size && j < other.length; ) {
+            int a = values[i];
+            int b = other[j];
+            if (a == b) {
+                values[kept++] = a;
+                i++;
+                j++;
+            } else if (a < b) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return kept;
+    }
+
+    private static boolean underPath(String path, String prefix) {
+        return prefix.isEmpty() || path.equals(prefix)
+                || (path.startsWith(prefix) && path.charAt(prefix.length()) == '/');
+    }
+
+    /**
+     * Files whose content a commit introduced
+     */
+    private static List<FileChange> introducedFiles(Commit commit) {
+        List<FileChange> files = new ArrayList<>();
+        if (commit.getChanges() != null) {
+            for (FileChange change : commit.getChanges()) {
+                if (change.getChangeType() != FileChange.ChangeType.DELETED && change.getContentHash() != null) {
+                    files.add(change);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Merge the trailing segments while together they are at least half as large as the segment before them
+     * @param channel Channel of the index file
+     * @param onDisk Headers of all segments, updated to reflect the merge
+     * @return long offset from which the file changed, or Long.MAX_VALUE if nothing was merged
+     */
+    private long mergeTail(FileChannel channel, List<Segment> onDisk) throws IOException {
+        int first = onDisk.size() - 1;
+        long size = onDisk.get(first).size();
+        while (first > 0 && onDisk.get(first - 1).size() < MERGE_RATIO * size) {
+            first--;
+            size += onDisk.get(first).size();
+        }
+        if (first == onDisk.size() - 1) {
+            return Long.MAX_VALUE;
+        }
+
+        List<Segment> merged = new ArrayList<>(onDisk.subList(first, onDisk.size()));
+        long start = merged.get(0).start;
+        ByteArrayOutputStream blobTables = new ByteArrayOutputStream();
+        ByteArrayOutputStream commitTables = new ByteArrayOutputStream();
+        int blobCount = 0;
+        int commitCount = 0;
+        int[] blobBases = new int[merged.size()];
+        for (int i = 0; i < merged.size(); i++) {
+            Segment segment = merged.get(i);
+            ByteBuffer table = ByteBuffer.allocate(segment.tableLength);
+            readFully(channel, table, segment.start + SEGMENT_HEADER_SIZE);
+            int blobs = table.getInt(0);
+            int commitsStart = 4 + blobs * BLOB_ENTRY_SIZE;
+            blobBases[i] = blobCount;
+            blobCount += blobs;
+            commitCount += table.getInt(commitsStart);
+            blobTables.write(table.array(), 4, blobs * BLOB_ENTRY_SIZE);
+            commitTables.write(table.array(), commitsStart + 4, segment.tableLength - commitsStart - 4);
+            readDictionary(channel, segment);
+        }
+
+        // Merge the dictionaries; the posting lists of each segment are consumed in dictionary order
+        Path postingsPath = Files.createTempFile(indexPath.getParent(), "trigrams", ".tmp");
+        try {
+            IntList dictionary = new IntList();
+            int postingsLength;
+            List<FileChannel> inputs = new ArrayList<>();
+            try (DataOutputStream postingsOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(postingsPath)))) {
+                DataInputStream[] postingsIn = new DataInputStream[merged.size()];
+                for (int i = 0; i < merged.size(); i++) {
+                    FileChannel input = FileChannel.open(indexPath, StandardOpenOption.READ);
+                    inputs.add(input);
+                    input.position(merged.get(i).postingsStart());
+                    postingsIn[i] = new DataInputStream(new BufferedInputStream(Channels.newInputStream(input)));
+                }
+                int[] cursors = new int[merged.size()];
+                while (true) {
+                    int trigram = Integer.MAX_VALUE;
+                    for (int i = 0; i < merged.size(); i++) {
+                        if (cursors[i] < merged.get(i).trigramCount) {
+                            trigram = Math.min(trigram, merged.get(i).trigrams[cursors[i]]);
+                        }
+                    }
+                    if (trigram == Integer.MAX_VALUE) {
+                        break;
+                    }
+                    dictionary.add(trigram);
+                    dictionary.add(postingsOut.size());
+                    int previous = 0;
+                    for (int i = 0; i < merged.size(); i++) {
+                        Segment segment = merged.get(i);
+                        if (cursors[i] < segment.trigramCount && segment.trigrams[cursors[i]] == trigram) {
+                            byte[] bytes = new byte[segment.postingsLength(cursors[i])];
+                            postingsIn[i].readFully(bytes);
+                            ByteBuffer postings = ByteBuffer.wrap(bytes);
+                            int blob = 0;
+                            while (postings.hasRemaining()) {
+                                blob += readVarint(postings);
+                                writeVarint(postingsOut, blobBases[i] + blob - previous);
+                                previous = blobBases[i] + blob;
+                            }
+                            cursors[i]++;
+                        }
+                    }
+                }
+                postingsLength = postingsOut.size();
+            } finally {
+                for (FileChannel input : inputs) {
+                    input.close();
+                }
+            }
+
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream tableOut = new DataOutputStream(table);
+            tableOut.writeInt(blobCount);
+            blobTables.writeTo(tableOut);
+            tableOut.writeInt(commitCount);
+            commitTables.writeTo(tableOut);
+            ByteBuffer head = ByteBuffer.allocate(SEGMENT_HEADER_SIZE + table.size() + dictionary.size * 4);
+            head.putInt(SEGMENT_MAGIC).putInt(table.size()).putInt(dictionary.size / 2).putInt(postingsLength);
+            head.put(table.toByteArray());
+            for (int i = 0; i < dictionary.size; i++) {
+                head.putInt(dictionary.values[i]);
+            }
+            head.flip();
+
+            // Tell other readers their segments moved, then replace the tail
+            writeFully(channel, ByteBuffer.allocate(4).putInt(0, readInt(channel, MERGES_OFFSET) + 1), MERGES_OFFSET);
+            channel.truncate(start);
+            writeFully(channel, head, start);
+            try (FileChannel postings = FileChannel.open(postingsPath, StandardOpenOption.READ)) {
+                long position = start + head.capacity();
+                long transferred = 0;
+                while (transferred < postingsLength) {
+                    transferred += channel.transferFrom(postings, position + transferred, postingsLength - transferred);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(postingsPath);
+        }
+
+        onDisk.subList(first, onDisk.size()).clear();
+        onDisk.add(readSegmentHeader(channel, start, channel.size()));
+        return start;
+    }
+
+    /**
+     * Drop the whole index, for when commits it covers were removed. Searches backfill it
+     * from the remaining commits.
+     */
+    public synchronized void reset() throws IOException {
+        Files.deleteIfExists(indexPath);
+        clear();
+        loaded = true;
+    }
+
+    /**
+     * Bring the loaded index up to date with the file. Segments appended since the last load are
+     * read incrementally; if segments were merged by someone else or the file was replaced,
+     * everything is reloaded.
+     */
+    private void load() throws IOException {
+        if (!Files.exists(indexPath)) {
+            clear();
+            loaded = true;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int merges = hasHeader(channel) ? readInt(channel, MERGES_OFFSET) : -1;
+            if (loaded && size == loadedLength && merges == loadedMerges) {
+                return;
+            }
+            if (!loaded || merges != loadedMerges || size < loadedLength) {
+                clear();
+                loadedMerges = merges;
+            }
+            if (merges >= 0) {
+                long offset = Math.max(loadedLength, HEADER_SIZE);
+                Segment segment;
+                while ((segment = readSegmentHeader(channel, offset, size)) != null) {
+                    loadSegment(channel, segment);
+                    segments.add(segment);
+                    offset = segment.end();
+                }
+                loadedLength = offset;
+            }
+        }
+        loaded = true;
+    }
+
+    private void clear() {
+        segments.clear();
+        loadedLength = 0;
+        loadedMerges = -1;
+        blobIds.clear();
+        blobHashes.clear();
+        blobKinds.size = 0;
+        unindexedBlobs.size = 0;
+        commitIds.clear();
+        commits.clear();
+        occurrenceCommits.size = 0;
+        occurrenceBlobs.size = 0;
+        occurrencePaths.clear();
+        previousOccurrences.size = 0;
+        latestOccurrences.size = 0;
+    }
+
+    /**
+     * Read the table and dictionary of a segment into memory. Blobs and commits that are already
+     * known, such as those of segments merged into this one, keep their numbers.
+     */
+    private void loadSegment(FileChannel channel, Segment segment) throws IOException {
+        ByteBuffer table = ByteBuffer.allocate(segment.tableLength);
+        readFully(channel, table, segment.start + SEGMENT_HEADER_SIZE);
+        table.flip();
+
+        byte[] hash = new byte[HASH_SIZE];
+        int blobs = table.getInt();
+        segment.localToGlobal = new int[blobs];
+        for (int local = 0; local < blobs; local++) {
+            table.get(hash);
+            int kind = table.getInt();
+            String blobHash = HEX.formatHex(hash);
+            Integer blob = blobIds.get(blobHash);
+            segment.localToGlobal[local] = blob != null ? blob : addBlob(blobHash, kind);
+        }
+
+        int commitCount = table.getInt();
+        for (int i = 0; i < commitCount; i++) {
+            String commitId = new UUID(table.getLong(), table.getLong()).toString();
+            boolean known = !commitIds.add(commitId);
+            int commit = commits.size();
+            if (!known) {
+                commits.add(commitId);
+            }
+            int files = table.getInt();
+            for (int f = 0; f < files; f++) {
+                table.get(hash);
+                byte[] path = new byte[table.getInt()];
+                table.get(path);
+                if (known) {
+                    continue;
+                }
+                String blobHash = HEX.formatHex(hash);
+                Integer blob = blobIds.get(blobHash);
+                if (blob == null) {
+                    // Its blob was lost, so it has to be read by every search
+                    blob = addBlob(blobHash, UNINDEXED);
+                }
+                int occurrence = occurrenceBlobs.size;
+                occurrenceCommits.add(commit);
+                occurrenceBlobs.add(blob);
+                occurrencePaths.add(new String(path, StandardCharsets.UTF_8));
+                previousOccurrences.add(latestOccurrences.values[blob]);
+                latestOccurrences.values[blob] = occurrence;
+            }
+        }
+        readDictionary(channel, segment);
+    }
+
+    private static void readDictionary(FileChannel channel, Segment segment) throws IOException {
+        ByteBuffer dictionary = ByteBuffer.allocate(segment.trigramCount * DICTIONARY_ENTRY_SIZE);
+        readFully(channel, dictionary, segment.start + SEGMENT_HEADER_SIZE + segment.tableLength);
+        dictionary.flip();
+        segment.trigrams = new int[segment.trigramCount];
+        segment.offsets = new int[segment.trigramCount];
+        for (int i = 0; i < segment.trigramCount; i++) {
+            segment.trigrams[i] = dictionary.getInt();
+            segment.offsets[i] = dictionary.getInt();
+        }
+    }
+
+    private int addBlob(String hash, int kind) {
+        int blob = blobHashes.size();
+        blobIds.put(hash, blob);
+        blobHashes.add(hash);
+        blobKinds.add(kind);
+        latestOccurrences.add(-1);
+        if (kind == UNINDEXED) {
+            unindexedBlobs.add(blob);
+        }
+        return blob;
+    }
+
+    private static boolean hasHeader(FileChannel channel) throws IOException {
+        return channel.size() >= HEADER_SIZE && readInt(channel, 0) == MAGIC && readInt(channel, 4) == VERSION;
+    }
+
+    /**
+     * Read the headers of every complete segment
+     * @return List of segments, empty if the file has no header
+     */
+    private static List<Segment> readSegmentHeaders(FileChannel channel) throws IOException {
+        List<Segment> headers = new ArrayList<>();
+        if (!hasHeader(channel)) {
+            return headers;
+        }
+        long size = channel.size();
+        long offset = HEADER_SIZE;
+        Segment segment;
+        while ((segment = readSegmentHeader(channel, offset, size)) != null) {
+            headers.add(segment);
+            offset = segment.end();
+        }
+        return headers;
+    }
+
+    /**
+     * @return Segment starting at the offset, or null if there is none or it is incomplete
+     */
+    private static Segment readSegmentHeader(FileChannel channel, long start, long size) throws IOException {
+        if (start + SEGMENT_HEADER_SIZE > size) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        readFully(channel, header, start);
+        if (header.getInt(0) != SEGMENT_MAGIC || header.getInt(4) < 8 || header.getInt(8) < 0 || header.getInt(12) < 0) {
+            return null;
+        }
+        Segment segment = new Segment(start, header.getInt(4), header.getInt(8), header.getInt(12));
+        return segment.end() <= size ? segment : null;
+    }
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(4);
+        readFully(channel, value, position);
+        return value.getInt(0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of trigram index");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Add the folded trigrams of content, skipping those spanning a line break since matches never do
+     */
+    private static void addTrigrams(byte[] content, int length, IntList trigrams) {
+        int trigram = 0;
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = content[i];
+            if (b == '\n' || b == '\r') {
+                run = 0;
+                continue;
+            }
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            trigram = ((trigram << 8) | (b & 0xFF)) & 0xFFFFFF;
+            if (++run >= 3) {
+                trigrams.add(trigram);
+            }
+        }
+    }
+
+    private static int[] distinct(IntList values) {
+        int[] sorted = Arrays.copyOf(values.values, values.size);
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (size == 0 || sorted[size - 1] != sorted[i]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, size);
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Segment of the index file; its dictionary and blob numbers are filled in when it is read
+     */
+    private static final class Segment {
+        private final long start;
+        private final int tableLength;
+        private final int trigramCount;
+        private final int postingsLength;
+        private int[] trigrams;
+        private int[] offsets;
+        private int[] localToGlobal;
+
+        private Segment(long start, int tableLength, int trigramCount, int postingsLength) {
+            this.start = start;
+            this.tableLength = tableLength;
+            this.trigramCount = trigramCount;
+            this.postingsLength = postingsLength;
+        }
+
+        private long postingsStart() {
+            return start + SEGMENT_HEADER_SIZE + tableLength + (long) trigramCount * DICTIONARY_ENTRY_SIZE;
+        }
+
+        private long end() {
+            return postingsStart() + postingsLength;
+        }
+
+        private long size() {
+            return end() - start;
+        }
+
+        private int postingsLength(int entry) {
+            return (entry + 1 < trigramCount ? offsets[entry + 1] : postingsLength) - offsets[entry];
+        }
+    }
+
+    /**
+     * Collects new blobs and commits and encodes them as one segment
+     */
+    private static final class SegmentBuilder {
+        private final ByteArrayOutputStream blobTable = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream commitTable = new ByteArrayOutputStream();
+        private int blobCount;
+        private int commitCount;
+        // Trigram in the high half, blob number in the low half
+        private long[] postings = new long[1024];
+        private int postingCount;
+
+        private void addBlob(String hash, ObjectStore objectStore) throws IOException {
+            byte[] content;
+            boolean complete;
+            try (InputStream in = objectStore.open(hash)) {
+                content = in.readNBytes(MAX_INDEXED_SIZE + 1);
+                complete = content.length <= MAX_INDEXED_SIZE;
+            }
+
+            int kind;
+            int[] trigrams = null;
+            if (FileDiff.isBinary(content)) {
+                kind = BINARY;
+            } else if (!complete) {
+                kind = UNINDEXED;
+            } else {
+                IntList found = new IntList();
+                addTrigrams(content, content.length, found);
+                trigrams = distinct(found);
+                kind = trigrams.length;
+            }
+
+            blobTable.write(HEX.parseHex(hash));
+            blobTable.writeBytes(ByteBuffer.allocate(4).putInt(kind).array());
+            if (trigrams != null) {
+                if (postingCount + trigrams.length > postings.length) {
+                    postings = Arrays.copyOf(postings, Math.max(postings.length * 2, postingCount + trigrams.length));
+                }
+                for (int trigram : trigrams) {
+                    postings[postingCount++] = ((long) trigram << 32) | blobCount;
+                }
+            }
+            blobCount++;
+        }
+
+        private void addCommit(Commit commit, List<FileChange> files) throws IOException {
+            DataOutputStream out = new DataOutputStream(commitTable);
+            UUID id = UUID.fromString(commit.getId());
+            out.writeLong(id.getMostSignificantBits());
+            out.writeLong(id.getLeastSignificantBits());
+            out.writeInt(files.size());
+            for (FileChange file : files) {
+                out.write(HEX.parseHex(file.getContentHash()));
+                byte[] path = file.getFilePath().toString().replace('\\', '/').getBytes(StandardCharsets.UTF_8);
+                out.writeInt(path.length);
+                out.write(path);
+            }
+            commitCount++;
+        }
+
+        private boolean isEmpty() {
+            return blobCount == 0 && commitCount == 0;
+        }
+
+        private byte[] encode() throws IOException {
+            Arrays.sort(postings, 0, postingCount);
+            IntList dictionary = new IntList();
+            ByteArrayOutputStream postingBytes = new ByteArrayOutputStream();
+            int previousTrigram = -1;
+            int previousBlob = 0;
+            for (int i = 0; i < postingCount; i++) {
+                int trigram = (int) (postings[i] >>> 32);
+                int blob = (int) postings[i];
+                if (trigram != previousTrigram) {
+                    dictionary.add(trigram);
+                    dictionary.add(postingBytes.size());
+                    previousTrigram = trigram;
+                    previousBlob = 0;
+                }
+                writeVarint(postingBytes, blob - previousBlob);
+                previousBlob = blob;
+            }
+
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(segment);
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(8 + blobTable.size() + commitTable.size());
+            out.writeInt(dictionary.size / 2);
+            out.writeInt(postingBytes.size());
+            out.writeInt(blobCount);
+            blobTable.writeTo(out);
+            out.writeInt(commitCount);
+            commitTable.writeTo(out);
+            for (int i = 0; i < dictionary.size; i++) {
+                out.writeInt(dictionary.values[i]);
+            }
+            postingBytes.writeTo(out);
+            return segment.toByteArray();
+        }
+    }
+
+    /**
+     * Growable array of ints
+     */
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
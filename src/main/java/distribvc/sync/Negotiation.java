@@ -0,0 +1,29 @@
+package distribvc.sync;
+
+import com.google.gson.annotations.Expose;
+
+import java.util.List;
+
+/**
+ * Outcome of a have/want negotiation: the commits the receiving repository lacks,
+ * parents first, and the objects they reference
+ */
+public class Negotiation {
+    @Expose
+    private final List<String> commits;
+    @Expose
+    private final List<String> objects;
+
+    public Negotiation(List<String> commits, List<String> objects) {
+        this.commits = commits;
+        this.objects = objects;
+    }
+
+    public List<String> getCommits() {
+        return commits;
+    }
+
+    public List<String> getObjects() {
+        return objects;
+    }
+}
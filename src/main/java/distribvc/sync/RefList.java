@@ -0,0 +1,35 @@
+package distribvc.sync;
+
+import com.google.gson.annotations.Expose;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Branch heads a repository advertises to the repositories syncing with it
+ */
+public class RefList {
+    @Expose
+    private final String head;
+    @Expose
+    private final Map<String, String> branches;
+
+    public RefList(String head, Map<String, String> branches) {
+        this.head = head;
+        this.branches = new TreeMap<>(branches);
+    }
+
+    /**
+     * @return String name of the checked out branch
+     */
+    public String getHead() {
+        return head;
+    }
+
+    /**
+     * @return Map of branch name to head commit ID, without branches that have no commits
+     */
+    public Map<String, String> getBranches() {
+        return branches;
+    }
+}
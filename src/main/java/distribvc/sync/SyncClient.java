@@ -0,0 +1,174 @@
+package distribvc.sync;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP client for the sync endpoints of a remote repository.
+ * A remote URL names the server and the repository path on it,
+ * e.g. http://host:8080/srv/repos/project.
+ */
+public class SyncClient {
+    private static final String SYNC_API = "/api/sync";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    private final HttpClient httpClient;
+    private final Gson gson;
+    private final String baseUrl;
+    private final String repoPath;
+    private long bytesSent;
+    private long bytesReceived;
+
+    public SyncClient(String url, Gson gson) {
+        URI uri = URI.create(url);
+        if (uri.getScheme() == null || uri.getHost() == null || uri.getPath() == null || uri.getPath().isEmpty()) {
+            throw new IllegalArgumentException("Remote URL must look like http://host:port/path/to/repository: " + url);
+        }
+        this.baseUrl = uri.getScheme() + "://" + uri.getRawAuthority() + SYNC_API;
+        this.repoPath = uri.getPath();
+        this.gson = gson;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build();
+    }
+
+    /**
+     * Get the branch heads of the remote repository
+     * @return RefList advertised by the remote
+     */
+    public RefList getRefs() throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(endpoint("/refs", Map.of())).GET().build();
+        return gson.fromJson(sendForString(request), RefList.class);
+    }
+
+    /**
+     * Ask the remote which commits and objects are needed to reach some commits
+     * @param wants Commits to fetch
+     * @param haves Commits whose history is already present locally
+     * @return Negotiation listing the missing commits and objects
+     */
+    public Negotiation negotiate(Collection<String> wants, Collection<String> haves) throws IOException {
+        String body = gson.toJson(Map.of("wants", wants, "haves", haves));
+        return gson.fromJson(sendForString(postJson("/negotiate", Map.of(), body)), Negotiation.class);
+    }
+
+    /**
+     * Ask the remote which of some objects it does not have
+     * @param hashes Object hashes to check
+     * @return List of the hashes missing on the remote
+     */
+    public List<String> missingObjects(Collection<String> hashes) throws IOException {
+        String response = sendForString(postJson("/objects/missing", Map.of(), gson.toJson(hashes)));
+        return gson.fromJson(response, new TypeToken<List<String>>() { }.getType());
+    }
+
+    /**
+     * Download a transfer pack. The caller reads it while it arrives and must close the stream.
+     * @param commits Commits to include
+     * @param objects Objects to include
+     * @return InputStream over the compressed pack
+     */
+    public InputStream fetchPack(Collection<String> commits, Collection<String> objects) throws IOException {
+        String body = gson.toJson(Map.of("commits", commits, "objects", objects));
+        HttpResponse<InputStream> response = send(postJson("/pack", Map.of(), body), HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            try (InputStream error = response.body()) {
+                throw new IOException("Remote refused pack request: " + new String(error.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return new FilterInputStream(response.body()) {
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value != -1) {
+                    bytesReceived++;
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    bytesReceived += read;
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Upload a transfer pack and move a remote branch from one head to another
+     * @param packFile File holding the compressed pack
+     * @param branchName Branch to update
+     * @param oldHead Head the branch must still have, or null for a new branch
+     * @param newHead The new head
+     */
+    public void push(Path packFile, String branchName, String oldHead, String newHead) throws IOException {
+        Map<String, String> params = oldHead != null
+                ? Map.of("branch", branchName, "oldHead", oldHead, "newHead", newHead)
+                : Map.of("branch", branchName, "newHead", newHead);
+        HttpRequest request = HttpRequest.newBuilder(endpoint("/receive", params))
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.ofFile(packFile))
+                .build();
+        sendForString(request);
+        bytesSent += Files.size(packFile);
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    private HttpRequest postJson(String path, Map<String, String> params, String body) {
+        bytesSent += body.length();
+        return HttpRequest.newBuilder(endpoint(path, params))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private String sendForString(HttpRequest request) throws IOException {
+        HttpResponse<String> response = send(request, HttpResponse.BodyHandlers.ofString());
+        bytesReceived += response.body().length();
+        if (response.statusCode() != 200) {
+            throw new IOException("Remote rejected request: " + response.body());
+        }
+        return response.body();
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return httpClient.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while talking to " + baseUrl, e);
+        }
+    }
+
+    private URI endpoint(String path, Map<String, String> params) {
+        StringBuilder url = new StringBuilder(baseUrl).append(path)
+                .append("?repoPath=").append(URLEncoder.encode(repoPath, StandardCharsets.UTF_8));
+        params.forEach((name, value) -> url.append('&').append(name).append('=')
+                .append(URLEncoder.encode(value, StandardCharsets.UTF_8)));
+        return URI.create(url.toString());
+    }
+}
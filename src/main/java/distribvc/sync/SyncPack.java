@@ -0,0 +1,221 @@
+package distribvc.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streamed, compressed transfer format for commits and objects sent between repositories.
+ * Unlike a pack on disk it has no index and is never held in memory: entries are written
+ * and read one at a time, and contents are split into chunks so their size need not be
+ * known up front.
+ *
+ * Layout, deflated as a whole: magic "DVCS", version, then entries of
+ * (type, key, chunks of (length, bytes), a zero length), ended by a zero type.
+ */
+public final class SyncPack {
+    public static final int TYPE_COMMIT = 1;
+    public static final int TYPE_OBJECT = 2;
+
+    private static final int MAGIC = 0x44564353;
+    private static final int VERSION = 1;
+    private static final int TYPE_END = 0;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private SyncPack() {
+    }
+
+    /**
+     * Writes a transfer pack to a stream
+     */
+    public static class Writer implements AutoCloseable {
+        private final DeflaterOutputStream deflater;
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int entryCount;
+
+        public Writer(OutputStream target) throws IOException {
+            this.deflater = new DeflaterOutputStream(target, new Deflater(Deflater.BEST_SPEED), CHUNK_SIZE);
+            this.out = new DataOutputStream(new BufferedOutputStream(deflater, CHUNK_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        public void add(int type, String key, byte[] content) throws IOException {
+            out.writeByte(type);
+            out.writeUTF(key);
+            for (int offset = 0; offset < content.length; offset += CHUNK_SIZE) {
+                int length = Math.min(CHUNK_SIZE, content.length - offset);
+                out.writeInt(length);
+                out.write(content, offset, length);
+            }
+            out.writeInt(0);
+            entryCount++;
+        }
+
+        /**
+         * Add an entry whose content is copied from a stream
+         * @param type Entry type
+         * @param key Commit ID or object hash
+         * @param content Stream with the content; it is not closed
+         */
+        public void add(int type, String key, InputStream content) throws IOException {
+            out.writeByte(type);
+            out.writeUTF(key);
+            int read;
+            while ((read = content.readNBytes(buffer, 0, buffer.length)) > 0) {
+                out.writeInt(read);
+                out.write(buffer, 0, read);
+            }
+            out.writeInt(0);
+            entryCount++;
+        }
+
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        /**
+         * Write the end marker and finish compression, leaving the target stream open
+         */
+        public void finish() throws IOException {
+            out.writeByte(TYPE_END);
+            out.flush();
+            deflater.finish();
+            deflater.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a transfer pack entry by entry
+     */
+    public static class Reader {
+        private final DataInputStream in;
+        private EntryStream current;
+
+        public Reader(InputStream source) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(source), CHUNK_SIZE));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a sync pack");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported sync pack version " + version);
+            }
+        }
+
+        /**
+         * Move to the next entry, skipping whatever is left of the current one
+         * @return Entry the next entry, or null at the end of the pack
+         */
+        public Entry next() throws IOException {
+            if (current != null) {
+                current.skip(Long.MAX_VALUE);
+                current = null;
+            }
+            int type = in.readUnsignedByte();
+            if (type == TYPE_END) {
+                return null;
+            }
+            if (type != TYPE_COMMIT && type != TYPE_OBJECT) {
+                throw new IOException("Corrupt sync pack: unknown entry type " + type);
+            }
+            String key = in.readUTF();
+            current = new EntryStream();
+            return new Entry(type, key, current);
+        }
+
+        /**
+         * Content of one entry, reassembled from its chunks
+         */
+        private final class EntryStream extends InputStream {
+            private int remaining;
+            private boolean done;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (remaining == 0) {
+                    if (done) {
+                        return -1;
+                    }
+                    remaining = in.readInt();
+                    if (remaining < 0) {
+                        throw new IOException("Corrupt sync pack: negative chunk length");
+                    }
+                    done = remaining == 0;
+                }
+                int read = in.read(b, off, Math.min(len, remaining));
+                if (read < 0) {
+                    throw new EOFException("Truncated sync pack");
+                }
+                remaining -= read;
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                byte[] discard = new byte[CHUNK_SIZE];
+                long skipped = 0;
+                int read;
+                while (skipped < n && (read = read(discard, 0, (int) Math.min(discard.length, n - skipped))) > 0) {
+                    skipped += read;
+                }
+                return skipped;
+            }
+
+            @Override
+            public void close() {
+                // The underlying pack stays open for the next entry
+            }
+        }
+    }
+
+    /**
+     * One entry of a transfer pack. The content stream is only valid until the next entry is read.
+     */
+    public static class Entry {
+        private final int type;
+        private final String key;
+        private final InputStream content;
+
+        private Entry(int type, String key, InputStream content) {
+            this.type = type;
+            this.key = key;
+            this.content = content;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public InputStream getContent() {
+            return content;
+        }
+    }
+}
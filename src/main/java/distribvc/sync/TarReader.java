@@ -0,0 +1,239 @@
+package distribvc.sync;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads regular files from a tar stream one at a time, without buffering whole entries.
+ * Understands ustar headers, GNU long names and the path of pax extended headers, which
+ * covers archives written by common tar tools. Directories, links and other entry types
+ * are skipped.
+ *
+ * Layout: 512-byte headers, each followed by the entry content padded to 512 bytes,
+ * ended by a block of zeros.
+ */
+public class TarReader {
+    private static final int BLOCK_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_OLD_FILE = 0;
+    private static final byte TYPE_CONTIGUOUS_FILE = '7';
+    private static final byte TYPE_GNU_LONG_NAME = 'L';
+    private static final byte TYPE_PAX_HEADER = 'x';
+
+    private final InputStream in;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private EntryStream current;
+
+    public TarReader(InputStream source) {
+        this.in = new BufferedInputStream(source, BUFFER_SIZE);
+    }
+
+    /**
+     * Move to the next regular file, skipping whatever is left of the current one
+     * @return Entry the next file, or null at the end of the archive
+     */
+    public Entry next() throws IOException {
+        String longName = null;
+        while (true) {
+            if (current != null) {
+                current.skipRest();
+                current = null;
+            }
+            int read = in.readNBytes(header, 0, BLOCK_SIZE);
+            if (read == 0 || isZeroBlock(header)) {
+                return null;
+            }
+            if (read < BLOCK_SIZE) {
+                throw new EOFException("Truncated tar header");
+            }
+            checkChecksum();
+
+            long size = parseSize();
+            byte type = header[156];
+            current = new EntryStream(size);
+            if (type == TYPE_GNU_LONG_NAME) {
+                longName = trimName(current.readAll());
+            } else if (type == TYPE_PAX_HEADER) {
+                String paxPath = paxPath(current.readAll());
+                if (paxPath != null) {
+                    longName = paxPath;
+                }
+            } else if (type == TYPE_FILE || type == TYPE_OLD_FILE || type == TYPE_CONTIGUOUS_FILE) {
+                String name = longName != null ? longName : headerName();
+                return new Entry(name, size, current);
+            } else {
+                // Directories are created with their files, other entry types are not staged
+                longName = null;
+            }
+        }
+    }
+
+    private String headerName() {
+        String name = field(0, 100);
+        boolean ustar = field(257, 5).equals("ustar");
+        String prefix = ustar ? field(345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private long parseSize() throws IOException {
+        if ((header[124] & 0x80) != 0) {
+            // Base-256 encoding for sizes above 8GB
+            long size = header[124] & 0x7F;
+            for (int i = 125; i < 136; i++) {
+                size = (size << 8) | (header[i] & 0xFF);
+            }
+            return size;
+        }
+        return parseOctal(124, 12);
+    }
+
+    private void checkChecksum() throws IOException {
+        long expected = parseOctal(148, 8);
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            // The checksum field itself counts as spaces
+            sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        if (sum != expected) {
+            throw new IOException("Corrupt tar header: checksum mismatch");
+        }
+    }
+
+    private long parseOctal(int offset, int length) throws IOException {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || (b == ' ' && value > 0)) {
+                break;
+            }
+            if (b == ' ') {
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("Corrupt tar header: invalid octal field");
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private String field(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static String trimName(byte[] content) {
+        int end = 0;
+        while (end < content.length && content[end] != 0) {
+            end++;
+        }
+        return new String(content, 0, end, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the path in pax records of the form "length key=value\n"
+     */
+    private static String paxPath(byte[] content) throws IOException {
+        String path = null;
+        int offset = 0;
+        while (offset < content.length) {
+            int space = offset;
+            while (space < content.length && content[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(content, offset, space - offset, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupt pax header", e);
+            }
+            if (length <= 0 || offset + length > content.length) {
+                throw new IOException("Corrupt pax header");
+            }
+            String record = new String(content, space + 1, offset + length - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith("path=")) {
+                path = record.substring("path=".length());
+            }
+            offset += length;
+        }
+        return path;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Content of one entry, followed by padding up to the next block
+     */
+    private final class EntryStream extends InputStream {
+        private final long padding;
+        private long remaining;
+
+        private EntryStream(long size) {
+            this.remaining = size;
+            this.padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException("Truncated tar entry");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        private byte[] readAll() throws IOException {
+            if (remaining > Integer.MAX_VALUE) {
+                throw new IOException("Tar header entry too large");
+            }
+            return readNBytes((int) remaining);
+        }
+
+        private void skipRest() throws IOException {
+            long left = remaining + padding;
+            remaining = 0;
+            in.skipNBytes(left);
+        }
+
+        @Override
+        public void close() {
+            // The archive stays open for the next entry
+        }
+    }
+
+    /**
+     * One file of the archive. The content stream is only valid until the next entry is read.
+     * @param path Path of the file inside the archive
+     * @param size Size of the content
+     * @param content Content of the file
+     */
+    public record Entry(String path, long size, InputStream content) {
+    }
+}
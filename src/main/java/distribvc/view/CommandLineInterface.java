@@ -2,15 +2,22 @@ package distribvc.view;
 
 
 import distribvc.controller.RepositoryController;
+import distribvc.diff.FileDiff;
 import distribvc.model.Commit;
 import distribvc.model.Repository;
 
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 public class CommandLineInterface {
+    private static final int LOG_PAGE_SIZE = 100;
+    private static final long DEFAULT_GC_GRACE_SECONDS = 3600;
+
     private final RepositoryController controller;
 
     public CommandLineInterface(RepositoryController controller) {
@@ -54,7 +61,8 @@ public class CommandLineInterface {
     }
 
     /**
-     * Commit staged changes
+     * Commit staged changes, or only the files named after the message
+     * Usage: commit -m "Commit message" [file...]
      * @param workingDirectory Current working directory
      * @param args Command line arguments
      */
@@ -62,14 +70,16 @@ public class CommandLineInterface {
         try {
             Repository repository = new Repository(workingDirectory);
             if (args.length < 3) {
-                System.err.println("Commit requires a message. Usage: commit -m \"Commit message\"");
+                System.err.println("Commit requires a message. Usage: commit -m \"Commit message\" [file...]");
                 System.exit(1);
             }
             String commitMessage = null;
+            List<Path> files = new ArrayList<>();
             for (int i = 2; i < args.length; i++) {
                 if (args[i].equals("-m") && i + 1 < args.length) {
-                    commitMessage = args[i + 1];
-                    break;
+                    commitMessage = args[++i];
+                } else {
+                    files.add(workingDirectory.resolve(args[i]).toAbsolutePath().normalize());
                 }
             }
             if (commitMessage == null) {
@@ -77,7 +87,7 @@ public class CommandLineInterface {
                 System.exit(1);
             }
             String author = System.getProperty("user.name");
-            Commit commit = controller.commit(repository, commitMessage, author);
+            Commit commit = controller.commit(repository, commitMessage, author, files.isEmpty() ? null : files);
             if (commit != null) {
                 System.out.println("Commit created: " + commit.getId());
                 System.out.println("Message: " + commit.getMessage());
@@ -127,28 +137,48 @@ public class CommandLineInterface {
     }
 
     /**
-     * Show commit log
+     * Show commit log, optionally only the commits changing a file or directory.
+     * Usage: log [path]
      * @param workingDirectory Current working directory
+     * @param args Command line arguments
      */
-    public void showLog(Path workingDirectory) {
+    public void showLog(Path workingDirectory, String[] args) {
         try {
             Repository repository = new Repository(workingDirectory);
-            List<Commit> commits = controller.getCommitLog(repository);
+            // Optional path limit; a bare -- cannot be used as a separator since Spring Boot rejects it
+            String path = null;
+            if (args.length > 2) {
+                Path limit = Paths.get(args[2]);
+                path = (limit.isAbsolute() ? workingDirectory.relativize(limit) : limit).toString();
+            }
             System.out.println("Commit History:");
             System.out.println("===============");
             DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-            for (Commit commit : commits) {
-                System.out.println("Commit: " + commit.getId());
-                System.out.println("Author: " + commit.getAuthor());
-                System.out.println("Date:   " + commit.getTimestamp().format(formatter));
-                System.out.println("Message: " + commit.getMessage());
-                System.out.println("Changes:");
-                commit.getChanges().forEach(change ->
-                        System.out.println("\t" + change.getChangeType() + ": " + change.getFilePath())
-                );
-                System.out.println("");
-            }
-            if (commits.isEmpty()) {
+
+            // Page through history newest first, so only one page of commits is held at a time
+            String after = null;
+            int total = 0;
+            List<Commit> commits;
+            do {
+                commits = controller.getCommitLog(repository, after, null, null, LOG_PAGE_SIZE, true, path);
+                for (Commit commit : commits) {
+                    System.out.println("Commit: " + commit.getId());
+                    System.out.println("Author: " + commit.getAuthor());
+                    System.out.println("Date:   " + commit.getTimestamp().format(formatter));
+                    System.out.println("Message: " + commit.getMessage());
+                    System.out.println("Changes:");
+                    commit.getChanges().forEach(change ->
+                            System.out.println("\t" + change.getChangeType() + ": " + change.getFilePath())
+                    );
+                    System.out.println("");
+                }
+                total += commits.size();
+                if (!commits.isEmpty()) {
+                    after = commits.get(commits.size() - 1).getId();
+                }
+            } while (commits.size() == LOG_PAGE_SIZE);
+
+            if (total == 0) {
                 System.out.println("No commits yet.");
             }
         } catch (Exception e) {
@@ -156,4 +186,344 @@ public class CommandLineInterface {
             System.exit(1);
         }
     }
+
+    /**
+     * Show differences in unified diff format.
+     * Usage: diff [--staged] | diff <commit> | diff <from> <to>
+     * @param workingDirectory Current working directory
+     * @param args Command line arguments
+     */
+    public void showDiff(Path workingDirectory, String[] args) {
+        try {
+            Repository repository = new Repository(workingDirectory);
+            List<FileDiff> diffs;
+            if (args.length > 2 && args[2].equals("--staged")) {
+                diffs = controller.diffStaged(repository);
+            } else if (args.length > 3) {
+                diffs = controller.diffCommits(repository, args[2], args[3]);
+            } else {
+                diffs = controller.diffWorkingTree(repository, args.length > 2 ? args[2] : null);
+            }
+
+            for (FileDiff diff : diffs) {
+                System.out.println("diff " + diff.getPath() + " [" + diff.getChangeType() + "]");
+                System.out.println("--- " + (diff.getOldHash() != null ? "a/" + diff.getPath() : "/dev/null"));
+                System.out.println("+++ " + (diff.getNewHash() != null ? "b/" + diff.getPath() : "/dev/null"));
+                if (diff.isBinary()) {
+                    System.out.println("Binary files differ");
+                }
+                for (FileDiff.Hunk hunk : diff.getHunks()) {
+                    System.out.println("@@ -" + hunk.getOldStart() + "," + hunk.getOldCount() +
+                            " +" + hunk.getNewStart() + "," + hunk.getNewCount() + " @@");
+                    hunk.getLines().forEach(System.out::println);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Could not compute diff: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Search file contents in history, or in one revision.
+     * Usage: grep [-i] [-E] [-p <path>] <pattern> [revision]
+     * @param workingDirectory Current working directory
+     * @param args Command line arguments
+     */
+    public void grep(Path workingDirectory, String[] args) {
+        try {
+            Repository repository = new Repository(workingDirectory);
+            boolean ignoreCase = false;
+            boolean regex = false;
+            String pattern = null;
+            String rev = null;
+            String path = null;
+            for (int i = 2; i < args.length; i++) {
+                if (pattern == null && args[i].equals("-p") && i + 1 < args.length) {
+                    Path limit = Paths.get(args[++i]);
+                    path = (limit.isAbsolute() ? workingDirectory.relativize(limit) : limit).toString();
+                } else if (pattern == null && args[i].equals("-i")) {
+                    ignoreCase = true;
+                } else if (pattern == null && args[i].equals("-E")) {
+                    regex = true;
+                } else if (pattern == null) {
+                    pattern = args[i];
+                } else {
+                    rev = args[i];
+                }
+            }
+            if (pattern == null) {
+                System.err.println("Grep requires a pattern. Usage: grep [-i] [-E] [-p <path>] <pattern> [revision]");
+                System.exit(1);
+            }
+
+            RepositoryController.SearchResult result = controller.search(repository, pattern, regex, ignoreCase,
+                    rev, path, 0);
+            for (RepositoryController.SearchMatch match : result.getMatches()) {
+                System.out.println(match.getCommitId().substring(0, 8) + " " + match.getPath() + ":" +
+                        match.getLineNumber() + ": " + match.getLine());
+            }
+            if (result.getMatches().isEmpty()) {
+                System.out.println("No matches.");
+            }
+        } catch (Exception e) {
+            System.err.println("Search failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Show the commit that last changed each line of a file.
+     * Usage: blame <file> [revision]
+     * @param workingDirectory Current working directory
+     * @param args Command line arguments
+     */
+    public void blame(Path workingDirectory, String[] args) {
+        if (args.length < 3) {
+            System.err.println("Blame requires a file. Usage: blame <file> [revision]");
+            System.exit(1);
+        }
+        try {
+            Repository repository = new Repository(workingDirectory);
+            Path file = Paths.get(args[2]);
+            String path = (file.isAbsolute() ? workingDirectory.relativize(file) : file).toString();
+            RepositoryController.BlameResult result = controller.blame(repository, path, args.length > 3 ? args[3] : null);
+
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            int authorWidth = result.getLines().stream()
+                    .mapToInt(line -> String.valueOf(line.getAuthor()).length())
+                    .max().orElse(1);
+            int numberWidth = String.valueOf(result.getLines().size()).length();
+            for (RepositoryController.BlameLine line : result.getLines()) {
+                System.out.println(line.getCommitId().substring(0, 8) + " (" +
+                        String.format("%-" + Math.max(authorWidth, 1) + "s", line.getAuthor()) + " " +
+                        line.getTimestamp().format(formatter) + " " +
+                        String.format("%" + numberWidth + "d", line.getLineNumber()) + ") " + line.getLine());
+            }
+        } catch (Exception e) {
+            System.err.println("Could not blame file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * List branches, or create a branch at the current head.
+     * Usage: branch [name]
+     * @param workingDirectory Current working directory
+     * @param args Command line arguments
+     */
+    public void branch(Path workingDirectory, String[] args) {
+        try {
+            Repository repository = new Repository(workingDirectory);
+            if (args.length > 2) {
+                repository.createBranch(args[2]);
+                System.out.println("Created branch " + args[2]);
+                return;
+            }
+            String current = repository.getCurrentBranch().getName();
+            repository.getBranches().keySet().stream().sorted().forEach(name ->
+                    System.out.println((name.equals(current) ? "* " : "  ") + name));
+        } catch (Exception e) {
+            System.err.println("Branch operation failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Switch branches, updating the working tree.
+     * Usage: checkout [-b] <branch>
+     * @param workingDirectory Current working directory
+     * @param args Command line arguments
+     */
+    public void checkout(Path workingDirectory, String[] args) {
+        try {
+            Repository repository = new Repository(workingDirectory);
+            boolean create = args.length > 3 && args[2].equals("-b");
+            if (args.length < 3 || (args[2].equals("-b") && !create)) {
+                System.err.println("Checkout requires a branch. Usage: checkout [-b] <branch>");
+                System.exit(1);
+            }
+            String branchName = create ? args[3] : args[2];
+            if (create) {
+                repository.createBranch(branchName);
+            }
+            RepositoryController.CheckoutResult result = controller.checkout(repository, branchName);
+            System.out.println("Switched to branch " + result.getBranch() + " (" + result.getWrittenFiles() +
+                    " files written, " + result.getDeletedFiles() + " deleted)");
+        } catch (Exception e) {
+            System.err.println("Checkout failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Merge a branch into the current branch.
+     * Usage: merge <branch>
+     * @param workingDirectory Current working directory
+     * @param args Command line arguments
+     */
+    public void merge(Path workingDirectory, String[] args) {
+        try {
+            Repository repository = new Repository(workingDirectory);
+            if (args.length < 3) {
+                System.err.println("Merge requires a branch. Usage: merge <branch>");
+                System.exit(1);
+            }
+            RepositoryController.MergeResult result = controller.merge(repository, args[2],
+                    System.getProperty("user.name"));
+            switch (result.getStatus()) {
+                case UP_TO_DATE -> System.out.println("Already up to date.");
+                case FAST_FORWARD -> System.out.println("Fast-forward to " + result.getHeadCommitId() +
+                        " (" + result.getUpdatedFiles() + " files updated)");
+                case MERGED -> System.out.println("Merge commit created: " + result.getHeadCommitId() +
+                        " (" + result.getUpdatedFiles() + " files updated)");
+                case CONFLICTS -> {
+                    System.out.println("Automatic merge failed; fix conflicts, stage the files and commit.");
+                    result.getConflicts().forEach(path -> System.out.println("\tCONFLICT: " + path));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Merge failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Create a repository from a remote one.
+     * Usage: clone <directory> <url>
+     * @param workingDirectory Directory for the new repository
+     * @param args Command line arguments
+     */
+    public void cloneRepository(Path workingDirectory, String[] args) {
+        try {
+            if (args.length < 3) {
+                System.err.println("Clone requires a URL. Usage: clone <directory> <url>");
+                System.exit(1);
+            }
+            RepositoryController.SyncResult result = controller.cloneRepository(args[2], workingDirectory);
+            System.out.println("Cloned " + args[2] + " into " + workingDirectory + ": " + result.getCommits() +
+                    " commits, " + result.getObjects() + " objects (" + result.getBytesReceived() + " bytes received)");
+        } catch (Exception e) {
+            System.err.println("Clone failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Fetch from a remote and update the remote-tracking refs.
+     * Usage: fetch [remote]
+     * @param workingDirectory Current working directory
+     * @param args Command line arguments
+     */
+    public void fetch(Path workingDirectory, String[] args) {
+        try {
+            Repository repository = new Repository(workingDirectory);
+            String remote = args.length > 2 ? args[2] : "origin";
+            RepositoryController.SyncResult result = controller.fetch(repository, remote);
+            System.out.println("Fetched " + result.getCommits() + " commits, " + result.getObjects() +
+                    " objects from " + remote + " (" + result.getBytesReceived() + " bytes received)");
+            result.getBranches().forEach((branch, head) ->
+                    System.out.println("  " + remote + "/" + branch + " -> " + head));
+        } catch (Exception e) {
+            System.err.println("Fetch failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Push a branch to a remote.
+     * Usage: push [remote] [branch]
+     * @param workingDirectory Current working directory
+     * @param args Command line arguments
+     */
+    public void push(Path workingDirectory, String[] args) {
+        try {
+            Repository repository = new Repository(workingDirectory);
+            String remote = args.length > 2 ? args[2] : "origin";
+            String branch = args.length > 3 ? args[3] : repository.getCurrentBranch().getName();
+            RepositoryController.SyncResult result = controller.push(repository, remote, branch);
+            if (result.getCommits() == 0) {
+                System.out.println("Everything up to date.");
+                return;
+            }
+            System.out.println("Pushed " + result.getCommits() + " commits, " + result.getObjects() +
+                    " objects to " + remote + "/" + branch + " (" + result.getBytesSent() + " bytes sent)");
+        } catch (Exception e) {
+            System.err.println("Push failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * List remotes or add one.
+     * Usage: remote [add <name> <url>]
+     * @param workingDirectory Current working directory
+     * @param args Command line arguments
+     */
+    public void remote(Path workingDirectory, String[] args) {
+        try {
+            Repository repository = new Repository(workingDirectory);
+            if (args.length > 2) {
+                if (!args[2].equals("add") || args.length < 5) {
+                    System.err.println("Usage: remote [add <name> <url>]");
+                    System.exit(1);
+                }
+                controller.addRemote(repository, args[3], args[4]);
+                System.out.println("Added remote " + args[3]);
+                return;
+            }
+            for (String name : repository.getRemoteNames()) {
+                System.out.println(name + "\t" + repository.getRemoteUrl(name));
+            }
+        } catch (Exception e) {
+            System.err.println("Remote operation failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Pack loose commits and objects
+     * @param workingDirectory Current working directory
+     */
+    public void repack(Path workingDirectory) {
+        try {
+            Repository repository = new Repository(workingDirectory);
+            RepositoryController.RepackResult result = controller.repack(repository);
+            if (result.getObjects() == 0) {
+                System.out.println("Nothing to pack.");
+                return;
+            }
+            System.out.println("Packed " + result.getCommits() + " commits, " + result.getObjects() +
+                    " objects (" + result.getDeltas() + " deltas)");
+            System.out.println("Size: " + result.getBytesBefore() + " -> " + result.getBytesAfter() + " bytes");
+        } catch (Exception e) {
+            System.err.println("Repack failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Remove unreachable commits and objects
+     * @param workingDirectory Current working directory
+     * @param args Command arguments, optionally --grace followed by seconds to keep new unreachable data
+     */
+    public void gc(Path workingDirectory, String[] args) {
+        try {
+            long graceSeconds = DEFAULT_GC_GRACE_SECONDS;
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].equals("--grace") && i + 1 < args.length) {
+                    graceSeconds = Long.parseLong(args[++i]);
+                }
+            }
+
+            Repository repository = new Repository(workingDirectory);
+            RepositoryController.GcResult result = controller.gc(repository, Duration.ofSeconds(graceSeconds));
+            System.out.println("Kept " + result.getReachableCommits() + " commits, " + result.getLiveObjects() + " objects");
+            System.out.println("Removed " + result.getRemovedCommits() + " commits, " + result.getRemovedObjects() +
+                    " objects, " + result.getRemovedTempFiles() + " temporary files (" + result.getBytesFreed() + " bytes)");
+        } catch (Exception e) {
+            System.err.println("Garbage collection failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
 }
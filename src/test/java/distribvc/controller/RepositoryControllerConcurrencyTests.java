@@ -0,0 +1,210 @@
+package distribvc.controller;
+
+import distribvc.config.GsonConfig;
+import distribvc.model.Commit;
+import distribvc.model.Repository;
+import distribvc.service.TreeScanner;
+import distribvc.storage.PathLocks;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stress tests for requests racing on the same and on different repositories
+ */
+class RepositoryControllerConcurrencyTests {
+    private static final Logger logger = LoggerFactory.getLogger(RepositoryControllerConcurrencyTests.class);
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 20;
+
+    @TempDir
+    Path tempDir;
+
+    private RepositoryController controller;
+
+    @BeforeEach
+    void setUp() {
+        controller = new RepositoryController(new GsonConfig().gson(), new TreeScanner(true, 0), 0, "binary", 1 << 20, 200);
+    }
+
+    @Test
+    void concurrentCommitsFormOneLinearHistory() throws Exception {
+        Path root = tempDir.resolve("repo");
+        controller.initRepository(root);
+
+        // Every thread uses its own handle, as requests do once the registry reloads a changed repository
+        runAll(THREADS, thread -> {
+            Repository repository = new Repository(root);
+            Path file = root.resolve("file" + thread + ".txt");
+            for (int i = 0; i < COMMITS_PER_THREAD; i++) {
+                Files.writeString(file, "thread " + thread + " version " + i + "\n");
+                assertNotNull(controller.commit(repository, "commit " + i, "thread" + thread, List.of(file)));
+            }
+            return null;
+        });
+
+        Repository repository = new Repository(root);
+        List<Commit> log = controller.getCommitLog(repository, null, null, null, 0, true, null);
+        assertEquals(THREADS * COMMITS_PER_THREAD, log.size());
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < log.size(); i++) {
+            Commit commit = log.get(i);
+            assertTrue(ids.add(commit.getId()));
+            assertEquals(1, commit.getChanges().size());
+            if (i + 1 < log.size()) {
+                assertEquals(log.get(i + 1).getId(), commit.getParentCommitID());
+            }
+        }
+        assertEquals(log.get(0).getId(), repository.getCurrentBranch().getHeadCommitID());
+        assertTrue(controller.getRepositoryStatus(repository).getUnstagedFiles().values().stream()
+                .noneMatch(status -> status == RepositoryController.RepositoryStatus.FileStatus.MODIFIED));
+    }
+
+    @Test
+    void concurrentStagingKeepsEveryFile() throws Exception {
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+
+        runAll(THREADS, thread -> {
+            for (int i = 0; i < COMMITS_PER_THREAD; i++) {
+                Path file = root.resolve("file" + thread + "-" + i + ".txt");
+                Files.writeString(file, "thread " + thread + " file " + i + "\n");
+                controller.stageFiles(repository, file);
+            }
+            return null;
+        });
+
+        Commit commit = controller.commit(repository, "everything", "tester");
+        assertEquals(THREADS * COMMITS_PER_THREAD, commit.getChanges().size());
+    }
+
+    @Test
+    void repositoriesDoNotBlockEachOther() throws Exception {
+        Repository first = controller.initRepository(tempDir.resolve("a"));
+        Repository second = controller.initRepository(tempDir.resolve("b"));
+        Files.writeString(first.getRootPath().resolve("file.txt"), "first\n");
+        Files.writeString(second.getRootPath().resolve("file.txt"), "second\n");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (PathLocks.Lock indexLock = first.lockIndex();
+             PathLocks.Lock branchLock = first.lockBranch("master");
+             PathLocks.Lock historyLock = first.lockHistory()) {
+            Future<Commit> blocked = executor.submit(() -> controller.commit(first, "first", "tester",
+                    List.of(first.getRootPath().resolve("file.txt"))));
+            Future<Commit> independent = executor.submit(() -> controller.commit(second, "second", "tester",
+                    List.of(second.getRootPath().resolve("file.txt"))));
+
+            assertNotNull(independent.get(30, TimeUnit.SECONDS));
+            assertThrows(TimeoutException.class, () -> blocked.get(200, TimeUnit.MILLISECONDS));
+            indexLock.close();
+            branchLock.close();
+            historyLock.close();
+            assertNotNull(blocked.get(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void moveOfBranchBySomeoneElseIsRejected() throws Exception {
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+        Files.writeString(root.resolve("file.txt"), "one\n");
+        Commit first = controller.commit(repository, "first", "tester", List.of(root.resolve("file.txt")));
+
+        assertThrows(IllegalStateException.class, () -> repository.updateBranchHead("master", null, first.getId()));
+        repository.updateBranchHead("master", first.getId(), first.getId());
+        assertEquals(first.getId(), repository.readBranchHead("master"));
+    }
+
+    @Test
+    void commitsToOneAndToSeveralRepositoriesAllLand() throws Exception {
+        int repositories = 4;
+        int total = THREADS * COMMITS_PER_THREAD;
+        Path single = tempDir.resolve("single");
+        controller.initRepository(single);
+        for (int i = 0; i < repositories; i++) {
+            controller.initRepository(tempDir.resolve("repo" + i));
+        }
+
+        long sameStart = System.nanoTime();
+        runAll(THREADS, thread -> commitRepeatedly(single, thread, total / THREADS));
+        long sameNanos = System.nanoTime() - sameStart;
+
+        long spreadStart = System.nanoTime();
+        runAll(THREADS, thread -> commitRepeatedly(tempDir.resolve("repo" + thread % repositories), thread, total / THREADS));
+        long spreadNanos = System.nanoTime() - spreadStart;
+
+        // Only logged: the rates depend on the machine, so they are for comparison by hand
+        logger.info("{} commits from {} threads: {} commits/s on one repository, {} commits/s across {} repositories",
+                total, THREADS, total * 1_000_000_000L / sameNanos, total * 1_000_000_000L / spreadNanos, repositories);
+        assertEquals(total, controller.getCommitLog(new Repository(single), null, null, null, 0, false, null).size());
+        int spreadCommits = 0;
+        for (int i = 0; i < repositories; i++) {
+            Repository repository = new Repository(tempDir.resolve("repo" + i));
+            spreadCommits += controller.getCommitLog(repository, null, null, null, 0, false, null).size();
+        }
+        assertEquals(total, spreadCommits);
+    }
+
+    private Void commitRepeatedly(Path root, int thread, int commits) throws Exception {
+        Repository repository = new Repository(root);
+        Path file = root.resolve("file" + thread + ".txt");
+        for (int i = 0; i < commits; i++) {
+            Files.writeString(file, "thread " + thread + " version " + i + "\n");
+            controller.commit(repository, "commit " + i, "thread" + thread, List.of(file));
+        }
+        return null;
+    }
+
+    /**
+     * Run a task on several threads at once and rethrow the first failure
+     */
+    private static void runAll(int threads, ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                int id = thread;
+                Callable<Void> callable = () -> {
+                    start.await();
+                    return task.run(id);
+                };
+                futures.add(executor.submit(callable));
+            }
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get(5, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ThreadTask {
+        Void run(int thread) throws Exception;
+    }
+}
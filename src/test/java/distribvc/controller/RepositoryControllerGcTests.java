@@ -0,0 +1,130 @@
+package distribvc.controller;
+
+import distribvc.config.GsonConfig;
+import distribvc.model.Commit;
+import distribvc.model.Repository;
+import distribvc.service.TreeScanner;
+import distribvc.storage.ObjectStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Garbage collection of loose and packed commits and objects
+ */
+class RepositoryControllerGcTests {
+    @TempDir
+    Path tempDir;
+
+    private final RepositoryController controller = new RepositoryController(new GsonConfig().gson(),
+            new TreeScanner(true, 0), 0, "binary", 1 << 20, 200);
+
+    @Test
+    void removesUnreachableLooseFilesAfterGracePeriod() throws Exception {
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+        Commit kept = commit(repository, root.resolve("kept.txt"), "kept\n");
+        Commit dropped = commitOnAbandonedBranch(repository, root.resolve("dropped.txt"), "dropped\n", kept);
+        ObjectStore objectStore = objectStore(repository);
+        String orphan = objectStore.store("orphan\n".getBytes(StandardCharsets.UTF_8));
+        Files.writeString(root.resolve("staged.txt"), "staged\n");
+        controller.stageFiles(repository, root.resolve("staged.txt"));
+        String staged = ObjectStore.hash("staged\n".getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(20);
+
+        // Everything is younger than the grace period
+        RepositoryController.GcResult young = controller.gc(repository, Duration.ofHours(1));
+        assertEquals(0, young.getRemovedCommits());
+        assertEquals(0, young.getRemovedObjects());
+        assertTrue(controller.hasCommit(repository, dropped.getId()));
+
+        RepositoryController.GcResult result = controller.gc(repository, Duration.ZERO);
+        assertEquals(1, result.getRemovedCommits());
+        assertEquals(2, result.getRemovedObjects());
+        assertFalse(controller.hasCommit(repository, dropped.getId()));
+        assertEquals(List.of(hashOf(dropped), orphan), controller.missingObjects(repository,
+                List.of(hashOf(dropped), orphan, hashOf(kept), staged)));
+
+        // What is reachable or staged still reads, and the staged file can be committed
+        assertArrayEquals("kept\n".getBytes(StandardCharsets.UTF_8), objectStore.read(hashOf(kept)));
+        Commit next = controller.commit(repository, "staged", "tester");
+        assertEquals(List.of(kept.getId(), next.getId()), ids(controller.getCommitLog(repository)));
+        assertArrayEquals("staged\n".getBytes(StandardCharsets.UTF_8), objectStore.read(staged));
+    }
+
+    @Test
+    void compactsPacksHoldingUnreachableEntries() throws Exception {
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+        Commit kept = commit(repository, root.resolve("kept.txt"), "kept\n");
+        Files.writeString(root.resolve("kept.txt"), "kept again\n");
+        Commit head = controller.commit(repository, "second", "tester", List.of(root.resolve("kept.txt")));
+        Commit dropped = commitOnAbandonedBranch(repository, root.resolve("dropped.txt"), "dropped\n", head);
+        controller.repack(repository);
+        RepositoryController.StorageStats packed = controller.getStorageStats(repository);
+        assertEquals(1, packed.getPacks());
+        assertEquals(0, packed.getLooseCommits());
+        Thread.sleep(20);
+
+        RepositoryController.GcResult result = controller.gc(repository, Duration.ZERO);
+        assertEquals(1, result.getPacksRewritten());
+        assertEquals(1, result.getRemovedCommits());
+        assertEquals(1, result.getRemovedObjects());
+        assertFalse(controller.hasCommit(repository, dropped.getId()));
+        assertEquals(List.of(hashOf(dropped)), controller.missingObjects(repository,
+                List.of(hashOf(dropped), hashOf(kept), hashOf(head))));
+
+        // The replacement pack holds the reachable history, deltas included
+        assertEquals(1, controller.getStorageStats(repository).getPacks());
+        ObjectStore objectStore = objectStore(repository);
+        assertArrayEquals("kept\n".getBytes(StandardCharsets.UTF_8), objectStore.read(hashOf(kept)));
+        assertArrayEquals("kept again\n".getBytes(StandardCharsets.UTF_8), objectStore.read(hashOf(head)));
+        assertEquals(List.of(kept.getId(), head.getId()), ids(controller.getCommitLog(controller.loadRepository(root))));
+
+        // Nothing is left to collect
+        RepositoryController.GcResult again = controller.gc(repository, Duration.ZERO);
+        assertEquals(0, again.getPacksRewritten());
+        assertEquals(0, again.getRemovedCommits());
+    }
+
+    private Commit commit(Repository repository, Path file, String content) throws Exception {
+        Files.writeString(file, content);
+        return controller.commit(repository, "add " + file.getFileName(), "tester", List.of(file));
+    }
+
+    /**
+     * Commit a file on a new branch, then move the branch back so the commit is unreachable
+     */
+    private Commit commitOnAbandonedBranch(Repository repository, Path file, String content, Commit base)
+            throws Exception {
+        repository.createBranch("abandoned");
+        controller.checkout(repository, "abandoned");
+        Commit commit = commit(repository, file, content);
+        controller.checkout(repository, "master");
+        repository.updateBranchHead("abandoned", commit.getId(), base.getId());
+        assertFalse(Files.exists(file));
+        return commit;
+    }
+
+    private static ObjectStore objectStore(Repository repository) {
+        return new ObjectStore(repository.getRepoPath().resolve("objects"), repository.getPackStore());
+    }
+
+    private static String hashOf(Commit commit) {
+        return commit.getChanges().get(0).getContentHash();
+    }
+
+    private static List<String> ids(List<Commit> commits) {
+        return commits.stream().map(Commit::getId).toList();
+    }
+}
@@ -0,0 +1,70 @@
+package distribvc.controller;
+
+import distribvc.config.GsonConfig;
+import distribvc.model.Repository;
+import distribvc.service.TreeScanner;
+import distribvc.storage.Index;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Staging files by name, by directory and by glob pattern
+ */
+class RepositoryControllerStagingTests {
+    @TempDir
+    Path tempDir;
+
+    private final RepositoryController controller = new RepositoryController(new GsonConfig().gson(),
+            new TreeScanner(true, 0), 0, "binary", 1 << 20, 200);
+
+    @Test
+    void globPatternsStageMatchingFiles() throws Exception {
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+        Files.createDirectories(root.resolve("docs"));
+        Files.writeString(root.resolve("docs/a.md"), "a\n");
+        Files.writeString(root.resolve("docs/b.md"), "b\n");
+        Files.writeString(root.resolve("docs/c.txt"), "c\n");
+
+        controller.stageFiles(repository, root.resolve("docs/*.md"));
+        assertEquals(List.of(Paths.get("docs/a.md"), Paths.get("docs/b.md")), stagedPaths(repository));
+    }
+
+    @Test
+    void existingPathsWithWildcardCharactersAreLiteral() throws Exception {
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+        Files.createDirectories(root.resolve("docs"));
+        Path draft = Files.writeString(root.resolve("docs/[draft].md"), "draft\n");
+        // Would match the pattern [draft].md if it were read as a glob
+        Files.writeString(root.resolve("docs/d.md"), "d\n");
+
+        controller.stageFiles(repository, draft);
+        assertEquals(List.of(Paths.get("docs/[draft].md")), stagedPaths(repository));
+
+        // A tracked file with such a name stages its deletion by name as well
+        controller.commit(repository, "draft", "tester");
+        Files.delete(draft);
+        controller.stageFiles(repository, draft);
+        Index.Entry entry = index(repository).get(Paths.get("docs/[draft].md"));
+        assertTrue(entry.isStaged() && entry.isDeleted());
+        assertNull(index(repository).get(Paths.get("docs/d.md")));
+    }
+
+    private static Index index(Repository repository) throws Exception {
+        return Index.load(repository.getRepoPath().resolve("index"));
+    }
+
+    private static List<Path> stagedPaths(Repository repository) throws Exception {
+        return index(repository).getStagedEntries().stream().map(Index.Entry::getPath).toList();
+    }
+}
@@ -0,0 +1,139 @@
+package distribvc.controller;
+
+import com.google.gson.Gson;
+import distribvc.model.Commit;
+import distribvc.model.FileChange;
+import distribvc.model.Repository;
+import distribvc.storage.BinaryCommitCodec;
+import distribvc.storage.ObjectStore;
+import distribvc.sync.SyncClient;
+import distribvc.sync.SyncPack;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Clone, fetch and push against this server over loopback
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class SyncRestControllerTests {
+    private static final int FILES = 8;
+    private static final int FILE_BYTES = 32 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @LocalServerPort
+    int port;
+
+    @Autowired
+    RepositoryController controller;
+
+    @Autowired
+    Gson gson;
+
+    @Test
+    void cloneFetchAndPushTransferOnlyWhatIsMissing() throws Exception {
+        Path originRoot = tempDir.resolve("origin");
+        Repository origin = controller.initRepository(originRoot);
+        Random random = new Random(1);
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            // Random content, so compression cannot hide how much is sent
+            byte[] content = new byte[FILE_BYTES];
+            random.nextBytes(content);
+            files.add(Files.write(originRoot.resolve("file" + i + ".txt"), Base64.getEncoder().encode(content)));
+        }
+        controller.commit(origin, "initial", "tester", files);
+
+        Path cloneRoot = tempDir.resolve("clone");
+        RepositoryController.SyncResult cloned = controller.cloneRepository(url(originRoot), cloneRoot);
+        assertEquals(1, cloned.getCommits());
+        assertEquals(FILES, cloned.getObjects());
+        assertTrue(cloned.getBytesReceived() > FILES * FILE_BYTES, "A clone receives every file");
+        for (int i = 0; i < FILES; i++) {
+            assertEquals(Files.readString(originRoot.resolve("file" + i + ".txt")),
+                    Files.readString(cloneRoot.resolve("file" + i + ".txt")));
+        }
+
+        // Two small commits on the origin cost the fetch a few kilobytes, not the whole history
+        Files.writeString(originRoot.resolve("small.txt"), "one\n");
+        controller.commit(origin, "second", "tester", List.of(originRoot.resolve("small.txt")));
+        Files.writeString(originRoot.resolve("small.txt"), "two\n");
+        Commit originHead = controller.commit(origin, "third", "tester", List.of(originRoot.resolve("small.txt")));
+
+        Repository clone = controller.loadRepository(cloneRoot);
+        RepositoryController.SyncResult fetched = controller.fetch(clone, "origin");
+        assertEquals(2, fetched.getCommits());
+        assertEquals(2, fetched.getObjects());
+        assertTrue(fetched.getBytesReceived() < 16 * 1024, "Fetch received " + fetched.getBytesReceived() + " bytes");
+        assertEquals(RepositoryController.MergeResult.Status.FAST_FORWARD,
+                controller.merge(clone, "origin/master", "tester").getStatus());
+        assertEquals("two\n", Files.readString(cloneRoot.resolve("small.txt")));
+
+        Files.writeString(cloneRoot.resolve("pushed.txt"), "from the clone\n");
+        Commit pushed = controller.commit(clone, "pushed", "tester", List.of(cloneRoot.resolve("pushed.txt")));
+        RepositoryController.SyncResult result = controller.push(clone, "origin", "master");
+        assertEquals(1, result.getCommits());
+        assertEquals(1, result.getObjects());
+        assertTrue(result.getBytesSent() < 16 * 1024, "Push sent " + result.getBytesSent() + " bytes");
+
+        Repository reloaded = controller.loadRepository(originRoot);
+        assertEquals(pushed.getId(), reloaded.readBranchHead("master"));
+        assertEquals(originHead.getId(), pushed.getParentCommitID());
+        assertEquals("from the clone\n", Files.readString(originRoot.resolve("pushed.txt")));
+    }
+
+    @Test
+    void pushWithPathOutsideWorkingTreeIsRejected() throws Exception {
+        Path originRoot = tempDir.resolve("origin");
+        Repository origin = controller.initRepository(originRoot);
+        Files.writeString(originRoot.resolve("file.txt"), "content\n");
+        Commit head = controller.commit(origin, "initial", "tester", List.of(originRoot.resolve("file.txt")));
+
+        byte[] content = "escaped\n".getBytes(StandardCharsets.UTF_8);
+        String hash = ObjectStore.hash(content);
+        Commit evil = new Commit("evil", head.getId(), List.of(
+                new FileChange(Paths.get("../escaped.txt"), FileChange.ChangeType.ADDED, hash)), "attacker");
+        ByteArrayOutputStream commitBytes = new ByteArrayOutputStream();
+        new BinaryCommitCodec().encode(evil, commitBytes);
+
+        Path packFile = tempDir.resolve("evil.pack");
+        try (SyncPack.Writer writer = new SyncPack.Writer(Files.newOutputStream(packFile))) {
+            writer.add(SyncPack.TYPE_OBJECT, hash, content);
+            writer.add(SyncPack.TYPE_COMMIT, evil.getId(), commitBytes.toByteArray());
+            writer.finish();
+        }
+
+        SyncClient client = new SyncClient(url(originRoot), gson);
+        IOException rejected = assertThrows(IOException.class,
+                () -> client.push(packFile, "master", head.getId(), evil.getId()));
+        assertTrue(rejected.getMessage().contains("Could not receive push"), rejected.getMessage());
+        Repository reloaded = controller.loadRepository(originRoot);
+        assertEquals(head.getId(), reloaded.readBranchHead("master"));
+        assertEquals(1, controller.getCommitLog(reloaded).size());
+        assertFalse(Files.exists(tempDir.resolve("escaped.txt")));
+    }
+
+    private String url(Path root) {
+        return "http://localhost:" + port + root.toAbsolutePath().toUri().getRawPath();
+    }
+}
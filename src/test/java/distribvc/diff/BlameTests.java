@@ -0,0 +1,155 @@
+package distribvc.diff;
+
+import distribvc.config.GsonConfig;
+import distribvc.controller.RepositoryController;
+import distribvc.model.Commit;
+import distribvc.model.Repository;
+import distribvc.service.TreeScanner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Line origins across versions of a file, and blame through a repository
+ */
+class BlameTests {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void originsFollowModifyInsertAndDelete() {
+        Blame blame = new Blame();
+        blame.advance(bytes("a\nb\nc\n"), 0);
+        assertArrayEquals(new int[]{0, 0, 0}, blame.getOrigins());
+
+        // Modify b, append d
+        blame.advance(bytes("a\nB\nc\nd\n"), 1);
+        assertArrayEquals(new int[]{0, 1, 0, 1}, blame.getOrigins());
+
+        // Insert at the top, delete c
+        blame.advance(bytes("x\na\nB\nd\n"), 2);
+        assertArrayEquals(new int[]{2, 0, 1, 1}, blame.getOrigins());
+
+        // An unchanged version changes nothing
+        blame.advance(bytes("x\na\nB\nd\n"), 3);
+        assertArrayEquals(new int[]{2, 0, 1, 1}, blame.getOrigins());
+        assertEquals("x\na\nB\nd\n", new String(blame.getContent(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void originsInLongFiles() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            lines.add("line " + i);
+        }
+        Blame blame = new Blame();
+        blame.advance(bytes(String.join("\n", lines) + "\n"), 0);
+
+        // Changes far apart, with long unchanged runs between them
+        lines.set(100, "changed");
+        lines.add(300, "inserted");
+        lines.remove(450);
+        blame.advance(bytes(String.join("\n", lines) + "\n"), 1);
+
+        int[] origins = blame.getOrigins();
+        assertEquals(lines.size(), origins.length);
+        for (int i = 0; i < origins.length; i++) {
+            int expected = i == 100 || i == 300 ? 1 : 0;
+            assertEquals(expected, origins[i], "line " + i);
+        }
+    }
+
+    @Test
+    void startingFromKnownOrigins() {
+        Blame blame = new Blame(bytes("a\nb\n"), new int[]{4, 5});
+        blame.advance(bytes("a\nb\nc\n"), 6);
+        assertArrayEquals(new int[]{4, 5, 6}, blame.getOrigins());
+        assertThrows(IllegalArgumentException.class, () -> new Blame(bytes("a\nb\n"), new int[]{1}));
+    }
+
+    @Test
+    void blameAcrossCommitsReusesEarlierResults() throws Exception {
+        RepositoryController controller = controller();
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+        Path file = root.resolve("notes.txt");
+        Commit first = commit(controller, repository, file, "a\nb\nc\n");
+        Commit second = commit(controller, repository, file, "a\nB\nc\n");
+        Commit third = commit(controller, repository, file, "x\na\nB\nc\n");
+
+        RepositoryController.BlameResult earlier = controller.blame(repository, "notes.txt", second.getId());
+        assertEquals(List.of(first.getId(), second.getId(), first.getId()), origins(earlier));
+
+        // The cached origins of the second version are carried on by one more diff
+        RepositoryController.BlameResult cached = controller.blame(repository, "notes.txt", null);
+        RepositoryController.BlameResult fresh = controller().blame(repository, "notes.txt", null);
+        assertEquals(List.of(third.getId(), first.getId(), second.getId(), first.getId()), origins(cached));
+        assertEquals(origins(fresh), origins(cached));
+        assertEquals("B", cached.getLines().get(2).getLine());
+        assertEquals(3, cached.getLines().get(2).getLineNumber());
+    }
+
+    @Test
+    void linesBroughtInByMergeBelongToTheMerge() throws Exception {
+        RepositoryController controller = controller();
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+        Path file = root.resolve("notes.txt");
+        Commit first = commit(controller, repository, file, "a\nb\nc\n");
+
+        repository.createBranch("feature");
+        controller.checkout(repository, "feature");
+        commit(controller, repository, file, "A\nb\nc\n");
+        controller.checkout(repository, "master");
+        commit(controller, repository, root.resolve("other.txt"), "other\n");
+
+        RepositoryController.MergeResult merged = controller.merge(repository, "feature", "tester");
+        assertEquals(RepositoryController.MergeResult.Status.MERGED, merged.getStatus());
+        RepositoryController.BlameResult blame = controller.blame(repository, "notes.txt", null);
+        assertEquals(List.of(merged.getHeadCommitId(), first.getId(), first.getId()), origins(blame));
+    }
+
+    @Test
+    void binaryFilesAreRejected() throws Exception {
+        RepositoryController controller = controller();
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+        Path file = root.resolve("image.bin");
+        Files.write(file, new byte[]{1, 0, 2, 0});
+        controller.commit(repository, "binary", "tester", List.of(file));
+
+        assertThrows(IllegalArgumentException.class, () -> controller.blame(repository, "image.bin", null));
+        assertThrows(IllegalArgumentException.class, () -> controller.blame(repository, "missing.txt", null));
+    }
+
+    private static RepositoryController controller() {
+        return new RepositoryController(new GsonConfig().gson(), new TreeScanner(true, 0), 0, "binary", 1 << 20, 200);
+    }
+
+    private static Commit commit(RepositoryController controller, Repository repository, Path file, String content)
+            throws Exception {
+        Files.writeString(file, content);
+        return controller.commit(repository, "change " + file.getFileName(), "tester", List.of(file));
+    }
+
+    private static List<String> origins(RepositoryController.BlameResult blame) {
+        List<String> origins = new ArrayList<>();
+        for (RepositoryController.BlameLine line : blame.getLines()) {
+            origins.add(line.getCommitId());
+        }
+        return origins;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,113 @@
+package distribvc.diff;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Edit scripts of the line diff, including the cost cutoff for very different inputs
+ */
+class MyersDiffTests {
+    @Test
+    void emptyInputs() {
+        assertTrue(MyersDiff.diff(List.of(), List.of()).isEmpty());
+        assertEdits(List.of(), List.of("a", "b"), new int[][]{{0, 0, 0, 2}});
+        assertEdits(List.of("a", "b"), List.of(), new int[][]{{0, 2, 0, 0}});
+    }
+
+    @Test
+    void identicalInputsHaveNoEdits() {
+        List<String> lines = List.of("a", "b", "a", "c");
+        assertTrue(MyersDiff.diff(lines, lines).isEmpty());
+    }
+
+    @Test
+    void allDifferentLinesAreOneReplacement() {
+        assertEdits(List.of("a", "b", "c"), List.of("x", "y"), new int[][]{{0, 3, 0, 2}});
+    }
+
+    @Test
+    void separateChangesAreSeparateEdits() {
+        List<String> oldLines = List.of("a", "b", "c", "d", "e");
+        List<String> newLines = List.of("a", "B", "c", "d", "e", "f");
+        assertEdits(oldLines, newLines, new int[][]{{1, 2, 1, 2}, {5, 5, 5, 6}});
+        assertApplies(oldLines, newLines);
+    }
+
+    @Test
+    void repeatedLinesFindMinimalScript() {
+        // No line is unique, so the patience split cannot help and Myers does the work
+        List<String> oldLines = List.of("a", "b", "a", "b", "a");
+        List<String> newLines = List.of("b", "a", "b", "a", "b");
+        List<MyersDiff.Edit> edits = MyersDiff.diff(oldLines, newLines);
+        assertEquals(2, changedLines(edits));
+        assertApplies(oldLines, newLines);
+    }
+
+    @Test
+    void veryDifferentInputsStillProduceValidScript() {
+        // Lines from a tiny alphabet are never unique, and random sequences are far enough
+        // apart that the search passes the cost limit and splits at its furthest reach
+        Random random = new Random(42);
+        List<String> oldLines = randomLines(random, 3000);
+        List<String> newLines = randomLines(random, 3000);
+        long start = System.nanoTime();
+        assertApplies(oldLines, newLines);
+        assertTrue(System.nanoTime() - start < 10_000_000_000L, "Cutoff should keep the diff fast");
+    }
+
+    private static List<String> randomLines(Random random, int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add(String.valueOf((char) ('a' + random.nextInt(4))));
+        }
+        return lines;
+    }
+
+    private static int changedLines(List<MyersDiff.Edit> edits) {
+        int count = 0;
+        for (MyersDiff.Edit edit : edits) {
+            count += edit.getOldEnd() - edit.getOldStart() + edit.getNewEnd() - edit.getNewStart();
+        }
+        return count;
+    }
+
+    private static void assertEdits(List<String> oldLines, List<String> newLines, int[][] expected) {
+        List<MyersDiff.Edit> edits = MyersDiff.diff(oldLines, newLines);
+        assertEquals(expected.length, edits.size());
+        for (int i = 0; i < expected.length; i++) {
+            MyersDiff.Edit edit = edits.get(i);
+            assertEquals(expected[i][0], edit.getOldStart());
+            assertEquals(expected[i][1], edit.getOldEnd());
+            assertEquals(expected[i][2], edit.getNewStart());
+            assertEquals(expected[i][3], edit.getNewEnd());
+        }
+    }
+
+    /**
+     * Check that the edits are ordered, that the lines between them are equal on both sides,
+     * and that applying them to the old lines gives the new lines
+     */
+    private static void assertApplies(List<String> oldLines, List<String> newLines) {
+        List<String> result = new ArrayList<>();
+        int oldPosition = 0;
+        int newPosition = 0;
+        for (MyersDiff.Edit edit : MyersDiff.diff(oldLines, newLines)) {
+            assertTrue(edit.getOldStart() >= oldPosition && edit.getNewStart() >= newPosition);
+            assertEquals(edit.getOldStart() - oldPosition, edit.getNewStart() - newPosition);
+            assertEquals(oldLines.subList(oldPosition, edit.getOldStart()), newLines.subList(newPosition, edit.getNewStart()));
+            result.addAll(oldLines.subList(oldPosition, edit.getOldStart()));
+            result.addAll(newLines.subList(edit.getNewStart(), edit.getNewEnd()));
+            oldPosition = edit.getOldEnd();
+            newPosition = edit.getNewEnd();
+        }
+        assertEquals(oldLines.subList(oldPosition, oldLines.size()), newLines.subList(newPosition, newLines.size()));
+        result.addAll(oldLines.subList(oldPosition, oldLines.size()));
+        assertEquals(newLines, result);
+    }
+}
@@ -0,0 +1,77 @@
+package distribvc.diff;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Clean and conflicting three-way merges
+ */
+class ThreeWayMergeTests {
+    @Test
+    void combinesChangesToDifferentRegions() {
+        ThreeWayMerge.Result result = ThreeWayMerge.merge(bytes("a\nb\nc\nd\ne\n"),
+                bytes("A\nb\nc\nd\ne\n"), bytes("a\nb\nc\nd\nE\n"), "feature");
+        assertFalse(result.hasConflicts());
+        assertEquals("A\nb\nc\nd\nE\n", text(result.getContent()));
+    }
+
+    @Test
+    void takesIdenticalChangesOnce() {
+        ThreeWayMerge.Result result = ThreeWayMerge.merge(bytes("a\nb\n"), bytes("a\nB\n"), bytes("a\nB\n"), "feature");
+        assertFalse(result.hasConflicts());
+        assertEquals("a\nB\n", text(result.getContent()));
+    }
+
+    @Test
+    void marksConflictingChanges() {
+        ThreeWayMerge.Result result = ThreeWayMerge.merge(bytes("a\nb\nc\n"),
+                bytes("a\nours\nc\n"), bytes("a\ntheirs\nc\n"), "feature");
+        assertEquals(1, result.getConflicts());
+        assertEquals("a\n<<<<<<< ours\nours\n=======\ntheirs\n>>>>>>> feature\nc\n", text(result.getContent()));
+    }
+
+    @Test
+    void keepsMissingFinalNewline() {
+        ThreeWayMerge.Result result = ThreeWayMerge.merge(bytes("a\nb\nc"), bytes("A\nb\nc"), bytes("a\nb\nc"), "feature");
+        assertFalse(result.hasConflicts());
+        assertEquals("A\nb\nc", text(result.getContent()));
+
+        // A conflict in the last line still puts each marker on its own line
+        result = ThreeWayMerge.merge(bytes("a\nb"), bytes("a\nours"), bytes("a\ntheirs"), "feature");
+        assertTrue(result.hasConflicts());
+        assertEquals("a\n<<<<<<< ours\nours\n=======\ntheirs\n>>>>>>> feature\n", text(result.getContent()));
+    }
+
+    @Test
+    void keepsNonUtf8Bytes() {
+        // ISO-8859-1 text, which is not valid UTF-8
+        byte[] base = "café\nnaïve\nend\n".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] ours = "café\nnaïve\nEND\n".getBytes(StandardCharsets.ISO_8859_1);
+        byte[] theirs = "CAFÉ\nnaïve\nend\n".getBytes(StandardCharsets.ISO_8859_1);
+        ThreeWayMerge.Result result = ThreeWayMerge.merge(base, ours, theirs, "feature");
+        assertFalse(result.hasConflicts());
+        assertArrayEquals("CAFÉ\nnaïve\nEND\n".getBytes(StandardCharsets.ISO_8859_1), result.getContent());
+    }
+
+    @Test
+    void binaryFilesConflictAndKeepOurs() {
+        byte[] ours = {1, 0, 2};
+        ThreeWayMerge.Result result = ThreeWayMerge.merge(new byte[0], ours, new byte[]{3, 0, 4}, "feature");
+        assertTrue(result.hasConflicts());
+        assertArrayEquals(ours, result.getContent());
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] content) {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
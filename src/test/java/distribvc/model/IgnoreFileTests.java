@@ -0,0 +1,83 @@
+package distribvc.model;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Gitignore semantics of the ignore rules
+ */
+class IgnoreFileTests {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void lastMatchingPatternWins() throws Exception {
+        IgnoreFile ignoreFile = load("*.log", "!important.log");
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("debug.log"), false));
+        assertFalse(ignoreFile.shouldIgnore(Paths.get("important.log"), false));
+
+        // Repeating a pattern after a negation ignores the file again
+        ignoreFile = load("*.log", "!important.log", "*.log");
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("important.log"), false));
+    }
+
+    @Test
+    void slashAnchorsToRoot() throws Exception {
+        IgnoreFile ignoreFile = load("/build", "docs/*.html", "tmp");
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("build"), true));
+        assertFalse(ignoreFile.shouldIgnore(Paths.get("src/build"), true));
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("docs/index.html"), false));
+        assertFalse(ignoreFile.shouldIgnore(Paths.get("src/docs/index.html"), false));
+        // Without a slash the pattern matches at any depth
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("a/b/tmp"), false));
+    }
+
+    @Test
+    void trailingSlashMatchesOnlyDirectories() throws Exception {
+        IgnoreFile ignoreFile = load("out/");
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("out"), true));
+        assertFalse(ignoreFile.shouldIgnore(Paths.get("out"), false));
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("out/classes/A.class"), false));
+    }
+
+    @Test
+    void doubleStarMatchesAcrossDirectories() throws Exception {
+        IgnoreFile ignoreFile = load("**/cache", "logs/**/*.txt");
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("cache"), true));
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("a/b/cache"), true));
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("logs/a.txt"), false));
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("logs/x/y/a.txt"), false));
+        assertFalse(ignoreFile.shouldIgnore(Paths.get("other/logs/a.txt"), false));
+    }
+
+    @Test
+    void filesInIgnoredDirectoryCannotBeReincluded() throws Exception {
+        IgnoreFile ignoreFile = load("target/", "!target/keep.txt");
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("target/keep.txt"), false));
+    }
+
+    @Test
+    void trailingSpacesAreDroppedUnlessEscaped() throws Exception {
+        IgnoreFile ignoreFile = load("plain   ", "escaped\\ ", "# comment", "");
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("plain"), false));
+        assertTrue(ignoreFile.shouldIgnore(Paths.get("escaped "), false));
+        assertFalse(ignoreFile.shouldIgnore(Paths.get("escaped"), false));
+        assertFalse(ignoreFile.shouldIgnore(Paths.get("# comment"), false));
+    }
+
+    private IgnoreFile load(String... lines) throws Exception {
+        Path file = tempDir.resolve(".distribvcignore");
+        Files.write(file, List.of(lines));
+        IgnoreFile ignoreFile = new IgnoreFile();
+        ignoreFile.loadFromFile(file);
+        return ignoreFile;
+    }
+}
@@ -0,0 +1,165 @@
+package distribvc.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Ordering, limits, cancellation and retention of background jobs
+ */
+class JobServiceTests {
+    private static final Path FIRST = Path.of("first");
+    private static final Path SECOND = Path.of("second");
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private JobService jobService;
+
+    @AfterEach
+    void shutdown() {
+        release.countDown();
+        if (jobService != null) {
+            jobService.shutdown();
+        }
+    }
+
+    @Test
+    void jobsOfOneRepositoryRunInSubmissionOrder() throws Exception {
+        jobService = new JobService(4, 64, 4096, 3600);
+        List<String> order = new CopyOnWriteArrayList<>();
+        JobService.Job blocked = jobService.submit(FIRST, "blocked", progress -> {
+            order.add("blocked");
+            release.await();
+            return null;
+        });
+        JobService.Job next = jobService.submit(FIRST, "next", progress -> order.add("next"));
+        JobService.Job last = jobService.submit(FIRST, "last", progress -> order.add("last"));
+        awaitState(blocked, JobService.State.RUNNING);
+
+        // Free run permits do not let a later job of the same repository overtake
+        Thread.sleep(50);
+        assertEquals(JobService.State.QUEUED, next.getState());
+        assertEquals(JobService.State.QUEUED, last.getState());
+
+        release.countDown();
+        awaitState(last, JobService.State.SUCCEEDED);
+        assertEquals(List.of("blocked", "next", "last"), order);
+        assertEquals(Boolean.TRUE, next.getResult());
+    }
+
+    @Test
+    void runningJobsAreLimited() throws Exception {
+        jobService = new JobService(1, 64, 4096, 3600);
+        JobService.Job blocked = jobService.submit(FIRST, "blocked", this::block);
+        awaitState(blocked, JobService.State.RUNNING);
+        JobService.Job other = jobService.submit(SECOND, "other", progress -> "done");
+
+        Thread.sleep(50);
+        assertEquals(JobService.State.QUEUED, other.getState());
+
+        release.countDown();
+        awaitState(other, JobService.State.SUCCEEDED);
+        assertEquals("done", other.getResult());
+        assertEquals(JobService.State.SUCCEEDED, blocked.getState());
+    }
+
+    @Test
+    void jobsOfDifferentRepositoriesRunInParallel() throws Exception {
+        jobService = new JobService(2, 64, 4096, 3600);
+        JobService.Job first = jobService.submit(FIRST, "first", this::block);
+        JobService.Job second = jobService.submit(SECOND, "second", this::block);
+        awaitState(first, JobService.State.RUNNING);
+        awaitState(second, JobService.State.RUNNING);
+        release.countDown();
+        awaitState(first, JobService.State.SUCCEEDED);
+        awaitState(second, JobService.State.SUCCEEDED);
+    }
+
+    @Test
+    void fullQueuesRejectJobs() throws Exception {
+        jobService = new JobService(4, 1, 2, 3600);
+        JobService.Job running = jobService.submit(FIRST, "running", this::block);
+        // A running job has left the queue
+        awaitState(running, JobService.State.RUNNING);
+        jobService.submit(FIRST, "queued", progress -> null);
+        assertThrows(RejectedExecutionException.class, () -> jobService.submit(FIRST, "rejected", progress -> null));
+
+        // The total limit applies across repositories
+        JobService.Job other = jobService.submit(SECOND, "blocked", this::block);
+        awaitState(other, JobService.State.RUNNING);
+        jobService.submit(SECOND, "queued", progress -> null);
+        assertThrows(RejectedExecutionException.class, () -> jobService.submit(Path.of("third"), "rejected", progress -> null));
+        assertEquals(4, jobService.list(null).size());
+    }
+
+    @Test
+    void queuedJobsCanBeCancelled() throws Exception {
+        jobService = new JobService(4, 64, 4096, 3600);
+        JobService.Job running = jobService.submit(FIRST, "running", this::block);
+        awaitState(running, JobService.State.RUNNING);
+        List<String> ran = new CopyOnWriteArrayList<>();
+        JobService.Job cancelled = jobService.submit(FIRST, "cancelled", progress -> ran.add("cancelled"));
+        JobService.Job after = jobService.submit(FIRST, "after", progress -> ran.add("after"));
+
+        assertTrue(jobService.cancel(cancelled.getId()));
+        assertEquals(JobService.State.CANCELLED, cancelled.getState());
+        assertTrue(cancelled.isFinished());
+        assertFalse(jobService.cancel(cancelled.getId()));
+        // Running jobs are never interrupted
+        assertFalse(jobService.cancel(running.getId()));
+        assertFalse(jobService.cancel("unknown"));
+
+        release.countDown();
+        awaitState(after, JobService.State.SUCCEEDED);
+        assertEquals(JobService.State.SUCCEEDED, running.getState());
+        assertEquals(List.of("after"), ran);
+    }
+
+    @Test
+    void finishedJobsArePurgedAfterRetention() throws Exception {
+        jobService = new JobService(4, 64, 4096, 0);
+        JobService.Job failed = jobService.submit(FIRST, "failed", progress -> {
+            throw new IllegalStateException("broken");
+        });
+        awaitState(failed, JobService.State.FAILED);
+        assertEquals("broken", failed.getError());
+
+        JobService.Job running = jobService.submit(SECOND, "running", this::block);
+        awaitState(running, JobService.State.RUNNING);
+        Thread.sleep(10);
+        // Unfinished jobs are kept however old they are
+        assertEquals(List.of(running), jobService.list(null));
+        assertNull(jobService.get(failed.getId()));
+        assertEquals(running, jobService.get(running.getId()));
+        assertTrue(jobService.list(FIRST).isEmpty());
+    }
+
+    private Object block(Consumer<String> progress) throws InterruptedException {
+        progress.accept("waiting");
+        release.await();
+        return null;
+    }
+
+    private static void awaitState(JobService.Job job, JobService.State state) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (job.getState() != state) {
+            if (System.nanoTime() > deadline) {
+                fail("Job " + job.getOperation() + " is " + job.getState() + ", expected " + state);
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package distribvc.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Parallel walks and maps, and how their failures reach the caller
+ */
+class TreeScannerTests {
+    @TempDir
+    Path tempDir;
+
+    private final TreeScanner treeScanner = new TreeScanner(true, 2);
+
+    @AfterEach
+    void shutdown() {
+        treeScanner.shutdown();
+    }
+
+    @Test
+    void scanVisitsEveryFile() throws Exception {
+        Files.createDirectories(tempDir.resolve("a/b"));
+        Files.createDirectories(tempDir.resolve("skipped"));
+        Files.writeString(tempDir.resolve("one.txt"), "1");
+        Files.writeString(tempDir.resolve("a/two.txt"), "2");
+        Files.writeString(tempDir.resolve("a/b/three.txt"), "3");
+        Files.writeString(tempDir.resolve("skipped/four.txt"), "4");
+
+        List<String> names = treeScanner.scan(tempDir, dir -> !dir.endsWith("skipped"), new TreeScanner.FileProcessor<>() {
+            @Override
+            public List<String> newResult() {
+                return new ArrayList<>();
+            }
+
+            @Override
+            public void process(Path file, BasicFileAttributes attrs, List<String> result) {
+                result.add(file.getFileName().toString());
+            }
+
+            @Override
+            public void merge(List<String> into, List<String> from) {
+                into.addAll(from);
+            }
+        });
+        assertEquals(List.of("one.txt", "three.txt", "two.txt"), names.stream().sorted().toList());
+    }
+
+    @Test
+    void mapKeepsOrderAndFailures() throws Exception {
+        List<Integer> items = List.of(1, 2, 3, 4, 5, 6, 7, 8);
+        assertEquals(List.of(2, 4, 6, 8, 10, 12, 14, 16), treeScanner.map(items, item -> item * 2));
+
+        IOException ioException = assertThrows(IOException.class, () -> treeScanner.map(items, item -> {
+            throw new IOException("unreadable " + item);
+        }));
+        assertEquals(IOException.class, ioException.getClass());
+
+        // Unchecked exceptions are not wrapped, so callers can still tell them apart
+        assertThrows(IllegalArgumentException.class, () -> treeScanner.map(items, item -> {
+            throw new IllegalArgumentException("bad " + item);
+        }));
+    }
+
+    @Test
+    void shutdownStopsThePool() {
+        treeScanner.shutdown();
+        assertThrows(RejectedExecutionException.class, () -> treeScanner.map(List.of(1, 2), item -> item));
+    }
+}
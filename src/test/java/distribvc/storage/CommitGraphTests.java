@@ -0,0 +1,164 @@
+package distribvc.storage;
+
+import distribvc.model.Commit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ancestry queries, appends and rebuilds of the commit graph
+ */
+class CommitGraphTests {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void linearHistory() throws Exception {
+        List<Commit> commits = linear(null, 4);
+        CommitGraph graph = graphOf(commits);
+        String first = commits.get(0).getId();
+        String last = commits.get(3).getId();
+
+        assertEquals(List.of(last, commits.get(2).getId(), commits.get(1).getId(), first), graph.walk(last));
+        assertEquals(4, graph.generationOf(last));
+        assertEquals(commits.get(1).getId(), graph.mergeBase(last, commits.get(1).getId()));
+        assertEquals(last, graph.mergeBase(last, last));
+        assertTrue(graph.isAncestor(first, last));
+        assertTrue(graph.isAncestor(last, last));
+        assertFalse(graph.isAncestor(last, first));
+
+        assertEquals(List.of(commits.get(2).getId(), last), graph.missingCommits(List.of(last), List.of(commits.get(1).getId())));
+        assertEquals(List.of(), graph.missingCommits(List.of(commits.get(1).getId()), List.of(last)));
+        // Known IDs that are not in the graph, or not commit IDs at all, are ignored
+        assertEquals(ids(commits), graph.missingCommits(List.of(last), List.of(UUID.randomUUID().toString(), "not-an-id")));
+        assertThrows(IllegalArgumentException.class, () -> graph.missingCommits(List.of(UUID.randomUUID().toString()), List.of()));
+    }
+
+    @Test
+    void crissCrossHistory() throws Exception {
+        // Two branches that each merged the other: A1 and B1 are both best common ancestors of A2 and B2
+        Commit root = new Commit("root", null, List.of(), "tester");
+        Commit a1 = new Commit("a1", root.getId(), List.of(), "tester");
+        Commit b1 = new Commit("b1", root.getId(), List.of(), "tester");
+        Commit a2 = new Commit("a2", a1.getId(), b1.getId(), List.of(), "tester");
+        Commit b2 = new Commit("b2", b1.getId(), a1.getId(), List.of(), "tester");
+        Commit a3 = new Commit("a3", a2.getId(), List.of(), "tester");
+        Commit unrelated = new Commit("unrelated", null, List.of(), "tester");
+        CommitGraph graph = graphOf(List.of(root, a1, b1, a2, b2, a3, unrelated));
+
+        String base = graph.mergeBase(a3.getId(), b2.getId());
+        assertTrue(Set.of(a1.getId(), b1.getId()).contains(base), base);
+        assertEquals(b1.getId(), graph.mergeBase(a3.getId(), b1.getId()));
+        assertEquals(root.getId(), graph.mergeBase(a1.getId(), b1.getId()));
+        assertNull(graph.mergeBase(a3.getId(), unrelated.getId()));
+
+        assertEquals(3, graph.generationOf(a2.getId()));
+        assertTrue(graph.isAncestor(b1.getId(), a3.getId()));
+        assertTrue(graph.isAncestor(root.getId(), b2.getId()));
+        assertFalse(graph.isAncestor(a2.getId(), b2.getId()));
+        assertFalse(graph.isAncestor(b2.getId(), a3.getId()));
+        assertFalse(graph.isAncestor(unrelated.getId(), a3.getId()));
+
+        // B2 merged A1, so only the commits above it are missing
+        assertEquals(List.of(a2.getId(), a3.getId()), graph.missingCommits(List.of(a3.getId()), List.of(b2.getId())));
+        assertEquals(List.of(b2.getId()), graph.missingCommits(List.of(b2.getId()), List.of(a3.getId())));
+        assertEquals(List.of(a1.getId(), b1.getId(), a2.getId(), b2.getId()),
+                graph.missingCommits(List.of(b2.getId(), a2.getId()), List.of(root.getId())));
+    }
+
+    @Test
+    void appendOverwritesTornRecord() throws Exception {
+        Path graphPath = tempDir.resolve("commit-graph");
+        List<Commit> commits = linear(null, 3);
+        CommitGraph graph = new CommitGraph(graphPath);
+        assertFalse(graph.isValid());
+        assertThrows(IllegalStateException.class, () -> graph.append(commits.get(0)));
+        graph.rebuild(List.of());
+        for (Commit commit : commits) {
+            graph.append(commit);
+        }
+        long intactSize = Files.size(graphPath);
+
+        // An append interrupted halfway leaves part of a record behind
+        Files.write(graphPath, new byte[20], StandardOpenOption.APPEND);
+        CommitGraph reopened = new CommitGraph(graphPath);
+        assertEquals(3, reopened.size());
+        Commit next = new Commit("next", commits.get(2).getId(), List.of(), "tester");
+        reopened.append(next);
+        assertEquals(intactSize + (intactSize - 8) / 3, Files.size(graphPath));
+
+        CommitGraph loaded = new CommitGraph(graphPath);
+        assertEquals(4, loaded.size());
+        assertEquals(4, loaded.generationOf(next.getId()));
+        assertTrue(loaded.isAncestor(commits.get(0).getId(), next.getId()));
+
+        // The first handle notices the append before adding to the graph itself
+        Commit last = new Commit("last", next.getId(), List.of(), "tester");
+        graph.append(last);
+        assertEquals(5, new CommitGraph(graphPath).walk(last.getId()).size());
+    }
+
+    @Test
+    void rebuildOrdersParentsFirst() throws Exception {
+        List<Commit> main = linear(null, 3);
+        List<Commit> side = linear(main.get(0).getId(), 2);
+        Commit merge = new Commit("merge", main.get(2).getId(), side.get(1).getId(), List.of(), "tester");
+        List<Commit> commits = new ArrayList<>(main);
+        commits.addAll(side);
+        commits.add(merge);
+        Collections.reverse(commits);
+
+        CommitGraph graph = new CommitGraph(tempDir.resolve("commit-graph"));
+        graph.rebuild(commits);
+        assertEquals(6, graph.size());
+        assertEquals(4, graph.generationOf(merge.getId()));
+        assertEquals(List.of(merge.getId(), main.get(2).getId(), main.get(1).getId(), main.get(0).getId()),
+                graph.walk(merge.getId()));
+        assertTrue(graph.isAncestor(side.get(0).getId(), merge.getId()));
+        assertEquals(List.of(side.get(0).getId(), side.get(1).getId()),
+                graph.missingCommits(List.of(side.get(1).getId()), List.of(main.get(2).getId())));
+
+        // Rebuilding from fewer commits, as after gc, drops the rest
+        graph.rebuild(main);
+        assertEquals(3, graph.size());
+        assertFalse(graph.contains(merge.getId()));
+        assertTrue(graph.contains(main.get(2).getId()));
+    }
+
+    private CommitGraph graphOf(List<Commit> commits) throws Exception {
+        CommitGraph graph = new CommitGraph(tempDir.resolve("commit-graph"));
+        graph.rebuild(List.of());
+        for (Commit commit : commits) {
+            graph.append(commit);
+        }
+        return graph;
+    }
+
+    private static List<Commit> linear(String parentId, int length) {
+        List<Commit> commits = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            Commit commit = new Commit("commit " + i, parentId, List.of(), "tester");
+            commits.add(commit);
+            parentId = commit.getId();
+        }
+        return commits;
+    }
+
+    private static List<String> ids(List<Commit> commits) {
+        return commits.stream().map(Commit::getId).toList();
+    }
+}
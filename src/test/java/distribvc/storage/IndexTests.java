@@ -0,0 +1,148 @@
+package distribvc.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Binary format, stat checks and restoring entries of the index
+ */
+class IndexTests {
+    private static final String HASH_A = "a".repeat(64);
+    private static final String HASH_B = "b".repeat(64);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void entriesSurviveSaveAndLoad() throws Exception {
+        Path indexPath = tempDir.resolve("index");
+        Path file = writeFile("a.txt", "content\n", Instant.now().minus(1, ChronoUnit.HOURS));
+        Index index = Index.load(indexPath);
+        index.put(Paths.get("dir", "b.txt"), attributes(file), HASH_B, Index.FLAG_STAGED | Index.FLAG_DELETED);
+        index.put(Paths.get("a.txt"), attributes(file), HASH_A, Index.FLAG_COMMITTED);
+        index.save();
+
+        Index loaded = Index.load(indexPath);
+        assertEquals(index.getEntries().stream().toList(), loaded.getEntries().stream().toList());
+        // Entries are kept sorted by path, with forward slashes on every platform
+        assertEquals(List.of(Paths.get("a.txt"), Paths.get("dir/b.txt")),
+                loaded.getEntries().stream().map(Index.Entry::getPath).toList());
+        Index.Entry entry = loaded.get(Paths.get("dir", "b.txt"));
+        assertEquals(HASH_B, entry.getHash());
+        assertEquals(8, entry.getSize());
+        assertTrue(entry.isStaged() && entry.isDeleted() && !entry.isCommitted());
+        assertEquals(List.of(entry), loaded.getStagedEntries());
+    }
+
+    @Test
+    void unchangedIndexIsNotRewritten() throws Exception {
+        Path indexPath = tempDir.resolve("index");
+        Index index = Index.load(indexPath);
+        index.save();
+        assertFalse(Files.exists(indexPath));
+
+        Path file = writeFile("a.txt", "content\n", Instant.now().minus(1, ChronoUnit.HOURS));
+        index.put(Paths.get("a.txt"), attributes(file), HASH_A, Index.FLAG_COMMITTED);
+        index.save();
+        FileTime written = FileTime.from(Instant.now().minus(1, ChronoUnit.MINUTES));
+        Files.setLastModifiedTime(indexPath, written);
+        index.setFlags(Paths.get("a.txt"), Index.FLAG_COMMITTED);
+        index.remove(Paths.get("missing.txt"));
+        index.save();
+        assertEquals(written, Files.getLastModifiedTime(indexPath));
+    }
+
+    @Test
+    void rejectsForeignFiles() throws Exception {
+        Path indexPath = tempDir.resolve("index");
+        Files.writeString(indexPath, "not an index");
+        assertThrows(IOException.class, () -> Index.load(indexPath));
+    }
+
+    @Test
+    void statDataOlderThanTheIndexIsTrusted() throws Exception {
+        Path indexPath = tempDir.resolve("index");
+        Path file = writeFile("a.txt", "content\n", Instant.now().minus(1, ChronoUnit.HOURS));
+        Index index = Index.load(indexPath);
+        Index.Entry entry = index.put(Paths.get("a.txt"), attributes(file), HASH_A, Index.FLAG_COMMITTED);
+        index.save();
+
+        Index loaded = Index.load(indexPath);
+        assertTrue(loaded.isUpToDate(entry, attributes(file)));
+
+        // Any change of size or modification time means the file has to be hashed again
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(2, ChronoUnit.HOURS)));
+        assertFalse(loaded.isUpToDate(entry, attributes(file)));
+        Files.writeString(file, "longer content\n");
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS)));
+        assertFalse(loaded.isUpToDate(entry, attributes(file)));
+    }
+
+    @Test
+    void statDataAsNewAsTheIndexIsNotTrusted() throws Exception {
+        Path indexPath = tempDir.resolve("index");
+        Path file = writeFile("a.txt", "content\n", Instant.now().minus(1, ChronoUnit.HOURS));
+        Index index = Index.load(indexPath);
+        Index.Entry entry = index.put(Paths.get("a.txt"), attributes(file), HASH_A, Index.FLAG_COMMITTED);
+        index.save();
+
+        // A file modified in the same tick the index was written may have changed again unnoticed
+        Files.setLastModifiedTime(indexPath, Files.getLastModifiedTime(file));
+        Index loaded = Index.load(indexPath);
+        assertFalse(loaded.isUpToDate(entry, attributes(file)));
+
+        // Once the index is written again later, the same stat data is trusted
+        loaded.setFlags(Paths.get("a.txt"), Index.FLAG_STAGED);
+        loaded.save();
+        assertTrue(loaded.isUpToDate(entry, attributes(file)));
+    }
+
+    @Test
+    void restorePutsBackOnlyUnchangedEntries() throws Exception {
+        Path file = writeFile("a.txt", "content\n", Instant.now().minus(1, ChronoUnit.HOURS));
+        Path path = Paths.get("a.txt");
+        Index index = Index.load(tempDir.resolve("index"));
+        Index.Entry previous = index.put(path, attributes(file), HASH_A, Index.FLAG_COMMITTED);
+        Index.Entry written = index.put(path, attributes(file), HASH_B, Index.FLAG_STAGED);
+        index.restore(path, written, previous);
+        assertEquals(previous, index.get(path));
+
+        // A newer update is left alone
+        index.put(path, attributes(file), HASH_B, Index.FLAG_STAGED);
+        Index.Entry newer = index.put(path, attributes(file), HASH_B, Index.FLAG_STAGED | Index.FLAG_DELETED);
+        index.restore(path, written, previous);
+        assertEquals(newer, index.get(path));
+
+        // Restoring to no entry removes the file, and restoring a removal puts it back
+        index.restore(path, newer, null);
+        assertNull(index.get(path));
+        index.restore(path, null, previous);
+        assertEquals(previous, index.get(path));
+    }
+
+    private Path writeFile(String name, String content, Instant modified) throws IOException {
+        Path file = Files.writeString(tempDir.resolve(name), content);
+        Files.setLastModifiedTime(file, FileTime.from(modified));
+        return file;
+    }
+
+    private static BasicFileAttributes attributes(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+}
@@ -0,0 +1,148 @@
+package distribvc.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Crash recovery of the journal. A crash is simulated by copying the journal of a repository
+ * into a fresh directory, next to files as an unsynced write could have left them, and opening it.
+ */
+class JournalTests {
+    private static final String OBJECT = "objects/ab/cdef";
+    private static final String REF = "branches/master";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void replayRepairsTornWrite() throws Exception {
+        byte[] content = "object content\n".getBytes(StandardCharsets.UTF_8);
+        Path written = writeRecord("written", content, "head1");
+
+        // Full length but zero-filled, as after a crash before the data reached the disk
+        Path crashed = crashedCopy(written, "crashed");
+        Files.createDirectories(crashed.resolve(OBJECT).getParent());
+        Files.write(crashed.resolve(OBJECT), new byte[content.length]);
+
+        open(crashed);
+        assertArrayEquals(content, Files.readAllBytes(crashed.resolve(OBJECT)));
+        assertEquals("head1", Files.readString(crashed.resolve(REF)).trim());
+        assertEquals(0, Files.size(crashed.resolve("journal")));
+    }
+
+    @Test
+    void replayWritesMissingFiles() throws Exception {
+        byte[] content = "object content\n".getBytes(StandardCharsets.UTF_8);
+        Path crashed = crashedCopy(writeRecord("written", content, "head1"), "crashed");
+
+        open(crashed);
+        assertArrayEquals(content, Files.readAllBytes(crashed.resolve(OBJECT)));
+        assertEquals("head1", Files.readString(crashed.resolve(REF)).trim());
+    }
+
+    @Test
+    void tornRecordEndsTheJournal() throws Exception {
+        byte[] content = "object content\n".getBytes(StandardCharsets.UTF_8);
+        Path crashed = crashedCopy(writeRecord("written", content, "head1"), "crashed");
+        // A second record of which only part of the header made it to disk
+        Files.write(crashed.resolve("journal"), new byte[] {0, 0, 1}, StandardOpenOption.APPEND);
+
+        open(crashed);
+        assertArrayEquals(content, Files.readAllBytes(crashed.resolve(OBJECT)));
+        assertEquals("head1", Files.readString(crashed.resolve(REF)).trim());
+    }
+
+    @Test
+    void replayLeavesRefThatMovedOn() throws Exception {
+        byte[] content = "object content\n".getBytes(StandardCharsets.UTF_8);
+        Path crashed = crashedCopy(writeRecord("written", content, "head1"), "crashed");
+        Files.createDirectories(crashed.resolve(REF).getParent());
+        Files.writeString(crashed.resolve(REF), "other");
+
+        open(crashed);
+        assertEquals("other", Files.readString(crashed.resolve(REF)).trim());
+    }
+
+    @Test
+    void failedSyncFailsOnlyItsRecords() throws Exception {
+        Path repoPath = tempDir.resolve("repo");
+        Files.createDirectories(repoPath);
+        Journal journal = open(repoPath);
+        journal.syncer = channel -> {
+            throw new IOException("disk full");
+        };
+        Journal.Entry failed = journal.append(new Journal.Record().moveRef(REF, "", "head1"), () -> {
+            throw new AssertionError("A failed record must not move its ref");
+        });
+        assertEquals("head1", journal.pendingRef(REF));
+        assertThrows(IOException.class, () -> journal.await(failed, 0));
+        assertNull(journal.pendingRef(REF));
+
+        // Once the disk recovers the next writer syncs again
+        journal.syncer = channel -> channel.force(false);
+        journal.await(journal.append(new Journal.Record().moveRef(REF, "", "head2"), () -> {
+        }), 0);
+
+        // The failed record was cut from the journal, so a replay only moves the ref to the second
+        Path crashed = crashedCopy(repoPath, "crashed");
+        open(crashed);
+        assertEquals("head2", Files.readString(crashed.resolve(REF)).trim());
+    }
+
+    @Test
+    void releasedJournalIsForgotten() throws Exception {
+        Path repoPath = tempDir.resolve("repo");
+        Files.createDirectories(repoPath);
+        Journal journal = open(repoPath);
+        assertSame(journal, open(repoPath));
+
+        // Still used by the second handle
+        Journal.release(journal);
+        assertSame(journal, open(repoPath));
+
+        Journal.release(journal);
+        Journal.release(journal);
+        assertNotSame(journal, open(repoPath));
+    }
+
+    /**
+     * Journal one file and a ref move from an empty ref, and wait until the record is synced
+     */
+    private Path writeRecord(String name, byte[] content, String head) throws Exception {
+        Path repoPath = tempDir.resolve(name);
+        Files.createDirectories(repoPath.resolve(OBJECT).getParent());
+        Files.write(repoPath.resolve(OBJECT), content);
+        Journal journal = open(repoPath);
+        Journal.Entry entry = journal.append(new Journal.Record()
+                .writeFile(OBJECT, content)
+                .moveRef(REF, "", head), () -> {
+            // The crash happens before the ref is moved
+        });
+        journal.await(entry, 0);
+        return repoPath;
+    }
+
+    private Path crashedCopy(Path repoPath, String name) throws Exception {
+        Path crashed = tempDir.resolve(name);
+        Files.createDirectories(crashed);
+        Files.copy(repoPath.resolve("journal"), crashed.resolve("journal"));
+        return crashed;
+    }
+
+    private static Journal open(Path repoPath) throws Exception {
+        return Journal.open(repoPath, repoPath.resolve("journal"), repoPath.resolve("journal.lock"));
+    }
+}
@@ -0,0 +1,89 @@
+package distribvc.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips through delta encoding and pack files
+ */
+class PackFileTests {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void deltaRebuildsTarget() {
+        byte[] base = text(1000);
+        byte[] edited = new String(base, StandardCharsets.UTF_8)
+                .replace("line 500\n", "changed line\n")
+                .concat("appended\n")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] delta = Delta.create(base, edited);
+        assertArrayEquals(edited, Delta.apply(base, delta));
+        assertTrue(delta.length < edited.length / 10, "A small edit should give a small delta");
+
+        // Unrelated and empty content still round trip
+        byte[] random = new byte[5000];
+        new Random(7).nextBytes(random);
+        assertArrayEquals(random, Delta.apply(base, Delta.create(base, random)));
+        assertArrayEquals(new byte[0], Delta.apply(base, Delta.create(base, new byte[0])));
+        assertArrayEquals(base, Delta.apply(new byte[0], Delta.create(new byte[0], base)));
+    }
+
+    @Test
+    void packReadsBackFullAndDeltaObjects() throws Exception {
+        List<byte[]> versions = new ArrayList<>();
+        byte[] content = text(500);
+        for (int i = 0; i < 5; i++) {
+            versions.add(content);
+            content = (new String(content, StandardCharsets.UTF_8) + "version " + i + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] commit = "commit".getBytes(StandardCharsets.UTF_8);
+
+        Path packPath;
+        try (PackWriter writer = new PackWriter(tempDir)) {
+            writer.add(PackFile.TYPE_COMMIT, "c1", commit);
+            String previous = null;
+            for (int i = 0; i < versions.size(); i++) {
+                writer.add(PackFile.TYPE_BLOB, "b" + i, versions.get(i), previous, previous != null ? versions.get(i - 1) : null);
+                previous = "b" + i;
+            }
+            assertEquals(versions.size() - 1, writer.getDeltaCount());
+            packPath = writer.finish();
+        }
+
+        PackFile pack = PackFile.open(packPath);
+        assertArrayEquals(commit, pack.read("c1"));
+        assertEquals(PackFile.TYPE_COMMIT, pack.getType("c1"));
+        // Read the end of the chain first, then the others from the delta cache
+        for (int i = versions.size() - 1; i >= 0; i--) {
+            assertArrayEquals(versions.get(i), pack.read("b" + i));
+            assertEquals(PackFile.TYPE_BLOB, pack.getType("b" + i));
+        }
+        assertFalse(pack.contains("missing"));
+        assertNull(pack.read("missing"));
+
+        PackStore packStore = new PackStore(tempDir);
+        packStore.refresh();
+        assertArrayEquals(versions.get(2), packStore.read("b2"));
+    }
+
+    private static byte[] text(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
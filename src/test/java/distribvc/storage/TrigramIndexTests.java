@@ -0,0 +1,154 @@
+package distribvc.storage;
+
+import distribvc.config.GsonConfig;
+import distribvc.controller.RepositoryController;
+import distribvc.model.Commit;
+import distribvc.model.FileChange;
+import distribvc.model.Repository;
+import distribvc.service.TreeScanner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Query trigrams, regex pruning and searches through the trigram index
+ */
+class TrigramIndexTests {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void literalRunsOfRegexes() {
+        assertEquals(List.of("foobar"), TrigramIndex.requiredLiterals("foobar"));
+        // A quantifier that allows zero repetitions drops the character before it
+        assertEquals(List.of("a", "c"), TrigramIndex.requiredLiterals("ab*c"));
+        assertEquals(List.of("ab", "d"), TrigramIndex.requiredLiterals("abc?d"));
+        assertEquals(List.of("abc", "yz"), TrigramIndex.requiredLiterals("abcx{0,2}yz"));
+        // One or more keeps the character but ends the run
+        assertEquals(List.of("a", "b"), TrigramIndex.requiredLiterals("a+b"));
+        // Groups, classes and class escapes end a run without contributing to it
+        assertEquals(List.of("baz"), TrigramIndex.requiredLiterals("(foo|bar)baz"));
+        assertEquals(List.of("def"), TrigramIndex.requiredLiterals("[abc]def"));
+        assertEquals(List.of("foo", "bar"), TrigramIndex.requiredLiterals("foo\\d+bar"));
+        // Escaped punctuation is a literal
+        assertEquals(List.of("foo.bar"), TrigramIndex.requiredLiterals("foo\\.bar"));
+        assertEquals(List.of("foo", "bar"), TrigramIndex.requiredLiterals("foo.bar"));
+    }
+
+    @Test
+    void regexesWithoutReliableLiterals() {
+        assertNull(TrigramIndex.requiredLiterals("a|b"));
+        assertNull(TrigramIndex.requiredLiterals("foo|bar"));
+        assertNull(TrigramIndex.requiredLiterals("(?i)foo"));
+        assertNull(TrigramIndex.requiredLiterals("\\Qfoo\\E"));
+        assertNull(TrigramIndex.requiredLiterals("\\x41bc"));
+        assertNull(TrigramIndex.requiredLiterals("foo["));
+        assertNull(TrigramIndex.requiredLiterals("foo\\"));
+        assertNull(TrigramIndex.queryTrigrams("a|bcd", true));
+        // Runs shorter than a trigram give nothing to look up
+        assertNull(TrigramIndex.queryTrigrams("ab*cd", true));
+        assertNull(TrigramIndex.queryTrigrams("ab", false));
+    }
+
+    @Test
+    void requiredLiteralsOccurInEveryMatch() {
+        String[][] cases = {
+                {"ab*c", "ac"},
+                {"abc?d", "abd"},
+                {"abcx{0,2}yz", "abcyz"},
+                {"a+b", "aaab"},
+                {"(foo|bar)baz", "barbaz"},
+                {"foo\\d+bar", "foo42bar"},
+                {"hel+o\\s+world", "helllo   world"},
+        };
+        for (String[] c : cases) {
+            assertTrue(Pattern.compile(c[0]).matcher(c[1]).find(), c[0]);
+            for (String literal : TrigramIndex.requiredLiterals(c[0])) {
+                assertTrue(c[1].contains(literal), c[0] + " requires " + literal + " missing from " + c[1]);
+            }
+        }
+    }
+
+    @Test
+    void queryTrigramsAreCaseFolded() {
+        assertArrayEquals(TrigramIndex.queryTrigrams("hello", false), TrigramIndex.queryTrigrams("HeLLo", false));
+        assertArrayEquals(TrigramIndex.queryTrigrams("hel", false), TrigramIndex.queryTrigrams("HEL+O", true));
+        // Literal queries are split at line breaks, which no match spans
+        assertEquals(TrigramIndex.queryTrigrams("abc", false).length + TrigramIndex.queryTrigrams("xyz", false).length,
+                TrigramIndex.queryTrigrams("abc\nxyz", false).length);
+    }
+
+    @Test
+    void occurrencesAcrossCommits() throws Exception {
+        ObjectStore objectStore = new ObjectStore(tempDir.resolve("objects"), new PackStore(tempDir.resolve("packs")));
+        String first = objectStore.store("Hello World\n".getBytes(StandardCharsets.UTF_8));
+        String other = objectStore.store("goodbye\n".getBytes(StandardCharsets.UTF_8));
+        String second = objectStore.store("say HELLO again\n".getBytes(StandardCharsets.UTF_8));
+        Commit c1 = new Commit("one", null, List.of(change("a.txt", FileChange.ChangeType.ADDED, first)), "tester");
+        Commit c2 = new Commit("two", c1.getId(), List.of(change("dir/b.txt", FileChange.ChangeType.ADDED, other)), "tester");
+        Commit c3 = new Commit("three", c2.getId(), List.of(change("a.txt", FileChange.ChangeType.MODIFIED, second)), "tester");
+
+        TrigramIndex index = new TrigramIndex(tempDir.resolve("trigrams"));
+        index.add(List.of(c1, c2), objectStore);
+        index.add(List.of(c2, c3), objectStore);
+        assertEquals(3, index.getCommitCount());
+
+        List<TrigramIndex.Occurrence> hello = index.occurrences(TrigramIndex.queryTrigrams("hello", false), "");
+        assertEquals(2, hello.size());
+        assertEquals(c3.getId(), hello.get(0).getCommitId());
+        assertEquals(c1.getId(), hello.get(1).getCommitId());
+        assertEquals("a.txt", hello.get(0).getPath());
+
+        assertEquals(1, index.occurrences(TrigramIndex.queryTrigrams("goodbye", false), "dir").size());
+        assertTrue(index.occurrences(TrigramIndex.queryTrigrams("goodbye", false), "a.txt").isEmpty());
+        assertTrue(index.occurrences(TrigramIndex.queryTrigrams("missing", false), "").isEmpty());
+        assertEquals(3, index.occurrences(null, "").size());
+
+        // A fresh instance reads the same segments back from disk
+        TrigramIndex reopened = new TrigramIndex(tempDir.resolve("trigrams"));
+        assertEquals(2, reopened.occurrences(TrigramIndex.queryTrigrams("HELLO", false), "").size());
+    }
+
+    @Test
+    void searchHonoursIgnoreCase() throws Exception {
+        RepositoryController controller = new RepositoryController(new GsonConfig().gson(), new TreeScanner(true, 0),
+                0, "binary", 1 << 20, 200);
+        Path root = tempDir.resolve("repo");
+        Repository repository = controller.initRepository(root);
+        Path file = root.resolve("notes.txt");
+        for (String content : new String[]{"Hello World\n", "nothing here\n", "say HELLO again\n"}) {
+            Files.writeString(file, content);
+            controller.commit(repository, content.trim(), "tester", List.of(file));
+        }
+
+        RepositoryController.SearchResult sensitive = controller.search(repository, "hello", false, false, null, null, 0);
+        assertTrue(sensitive.getMatches().isEmpty());
+        // Both versions are candidates, since the index folds case, but neither matches exactly
+        assertEquals(2, sensitive.getCandidates());
+
+        RepositoryController.SearchResult folded = controller.search(repository, "hello", false, true, null, null, 0);
+        assertEquals(2, folded.getMatches().size());
+        assertEquals("say HELLO again", folded.getMatches().get(0).getLine());
+        assertEquals("Hello World", folded.getMatches().get(1).getLine());
+
+        RepositoryController.SearchResult regex = controller.search(repository, "hel+o\\s+w", true, true, null, null, 0);
+        assertEquals(1, regex.getMatches().size());
+        RepositoryController.SearchResult alternation = controller.search(repository, "nothing|again", true, false, null, null, 0);
+        assertEquals(2, alternation.getMatches().size());
+    }
+
+    private static FileChange change(String path, FileChange.ChangeType type, String hash) {
+        return new FileChange(Paths.get(path), type, hash);
+    }
+}